@@ -1,13 +1,22 @@
 package com.psddev.dari.aws;
 
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.internal.StaticCredentialsProvider;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.S3ClientOptions;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.psddev.dari.util.AbstractStorageItem;
 import com.psddev.dari.util.ObjectUtils;
 import com.psddev.dari.util.StorageItemOriginUrl;
@@ -15,8 +24,19 @@ import com.psddev.dari.util.SettingsException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * {@link com.psddev.dari.util.StorageItem} implementation that uses
@@ -50,11 +70,78 @@ public class S3StorageItem extends AbstractStorageItem implements StorageItemOri
      */
     public static final String CANNED_ACCESS_CONTROL_LIST_SETTING = "cannedAccessControlList";
 
+    /**
+     * Sub-setting key for the S3 endpoint, which can point to an
+     * S3-compatible server, such as a local stand-in for tests.
+     */
+    public static final String ENDPOINT_SUB_SETTING = "endpoint";
+
+    /**
+     * Sub-setting key for whether the bucket should be in the path instead
+     * of the host name, which most S3-compatible servers require.
+     */
+    public static final String PATH_STYLE_ACCESS_SUB_SETTING = "pathStyleAccess";
+
+    /**
+     * Sub-setting key for the maximum number of the HTTP connections to S3.
+     */
+    public static final String MAXIMUM_CONNECTIONS_SUB_SETTING = "maximumConnections";
+
+    /**
+     * Sub-setting key for the maximum number of the objects whose metadata
+     * is cached. The metadata isn't cached by default.
+     */
+    public static final String METADATA_CACHE_SIZE_SUB_SETTING = "metadataCacheSize";
+
+    /**
+     * Sub-setting key for how long the object metadata is cached in
+     * seconds.
+     */
+    public static final String METADATA_CACHE_DURATION_SUB_SETTING = "metadataCacheDuration";
+
+    /**
+     * Sub-setting key for the size in bytes at or above which the data is
+     * uploaded in multiple parts in parallel.
+     */
+    public static final String MULTIPART_THRESHOLD_SUB_SETTING = "multipartThreshold";
+
+    /**
+     * Sub-setting key for the size in bytes of each part in a multipart
+     * upload.
+     */
+    public static final String MULTIPART_PART_SIZE_SUB_SETTING = "multipartPartSize";
+
+    /**
+     * Sub-setting key for the number of threads that upload the parts.
+     */
+    public static final String UPLOAD_THREADS_SUB_SETTING = "uploadThreads";
+
+    private static final int DEFAULT_MAXIMUM_CONNECTIONS = ClientConfiguration.DEFAULT_MAX_CONNECTIONS;
+    private static final long DEFAULT_METADATA_CACHE_DURATION = 60L;
+    private static final long DEFAULT_MULTIPART_THRESHOLD = 16L * 1024L * 1024L;
+    private static final long DEFAULT_MULTIPART_PART_SIZE = 8L * 1024L * 1024L;
+    private static final int DEFAULT_UPLOAD_THREADS = 10;
+
+    // Clients are expensive to create since each one has its own
+    // connection pool, so they're shared by all items in the same storage
+    // for as long as its settings stay the same. They're only shut down
+    // when the settings change and replace them.
+    private static final ConcurrentMap<String, Clients> CLIENTS = new ConcurrentHashMap<>();
+
+    private transient String settingsKey;
     private transient String secret;
     private transient String bucket;
     private transient String access;
     private transient String originBaseUrl;
     private transient CannedAccessControlList cannedAccessControlList;
+    private transient String endpoint;
+    private transient boolean pathStyleAccess;
+    private transient int maximumConnections = DEFAULT_MAXIMUM_CONNECTIONS;
+    private transient long metadataCacheSize;
+    private transient long metadataCacheDuration = DEFAULT_METADATA_CACHE_DURATION;
+    private transient long multipartThreshold = DEFAULT_MULTIPART_THRESHOLD;
+    private transient long multipartPartSize = DEFAULT_MULTIPART_PART_SIZE;
+    private transient int uploadThreads = DEFAULT_UPLOAD_THREADS;
 
     public String getBucket() {
         return bucket;
@@ -96,10 +183,76 @@ public class S3StorageItem extends AbstractStorageItem implements StorageItemOri
         this.cannedAccessControlList = cannedAccessControlList;
     }
 
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public void setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    public boolean isPathStyleAccess() {
+        return pathStyleAccess;
+    }
+
+    public void setPathStyleAccess(boolean pathStyleAccess) {
+        this.pathStyleAccess = pathStyleAccess;
+    }
+
+    public int getMaximumConnections() {
+        return maximumConnections;
+    }
+
+    public void setMaximumConnections(int maximumConnections) {
+        this.maximumConnections = maximumConnections;
+    }
+
+    public long getMetadataCacheSize() {
+        return metadataCacheSize;
+    }
+
+    public void setMetadataCacheSize(long metadataCacheSize) {
+        this.metadataCacheSize = metadataCacheSize;
+    }
+
+    public long getMetadataCacheDuration() {
+        return metadataCacheDuration;
+    }
+
+    public void setMetadataCacheDuration(long metadataCacheDuration) {
+        this.metadataCacheDuration = metadataCacheDuration;
+    }
+
+    public long getMultipartThreshold() {
+        return multipartThreshold;
+    }
+
+    public void setMultipartThreshold(long multipartThreshold) {
+        this.multipartThreshold = multipartThreshold;
+    }
+
+    public long getMultipartPartSize() {
+        return multipartPartSize;
+    }
+
+    public void setMultipartPartSize(long multipartPartSize) {
+        this.multipartPartSize = multipartPartSize;
+    }
+
+    public int getUploadThreads() {
+        return uploadThreads;
+    }
+
+    public void setUploadThreads(int uploadThreads) {
+        this.uploadThreads = uploadThreads;
+    }
+
     @Override
     public void initialize(String settingsKey, Map<String, Object> settings) {
         super.initialize(settingsKey, settings);
 
+        this.settingsKey = settingsKey;
+
         setBucket(ObjectUtils.to(String.class, settings.get(BUCKET_SUB_SETTING)));
 
         if (ObjectUtils.isBlank(getBucket())) {
@@ -110,20 +263,62 @@ public class S3StorageItem extends AbstractStorageItem implements StorageItemOri
         setSecret(ObjectUtils.to(String.class, settings.get(SECRET_SUB_SETTING)));
         setOriginBaseUrl(ObjectUtils.to(String.class, settings.get(ORIGIN_BASE_URL_SUB_SETTING)));
         setCannedAccessControlList(ObjectUtils.to(CannedAccessControlList.class, settings.get(CANNED_ACCESS_CONTROL_LIST_SETTING)));
+        setEndpoint(ObjectUtils.to(String.class, settings.get(ENDPOINT_SUB_SETTING)));
+        setPathStyleAccess(ObjectUtils.to(boolean.class, settings.get(PATH_STYLE_ACCESS_SUB_SETTING)));
+        setMaximumConnections(ObjectUtils.firstNonNull(ObjectUtils.to(Integer.class, settings.get(MAXIMUM_CONNECTIONS_SUB_SETTING)), DEFAULT_MAXIMUM_CONNECTIONS));
+        setMetadataCacheSize(ObjectUtils.to(long.class, settings.get(METADATA_CACHE_SIZE_SUB_SETTING)));
+        setMetadataCacheDuration(ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(METADATA_CACHE_DURATION_SUB_SETTING)), DEFAULT_METADATA_CACHE_DURATION));
+        setMultipartThreshold(ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(MULTIPART_THRESHOLD_SUB_SETTING)), DEFAULT_MULTIPART_THRESHOLD));
+        setMultipartPartSize(ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(MULTIPART_PART_SIZE_SUB_SETTING)), DEFAULT_MULTIPART_PART_SIZE));
+        setUploadThreads(ObjectUtils.firstNonNull(ObjectUtils.to(Integer.class, settings.get(UPLOAD_THREADS_SUB_SETTING)), DEFAULT_UPLOAD_THREADS));
     }
 
-    private AmazonS3Client createClient() {
-        String access = getAccess();
-        String secret = getSecret();
+    // Visible for testing.
+    Clients getClients() {
+        List<Object> configuration = Arrays.asList(
+                getAccess(),
+                getSecret(),
+                getEndpoint(),
+                isPathStyleAccess(),
+                getMaximumConnections(),
+                getMetadataCacheSize(),
+                getMetadataCacheDuration(),
+                getMultipartThreshold(),
+                getMultipartPartSize(),
+                getUploadThreads());
+
+        String key = String.valueOf(settingsKey);
+        Clients clients = CLIENTS.get(key);
+
+        if (clients != null && clients.configuration.equals(configuration)) {
+            return clients;
+        }
+
+        Clients[] replaced = new Clients[1];
+
+        clients = CLIENTS.compute(key, (k, existing) -> {
+            if (existing != null && existing.configuration.equals(configuration)) {
+                return existing;
+            }
+
+            replaced[0] = existing;
+            return new Clients(this, configuration);
+        });
+
+        if (replaced[0] != null) {
+            replaced[0].shutdown();
+        }
+
+        return clients;
+    }
 
-        return !ObjectUtils.isBlank(access) && !ObjectUtils.isBlank(secret)
-                ? new AmazonS3Client(new BasicAWSCredentials(access, secret))
-                : new AmazonS3Client(new DefaultAWSCredentialsProviderChain());
+    private List<String> getMetadataCacheKey() {
+        return Arrays.asList(getBucket(), getPath());
     }
 
     @Override
     protected InputStream createData() throws IOException {
-        return createClient().getObject(getBucket(), getPath()).getObjectContent();
+        return getClients().client.getObject(getBucket(), getPath()).getObjectContent();
     }
 
     @Override
@@ -152,21 +347,108 @@ public class S3StorageItem extends AbstractStorageItem implements StorageItemOri
             });
         }
 
-        PutObjectRequest poRequest = new PutObjectRequest(getBucket(), getPath(), data, metadata);
-        poRequest.setCannedAcl(ObjectUtils.firstNonNull(getCannedAccessControlList(), CannedAccessControlList.PublicRead));
-        createClient().putObject(poRequest);
+        Clients clients = getClients();
+        CannedAccessControlList acl = ObjectUtils.firstNonNull(getCannedAccessControlList(), CannedAccessControlList.PublicRead);
+
+        try {
+            if (clients.metadataCache != null) {
+                clients.metadataCache.invalidate(getMetadataCacheKey());
+            }
+
+            upload(clients, data, metadata, acl);
+
+        } finally {
+
+            // Again, since a concurrent read may have cached the old
+            // metadata while uploading.
+            if (clients.metadataCache != null) {
+                clients.metadataCache.invalidate(getMetadataCacheKey());
+            }
+        }
     }
 
-    @Override
-    public boolean isInStorage() {
+    private void upload(Clients clients, InputStream data, ObjectMetadata metadata, CannedAccessControlList acl) throws IOException {
+
+        // Data with a known length can be streamed directly, in parts if
+        // it's large.
+        if (metadata.getRawMetadataValue(Headers.CONTENT_LENGTH) != null) {
+            PutObjectRequest poRequest = new PutObjectRequest(getBucket(), getPath(), data, metadata);
+            poRequest.setCannedAcl(acl);
+
+            if (metadata.getContentLength() < getMultipartThreshold()) {
+                clients.client.putObject(poRequest);
+
+            } else {
+                transfer(clients, poRequest);
+            }
+
+            return;
+        }
+
+        // Otherwise, spool to a file to find the length, which also lets the
+        // transfer manager upload the parts in parallel instead of
+        // buffering the data in memory.
+        Path file = Files.createTempFile("dari-s3-", ".tmp");
+
         try {
-            createClient().getObjectMetadata(getBucket(), getPath());
+            Files.copy(data, file, StandardCopyOption.REPLACE_EXISTING);
+            metadata.setContentLength(Files.size(file));
 
-            return true;
+            PutObjectRequest poRequest = new PutObjectRequest(getBucket(), getPath(), file.toFile());
+            poRequest.setMetadata(metadata);
+            poRequest.setCannedAcl(acl);
+            transfer(clients, poRequest);
+
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private void transfer(Clients clients, PutObjectRequest poRequest) throws IOException {
+        try {
+            clients.transferManager.upload(poRequest).waitForUploadResult();
+
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format("Interrupted while uploading [%s] to S3!", getPath()));
+        }
+    }
+
+    /**
+     * Returns the metadata of the object in S3, which may be cached
+     * according to the {@value #METADATA_CACHE_SIZE_SUB_SETTING} and
+     * {@value #METADATA_CACHE_DURATION_SUB_SETTING} sub-settings.
+     *
+     * @return {@code null} if the object doesn't exist.
+     */
+    public ObjectMetadata getObjectMetadata() {
+        Clients clients = getClients();
+
+        if (clients.metadataCache == null) {
+            return fetchObjectMetadata(clients);
+        }
+
+        try {
+            return clients.metadataCache
+                    .get(getMetadataCacheKey(), () -> Optional.ofNullable(fetchObjectMetadata(clients)))
+                    .orElse(null);
+
+        } catch (ExecutionException error) {
+            Throwable cause = error.getCause();
+
+            throw cause instanceof RuntimeException
+                    ? (RuntimeException) cause
+                    : new IllegalStateException(cause);
+        }
+    }
+
+    private ObjectMetadata fetchObjectMetadata(Clients clients) {
+        try {
+            return clients.client.getObjectMetadata(getBucket(), getPath());
 
         } catch (AmazonServiceException error) {
             if (error.getStatusCode() == 404) {
-                return false;
+                return null;
 
             } else {
                 throw error;
@@ -174,6 +456,11 @@ public class S3StorageItem extends AbstractStorageItem implements StorageItemOri
         }
     }
 
+    @Override
+    public boolean isInStorage() {
+        return getObjectMetadata() != null;
+    }
+
     @Override
     public String getOriginUrl() {
         if (ObjectUtils.isBlank(getOriginBaseUrl())) {
@@ -183,4 +470,62 @@ public class S3StorageItem extends AbstractStorageItem implements StorageItemOri
         return createPublicUrl(getOriginBaseUrl(), getPath());
     }
 
+    /** S3 client and the related objects that are shared by the items. */
+    static final class Clients {
+
+        public final List<Object> configuration;
+        public final AmazonS3Client client;
+        public final TransferManager transferManager;
+        public final Cache<List<String>, Optional<ObjectMetadata>> metadataCache;
+
+        public Clients(S3StorageItem item, List<Object> configuration) {
+            this.configuration = configuration;
+
+            String access = item.getAccess();
+            String secret = item.getSecret();
+            AWSCredentialsProvider credentials = !ObjectUtils.isBlank(access) && !ObjectUtils.isBlank(secret)
+                    ? new StaticCredentialsProvider(new BasicAWSCredentials(access, secret))
+                    : new DefaultAWSCredentialsProviderChain();
+
+            ClientConfiguration clientConfiguration = new ClientConfiguration();
+            clientConfiguration.setMaxConnections(item.getMaximumConnections());
+
+            client = new AmazonS3Client(credentials, clientConfiguration);
+
+            if (!ObjectUtils.isBlank(item.getEndpoint())) {
+                client.setEndpoint(item.getEndpoint());
+            }
+
+            if (item.isPathStyleAccess()) {
+                client.setS3ClientOptions(new S3ClientOptions().withPathStyleAccess(true));
+            }
+
+            TransferManagerConfiguration transferConfiguration = new TransferManagerConfiguration();
+            transferConfiguration.setMultipartUploadThreshold(item.getMultipartThreshold());
+            transferConfiguration.setMinimumUploadPartSize(item.getMultipartPartSize());
+
+            transferManager = new TransferManager(
+                    client,
+                    Executors.newFixedThreadPool(
+                            Math.max(1, item.getUploadThreads()),
+                            new ThreadFactoryBuilder()
+                                    .setDaemon(true)
+                                    .setNameFormat("dari-s3-upload-%d")
+                                    .build()));
+
+            transferManager.setConfiguration(transferConfiguration);
+
+            metadataCache = item.getMetadataCacheSize() > 0
+                    ? CacheBuilder.newBuilder()
+                            .maximumSize(item.getMetadataCacheSize())
+                            .expireAfterWrite(item.getMetadataCacheDuration(), TimeUnit.SECONDS)
+                            .build()
+                    : null;
+        }
+
+        // Also shuts down the client and its connection pool.
+        public void shutdown() {
+            transferManager.shutdownNow(true);
+        }
+    }
 }
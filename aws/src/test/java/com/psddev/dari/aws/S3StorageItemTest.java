@@ -0,0 +1,69 @@
+package com.psddev.dari.aws;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class S3StorageItemTest {
+
+    private S3StorageItem create(String endpoint, Boolean pathStyleAccess) {
+        return create("s3", endpoint, pathStyleAccess);
+    }
+
+    private S3StorageItem create(String settingsKey, String endpoint, Boolean pathStyleAccess) {
+        Map<String, Object> settings = new HashMap<>();
+
+        settings.put(S3StorageItem.BUCKET_SUB_SETTING, "bucket");
+        settings.put(S3StorageItem.ACCESS_SUB_SETTING, "access");
+        settings.put(S3StorageItem.SECRET_SUB_SETTING, "secret");
+        settings.put(S3StorageItem.ENDPOINT_SUB_SETTING, endpoint);
+        settings.put(S3StorageItem.PATH_STYLE_ACCESS_SUB_SETTING, pathStyleAccess);
+
+        S3StorageItem item = new S3StorageItem();
+
+        item.initialize(settingsKey, settings);
+        return item;
+    }
+
+    @Test
+    public void endpointWithPathStyleAccess() {
+        S3StorageItem item = create("http://localhost:9000", true);
+
+        assertEquals("http://localhost:9000", item.getEndpoint());
+        assertTrue(item.isPathStyleAccess());
+        assertEquals("http://localhost:9000/bucket/a/b.txt", item.getClients().client.getResourceUrl("bucket", "a/b.txt"));
+    }
+
+    @Test
+    public void endpointWithVirtualHostedAccess() {
+        S3StorageItem item = create("https://s3.example.com", null);
+
+        assertEquals("https://bucket.s3.example.com/a/b.txt", item.getClients().client.getResourceUrl("bucket", "a/b.txt"));
+    }
+
+    @Test
+    public void clientsSharedByStorage() {
+        S3StorageItem first = create("shared", "http://localhost:9000", true);
+        S3StorageItem second = create("shared", "http://localhost:9000", true);
+        S3StorageItem other = create("other", "http://localhost:9000", true);
+
+        assertSame(first.getClients(), second.getClients());
+        assertNotSame(first.getClients(), other.getClients());
+    }
+
+    @Test
+    public void clientsReplacedOnSettingsChange() {
+        S3StorageItem before = create("changed", "http://localhost:9000", true);
+        S3StorageItem.Clients clients = before.getClients();
+        S3StorageItem after = create("changed", "http://localhost:9001", true);
+
+        assertNotSame(clients, after.getClients());
+        assertSame(after.getClients(), create("changed", "http://localhost:9001", true).getClients());
+    }
+}
@@ -564,6 +564,8 @@ public abstract class AbstractDatabase<C> implements Database {
     @Override
     public <T> PaginatedResult<Grouping<T>> readPartialGrouped(Query<T> query, long offset, int limit, String... fields) {
         Map<List<Object>, BasicGrouping<T>> groupingsMap = new CompactMap<List<Object>, BasicGrouping<T>>();
+        List<String> aggregateFields = AbstractGrouping.getAggregateFields(query);
+
         for (Object item : readIterable(query, 0)) {
 
             State itemState = State.getInstance(item);
@@ -602,6 +604,10 @@ public abstract class AbstractDatabase<C> implements Database {
             }
 
             grouping.count += 1;
+
+            for (String aggregateField : aggregateFields) {
+                grouping.prefetchAggregate(aggregateField).add(itemState.getByPath(aggregateField));
+            }
         }
 
         List<Grouping<T>> groupings = new ArrayList<Grouping<T>>(groupingsMap.values());
@@ -638,20 +644,7 @@ public abstract class AbstractDatabase<C> implements Database {
                     }
                 }
 
-                aggregate.setNonNullCount(aggregate.getNonNullCount() + 1);
-
-                if (ObjectUtils.compare(aggregate.getMaximum(), value, false) < 0) {
-                    aggregate.setMaximum(value);
-                }
-
-                if (ObjectUtils.compare(aggregate.getMinimum(), value, true) > 0) {
-                    aggregate.setMinimum(value);
-                }
-
-                Double valueDouble = ObjectUtils.to(Double.class, value);
-                if (valueDouble != null) {
-                    aggregate.setSum(aggregate.getSum() + valueDouble);
-                }
+                aggregate.add(value);
             }
 
             return aggregate;
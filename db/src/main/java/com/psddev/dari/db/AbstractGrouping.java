@@ -1,13 +1,17 @@
 package com.psddev.dari.db;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.psddev.dari.util.CompactMap;
 import com.psddev.dari.util.HtmlObject;
 import com.psddev.dari.util.HtmlWriter;
+import com.psddev.dari.util.ObjectUtils;
 
 public abstract class AbstractGrouping<T> implements Grouping<T>, HtmlObject {
 
@@ -42,8 +46,63 @@ public abstract class AbstractGrouping<T> implements Grouping<T>, HtmlObject {
         return createItemsQuery();
     }
 
+    /**
+     * Returns the names of the fields whose aggregates should be fetched
+     * along with the groupings for the given {@code query}.
+     *
+     * @param query Nonnull.
+     * @return Nonnull.
+     * @see Grouping#AGGREGATE_FIELDS_QUERY_OPTION
+     */
+    public static List<String> getAggregateFields(Query<?> query) {
+        Object option = query.getOptions().get(Grouping.AGGREGATE_FIELDS_QUERY_OPTION);
+        Set<String> fields = new LinkedHashSet<String>();
+
+        if (option instanceof Iterable) {
+            for (Object item : (Iterable<?>) option) {
+                fields.add(ObjectUtils.to(String.class, item));
+            }
+
+        } else if (option instanceof Object[]) {
+            for (Object item : (Object[]) option) {
+                fields.add(ObjectUtils.to(String.class, item));
+            }
+
+        } else if (option != null) {
+            fields.add(ObjectUtils.to(String.class, option));
+        }
+
+        List<String> aggregateFields = new ArrayList<String>();
+
+        for (String field : fields) {
+            if (!ObjectUtils.isBlank(field)) {
+                aggregateFields.add(field);
+            }
+        }
+
+        return aggregateFields;
+    }
+
     protected abstract Aggregate createAggregate(String field);
 
+    /**
+     * Returns the aggregate for the given {@code field}, creating an empty
+     * one if necessary, so that it can be filled in with the values that
+     * were fetched along with this grouping instead of calling
+     * {@link #createAggregate}.
+     *
+     * @param field Nonnull.
+     * @return Nonnull.
+     */
+    protected Aggregate prefetchAggregate(String field) {
+        Aggregate aggregate = aggregates.get(field);
+        if (aggregate == null) {
+            aggregate = new Aggregate();
+            aggregates.put(field, aggregate);
+        }
+        return aggregate;
+    }
+
     private Aggregate getAggregate(String field) {
         Aggregate aggregate = aggregates.get(field);
         if (aggregate == null) {
@@ -163,6 +222,32 @@ public abstract class AbstractGrouping<T> implements Grouping<T>, HtmlObject {
             this.sum = sum;
         }
 
+        /**
+         * Adds the given {@code value} to this aggregate.
+         *
+         * @param value If {@code null}, does nothing.
+         */
+        public void add(Object value) {
+            if (value == null) {
+                return;
+            }
+
+            setNonNullCount(getNonNullCount() + 1);
+
+            if (ObjectUtils.compare(getMaximum(), value, false) < 0) {
+                setMaximum(value);
+            }
+
+            if (ObjectUtils.compare(getMinimum(), value, true) > 0) {
+                setMinimum(value);
+            }
+
+            Double valueDouble = ObjectUtils.to(Double.class, value);
+            if (valueDouble != null) {
+                setSum(getSum() + valueDouble);
+            }
+        }
+
         // --- Object support ---
 
         @Override
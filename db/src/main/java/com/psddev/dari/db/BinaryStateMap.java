@@ -0,0 +1,170 @@
+package com.psddev.dari.db;
+
+import com.psddev.dari.util.CompactMap;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Internal map implementation that decodes the top-level values from
+ * {@link BinaryStateSerializer} data only when they're first accessed.
+ *
+ * <p>Reading a single key, such as {@link StateSerializer#TYPE_KEY}, only
+ * decodes that value, and iterating over the entries decodes each value as
+ * it's reached. Modifying the map decodes everything into a regular map
+ * first.</p>
+ *
+ * <p>This class is thread-safe so that a deserialized instance can be
+ * shared through a cache.</p>
+ */
+class BinaryStateMap extends AbstractMap<String, Object> {
+
+    private static final Object UNDECODED = new Object();
+
+    private final byte[] data;
+    private final String[] names;
+    private final String[] keys;
+    private final int[] offsets;
+    private final Object[] values;
+    private Map<String, Object> decoded;
+
+    public BinaryStateMap(byte[] data, String[] names, String[] keys, int[] offsets) {
+        this.data = data;
+        this.names = names;
+        this.keys = keys;
+        this.offsets = offsets;
+        this.values = new Object[keys.length];
+
+        for (int i = 0, length = values.length; i < length; ++ i) {
+            values[i] = UNDECODED;
+        }
+    }
+
+    private int indexOf(Object key) {
+        for (int i = 0, length = keys.length; i < length; ++ i) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private Object decode(int index) {
+        Object value = values[index];
+
+        if (value == UNDECODED) {
+            value = BinaryStateSerializer.readValue(data, names, offsets[index]);
+            values[index] = value;
+        }
+
+        return value;
+    }
+
+    private Map<String, Object> decodeAll() {
+        if (decoded == null) {
+            decoded = new CompactMap<>(keys.length);
+
+            for (int i = 0, length = keys.length; i < length; ++ i) {
+                decoded.put(keys[i], decode(i));
+            }
+        }
+
+        return decoded;
+    }
+
+    // --- AbstractMap support ---
+
+    @Override
+    public synchronized int size() {
+        return decoded != null ? decoded.size() : keys.length;
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        return decoded != null ? decoded.containsKey(key) : indexOf(key) > -1;
+    }
+
+    @Override
+    public synchronized Object get(Object key) {
+        if (decoded != null) {
+            return decoded.get(key);
+        }
+
+        int index = indexOf(key);
+
+        return index > -1 ? decode(index) : null;
+    }
+
+    @Override
+    public synchronized Object put(String key, Object value) {
+        return decodeAll().put(key, value);
+    }
+
+    @Override
+    public synchronized Object remove(Object key) {
+        return decodeAll().remove(key);
+    }
+
+    @Override
+    public synchronized void clear() {
+        decodeAll().clear();
+    }
+
+    @Override
+    public synchronized Set<Map.Entry<String, Object>> entrySet() {
+        return decoded != null ? decoded.entrySet() : new EntrySet();
+    }
+
+    // Decodes the values as they're iterated so that they can be copied
+    // somewhere else without building an intermediate map.
+    private class EntrySet extends AbstractSet<Map.Entry<String, Object>> {
+
+        @Override
+        public Iterator<Map.Entry<String, Object>> iterator() {
+            return new Iterator<Map.Entry<String, Object>>() {
+
+                private int index;
+
+                @Override
+                public boolean hasNext() {
+                    return index < keys.length;
+                }
+
+                @Override
+                public Map.Entry<String, Object> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+
+                    int current = index ++;
+                    Object value;
+
+                    synchronized (BinaryStateMap.this) {
+                        value = decode(current);
+                    }
+
+                    return new SimpleEntry<String, Object>(keys[current], value) {
+
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        public Object setValue(Object value) {
+                            put(getKey(), value);
+                            return super.setValue(value);
+                        }
+                    };
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return keys.length;
+        }
+    }
+}
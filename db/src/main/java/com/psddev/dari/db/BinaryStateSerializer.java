@@ -0,0 +1,353 @@
+package com.psddev.dari.db;
+
+import com.psddev.dari.util.CompactMap;
+import com.psddev.dari.util.ObjectUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Compact binary alternative to the JSON format used by
+ * {@link StateSerializer}.
+ *
+ * <p>The data starts with the {@link #VERSION} byte, which can never be the
+ * first byte of a JSON document, so that both formats can be read from the
+ * same column. It's followed by a table of all map keys so that each name is
+ * only stored once, and then by the top-level fields, each prefixed with its
+ * length so that they can be {@linkplain BinaryStateMap decoded on demand}.
+ * UUID strings and numbers are stored natively.</p>
+ *
+ * <p>Decoded values use the same types that {@link ObjectUtils#fromJson}
+ * would produce for the equivalent JSON.</p>
+ */
+final class BinaryStateSerializer {
+
+    public static final byte VERSION = 1;
+
+    private static final int NULL_TAG = 0;
+    private static final int TRUE_TAG = 1;
+    private static final int FALSE_TAG = 2;
+    private static final int LONG_TAG = 3;
+    private static final int DOUBLE_TAG = 4;
+    private static final int STRING_TAG = 5;
+    private static final int UUID_TAG = 6;
+    private static final int LIST_TAG = 7;
+    private static final int MAP_TAG = 8;
+
+    private BinaryStateSerializer() {
+    }
+
+    /**
+     * Returns {@code true} if the given {@code data} was produced by
+     * {@link #serialize}.
+     *
+     * @param data Nonnull.
+     */
+    public static boolean isBinary(byte[] data) {
+        return data.length > 0 && data[0] == VERSION;
+    }
+
+    /**
+     * Serializes the given {@code values} into a byte array.
+     *
+     * @param values Nonnull.
+     * @return Nonnull.
+     */
+    public static byte[] serialize(Map<String, Object> values) {
+        Map<String, Integer> names = new LinkedHashMap<>();
+        Output body = new Output();
+        Output value = new Output();
+
+        body.writeVarint(values.size());
+
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            value.reset();
+            writeValue(value, names, entry.getValue());
+            body.writeVarint(nameIndex(names, entry.getKey()));
+            body.writeVarint(value.size());
+            value.writeTo(body);
+        }
+
+        Output output = new Output();
+
+        output.write(VERSION);
+        output.writeVarint(names.size());
+
+        for (String name : names.keySet()) {
+            output.writeString(name);
+        }
+
+        body.writeTo(output);
+        return output.toByteArray();
+    }
+
+    // Returns the index of the given name in the table, adding it if
+    // necessary.
+    private static int nameIndex(Map<String, Integer> names, String name) {
+        return names.computeIfAbsent(name, n -> names.size());
+    }
+
+    private static void writeValue(Output output, Map<String, Integer> names, Object value) {
+        if (value == null) {
+            output.write(NULL_TAG);
+
+        } else if (value instanceof Boolean) {
+            output.write((Boolean) value ? TRUE_TAG : FALSE_TAG);
+
+        } else if (value instanceof Long
+                || value instanceof Integer
+                || value instanceof Short
+                || value instanceof Byte) {
+
+            output.write(LONG_TAG);
+            output.writeZigZag(((Number) value).longValue());
+
+        } else if (value instanceof Double
+                || value instanceof Float) {
+
+            output.write(DOUBLE_TAG);
+            output.writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+
+        } else if (value instanceof String) {
+            String string = (String) value;
+            UUID uuid = string.length() == 36 ? ObjectUtils.to(UUID.class, string) : null;
+
+            if (uuid != null && uuid.toString().equals(string)) {
+                output.write(UUID_TAG);
+                output.writeLong(uuid.getMostSignificantBits());
+                output.writeLong(uuid.getLeastSignificantBits());
+
+            } else {
+                output.write(STRING_TAG);
+                output.writeString(string);
+            }
+
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+
+            output.write(MAP_TAG);
+            output.writeVarint(map.size());
+
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                output.writeVarint(nameIndex(names, String.valueOf(entry.getKey())));
+                writeValue(output, names, entry.getValue());
+            }
+
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+
+            output.write(LIST_TAG);
+            output.writeVarint(list.size());
+
+            for (Object item : list) {
+                writeValue(output, names, item);
+            }
+
+        } else {
+            // Anything else should be stored exactly like the JSON format
+            // would.
+            writeValue(output, names, ObjectUtils.fromJson(ObjectUtils.toJson(value)));
+        }
+    }
+
+    /**
+     * Deserializes the given {@code data}, which must have been produced by
+     * {@link #serialize}, into a map that decodes each value only when it's
+     * first accessed.
+     *
+     * @param data Nonnull.
+     * @return Nonnull.
+     */
+    public static Map<String, Object> deserialize(byte[] data) {
+        Input input = new Input(data, 1);
+        String[] names = new String[input.readVarint()];
+
+        for (int i = 0, length = names.length; i < length; ++ i) {
+            names[i] = input.readString();
+        }
+
+        int size = input.readVarint();
+        String[] keys = new String[size];
+        int[] offsets = new int[size];
+
+        for (int i = 0; i < size; ++ i) {
+            keys[i] = names[input.readVarint()];
+            int length = input.readVarint();
+            offsets[i] = input.position;
+            input.position += length;
+        }
+
+        return new BinaryStateMap(data, names, keys, offsets);
+    }
+
+    /**
+     * Decodes the value at the given {@code offset} within the given
+     * {@code data}.
+     *
+     * @param data Nonnull.
+     * @param names Nonnull.
+     * @return Nullable.
+     */
+    static Object readValue(byte[] data, String[] names, int offset) {
+        return readValue(new Input(data, offset), names);
+    }
+
+    private static Object readValue(Input input, String[] names) {
+        int tag = input.read();
+
+        switch (tag) {
+            case NULL_TAG :
+                return null;
+
+            case TRUE_TAG :
+                return Boolean.TRUE;
+
+            case FALSE_TAG :
+                return Boolean.FALSE;
+
+            case LONG_TAG :
+                return input.readZigZag();
+
+            case DOUBLE_TAG :
+                return Double.longBitsToDouble(input.readLong());
+
+            case STRING_TAG :
+                return input.readString();
+
+            case UUID_TAG :
+                return new UUID(input.readLong(), input.readLong()).toString();
+
+            case LIST_TAG :
+                int listSize = input.readVarint();
+                List<Object> list = new ArrayList<>(listSize);
+
+                for (int i = 0; i < listSize; ++ i) {
+                    list.add(readValue(input, names));
+                }
+
+                return list;
+
+            case MAP_TAG :
+                int mapSize = input.readVarint();
+                Map<String, Object> map = new CompactMap<>(mapSize);
+
+                for (int i = 0; i < mapSize; ++ i) {
+                    String key = names[input.readVarint()];
+                    map.put(key, readValue(input, names));
+                }
+
+                return map;
+
+            default :
+                throw new IllegalArgumentException(String.format(
+                        "Unknown tag [%s] at [%s]!",
+                        tag, input.position - 1));
+        }
+    }
+
+    private static final class Output extends ByteArrayOutputStream {
+
+        public void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            write(value);
+        }
+
+        public void writeZigZag(long value) {
+            long zigZag = (value << 1) ^ (value >> 63);
+
+            while ((zigZag & ~0x7FL) != 0) {
+                write((int) ((zigZag & 0x7F) | 0x80));
+                zigZag >>>= 7;
+            }
+
+            write((int) zigZag);
+        }
+
+        public void writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int) (value >>> shift));
+            }
+        }
+
+        public void writeString(String string) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        public void writeTo(Output output) {
+            output.write(buf, 0, count);
+        }
+    }
+
+    private static final class Input {
+
+        private final byte[] data;
+        private int position;
+
+        public Input(byte[] data, int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        public int read() {
+            return data[position ++] & 0xFF;
+        }
+
+        public int readVarint() {
+            int value = 0;
+            int shift = 0;
+            int b;
+
+            do {
+                b = read();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            return value;
+        }
+
+        public long readZigZag() {
+            long zigZag = 0;
+            int shift = 0;
+            int b;
+
+            do {
+                b = read();
+                zigZag |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            return (zigZag >>> 1) ^ -(zigZag & 1);
+        }
+
+        public long readLong() {
+            long value = 0;
+
+            for (int i = 0; i < 8; ++ i) {
+                value = (value << 8) | read();
+            }
+
+            return value;
+        }
+
+        public String readString() {
+            int length = readVarint();
+            String string = new String(data, position, length, StandardCharsets.UTF_8);
+
+            position += length;
+            return string;
+        }
+    }
+}
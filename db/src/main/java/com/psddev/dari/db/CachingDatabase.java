@@ -1,6 +1,8 @@
 package com.psddev.dari.db;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -11,6 +13,7 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalNotification;
 import com.psddev.dari.util.ObjectUtils;
 import com.psddev.dari.util.PaginatedResult;
 import com.psddev.dari.util.Settings;
@@ -34,6 +37,13 @@ PaginatedResult<Article> result = Query.from(Article.class).using(caching).selec
  * <li>{@code Query.from(Article.class).using(caching).where("_id = ?", result.getItems().get(0));}</li>
  * </ul>
  *
+ * <p>If the {@value #INVALIDATION_SETTING} {@linkplain Settings setting}
+ * is {@code true}, the instance also subscribes to the
+ * {@linkplain InvalidationBus.Static#getDefault default invalidation bus}
+ * so that the cached objects and query results that depend on a changed
+ * type or object are evicted, which allows it to be kept around for much
+ * longer than a single request.</p>
+ *
  * <p>All methods are thread-safe.</p>
  */
 public class CachingDatabase extends ForwardingDatabase {
@@ -41,14 +51,16 @@ public class CachingDatabase extends ForwardingDatabase {
     private static final String CACHE_SIZE_SETTING = "dari/cachingDatabaseMaximumSize";
     private static final long DEFAULT_CACHE_SIZE = 1000L;
 
+    public static final String INVALIDATION_SETTING = "dari/cachingDatabaseInvalidation";
+
     private static final Object MISSING = new Object();
 
     private final Cache<UUID, Object> objectCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).build();
     private final Cache<UUID, Object> referenceCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).build();
-    private final Cache<Query<?>, List<?>> readAllCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).build();
-    private final Cache<Query<?>, Long> readCountCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).build();
-    private final Cache<Query<?>, Object> readFirstCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).build();
-    private final LoadingCache<Query<?>, Map<Range, PaginatedResult<?>>> readPartialCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).build(
+    private final Cache<Query<?>, List<?>> readAllCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).<Query<?>, List<?>>removalListener(this::evictQuery).build();
+    private final Cache<Query<?>, Long> readCountCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).<Query<?>, Long>removalListener(this::evictQuery).build();
+    private final Cache<Query<?>, Object> readFirstCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).<Query<?>, Object>removalListener(this::evictQuery).build();
+    private final LoadingCache<Query<?>, Map<Range, PaginatedResult<?>>> readPartialCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).<Query<?>, Map<Range, PaginatedResult<?>>>removalListener(this::evictQuery).build(
             new CacheLoader<Query<?>, Map<Range, PaginatedResult<?>>>() {
                 @Override
                 public Map<Range, PaginatedResult<?>> load(Query<?> key) throws Exception {
@@ -57,6 +69,31 @@ public class CachingDatabase extends ForwardingDatabase {
             });
     private final Cache<UUID, Boolean> idOnlyQueryIds = CacheBuilder.newBuilder().maximumSize(getCacheSize()).build();
 
+    private final boolean invalidation = Settings.get(boolean.class, INVALIDATION_SETTING);
+    private final InvalidationIndex<Query<?>> invalidationIndex = new InvalidationIndex<>();
+
+    // Strongly referenced here since the bus only holds it weakly.
+    private final InvalidationListener invalidationListener = new InvalidationListener() {
+
+        @Override
+        public void invalidate(UUID typeId, UUID id) {
+            objectCache.invalidate(id);
+            referenceCache.invalidate(id);
+            invalidationIndex.invalidate(typeId, id).forEach(CachingDatabase.this::invalidateQuery);
+        }
+
+        @Override
+        public void invalidateAll() {
+            flush();
+        }
+    };
+
+    {
+        if (invalidation) {
+            InvalidationBus.Static.getDefault().subscribe(invalidationListener);
+        }
+    }
+
     private static class Range {
 
         public final long offset;
@@ -115,6 +152,49 @@ public class CachingDatabase extends ForwardingDatabase {
         return referenceCache.asMap();
     }
 
+    /**
+     * Reads the objects matching the given {@code query} from the delegate
+     * and caches them, without recording the IDs in
+     * {@link #getIdOnlyQueryIds}. Objects that are already cached are left
+     * alone so that the callers keep seeing the same instances.
+     *
+     * @param query Nonnull.
+     * @return IDs of the objects that were newly cached. Nonnull.
+     */
+    Set<UUID> preload(Query<?> query) {
+        long sequence = invalidationIndex.begin();
+        List<?> items = super.readAll(query);
+        Set<UUID> ids = new HashSet<>();
+        Set<UUID> tags = InvalidationIndex.getQueryTags(query, this);
+
+        // Anything saved or invalidated in the meantime may have made the
+        // items stale.
+        if (invalidationIndex.hasChanged(tags, sequence)) {
+            return ids;
+        }
+
+        Map<UUID, Object> objects = objectCache.asMap();
+
+        for (Object item : items) {
+            if (item instanceof Recordable) {
+                State state = ((Recordable) item).getState();
+
+                if (!state.isReferenceOnly()
+                        && !state.isResolveToReferenceOnly()
+                        && objects.putIfAbsent(state.getId(), item) == null) {
+                    ids.add(state.getId());
+                }
+            }
+        }
+
+        if (invalidationIndex.hasChanged(tags, sequence)) {
+            ids.forEach(objectCache::invalidate);
+            ids.clear();
+        }
+
+        return ids;
+    }
+
     // --- ForwardingDatabase support ---
 
     private long getCacheSize() {
@@ -159,6 +239,50 @@ public class CachingDatabase extends ForwardingDatabase {
         }
     }
 
+    private void invalidateQuery(Query<?> query) {
+        readAllCache.invalidate(query);
+        readCountCache.invalidate(query);
+        readFirstCache.invalidate(query);
+        readPartialCache.invalidate(query);
+    }
+
+    // The query caches share the registrations in the invalidation index,
+    // so a query that's evicted from one is evicted from all of them.
+    private <V> void evictQuery(RemovalNotification<Query<?>, V> removal) {
+        if (invalidation && removal.wasEvicted()) {
+            Query<?> query = removal.getKey();
+
+            invalidationIndex.remove(query);
+            invalidateQuery(query);
+        }
+    }
+
+    /**
+     * Registers the given {@code query} and the given {@code items} that
+     * were read for it with the invalidation index, or evicts them if
+     * anything changed since the given {@code sequence}.
+     */
+    private void track(Query<?> query, long sequence, List<?> items) {
+        if (!invalidation
+                || invalidationIndex.isRegistered(query)
+                || invalidationIndex.register(query, InvalidationIndex.getQueryTags(query, this), sequence)) {
+            return;
+        }
+
+        invalidateQuery(query);
+
+        if (items != null) {
+            for (Object item : items) {
+                if (item instanceof Recordable) {
+                    UUID id = ((Recordable) item).getState().getId();
+
+                    objectCache.invalidate(id);
+                    referenceCache.invalidate(id);
+                }
+            }
+        }
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public <T> List<T> readAll(Query<T> query) {
@@ -202,12 +326,15 @@ public class CachingDatabase extends ForwardingDatabase {
         List<?> list = readAllCache.getIfPresent(query);
 
         if (list == null) {
+            long sequence = invalidationIndex.begin();
             list = super.readAll(query);
             readAllCache.put(query, list);
 
             for (Object item : list) {
                 cacheObject(item);
             }
+
+            track(query, sequence, list);
         }
 
         all.addAll(list);
@@ -223,6 +350,8 @@ public class CachingDatabase extends ForwardingDatabase {
         Long count = readCountCache.getIfPresent(query);
 
         if (count == null) {
+            long sequence = invalidationIndex.begin();
+
             COUNT: {
                 if (readAllCache != null) {
                     List<?> list = readAllCache.getIfPresent(query);
@@ -246,6 +375,7 @@ public class CachingDatabase extends ForwardingDatabase {
             }
 
             readCountCache.put(query, count);
+            track(query, sequence, null);
         }
 
         return count;
@@ -278,6 +408,7 @@ public class CachingDatabase extends ForwardingDatabase {
         Object first = readFirstCache.getIfPresent(query);
 
         if (first == null) {
+            long sequence = invalidationIndex.begin();
             first = super.readFirst(query);
             if (first == null) {
                 first = MISSING;
@@ -285,6 +416,7 @@ public class CachingDatabase extends ForwardingDatabase {
                 cacheObject(first);
             }
             readFirstCache.put(query, first);
+            track(query, sequence, first != MISSING ? Collections.singletonList(first) : null);
         }
 
         return first != MISSING ? (T) first : null;
@@ -297,6 +429,7 @@ public class CachingDatabase extends ForwardingDatabase {
             return super.readPartial(query, offset, limit);
         }
 
+        long sequence = invalidationIndex.begin();
         Map<Range, PaginatedResult<?>> subCache = readPartialCache.getUnchecked(query);
 
         Range range = new Range(offset, limit);
@@ -309,6 +442,8 @@ public class CachingDatabase extends ForwardingDatabase {
             for (Object item : result.getItems()) {
                 cacheObject(item);
             }
+
+            track(query, sequence, result.getItems());
         }
 
         return (PaginatedResult<T>) result;
@@ -324,6 +459,7 @@ public class CachingDatabase extends ForwardingDatabase {
      * Flush the entire cache. This is executed after every .save() to avoid inconsistent results.
      */
     protected void flush() {
+        invalidationIndex.invalidateAll();
         objectCache.invalidateAll();
         referenceCache.invalidateAll();
         readAllCache.invalidateAll();
@@ -332,6 +468,17 @@ public class CachingDatabase extends ForwardingDatabase {
         readPartialCache.invalidateAll();
     }
 
+    /**
+     * Unsubscribes from the invalidation bus. The delegate isn't closed
+     * since it's usually shared.
+     */
+    @Override
+    public void close() {
+        if (invalidation) {
+            InvalidationBus.Static.getDefault().unsubscribe(invalidationListener);
+        }
+    }
+
     /**
      * {@link Query} options for {@link CachingDatabase}.
      *
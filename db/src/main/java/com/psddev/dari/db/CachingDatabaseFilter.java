@@ -1,27 +1,250 @@
 package com.psddev.dari.db;
 
 import java.io.IOException;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.psddev.dari.util.AbstractFilter;
 import com.psddev.dari.util.Settings;
+import com.psddev.dari.util.Stats;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
-/** Enables various per-request database result caching. */
+/**
+ * Enables various per-request database result caching.
+ *
+ * <p>If the {@code dari/isCachingFilterPreloadEnabled} setting is
+ * {@code true}, the objects that are read by most of the requests to the
+ * same {@linkplain #getPreloadRoute route} are learned over time, and
+ * preloaded in the background while the next request to that route
+ * starts. The objects must have been read by at least the
+ * {@value #PRELOAD_THRESHOLD_SETTING} fraction of the recent requests
+ * ({@value #DEFAULT_PRELOAD_THRESHOLD} by default).</p>
+ */
 public class CachingDatabaseFilter extends AbstractFilter {
 
     public static final String CACHE_PARAMETER = "_cache";
 
-    private static final Cache<String, Set<UUID>> ID_CACHE = CacheBuilder.newBuilder().maximumSize(250).build();
+    public static final String PRELOAD_THRESHOLD_SETTING = "dari/cachingFilterPreloadThreshold";
+    public static final double DEFAULT_PRELOAD_THRESHOLD = 0.5;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingDatabaseFilter.class);
+    private static final Stats STATS = new Stats("Caching Database Filter");
+
+    private static final int PROFILE_MAXIMUM_SIZE = 1000;
+    private static final Cache<String, PreloadProfile> PROFILES = CacheBuilder.newBuilder().maximumSize(250).build();
+
+    // Path segments that are most likely IDs, such as numbers and UUIDs.
+    private static final Pattern ID_SEGMENT_PATTERN = Pattern.compile("\\d+|(?i)[0-9a-f]{8}-?[0-9a-f]{4}-?[0-9a-f]{4}-?[0-9a-f]{4}-?[0-9a-f]{12}");
+
+    private static final AtomicLong PRELOAD_HITS = new AtomicLong();
+    private static final AtomicLong PRELOAD_WASTES = new AtomicLong();
+
+    private static final ExecutorService PRELOADER;
+
+    static {
+        ThreadPoolExecutor preloader = new ThreadPoolExecutor(
+                4,
+                4,
+                60L,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(100),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("Caching Database Preloader #%d")
+                        .setDaemon(true)
+                        .build());
+
+        preloader.allowCoreThreadTimeOut(true);
+        PRELOADER = preloader;
+    }
+
+    /**
+     * Returns the fraction of the preloaded objects that were actually
+     * read by the requests.
+     *
+     * @return {@code 1.0} if nothing has been preloaded yet.
+     */
+    public static double getPreloadHitRatio() {
+        long hits = PRELOAD_HITS.get();
+        long total = hits + PRELOAD_WASTES.get();
+
+        return total == 0L ? 1.0 : (double) hits / total;
+    }
+
+    /**
+     * Returns the route that the given {@code request} belongs to, so that
+     * the requests to the same route share a preload profile.
+     *
+     * <p>The default implementation uses the servlet path with the
+     * segments that look like IDs replaced by {@code *}, and the sorted
+     * names of the query string parameters.</p>
+     *
+     * @param request Nonnull.
+     * @return {@code null} to skip preloading.
+     */
+    protected String getPreloadRoute(HttpServletRequest request) {
+        return normalizeRoute(request.getServletPath(), request.getQueryString());
+    }
+
+    static String normalizeRoute(String path, String queryString) {
+        StringBuilder route = new StringBuilder();
+
+        if (path != null) {
+            String[] segments = path.split("/", -1);
+
+            for (int i = 0, length = segments.length; i < length; ++ i) {
+                String segment = segments[i];
+
+                if (i > 0) {
+                    route.append('/');
+                }
+
+                route.append(ID_SEGMENT_PATTERN.matcher(segment).matches() ? "*" : segment);
+            }
+        }
+
+        if (queryString != null) {
+            Set<String> names = new TreeSet<>();
+
+            for (String pair : queryString.split("&")) {
+                int equalAt = pair.indexOf('=');
+                String name = equalAt > -1 ? pair.substring(0, equalAt) : pair;
+
+                if (!name.isEmpty() && !CACHE_PARAMETER.equals(name)) {
+                    names.add(name);
+                }
+            }
+
+            if (!names.isEmpty()) {
+                route.append('?').append(String.join("&", names));
+            }
+        }
+
+        return route.toString();
+    }
+
+    // Starts preloading the objects in the given profile in the background.
+    private Future<Set<UUID>> startPreload(CachingDatabase caching, PreloadProfile profile) {
+        Map<UUID, List<UUID>> idsByTypeId = profile.getIdsByTypeId(Settings.getOrDefault(double.class, PRELOAD_THRESHOLD_SETTING, DEFAULT_PRELOAD_THRESHOLD));
+
+        if (idsByTypeId.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return PRELOADER.submit(() -> {
+                Stats.Timer timer = STATS.startTimer();
+                Set<UUID> preloaded = new HashSet<>();
+
+                Database.Static.overrideDefault(caching);
+
+                try {
+                    for (Map.Entry<UUID, List<UUID>> entry : idsByTypeId.entrySet()) {
+                        ObjectType type = ObjectType.getInstance(entry.getKey());
+
+                        // Restricted to the type so that the read can use
+                        // the type-prefixed index.
+                        Query<?> query = type != null
+                                ? Query.fromType(type)
+                                : Query.from(Object.class);
+
+                        preloaded.addAll(caching.preload(query.where("_id = ?", entry.getValue())));
+                    }
+
+                    return preloaded;
+
+                } catch (RuntimeException error) {
+                    LOGGER.debug("Can't preload!", error);
+                    return preloaded;
+
+                } finally {
+                    Database.Static.restoreDefault();
+                    timer.stop("Preload", preloaded.size());
+                }
+            });
+
+        } catch (RejectedExecutionException error) {
+            STATS.startTimer().stop("Preload Rejected");
+            return null;
+        }
+    }
+
+    // Updates the profile with the objects that were read by the request,
+    // and records how many of the preloaded ones were actually used.
+    private void finishPreload(CachingDatabase caching, PreloadProfile profile, Future<Set<UUID>> preload) {
+        Set<UUID> readIds = new HashSet<>(caching.getIdOnlyQueryIds());
+
+        if (preload != null) {
+            Set<UUID> preloaded = preload.isDone() ? getPreloaded(preload) : null;
+
+            if (preloaded == null) {
+                preload.cancel(false);
+                STATS.startTimer().stop("Preload Late");
+
+            } else if (!preloaded.isEmpty()) {
+                List<UUID> hits = new ArrayList<>(preloaded);
+
+                hits.retainAll(readIds);
+
+                int wastes = preloaded.size() - hits.size();
+
+                PRELOAD_HITS.addAndGet(hits.size());
+                PRELOAD_WASTES.addAndGet(wastes);
+                STATS.startTimer().stop("Preload Hit", hits.size());
+                STATS.startTimer().stop("Preload Wasted", wastes);
+            }
+        }
+
+        Map<UUID, Object> objects = caching.getObjectCache();
+        Map<UUID, Object> references = caching.getReferenceCache();
+        Map<UUID, UUID> typeIdsById = new HashMap<>();
+
+        for (UUID id : readIds) {
+            Object object = objects.get(id);
+
+            if (object == null) {
+                object = references.get(id);
+            }
+
+            typeIdsById.put(id, object instanceof Recordable ? ((Recordable) object).getState().getTypeId() : null);
+        }
+
+        profile.update(typeIdsById);
+    }
+
+    private Set<UUID> getPreloaded(Future<Set<UUID>> preload) {
+        try {
+            return preload.get();
+
+        } catch (Exception error) {
+            return null;
+        }
+    }
 
     // --- AbstractFilter support ---
     @Override
@@ -50,28 +273,32 @@ public class CachingDatabaseFilter extends AbstractFilter {
             Database.Static.overrideDefault(caching);
 
             try {
-                String url = request.getServletPath() + "?" + request.getQueryString();
-                boolean preload = Settings.getOrDefault(boolean.class, "dari/isCachingFilterPreloadEnabled", false);
+                String route = Settings.getOrDefault(boolean.class, "dari/isCachingFilterPreloadEnabled", false)
+                        ? getPreloadRoute(request)
+                        : null;
 
-                if (preload) {
-                    Set<UUID> objectIds = ID_CACHE.getIfPresent(url);
-                    if (objectIds != null) {
-                        Query.from(Object.class).using(caching).where("id = ?", objectIds).selectAll();
-                    }
-                }
+                if (route == null) {
+                    chain.doFilter(request, response);
 
-                chain.doFilter(request, response);
+                } else {
+                    PreloadProfile profile;
 
-                if (preload) {
-                    Set<UUID> objectIds = new HashSet<UUID>(caching.getIdOnlyQueryIds());
+                    try {
+                        profile = PROFILES.get(route, () -> new PreloadProfile(PROFILE_MAXIMUM_SIZE));
 
-                    if (!objectIds.isEmpty()) {
-                        ID_CACHE.put(url, objectIds);
+                    } catch (ExecutionException error) {
+                        throw new IllegalStateException(error);
                     }
+
+                    Future<Set<UUID>> preload = startPreload(caching, profile);
+
+                    chain.doFilter(request, response);
+                    finishPreload(caching, profile, preload);
                 }
 
             } finally {
                 Database.Static.restoreDefault();
+                caching.close();
             }
 
         } else if (Boolean.FALSE.toString().equals(request.getParameter(CACHE_PARAMETER))) {
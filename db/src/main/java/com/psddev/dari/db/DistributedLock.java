@@ -1,10 +1,17 @@
 package com.psddev.dari.db;
 
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
@@ -13,16 +20,58 @@ import java.util.concurrent.locks.Lock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.psddev.dari.util.ObjectUtils;
+import com.psddev.dari.util.Settings;
+import com.psddev.dari.util.Stats;
 import com.psddev.dari.util.StringUtils;
 import com.psddev.dari.util.UuidUtils;
 
-/** Enforces mutual exclusion across multiple VMs using a {@link Database}. */
+/**
+ * Enforces mutual exclusion across multiple VMs using a {@link Database}.
+ *
+ * <p>The lock is held with a lease that's renewed in the background for as
+ * long as the lock is held, so that it's only taken over by another VM if
+ * this one stops responding for longer than the
+ * {@value #LEASE_SETTING} setting ({@value #DEFAULT_LEASE} milliseconds by
+ * default). Every acquisition gets a new {@linkplain #getToken fencing
+ * token}.</p>
+ *
+ * <p>Threads within the same VM that wait for the same lock are queued
+ * locally, so only one of them at a time tries to acquire it from the
+ * database. That one either parks until the lock is released, if the
+ * database is a {@link Waiter}, or retries with an exponential
+ * backoff.</p>
+ */
 public class DistributedLock implements Lock {
 
+    public static final String LEASE_SETTING = "dari/distributedLockLease";
+    public static final long DEFAULT_LEASE = 10000L;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(DistributedLock.class);
-    private static final long TIMEOUT = 10000;
-    private static final long TRY_INTERVAL = 50L;
+    private static final Stats STATS = new Stats("Distributed Lock");
+    private static final long MINIMUM_BACKOFF = 50L;
+    private static final long MAXIMUM_BACKOFF = 1000L;
+
+    private static final LoadingCache<List<Object>, Semaphore> LOCAL_PERMITS = CacheBuilder
+            .newBuilder()
+            .weakValues()
+            .build(CacheLoader.from(key -> new Semaphore(1, true)));
+
+    private static final ScheduledExecutorService RENEWER;
+
+    static {
+        ScheduledThreadPoolExecutor renewer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                .setNameFormat("Distributed Lock Renewer #%d")
+                .setDaemon(true)
+                .build());
+
+        renewer.setRemoveOnCancelPolicy(true);
+        RENEWER = renewer;
+    }
 
     private final String lockId = UUID.randomUUID().toString();
     private final Database database;
@@ -30,10 +79,43 @@ public class DistributedLock implements Lock {
     private final UUID keyId;
     private final AtomicReference<Thread> holderRef = new AtomicReference<Thread>();
 
+    // Shared by all instances with the same database and key.
+    private final Semaphore localPermits;
+
+    // Guarded by holderRef.
+    private State leaseState;
+    private ScheduledFuture<?> renewal;
+    private Object waiterHandle;
+
+    private volatile long token;
+    private volatile boolean leaseLost;
+
     protected DistributedLock(Database database, String key) {
         this.database = database;
         this.keyString = key;
         this.keyId = UuidUtils.fromBytes(StringUtils.md5(key));
+        this.localPermits = LOCAL_PERMITS.getUnchecked(Arrays.asList(database, keyId));
+    }
+
+    /**
+     * Returns the fencing token for the current acquisition of this lock.
+     *
+     * <p>The token is larger than the ones from all previous acquisitions,
+     * so it can be passed along to external resources that should reject
+     * the writes from a holder whose lease has since been taken over.</p>
+     *
+     * @return {@code 0} if this lock isn't held.
+     */
+    public long getToken() {
+        return token;
+    }
+
+    /**
+     * Returns {@code true} if this lock is held and its lease hasn't been
+     * taken over by another VM.
+     */
+    public boolean isLeaseValid() {
+        return holderRef.get() != null && !leaseLost;
     }
 
     // --- Lock support ---
@@ -46,15 +128,21 @@ public class DistributedLock implements Lock {
      */
     @Override
     public void lock() {
-        if (!tryLock()) {
-            LOGGER.debug("Waiting to acquire [{}]", this);
-            do {
-                try {
-                    Thread.sleep(TRY_INTERVAL);
-                } catch (InterruptedException ex) {
-                    // Ignore thread interruption and keep trying to lock.
-                }
-            } while (!tryLock());
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                acquire(-1L, false);
+                break;
+
+            } catch (InterruptedException error) {
+                // Keep trying to lock, but let the caller know later.
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -66,12 +154,7 @@ public class DistributedLock implements Lock {
      */
     @Override
     public void lockInterruptibly() throws InterruptedException {
-        if (!tryLock()) {
-            LOGGER.debug("Waiting to acquire [{}] interruptibly", this);
-            do {
-                Thread.sleep(TRY_INTERVAL);
-            } while (!tryLock());
-        }
+        acquire(-1L, true);
     }
 
     @Override
@@ -87,11 +170,158 @@ public class DistributedLock implements Lock {
      */
     @Override
     public boolean tryLock() {
+        checkReentrant();
+
+        if (!localPermits.tryAcquire()) {
+            STATS.startTimer().stop("Contended");
+            return false;
+        }
+
+        boolean acquired = false;
+
+        try {
+            acquired = tryAcquire();
+            return acquired;
+
+        } finally {
+            if (!acquired) {
+                localPermits.release();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws ReentrantException If this lock is already held by the
+     *         current thread.
+     */
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        return acquire(Math.max(unit.toNanos(time), 0L), true);
+    }
+
+    private void checkReentrant() {
         if (Thread.currentThread().equals(holderRef.get())) {
             throw new ReentrantException();
         }
+    }
+
+    private long getLease() {
+        return Math.max(Settings.getOrDefault(long.class, LEASE_SETTING, DEFAULT_LEASE), 1L);
+    }
+
+    // Waits up to the given timeout in nanoseconds, or forever if it's
+    // negative. Only the interruptions while waiting for the other threads
+    // in this VM are ignored when not interruptible, since the waits for
+    // the other VMs are bounded anyway.
+    private boolean acquire(long timeout, boolean interruptible) throws InterruptedException {
+        checkReentrant();
+
+        Stats.Timer timer = STATS.startTimer();
+        long start = System.nanoTime();
+
+        if (timeout < 0L) {
+            if (interruptible) {
+                localPermits.acquire();
+
+            } else {
+                localPermits.acquireUninterruptibly();
+            }
+
+        } else if (!localPermits.tryAcquire(timeout, TimeUnit.NANOSECONDS)) {
+            STATS.startTimer().stop("Contended");
+            return false;
+        }
+
+        boolean acquired = false;
+
+        try {
+            long backoff = MINIMUM_BACKOFF;
+
+            while (true) {
+                acquired = tryAcquire();
+
+                if (acquired) {
+                    break;
+                }
+
+                long remaining = timeout < 0L ? Long.MAX_VALUE : timeout - (System.nanoTime() - start);
+
+                if (remaining <= 0L) {
+                    return false;
+                }
+
+                LOGGER.debug("Waiting to acquire [{}]", this);
+                waitForRelease(remaining, backoff);
+                backoff = Math.min(backoff * 2L, MAXIMUM_BACKOFF);
+            }
+
+            timer.stop("Acquire");
+            return true;
+
+        } finally {
+            if (!acquired) {
+                localPermits.release();
+            }
+        }
+    }
+
+    // Parks until the lock is released by another VM, or sleeps for about
+    // the given backoff in milliseconds if the database can't do that.
+    private void waitForRelease(long remaining, long backoff) throws InterruptedException {
+        Stats.Timer timer = STATS.startTimer();
+        long maximum = Math.min(TimeUnit.NANOSECONDS.toMillis(remaining), getLease());
+        Waiter waiter = findWaiter(database);
+
+        try {
+            if (waiter != null) {
+                long start = System.nanoTime();
+
+                // Falls through to the backoff if it returned too quickly,
+                // such as when the holder couldn't take the native lock,
+                // to avoid spinning.
+                if (waiter.await(keyId, Math.max(maximum, 1L))
+                        && System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(MINIMUM_BACKOFF)) {
+                    return;
+                }
+            }
+
+            long sleep = ThreadLocalRandom.current().nextLong(backoff / 2L, backoff + 1L);
+
+            Thread.sleep(Math.max(Math.min(sleep, maximum), 1L));
+
+        } finally {
+            timer.stop("Wait");
+        }
+    }
+
+    private static Waiter findWaiter(Object db) {
+        if (db instanceof Waiter) {
+            return (Waiter) db;
+
+        } else if (db instanceof ForwardingDatabase) {
+            return findWaiter(((ForwardingDatabase) db).getDelegate());
+
+        } else if (db instanceof Iterable) {
+            for (Object subDatabase : (Iterable<?>) db) {
+                Waiter waiter = findWaiter(subDatabase);
+
+                if (waiter != null) {
+                    return waiter;
+                }
+            }
+        }
+
+        return null;
+    }
 
+    // Tries to acquire the lock from the database once. The caller must
+    // hold a local permit.
+    private boolean tryAcquire() {
         synchronized (holderRef) {
+            Stats.Timer timer = STATS.startTimer();
+            long lease = getLease();
             State key = State.getInstance(Query
                     .from(Object.class)
                     .where("_id = ?", keyId)
@@ -106,54 +336,105 @@ public class DistributedLock implements Lock {
                 key.setId(keyId);
                 key.put("keyString", keyString);
 
-            } else {
-                if (ObjectUtils.to(long.class, key.get("lastPing")) + TIMEOUT < database.now()) {
-                    LOGGER.debug("Timeout exceeded: [{}]", this);
+            } else if (key.get("lockId") != null) {
+                if (ObjectUtils.to(long.class, key.get("lastPing")) + lease < database.now()) {
+                    LOGGER.debug("Lease expired: [{}]", this);
                 } else {
+                    timer.stop("Contended");
                     return false;
                 }
             }
 
+            long now = database.now();
+
+            // The record is kept on unlock, and the atomic replace below
+            // fails if anyone else incremented it in the meantime.
+            long newToken = ObjectUtils.to(long.class, key.get("token")) + 1L;
+
             try {
                 key.replaceAtomically("lockId", lockId);
-                key.replaceAtomically("lastPing", database.now());
+                key.replaceAtomically("lastPing", now);
+                key.replaceAtomically("token", newToken);
                 key.saveImmediately();
 
             } catch (DatabaseException ex) {
                 Throwable cause = ex.getCause();
                 if (cause instanceof AtomicOperation.ReplacementException) {
                     LOGGER.debug("Stolen by a different VM: [{}]", this);
+                    timer.stop("Stolen");
                     return false;
                 } else {
                     throw ex;
                 }
             }
 
+            key.put("lockId", lockId);
+            key.put("lastPing", now);
+            key.put("token", newToken);
+
+            long renewInterval = Math.max(lease / 3L, 1L);
+
+            leaseState = key;
+            leaseLost = false;
+            token = newToken;
+            renewal = RENEWER.scheduleWithFixedDelay(this::renew, renewInterval, renewInterval, TimeUnit.MILLISECONDS);
+
+            Waiter waiter = findWaiter(database);
+
+            waiterHandle = waiter != null ? waiter.acquired(keyId) : null;
+
             holderRef.set(Thread.currentThread());
             LOGGER.debug("Acquired [{}]", this);
+            timer.stop("Try");
             return true;
         }
     }
 
-    /**
-     * {@inheritDoc}
-     *
-     * @throws ReentrantException If this lock is already held by the
-     *         current thread.
-     */
-    @Override
-    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
-        long end = database.now() + unit.toMillis(time);
+    // Extends the lease, or gives up on it if another VM took it over. Only
+    // holds the monitor around the fields, since the save can wait on the
+    // database environment, which the holder may be holding while it
+    // unlocks.
+    private void renew() {
+        State key;
+
+        synchronized (holderRef) {
+            key = leaseState;
+        }
+
+        if (key == null) {
+            return;
+        }
+
+        Stats.Timer timer = STATS.startTimer();
+        long now = database.now();
+
+        try {
+            key.replaceAtomically("lockId", lockId);
+            key.replaceAtomically("lastPing", now);
+            key.saveImmediately();
+            key.put("lastPing", now);
+            timer.stop("Renew");
+
+        } catch (RuntimeException error) {
+            if (error.getCause() instanceof AtomicOperation.ReplacementException) {
+                synchronized (holderRef) {
+
+                    // Released in the meantime.
+                    if (leaseState != key) {
+                        return;
+                    }
+
+                    LOGGER.warn("Lease taken over by a different VM: [{}]", this);
+                    timer.stop("Lease Lost");
+                    leaseLost = true;
+                    leaseState = null;
+                    renewal.cancel(false);
+                }
 
-        do {
-            if (tryLock()) {
-                return true;
             } else {
-                Thread.sleep(TRY_INTERVAL);
+                LOGGER.warn(String.format("Can't renew the lease on [%s]!", this), error);
             }
-        } while (database.now() < end);
-
-        return false;
+        }
     }
 
     /**
@@ -177,21 +458,64 @@ public class DistributedLock implements Lock {
         synchronized (holderRef) {
             try {
                 LOGGER.debug("Releasing [{}]", this);
+                renewal.cancel(false);
 
-                State key = State.getInstance(Query
-                        .from(Object.class)
-                        .where("_id = ?", keyId)
-                        .using(database)
-                        .noCache()
-                        .master()
-                        .first());
+                // Keeps the renewals that haven't started yet from saving.
+                leaseState = null;
 
-                if (key != null && lockId.equals(key.get("lockId"))) {
-                    key.deleteImmediately();
-                }
+                release();
 
             } finally {
+                Waiter waiter = findWaiter(database);
+
+                if (waiter != null) {
+                    waiter.released(keyId, waiterHandle);
+                }
+
+                leaseState = null;
+                renewal = null;
+                waiterHandle = null;
+                token = 0L;
                 holderRef.set(null);
+                localPermits.release();
+            }
+        }
+    }
+
+    // Clears the holder in the record, but not the token, so that the next
+    // one is still larger than this one. A renewal that was already running
+    // when it was cancelled may save a new ping after the record is read,
+    // which fails the atomic replace below, so this reads the record again
+    // and retries for as long as it's still held by this lock. Waiting for
+    // the renewal instead could deadlock, since its save can wait on the
+    // database environment that the current thread may be holding.
+    private void release() {
+        while (true) {
+            State key = State.getInstance(Query
+                    .from(Object.class)
+                    .where("_id = ?", keyId)
+                    .using(database)
+                    .noCache()
+                    .master()
+                    .first());
+
+            if (key == null || !lockId.equals(key.get("lockId"))) {
+                LOGGER.debug("Taken over before release: [{}]", this);
+                return;
+            }
+
+            try {
+                key.replaceAtomically("lockId", null);
+                key.replaceAtomically("lastPing", 0L);
+                key.saveImmediately();
+                return;
+
+            } catch (DatabaseException error) {
+                if (error.getCause() instanceof AtomicOperation.ReplacementException) {
+                    LOGGER.debug("Changed before release: [{}]", this);
+                } else {
+                    throw error;
+                }
             }
         }
     }
@@ -230,6 +554,46 @@ public class DistributedLock implements Lock {
 
     // ---
 
+    /**
+     * {@link Database} that can park the threads waiting for a
+     * {@link DistributedLock} until it's released by another VM, instead of
+     * having them retry.
+     *
+     * <p>This is only used as a hint, since the lock is always acquired
+     * through the record in the database.</p>
+     */
+    public interface Waiter {
+
+        /**
+         * Called after the lock identified by the given {@code keyId} is
+         * acquired by this VM.
+         *
+         * @param keyId Nonnull.
+         * @return Handle that's passed to {@link #released}. May be
+         *         {@code null}.
+         */
+        Object acquired(UUID keyId);
+
+        /**
+         * Called after the lock identified by the given {@code keyId} is
+         * released by this VM.
+         *
+         * @param keyId Nonnull.
+         * @param handle Returned by {@link #acquired}. May be {@code null}.
+         */
+        void released(UUID keyId, Object handle);
+
+        /**
+         * Parks the current thread until the lock identified by the given
+         * {@code keyId} is released by another VM, or the given
+         * {@code timeout} in milliseconds elapses.
+         *
+         * @param keyId Nonnull.
+         * @return {@code false} if the current thread wasn't parked.
+         */
+        boolean await(UUID keyId, long timeout);
+    }
+
     /** Thrown when the thread tries to reacquire the same lock. */
     @SuppressWarnings("serial")
     public static class ReentrantException extends IllegalStateException {
@@ -2,6 +2,8 @@ package com.psddev.dari.db;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
@@ -17,6 +19,13 @@ import com.psddev.dari.util.Stats;
 
 /**
  * Provides a global (per-Database) short-lived cache for database read operations.
+ *
+ * <p>The cache subscribes to the {@linkplain InvalidationBus.Static#getDefault
+ * default invalidation bus} and evicts the entries that depend on a changed
+ * type or object, as returned by
+ * {@link FunnelCachedObjectProducer#getDependencies}. When the bus is fed by
+ * the MySQL binary log, {@code funnelCacheExpireMillis} can be raised well
+ * beyond the default without serving stale data.</p>
  */
 public class FunnelCache<T extends Database> {
 
@@ -33,6 +42,28 @@ public class FunnelCache<T extends Database> {
 
     private final T database;
     private final LoadingCache<FunnelCachedObjectProducer<T>, List<FunnelCachedObject>> objectCache;
+    private final InvalidationIndex<FunnelCachedObjectProducer<T>> invalidationIndex = new InvalidationIndex<>();
+
+    // Strongly referenced here since the bus only holds it weakly.
+    private final InvalidationListener invalidationListener = new InvalidationListener() {
+
+        @Override
+        public void invalidate(UUID typeId, UUID id) {
+            Set<FunnelCachedObjectProducer<T>> producers = invalidationIndex.invalidate(typeId, id);
+
+            if (!producers.isEmpty()) {
+                objectCache.invalidateAll(producers);
+                STATS.startTimer().stop("Invalidate", producers.size());
+            }
+        }
+
+        @Override
+        public void invalidateAll() {
+            invalidationIndex.invalidateAll();
+            objectCache.invalidateAll();
+            STATS.startTimer().stop("Invalidate All");
+        }
+    };
 
     public FunnelCache(T db, Map<String, Object> settings) {
         this.database = db;
@@ -48,13 +79,28 @@ public class FunnelCache<T extends Database> {
                 .concurrencyLevel(concurrencyLevel != null ? concurrencyLevel : DEFAULT_CONCURRENCY_LEVEL)
                 .expireAfterWrite(expireMilliseconds != null ? expireMilliseconds : DEFAULT_CACHE_EXPIRE_MILLISECONDS, TimeUnit.MILLISECONDS)
                 .refreshAfterWrite(refreshMilliseconds != null ? refreshMilliseconds : DEFAULT_CACHE_REFRESH_MILLISECONDS, TimeUnit.MILLISECONDS)
+                .<FunnelCachedObjectProducer<T>, List<FunnelCachedObject>>removalListener(removal -> {
+                    if (removal.wasEvicted()) {
+                        invalidationIndex.remove(removal.getKey());
+                    }
+                })
                 .build(new FunnelCacheLoader());
+
+        InvalidationBus.Static.getDefault().subscribe(invalidationListener);
     }
 
     public final List<FunnelCachedObject> get(final FunnelCachedObjectProducer<T> producer) {
         Stats.Timer timer = STATS.startTimer();
         try {
-            return objectCache.getUnchecked(producer);
+            long sequence = invalidationIndex.begin();
+            List<FunnelCachedObject> objects = objectCache.getUnchecked(producer);
+
+            if (!invalidationIndex.isRegistered(producer)
+                    && !invalidationIndex.register(producer, producer.getDependencies(database), sequence)) {
+                objectCache.invalidate(producer);
+            }
+
+            return objects;
         } catch (UncheckedExecutionException e) {
             Throwable cause = e.getCause();
             if (cause instanceof RuntimeException) {
@@ -1,10 +1,25 @@
 package com.psddev.dari.db;
 
 import java.util.List;
+import java.util.Set;
+import java.util.UUID;
 
 /**
  * See: {@link FunnelCache}.
  */
 public interface FunnelCachedObjectProducer<T extends Database> {
     List<FunnelCachedObject> produce(T database);
+
+    /**
+     * Returns the IDs of the types and the objects that the produced
+     * objects depend on so that they can be evicted as soon as any of them
+     * change.
+     *
+     * @return {@code null} if the produced objects may depend on anything,
+     *         in which case they're evicted on every change.
+     * @see InvalidationBus
+     */
+    default Set<UUID> getDependencies(T database) {
+        return null;
+    }
 }
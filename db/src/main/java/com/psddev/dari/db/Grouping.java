@@ -4,6 +4,15 @@ import java.util.List;
 
 public interface Grouping<T> {
 
+    /**
+     * Query option for the names of the fields whose aggregates should be
+     * fetched along with the groupings, so that the aggregate methods,
+     * such as {@link #getSum}, don't have to query each grouping
+     * separately. The value can be a field name or an iterable or an
+     * array of field names.
+     */
+    public static final String AGGREGATE_FIELDS_QUERY_OPTION = "dari.groupingAggregateFields";
+
     public List<Object> getKeys();
 
     public Query<T> createItemsQuery();
@@ -0,0 +1,125 @@
+package com.psddev.dari.db;
+
+import java.util.UUID;
+
+import com.psddev.dari.util.ObjectUtils;
+import com.psddev.dari.util.Settings;
+import com.psddev.dari.util.SettingsException;
+import com.psddev.dari.util.TypeDefinition;
+
+/**
+ * Fans out notifications about changed records to the caches that depend
+ * on them.
+ *
+ * <p>Publishers, such as the MySQL binary log readers, call
+ * {@link #publish} for every row that's written or deleted, and
+ * {@link #publishAll} when they can't tell what changed. Subscribers, such
+ * as {@link FunnelCache} and {@link CachingDatabase}, evict only the
+ * entries that depend on the changed type or object.</p>
+ *
+ * <p>The default implementation delivers the notifications within the
+ * current JVM. It can be replaced with one that relays them to other
+ * servers by naming its class in the
+ * {@value com.psddev.dari.db.InvalidationBus.Static#CLASS_SETTING}
+ * {@linkplain Settings setting}.</p>
+ */
+public interface InvalidationBus {
+
+    /**
+     * Subscribes the given {@code listener} to all future notifications.
+     * The listener is only weakly referenced so that subscribing doesn't
+     * keep it from being garbage collected.
+     *
+     * @param listener Nonnull.
+     */
+    void subscribe(InvalidationListener listener);
+
+    /**
+     * Unsubscribes the given {@code listener}.
+     *
+     * @param listener Nonnull.
+     */
+    void unsubscribe(InvalidationListener listener);
+
+    /**
+     * Notifies all listeners that the record with the given {@code id} and
+     * the given {@code typeId} changed.
+     *
+     * @param typeId Nullable if the type isn't known.
+     * @param id Nonnull.
+     */
+    void publish(UUID typeId, UUID id);
+
+    /**
+     * Notifies all listeners that anything may have changed.
+     */
+    void publishAll();
+
+    /** {@link InvalidationBus} utility methods. */
+    final class Static {
+
+        public static final String CLASS_SETTING = "dari/invalidationBusClass";
+
+        private static volatile InvalidationBus defaultBus;
+
+        private Static() {
+        }
+
+        /**
+         * Returns the default bus, which is created using the
+         * {@value #CLASS_SETTING} setting the first time that it's needed.
+         *
+         * @return Nonnull.
+         * @throws SettingsException If the class name in the setting isn't
+         *         valid.
+         */
+        public static InvalidationBus getDefault() {
+            InvalidationBus bus = defaultBus;
+
+            if (bus == null) {
+                synchronized (Static.class) {
+                    bus = defaultBus;
+
+                    if (bus == null) {
+                        bus = createDefault();
+                        defaultBus = bus;
+                    }
+                }
+            }
+
+            return bus;
+        }
+
+        /**
+         * Sets the default bus.
+         *
+         * @param bus {@code null} to recreate it using the
+         *        {@value #CLASS_SETTING} setting.
+         */
+        public static void setDefault(InvalidationBus bus) {
+            defaultBus = bus;
+        }
+
+        private static InvalidationBus createDefault() {
+            String className = Settings.get(String.class, CLASS_SETTING);
+
+            if (ObjectUtils.isBlank(className)) {
+                return new LocalInvalidationBus();
+            }
+
+            Class<?> busClass = ObjectUtils.getClassByName(className);
+
+            if (busClass == null) {
+                throw new SettingsException(CLASS_SETTING, String.format(
+                        "[%s] is not a valid class name!", className));
+
+            } else if (!InvalidationBus.class.isAssignableFrom(busClass)) {
+                throw new SettingsException(CLASS_SETTING, String.format(
+                        "[%s] is not a [%s] class!", className,
+                        InvalidationBus.class.getName()));
+            }
+
+            return (InvalidationBus) TypeDefinition.getInstance(busClass).newInstance();
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.psddev.dari.db;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.psddev.dari.util.ObjectUtils;
+
+/**
+ * Index of cache keys by the type IDs and the object IDs that their values
+ * depend on.
+ *
+ * <p>To guard against a change that's published while a value is being
+ * loaded, callers should take a sequence number using {@link #begin}
+ * before loading, and evict the value if {@link #register} returns
+ * {@code false}. Only the changes to the tags that the value depends on
+ * count, so a busy type doesn't keep the values of the other types from
+ * being cached:</p>
+ *
+ * <blockquote><pre>{@literal
+long sequence = index.begin();
+Object value = cache.get(key);
+if (!index.register(key, tags, sequence)) {
+    cache.invalidate(key);
+}
+ * }</pre></blockquote>
+ *
+ * @param <K> Type of the cache keys.
+ */
+final class InvalidationIndex<K> {
+
+    private static final int STRIPES = 1024;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    // Sequence number of the last change to any of the tags in each stripe,
+    // and of the last change that may have affected everything.
+    private final AtomicLongArray stripeSequences = new AtomicLongArray(STRIPES);
+    private final AtomicLong allSequence = new AtomicLong();
+
+    private final ConcurrentHashMap<UUID, Set<K>> keysByTag = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<K, Set<UUID>> tagsByKey = new ConcurrentHashMap<>();
+
+    // Keys that depend on everything, such as those of untyped queries.
+    private final Set<K> untaggedKeys = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /**
+     * Returns the tags that the results of the given {@code query} depend
+     * on: the IDs if it only matches against IDs, or its concrete type IDs.
+     *
+     * @param query Nonnull.
+     * @param database Nonnull.
+     * @return {@code null} if the results may depend on other types, such
+     *         as through a subquery or a sort on a referenced field.
+     */
+    public static Set<UUID> getQueryTags(Query<?> query, Database database) {
+        if (query.isFromAll() || !isLocal(query.getPredicate())) {
+            return null;
+        }
+
+        for (Sorter sorter : query.getSorters()) {
+            for (Object option : sorter.getOptions()) {
+                if (option instanceof String && ((String) option).contains("/")) {
+                    return null;
+                }
+            }
+        }
+
+        List<Object> values = query.findIdOnlyQueryValues();
+
+        if (values != null) {
+            Set<UUID> ids = new HashSet<>();
+
+            for (Object value : values) {
+                UUID id = ObjectUtils.to(UUID.class, value);
+
+                if (id == null) {
+                    return null;
+                }
+
+                ids.add(id);
+            }
+
+            return ids;
+        }
+
+        Set<UUID> typeIds = query.getConcreteTypeIds(database);
+
+        return typeIds.isEmpty() ? null : typeIds;
+    }
+
+    // Does the predicate only match against the fields of the queried types?
+    private static boolean isLocal(Predicate predicate) {
+        if (predicate == null) {
+            return true;
+
+        } else if (predicate instanceof CompoundPredicate) {
+            for (Predicate child : ((CompoundPredicate) predicate).getChildren()) {
+                if (!isLocal(child)) {
+                    return false;
+                }
+            }
+
+            return true;
+
+        } else if (predicate instanceof ComparisonPredicate) {
+            ComparisonPredicate comparison = (ComparisonPredicate) predicate;
+
+            return !comparison.getKey().contains("/")
+                    && comparison.findValueQuery() == null;
+
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the sequence number that should be passed to
+     * {@link #register} after the value is loaded.
+     */
+    public long begin() {
+        return sequence.get();
+    }
+
+    /**
+     * Returns {@code true} if the given {@code key} is registered.
+     */
+    public boolean isRegistered(K key) {
+        return tagsByKey.containsKey(key) || untaggedKeys.contains(key);
+    }
+
+    /**
+     * Registers the given {@code key} so that it's returned by
+     * {@link #invalidate} whenever any of the given {@code tags} change.
+     *
+     * @param key Nonnull.
+     * @param tags {@code null} if the value depends on everything.
+     * @param begin Sequence number returned by {@link #begin} before the
+     *        value was loaded.
+     * @return {@code false} if anything changed since the given
+     *         {@code begin}, in which case the value may be stale and
+     *         should be evicted.
+     */
+    public boolean register(K key, Set<UUID> tags, long begin) {
+        if (tags == null) {
+            untaggedKeys.add(key);
+
+        } else {
+            Set<UUID> newTags = Collections.unmodifiableSet(new HashSet<>(tags));
+
+            tagsByKey.put(key, newTags);
+
+            // Added within #compute so that it can't race with #remove
+            // dropping the same, empty set.
+            for (UUID tag : newTags) {
+                keysByTag.compute(tag, (t, keys) -> {
+                    Set<K> newKeys = keys != null ? keys : Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+                    newKeys.add(key);
+                    return newKeys;
+                });
+            }
+        }
+
+        // Checked after the key is visible in the index so that any change
+        // that's published concurrently is caught either here or by
+        // #invalidate.
+        if (!hasChanged(tags, begin)) {
+            return true;
+
+        } else {
+            remove(key);
+            return false;
+        }
+    }
+
+    /**
+     * Returns {@code true} if any of the given {@code tags} may have changed
+     * since the given {@code begin}.
+     *
+     * @param tags {@code null} to check for any change at all.
+     * @param begin Sequence number returned by {@link #begin}.
+     */
+    public boolean hasChanged(Set<UUID> tags, long begin) {
+        if (tags == null) {
+            return sequence.get() != begin;
+
+        } else if (allSequence.get() > begin) {
+            return true;
+        }
+
+        for (UUID tag : tags) {
+            if (stripeSequences.get(stripe(tag)) > begin) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static int stripe(UUID tag) {
+        return tag.hashCode() & (STRIPES - 1);
+    }
+
+    // Records a change to the given tag before the keys are collected, so
+    // that #register catches it if #invalidate doesn't.
+    private void change(UUID tag, long changeSequence) {
+        stripeSequences.accumulateAndGet(stripe(tag), changeSequence, Math::max);
+    }
+
+    /**
+     * Unregisters the given {@code key}.
+     *
+     * @param key Nonnull.
+     */
+    public void remove(K key) {
+        untaggedKeys.remove(key);
+
+        Set<UUID> tags = tagsByKey.remove(key);
+
+        if (tags != null) {
+            for (UUID tag : tags) {
+                keysByTag.computeIfPresent(tag, (t, keys) -> {
+                    keys.remove(key);
+                    return keys.isEmpty() ? null : keys;
+                });
+            }
+        }
+    }
+
+    /**
+     * Unregisters and returns all keys that depend on the given
+     * {@code typeId} or the given {@code id}.
+     *
+     * @param typeId {@code null} to return all keys, since anything may
+     *        depend on an object of an unknown type.
+     * @param id Nullable.
+     * @return Nonnull.
+     */
+    public Set<K> invalidate(UUID typeId, UUID id) {
+        if (typeId == null) {
+            return invalidateAll();
+        }
+
+        long changeSequence = sequence.incrementAndGet();
+
+        change(typeId, changeSequence);
+
+        if (id != null) {
+            change(id, changeSequence);
+        }
+
+        Set<K> keys = new HashSet<>(untaggedKeys);
+
+        addKeys(keys, typeId);
+
+        if (id != null) {
+            addKeys(keys, id);
+        }
+
+        for (K key : keys) {
+            remove(key);
+        }
+
+        return keys;
+    }
+
+    private void addKeys(Set<K> keys, UUID tag) {
+        Set<K> tagKeys = keysByTag.get(tag);
+
+        if (tagKeys != null) {
+            keys.addAll(tagKeys);
+        }
+    }
+
+    /**
+     * Unregisters and returns all keys.
+     *
+     * @return Nonnull.
+     */
+    public Set<K> invalidateAll() {
+        allSequence.accumulateAndGet(sequence.incrementAndGet(), Math::max);
+
+        Set<K> keys = new HashSet<>(untaggedKeys);
+
+        keys.addAll(tagsByKey.keySet());
+
+        for (K key : keys) {
+            remove(key);
+        }
+
+        return keys;
+    }
+
+    /**
+     * Returns the number of registered keys.
+     */
+    public int getSize() {
+        return tagsByKey.size() + untaggedKeys.size();
+    }
+}
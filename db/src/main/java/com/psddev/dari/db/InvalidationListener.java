@@ -0,0 +1,28 @@
+package com.psddev.dari.db;
+
+import java.util.UUID;
+
+/**
+ * Receives notifications from an {@link InvalidationBus}.
+ *
+ * <p>The methods may be called from any thread, including the one that's
+ * reading the MySQL binary log, so they should only evict entries and
+ * never block.</p>
+ */
+public interface InvalidationListener {
+
+    /**
+     * Called when the record with the given {@code id} and the given
+     * {@code typeId} changed.
+     *
+     * @param typeId Nullable if the type isn't known, in which case
+     *        anything that depends on any type should be evicted.
+     * @param id Nonnull.
+     */
+    void invalidate(UUID typeId, UUID id);
+
+    /**
+     * Called when anything may have changed.
+     */
+    void invalidateAll();
+}
@@ -0,0 +1,118 @@
+package com.psddev.dari.db;
+
+import com.psddev.dari.util.JsonParsingException;
+import com.psddev.dari.util.JsonProcessor;
+import com.psddev.dari.util.ObjectUtils;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Internal decoder that streams the top-level values in JSON record data
+ * straight into a {@link State}, without building an intermediate map.
+ *
+ * <p>Values of the fields whose types are known are read as those types
+ * when the JSON allows it, so that they don't have to be converted again.
+ * Everything else is read the same way as {@link JsonProcessor} does, so
+ * that the data round-trips unchanged.</p>
+ */
+final class JsonStateDecoder {
+
+    private static final JsonProcessor JSON_PROCESSOR = new JsonProcessor();
+
+    private final byte[] data;
+
+    /**
+     * @param data Nonnull.
+     */
+    public JsonStateDecoder(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Decodes the top-level values one at a time and passes each to the
+     * given {@code consumer} as soon as it's read.
+     *
+     * @param fields Nullable. Looks up the field for each key, so that its
+     *        value can be read as the field type.
+     * @param consumer Nonnull.
+     */
+    public void decode(Function<String, ObjectField> fields, BiConsumer<String, Object> consumer) {
+        try (JsonParser parser = JSON_PROCESSOR.getJsonFactory().createJsonParser(data)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParsingException("Record data isn't a JSON object!", null);
+            }
+
+            while (parser.nextToken() != JsonToken.END_OBJECT) {
+                String name = parser.getCurrentName();
+                ObjectField field = fields != null ? fields.apply(name) : null;
+
+                parser.nextToken();
+                consumer.accept(name, field != null
+                        ? readValue(parser, field.getInternalType())
+                        : JSON_PROCESSOR.parse(parser));
+            }
+
+        } catch (JsonParseException error) {
+            throw new JsonParsingException("Can't parse JSON bytes!", error);
+
+        } catch (IOException error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    // Reads the value as the given field type. Lists and sets of simple
+    // items are read item by item.
+    private static Object readValue(JsonParser parser, String type) throws IOException {
+        int slashAt = type.indexOf('/');
+
+        if (slashAt < 0) {
+            return readItem(parser, type);
+        }
+
+        String collectionType = type.substring(0, slashAt);
+        String itemType = type.substring(slashAt + 1);
+
+        if (parser.getCurrentToken() != JsonToken.START_ARRAY
+                || !(ObjectField.LIST_TYPE.equals(collectionType) || ObjectField.SET_TYPE.equals(collectionType))
+                || itemType.indexOf('/') > -1) {
+
+            return JSON_PROCESSOR.parse(parser);
+        }
+
+        List<Object> items = new ArrayList<>();
+
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            items.add(readItem(parser, itemType));
+        }
+
+        return items;
+    }
+
+    // Reads the simple value as the given item type, the same way as
+    // StateValueUtils#toJavaValue would convert it.
+    private static Object readItem(JsonParser parser, String itemType) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+
+        if (token == JsonToken.VALUE_NUMBER_INT && ObjectField.DATE_TYPE.equals(itemType)) {
+            return new Date(parser.getLongValue());
+
+        } else if (token == JsonToken.VALUE_STRING && ObjectField.UUID_TYPE.equals(itemType)) {
+            UUID uuid = ObjectUtils.to(UUID.class, parser.getText());
+
+            if (uuid != null) {
+                return uuid;
+            }
+        }
+
+        return JSON_PROCESSOR.parse(parser);
+    }
+}
@@ -0,0 +1,72 @@
+package com.psddev.dari.db;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.MapMaker;
+import com.psddev.dari.util.Stats;
+
+/**
+ * {@link InvalidationBus} that delivers the notifications to the listeners
+ * within the current JVM.
+ */
+public class LocalInvalidationBus implements InvalidationBus {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalInvalidationBus.class);
+    private static final Stats STATS = new Stats("Invalidation Bus");
+
+    // Weakly keyed by identity, so that subscribing doesn't copy anything
+    // and the collected listeners are cleaned up along the way.
+    private final Set<InvalidationListener> listeners = Collections.newSetFromMap(new MapMaker().weakKeys().makeMap());
+
+    @Override
+    public void subscribe(InvalidationListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void unsubscribe(InvalidationListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void publish(UUID typeId, UUID id) {
+        Stats.Timer timer = STATS.startTimer();
+
+        try {
+            deliver(listener -> listener.invalidate(typeId, id));
+
+        } finally {
+            timer.stop("Publish");
+        }
+    }
+
+    @Override
+    public void publishAll() {
+        Stats.Timer timer = STATS.startTimer();
+
+        try {
+            deliver(InvalidationListener::invalidateAll);
+
+        } finally {
+            timer.stop("Publish All");
+        }
+    }
+
+    // One broken listener shouldn't keep the others from being notified.
+    private void deliver(Consumer<InvalidationListener> notification) {
+        for (InvalidationListener listener : listeners) {
+            try {
+                notification.accept(listener);
+
+            } catch (RuntimeException error) {
+                LOGGER.warn(String.format("Can't notify [%s]!", listener), error);
+            }
+        }
+    }
+}
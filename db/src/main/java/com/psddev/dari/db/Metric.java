@@ -442,6 +442,27 @@ public class Metric extends Record {
             return mdb.submitResummarizeAllTask(interval, startTimestamp, endTimestamp, parallel, executor, name);
         }
 
+        /**
+         * Reconstructs the cumulative amounts in all metric values in the
+         * given field (all dimensions). This is required after turning off
+         * the {@linkplain MetricAccessDatabase#isMetricNonCascading
+         * non-cascading} layout. This submits a Task to be executed
+         * asynchronously.
+         *
+         * @param database Can't be {@code null}.
+         * @param type Can't be {@code null}.
+         * @param field Can't be {@code null}.
+         * @param parallel Number of tasks to run in parallel. If {@code null}, 1.
+         *
+         */
+        public static Task submitReconstructAllTask(Database database, ObjectType type, ObjectField field, Integer parallel, String executor, String name) {
+            MetricAccess mdb = MetricAccess.Static.getMetricAccess(database, type, field);
+            if (parallel == null || parallel < 1) {
+                parallel = 1;
+            }
+            return mdb.submitReconstructAllTask(parallel, executor, name);
+        }
+
         private static void preFetchMetrics(State state, UUID dimensionId, Long startTimestamp, Long endTimestamp) {
             if (state == null || state.getType() == null) {
                 return;
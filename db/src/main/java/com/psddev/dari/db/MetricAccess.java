@@ -1,5 +1,6 @@
 package com.psddev.dari.db;
 
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -9,6 +10,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -60,6 +62,7 @@ class MetricAccess {
 
     private static final String CACHE_MIN = "min";
     private static final String CACHE_MAX = "max";
+    private static final String CACHE_CORRECTION = "correction";
 
     private static final transient Cache<String, UUID> DIMENSION_CACHE = CacheBuilder.newBuilder().maximumSize(DIMENSION_CACHE_SIZE).build();
 
@@ -95,6 +98,10 @@ class MetricAccess {
         return db;
     }
 
+    public String getFieldName() {
+        return fieldName;
+    }
+
     public int getSymbolId() {
         return db.getSymbolId(symbol);
     }
@@ -123,21 +130,30 @@ class MetricAccess {
     }
 
     public Double getMetric(UUID id, String dimensionValue, Long startTimestamp, Long endTimestamp) throws SQLException {
+        UUID dimensionId = getDimensionId(dimensionValue);
         if (startTimestamp == null) {
-            byte[] data = getMaxData(id, getDimensionId(dimensionValue), endTimestamp);
+            byte[] data = getMaxData(id, dimensionId, endTimestamp);
             if (data == null) {
                 return null;
             }
-            return Static.amountFromBytes(data, CUMULATIVEAMOUNT_POSITION);
+            double cumulativeAmount = Static.amountFromBytes(data, CUMULATIVEAMOUNT_POSITION);
+            if (endTimestamp != null && getDatabase().isMetricNonCascading()) {
+                cumulativeAmount += getCorrection(id, dimensionId, null, Static.timestampFromBytes(data));
+            }
+            return cumulativeAmount;
         } else {
-            List<byte[]> datas = getMaxMinData(id, getDimensionId(dimensionValue), startTimestamp, endTimestamp);
+            List<byte[]> datas = getMaxMinData(id, dimensionId, startTimestamp, endTimestamp);
             if (datas.get(0) == null) {
                 return null;
             }
             double maxCumulativeAmount = Static.amountFromBytes(datas.get(0), CUMULATIVEAMOUNT_POSITION);
             double minCumulativeAmount = Static.amountFromBytes(datas.get(1), CUMULATIVEAMOUNT_POSITION);
             double minAmount = Static.amountFromBytes(datas.get(1), AMOUNT_POSITION);
-            return maxCumulativeAmount - (minCumulativeAmount - minAmount);
+            double amount = maxCumulativeAmount - (minCumulativeAmount - minAmount);
+            if (getDatabase().isMetricNonCascading()) {
+                amount += getCorrection(id, dimensionId, Static.timestampFromBytes(datas.get(1)), Static.timestampFromBytes(datas.get(0)));
+            }
+            return amount;
         }
     }
 
@@ -150,7 +166,7 @@ class MetricAccess {
         CachingDatabase cachingDb = Static.getCachingDatabase();
         byte[] data;
         if (hasCachedData(cachingDb, id, dimensionId, endTimestamp, CACHE_MAX)) {
-            data = getCachedData(cachingDb, id, dimensionId, endTimestamp, CACHE_MAX);
+            data = (byte[]) getCachedData(cachingDb, id, dimensionId, endTimestamp, CACHE_MAX);
         } else {
             data = Static.getDataByIdAndDimension(getDatabase(), id, getTypeId(), getSymbolId(), dimensionId, null, endTimestamp, false);
             putCachedData(cachingDb, id, dimensionId, endTimestamp, data, CACHE_MAX);
@@ -168,8 +184,8 @@ class MetricAccess {
         List<byte[]> result = null;
         if (hasCachedData(cachingDb, id, dimensionId, startTimestamp, CACHE_MIN) && hasCachedData(cachingDb, id, dimensionId, endTimestamp, CACHE_MAX)) {
             result = new ArrayList<byte[]>();
-            result.add(getCachedData(cachingDb, id, dimensionId, endTimestamp, CACHE_MAX));
-            result.add(getCachedData(cachingDb, id, dimensionId, startTimestamp, CACHE_MIN));
+            result.add((byte[]) getCachedData(cachingDb, id, dimensionId, endTimestamp, CACHE_MAX));
+            result.add((byte[]) getCachedData(cachingDb, id, dimensionId, startTimestamp, CACHE_MIN));
             if ((result.get(0) == null) != (result.get(1) == null)) {
                 result = null;
             }
@@ -186,6 +202,27 @@ class MetricAccess {
         return result;
     }
 
+    /**
+     * Cached in CachingDatabase (if available) on id, dimensionId, minTimestamp, and maxTimestamp
+     * @param dimensionId Can't be {@code null}.
+     * @param minTimestamp Timestamp of the min row, or {@code null} to start at the beginning.
+     * @param maxTimestamp Timestamp of the max row.
+     * @return Amount that the past-dated increments in the non-cascading layout didn't add
+     *         to the cumulative amount at maxTimestamp, but did add to the one at minTimestamp
+     */
+    private double getCorrection(UUID id, UUID dimensionId, Long minTimestamp, long maxTimestamp) throws SQLException {
+        CachingDatabase cachingDb = Static.getCachingDatabase();
+        String position = CACHE_CORRECTION + '.' + minTimestamp;
+        Double amount;
+        if (hasCachedData(cachingDb, id, dimensionId, maxTimestamp, position)) {
+            amount = (Double) getCachedData(cachingDb, id, dimensionId, maxTimestamp, position);
+        } else {
+            amount = Static.getCorrectionByIdAndDimension(getDatabase(), id, getTypeId(), getSymbolId(), dimensionId, minTimestamp, maxTimestamp, false);
+            putCachedData(cachingDb, id, dimensionId, maxTimestamp, amount, position);
+        }
+        return amount;
+    }
+
     private boolean hasCachedData(CachingDatabase cachingDb, UUID id, UUID dimensionId, Long timestamp, String position) {
         Map<String, Object> extras = getCachedStateExtras(cachingDb, id);
         if (extras == null) {
@@ -196,17 +233,17 @@ class MetricAccess {
         }
     }
 
-    private byte[] getCachedData(CachingDatabase cachingDb, UUID id, UUID dimensionId, Long timestamp, String position) {
+    private Object getCachedData(CachingDatabase cachingDb, UUID id, UUID dimensionId, Long timestamp, String position) {
         Map<String, Object> extras = getCachedStateExtras(cachingDb, id);
         if (extras != null) {
             synchronized (extras) {
-                return (byte[]) extras.get(METRIC_CACHE_EXTRA_PREFIX + getSymbolId() + '.' + dimensionId + '.' + timestamp + '.' + position);
+                return extras.get(METRIC_CACHE_EXTRA_PREFIX + getSymbolId() + '.' + dimensionId + '.' + timestamp + '.' + position);
             }
         }
         return null;
     }
 
-    private void putCachedData(CachingDatabase cachingDb, UUID id, UUID dimensionId, Long timestamp, byte[] data, String position) {
+    private void putCachedData(CachingDatabase cachingDb, UUID id, UUID dimensionId, Long timestamp, Object data, String position) {
         Map<String, Object> extras = getCachedStateExtras(cachingDb, id);
         if (extras != null) {
             synchronized (extras) {
@@ -274,6 +311,67 @@ class MetricAccess {
         recalculateImmediateIndexedMethods(id);
     }
 
+    /**
+     * Increments all of the given {@code amounts} at once. The updates that
+     * don't require any reads are executed in batches, and the sums for the
+     * {@code null} dimension are combined per id.
+     *
+     * @param amounts Amounts by id and then by dimension ID. Can't be {@code null}.
+     * @param eventDate Already processed by {@link #getEventDate}.
+     */
+    public void incrementMetricsByDimensionId(Map<UUID, Map<UUID, Double>> amounts, long eventDate, boolean isImplicitEventDate) throws SQLException {
+        incrementMetricsByDimensionId(amounts, eventDate, isImplicitEventDate, null);
+    }
+
+    /**
+     * Increments all of the given {@code amounts} at once, and keeps track
+     * of the ones that haven't been written yet in the given
+     * {@code unwritten} map, so that the caller can retry only those if
+     * this fails.
+     *
+     * @param unwritten If not {@code null}, filled with the amounts to
+     * write, including the sums for the {@code null} dimension, and then
+     * emptied out as they're written.
+     */
+    void incrementMetricsByDimensionId(Map<UUID, Map<UUID, Double>> amounts, long eventDate, boolean isImplicitEventDate, Map<UUID, Map<UUID, Double>> unwritten) throws SQLException {
+        Map<UUID, Map<UUID, Double>> allAmounts = new HashMap<UUID, Map<UUID, Double>>();
+        for (Map.Entry<UUID, Map<UUID, Double>> entry : amounts.entrySet()) {
+            Map<UUID, Double> dimensionAmounts = new HashMap<UUID, Double>();
+            double sum = 0.0d;
+            for (Map.Entry<UUID, Double> dimensionEntry : entry.getValue().entrySet()) {
+                double amount = dimensionEntry.getValue();
+                if (amount == 0) {
+                    continue;
+                }
+                dimensionAmounts.merge(dimensionEntry.getKey(), amount, Double::sum);
+                if (!dimensionEntry.getKey().equals(UuidUtils.ZERO_UUID)) {
+                    // Do an additional increment for the null dimension to maintain the sum
+                    sum += amount;
+                }
+            }
+            if (sum != 0) {
+                dimensionAmounts.merge(UuidUtils.ZERO_UUID, sum, Double::sum);
+            }
+            dimensionAmounts.values().removeIf(amount -> amount == 0);
+            if (!dimensionAmounts.isEmpty()) {
+                allAmounts.put(entry.getKey(), dimensionAmounts);
+            }
+        }
+        if (allAmounts.isEmpty()) {
+            return;
+        }
+        if (unwritten != null) {
+            for (Map.Entry<UUID, Map<UUID, Double>> entry : allAmounts.entrySet()) {
+                unwritten.put(entry.getKey(), new HashMap<UUID, Double>(entry.getValue()));
+            }
+        }
+        Static.doIncrementUpdateOrInsertAll(getDatabase(), getTypeId(), getSymbolId(), allAmounts, eventDate, isImplicitEventDate, unwritten);
+        for (UUID id : allAmounts.keySet()) {
+            clearCachedData(Static.getCachingDatabase(), id);
+            recalculateImmediateIndexedMethods(id);
+        }
+    }
+
     public void setMetric(UUID id, DateTime time, String dimensionValue, Double amount) throws SQLException {
         setMetricByDimensionId(id, time, getDimensionId(dimensionValue), amount);
         clearCachedData(Static.getCachingDatabase(), id);
@@ -317,6 +415,12 @@ class MetricAccess {
         return task;
     }
 
+    public Task submitReconstructAllTask(int numParallel, String executor, String name) {
+        ResummarizeTask task = new ResummarizeTask(getDatabase(), getSymbolId(), null, null, null, numParallel, executor, name);
+        task.submit();
+        return task;
+    }
+
     private void recalculateImmediateIndexedMethods(UUID id) {
         Set<ObjectMethod> immediateMethods = new HashSet<ObjectMethod>();
         for (ObjectMethod method : getRecalculableObjectMethods(db, typeId, fieldName)) {
@@ -445,6 +549,32 @@ class MetricAccess {
                 sqlBuilder.append(extraSelectSql);
             }
 
+            appendDataFromWhereSql(sqlBuilder, db, id, typeId, symbolId, dimensionId, minEventDate, maxEventDate);
+
+            if (extraWhereSql != null) {
+                sqlBuilder.append(" AND ");
+                sqlBuilder.append(extraWhereSql);
+            }
+
+            if (dimensionId == null) {
+                sqlBuilder.append(" GROUP BY ");
+                vendor.appendIdentifier(sqlBuilder, METRIC_DIMENSION_FIELD);
+                if (extraGroupBySql != null && !"".equals(extraGroupBySql)) {
+                    sqlBuilder.append(", ");
+                    sqlBuilder.append(extraGroupBySql);
+                }
+            } else if (extraGroupBySql != null && !"".equals(extraGroupBySql)) {
+                sqlBuilder.append(" GROUP BY ");
+                sqlBuilder.append(extraGroupBySql);
+            }
+
+            return sqlBuilder.toString();
+        }
+
+        // Appends the FROM and WHERE clauses shared by the aggregate queries.
+        private static void appendDataFromWhereSql(StringBuilder sqlBuilder, MetricAccessDatabase db, UUID id, UUID typeId, Integer symbolId, UUID dimensionId, Long minEventDate, Long maxEventDate) {
+            SqlVendor vendor = db.getMetricVendor();
+
             sqlBuilder.append(" FROM ");
             sqlBuilder.append(Static.getMetricTableIdentifier(db));
             sqlBuilder.append(" WHERE ");
@@ -489,22 +619,57 @@ class MetricAccess {
                 sqlBuilder.append(" >= ");
                 vendor.appendMetricEncodeTimestampSql(sqlBuilder, null, minEventDate, '0');
             }
+        }
 
-            if (extraWhereSql != null) {
-                sqlBuilder.append(" AND ");
-                sqlBuilder.append(extraWhereSql);
+        private static String getAmountSumSql(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, Long minEventDate, Long maxEventDate, MetricInterval metricInterval) {
+            StringBuilder sqlBuilder = new StringBuilder();
+            SqlVendor vendor = db.getMetricVendor();
+
+            sqlBuilder.append("SELECT ");
+
+            if (dimensionId == null) {
+                vendor.appendIdentifier(sqlBuilder, METRIC_DIMENSION_FIELD);
+                sqlBuilder.append(", ");
+            }
+
+            appendSelectAmountSumSql(sqlBuilder, vendor);
+            vendor.appendIdentifier(sqlBuilder, "amount");
+
+            StringBuilder dateGroupBySqlBuilder = null;
+
+            if (metricInterval != null) {
+                sqlBuilder.append(", MIN(");
+                vendor.appendMetricSelectTimestampSql(sqlBuilder, METRIC_DATA_FIELD);
+                sqlBuilder.append(") * ");
+                vendor.appendValue(sqlBuilder, DATE_DECIMAL_SHIFT);
+                sqlBuilder.append(' ');
+                vendor.appendIdentifier(sqlBuilder, "eventDate");
+
+                dateGroupBySqlBuilder = new StringBuilder();
+                vendor.appendMetricDateFormatTimestampSql(dateGroupBySqlBuilder, METRIC_DATA_FIELD, metricInterval);
             }
 
+            appendDataFromWhereSql(sqlBuilder, db, id, typeId, symbolId, dimensionId, minEventDate, maxEventDate);
+
             if (dimensionId == null) {
                 sqlBuilder.append(" GROUP BY ");
                 vendor.appendIdentifier(sqlBuilder, METRIC_DIMENSION_FIELD);
-                if (extraGroupBySql != null && !"".equals(extraGroupBySql)) {
+                if (dateGroupBySqlBuilder != null) {
                     sqlBuilder.append(", ");
-                    sqlBuilder.append(extraGroupBySql);
+                    sqlBuilder.append(dateGroupBySqlBuilder);
                 }
-            } else if (extraGroupBySql != null && !"".equals(extraGroupBySql)) {
+            } else if (dateGroupBySqlBuilder != null) {
                 sqlBuilder.append(" GROUP BY ");
-                sqlBuilder.append(extraGroupBySql);
+                sqlBuilder.append(dateGroupBySqlBuilder);
+            }
+
+            if (dateGroupBySqlBuilder != null) {
+                sqlBuilder.append(" ORDER BY ");
+                if (dimensionId == null) {
+                    vendor.appendIdentifier(sqlBuilder, METRIC_DIMENSION_FIELD);
+                    sqlBuilder.append(", ");
+                }
+                vendor.appendIdentifier(sqlBuilder, "eventDate");
             }
 
             return sqlBuilder.toString();
@@ -577,6 +742,104 @@ class MetricAccess {
             return sqlBuilder.toString();
         }
 
+        // Selects the corrections at the given minutes in the non-cascading layout.
+        private static String getCorrectionsSql(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, Collection<Long> minutes) {
+            StringBuilder sqlBuilder = new StringBuilder();
+            SqlVendor vendor = db.getMetricVendor();
+
+            sqlBuilder.append("SELECT ");
+            vendor.appendMetricDataBytes(sqlBuilder, METRIC_DATA_FIELD);
+
+            sqlBuilder.append(" FROM ");
+            sqlBuilder.append(Static.getMetricTableIdentifier(db));
+            sqlBuilder.append(" WHERE ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_SYMBOL_FIELD);
+            sqlBuilder.append(" = ");
+            vendor.appendValue(sqlBuilder, getCorrectionsSymbolId(symbolId));
+
+            sqlBuilder.append(" AND ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_ID_FIELD);
+            sqlBuilder.append(" = ");
+            vendor.appendValue(sqlBuilder, id);
+
+            sqlBuilder.append(" AND ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_TYPE_FIELD);
+            sqlBuilder.append(" = ");
+            vendor.appendValue(sqlBuilder, typeId);
+
+            sqlBuilder.append(" AND ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_DIMENSION_FIELD);
+            sqlBuilder.append(" = ");
+            vendor.appendValue(sqlBuilder, dimensionId);
+
+            sqlBuilder.append(" AND (");
+            boolean first = true;
+            for (Long minute : minutes) {
+                if (first) {
+                    first = false;
+                } else {
+                    sqlBuilder.append(" OR ");
+                }
+                sqlBuilder.append('(');
+                vendor.appendIdentifier(sqlBuilder, METRIC_DATA_FIELD);
+                sqlBuilder.append(" >= ");
+                vendor.appendMetricEncodeTimestampSql(sqlBuilder, null, minute * DATE_DECIMAL_SHIFT, '0');
+                sqlBuilder.append(" AND ");
+                vendor.appendIdentifier(sqlBuilder, METRIC_DATA_FIELD);
+                sqlBuilder.append(" <= ");
+                vendor.appendMetricEncodeTimestampSql(sqlBuilder, null, minute * DATE_DECIMAL_SHIFT, 'F');
+                sqlBuilder.append(')');
+            }
+            sqlBuilder.append(')');
+
+            return sqlBuilder.toString();
+        }
+
+        // Selects the ids and the dimension IDs that have a row at the event date.
+        private static String getExistingKeysSql(MetricAccessDatabase db, UUID typeId, int symbolId, long eventDate, Collection<UUID> ids) {
+            StringBuilder sqlBuilder = new StringBuilder();
+            SqlVendor vendor = db.getMetricVendor();
+
+            sqlBuilder.append("SELECT ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_ID_FIELD);
+            sqlBuilder.append(", ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_DIMENSION_FIELD);
+
+            sqlBuilder.append(" FROM ");
+            sqlBuilder.append(Static.getMetricTableIdentifier(db));
+            sqlBuilder.append(" WHERE ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_SYMBOL_FIELD);
+            sqlBuilder.append(" = ");
+            vendor.appendValue(sqlBuilder, symbolId);
+
+            sqlBuilder.append(" AND ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_ID_FIELD);
+            sqlBuilder.append(" IN (");
+            for (UUID id : ids) {
+                vendor.appendValue(sqlBuilder, id);
+                sqlBuilder.append(", ");
+            }
+            sqlBuilder.setLength(sqlBuilder.length() - 2);
+            sqlBuilder.append(')');
+
+            sqlBuilder.append(" AND ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_TYPE_FIELD);
+            sqlBuilder.append(" = ");
+            vendor.appendValue(sqlBuilder, typeId);
+
+            sqlBuilder.append(" AND ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_DATA_FIELD);
+            sqlBuilder.append(" >= ");
+            vendor.appendMetricEncodeTimestampSql(sqlBuilder, null, eventDate, '0');
+
+            sqlBuilder.append(" AND ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_DATA_FIELD);
+            sqlBuilder.append(" <= ");
+            vendor.appendMetricEncodeTimestampSql(sqlBuilder, null, eventDate, 'F');
+
+            return sqlBuilder.toString();
+        }
+
         private static String getSumSql(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, Long minEventDate, Long maxEventDate) {
             StringBuilder sqlBuilder = new StringBuilder();
             SqlVendor vendor = db.getMetricVendor();
@@ -594,7 +857,10 @@ class MetricAccess {
         private static String getDimensionsSql(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, Long minEventDate, Long maxEventDate) {
             StringBuilder sqlBuilder = new StringBuilder();
             SqlVendor vendor = db.getMetricVendor();
-            String innerSql = getDataSql(db, id, typeId, symbolId, null, minEventDate, maxEventDate, true, false, null, null, null);
+            boolean nonCascading = db.isMetricNonCascading();
+            String innerSql = nonCascading
+                    ? getAmountSumSql(db, id, typeId, symbolId, null, minEventDate, maxEventDate, null)
+                    : getDataSql(db, id, typeId, symbolId, null, minEventDate, maxEventDate, true, false, null, null, null);
 
             sqlBuilder.append("SELECT ");
             StringBuilder dimValField = new StringBuilder();
@@ -603,7 +869,13 @@ class MetricAccess {
             vendor.appendIdentifier(dimValField, METRIC_DIMENSION_VALUE_FIELD);
             sqlBuilder.append(vendor.convertRawToStringSql(METRIC_DIMENSION_VALUE_FIELD));
             sqlBuilder.append(", ");
-            appendSelectCalculatedAmountSql(sqlBuilder, vendor, "minData", "maxData", true);
+            if (nonCascading) {
+                sqlBuilder.append("SUM(");
+                vendor.appendIdentifier(sqlBuilder, "amount");
+                sqlBuilder.append(')');
+            } else {
+                appendSelectCalculatedAmountSql(sqlBuilder, vendor, "minData", "maxData", true);
+            }
             sqlBuilder.append(" FROM (");
             sqlBuilder.append(innerSql);
             sqlBuilder.append(") x ");
@@ -629,6 +901,9 @@ class MetricAccess {
         }
 
         private static String getTimelineSql(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, Long minEventDate, Long maxEventDate, MetricInterval metricInterval, boolean doDecodeToBytes) {
+            if (db.isMetricNonCascading()) {
+                return getAmountSumSql(db, id, typeId, symbolId, dimensionId, minEventDate, maxEventDate, metricInterval);
+            }
 
             SqlVendor vendor = db.getMetricVendor();
 
@@ -656,6 +931,11 @@ class MetricAccess {
         }
 
         private static String getUpdateSql(MetricAccessDatabase db, List<Object> parameters, UUID id, UUID typeId, int symbolId, UUID dimensionId, double amount, long eventDate, boolean increment, boolean updateFuture) {
+            return getUpdateSql(db, parameters, id, typeId, symbolId, dimensionId, amount, eventDate, eventDate, increment, updateFuture);
+        }
+
+        // Same as above, but only updates the rows starting at minEventDate.
+        private static String getUpdateSql(MetricAccessDatabase db, List<Object> parameters, UUID id, UUID typeId, int symbolId, UUID dimensionId, double amount, long eventDate, long minEventDate, boolean increment, boolean updateFuture) {
             StringBuilder updateBuilder = new StringBuilder("UPDATE ");
             SqlVendor vendor = db.getMetricVendor();
             updateBuilder.append(Static.getMetricTableIdentifier(db));
@@ -690,7 +970,7 @@ class MetricAccess {
             vendor.appendIdentifier(updateBuilder, METRIC_DATA_FIELD);
 
             updateBuilder.append(" >= ");
-            vendor.appendMetricEncodeTimestampSql(updateBuilder, parameters, eventDate, '0');
+            vendor.appendMetricEncodeTimestampSql(updateBuilder, parameters, minEventDate, '0');
 
             if (!updateFuture) {
                 updateBuilder.append(" AND ");
@@ -885,6 +1165,18 @@ class MetricAccess {
 
         }
 
+        public static void appendSelectAmountSumSql(StringBuilder str, SqlVendor vendor) {
+
+            str.append("ROUND(SUM(");
+            vendor.appendMetricSelectAmountSql(str, METRIC_DATA_FIELD, AMOUNT_POSITION);
+            str.append(") / ");
+            vendor.appendValue(str, AMOUNT_DECIMAL_SHIFT);
+            str.append(',');
+            vendor.appendValue(str, AMOUNT_DECIMAL_PLACES);
+            str.append(") ");
+
+        }
+
         // methods that convert bytes into values and back again
 
         private static byte[] toBytes(long eventDate, double cumulativeAmount, double amount) {
@@ -996,6 +1288,38 @@ class MetricAccess {
                         List<Object> updateParameters = new ArrayList<Object>();
                         String updateSql = getUpdateSql(db, updateParameters, id, typeId, symbolId, dimensionId, incrementAmount, eventDate, true, false);
                         SqlDatabase.Static.executeUpdateWithList(vendor, connection, updateSql, updateParameters);
+                    } else if (db.isMetricNonCascading()) {
+                        // The max(eventDate) in the table is greater than our
+                        // event date, but instead of updating all future rows,
+                        // only UPDATE or INSERT the row for our event date and
+                        // the latest row, and record the amount that the rows
+                        // in between are missing as a correction.
+                        long eventMinute = eventDate / DATE_DECIMAL_SHIFT;
+                        long latestMinute = timestampFromBytes(data) / DATE_DECIMAL_SHIFT;
+                        List<Object> updateParameters = new ArrayList<Object>();
+                        String updateSql = getUpdateSql(db, updateParameters, id, typeId, symbolId, dimensionId, incrementAmount, eventDate, true, false);
+                        int rowsAffected = SqlDatabase.Static.executeUpdateWithList(vendor, connection, updateSql, updateParameters);
+                        if (0 == rowsAffected) {
+                            // The previous cumulative amount may be missing
+                            // some corrections, and the new row shouldn't
+                            // include the ones after the previous row.
+                            byte[] oldData = getDataByIdAndDimension(db, id, typeId, symbolId, dimensionId, null, eventDate, true);
+                            double previousCumulativeAmount = 0.0d;
+                            Long correctionStartMinute = null;
+                            if (oldData != null) {
+                                previousCumulativeAmount = amountFromBytes(oldData, CUMULATIVEAMOUNT_POSITION);
+                                correctionStartMinute = timestampFromBytes(oldData) / DATE_DECIMAL_SHIFT + 1;
+                            }
+                            previousCumulativeAmount -= getCorrection(db, connection, id, typeId, symbolId, dimensionId, correctionStartMinute, eventMinute + 1);
+                            List<Object> insertParameters = new ArrayList<Object>();
+                            String insertSql = getMetricInsertSql(db, insertParameters, id, typeId, symbolId, dimensionId, incrementAmount, previousCumulativeAmount + incrementAmount, eventDate);
+                            tryInsertThenUpdate(db, connection, insertSql, insertParameters, updateSql, updateParameters);
+                        }
+                        // Only the cumulative amount changes in the latest row.
+                        List<Object> latestParameters = new ArrayList<Object>();
+                        String latestSql = getUpdateSql(db, latestParameters, id, typeId, symbolId, dimensionId, incrementAmount, eventDate, timestampFromBytes(data), true, true);
+                        SqlDatabase.Static.executeUpdateWithList(vendor, connection, latestSql, latestParameters);
+                        doIncrementCorrections(db, connection, id, typeId, symbolId, dimensionId, incrementAmount, eventMinute + 1, latestMinute);
                     } else { // if (timestampFromBytes(data) > eventDate)
                         // The max(eventDate) in the table is greater than our
                         // event date. If there exists a row in the past, UPDATE it
@@ -1031,6 +1355,167 @@ class MetricAccess {
             }
         }
 
+        // Removes the given row from the amounts that haven't been written.
+        private static void markWritten(Map<UUID, Map<UUID, Double>> unwritten, UUID id, UUID dimensionId) {
+            if (unwritten == null) {
+                return;
+            }
+            Map<UUID, Double> dimensionAmounts = unwritten.get(id);
+            if (dimensionAmounts != null) {
+                dimensionAmounts.remove(dimensionId);
+                if (dimensionAmounts.isEmpty()) {
+                    unwritten.remove(id);
+                }
+            }
+        }
+
+        // Returns the ones among the given [id, dimensionId] keys that have a
+        // row at the event date, with a single SELECT.
+        private static Set<UUID[]> getExistingKeys(MetricAccessDatabase db, Connection connection, UUID typeId, int symbolId, long eventDate, List<UUID[]> keys) throws SQLException {
+            Map<UUID, Map<UUID, UUID[]>> keysById = new HashMap<UUID, Map<UUID, UUID[]>>();
+            for (UUID[] key : keys) {
+                keysById.computeIfAbsent(key[0], k -> new HashMap<UUID, UUID[]>()).put(key[1], key);
+            }
+
+            SqlVendor vendor = db.getMetricVendor();
+            String sql = getExistingKeysSql(db, typeId, symbolId, eventDate, keysById.keySet());
+            Set<UUID[]> existingKeys = new HashSet<UUID[]>();
+            Statement statement = connection.createStatement();
+            try {
+                ResultSet result = db.executeQueryBeforeTimeout(statement, sql, QUERY_TIMEOUT);
+                try {
+                    while (result.next()) {
+                        Map<UUID, UUID[]> keysByDimensionId = keysById.get(vendor.getUuid(result, 1));
+                        UUID[] key = keysByDimensionId != null ? keysByDimensionId.get(vendor.getUuid(result, 2)) : null;
+                        if (key != null) {
+                            existingKeys.add(key);
+                        }
+                    }
+                } finally {
+                    result.close();
+                }
+            } finally {
+                statement.close();
+            }
+            return existingKeys;
+        }
+
+        static void doIncrementUpdateOrInsertAll(MetricAccessDatabase db, UUID typeId, int symbolId, Map<UUID, Map<UUID, Double>> amounts, long eventDate, boolean isImplicitEventDate, Map<UUID, Map<UUID, Double>> unwritten) throws SQLException {
+            if (!isImplicitEventDate) {
+                // Past event dates require reads, so they can't be batched.
+                for (Map.Entry<UUID, Map<UUID, Double>> entry : amounts.entrySet()) {
+                    for (Map.Entry<UUID, Double> dimensionEntry : entry.getValue().entrySet()) {
+                        doIncrementUpdateOrInsert(db, entry.getKey(), typeId, symbolId, dimensionEntry.getKey(), dimensionEntry.getValue(), eventDate, false);
+                        markWritten(unwritten, entry.getKey(), dimensionEntry.getKey());
+                    }
+                }
+                return;
+            }
+
+            // Try to UPDATE all current rows in batches, grouped by the SQL
+            // since the vendors may inline some of the values.
+            Map<String, List<List<Object>>> parametersBySql = new HashMap<String, List<List<Object>>>();
+            Map<String, List<UUID[]>> keysBySql = new HashMap<String, List<UUID[]>>();
+            for (Map.Entry<UUID, Map<UUID, Double>> entry : amounts.entrySet()) {
+                for (Map.Entry<UUID, Double> dimensionEntry : entry.getValue().entrySet()) {
+                    List<Object> updateParameters = new ArrayList<Object>();
+                    String updateSql = getUpdateSql(db, updateParameters, entry.getKey(), typeId, symbolId, dimensionEntry.getKey(), dimensionEntry.getValue(), eventDate, true, false);
+                    parametersBySql.computeIfAbsent(updateSql, k -> new ArrayList<List<Object>>()).add(updateParameters);
+                    keysBySql.computeIfAbsent(updateSql, k -> new ArrayList<UUID[]>()).add(new UUID[] { entry.getKey(), dimensionEntry.getKey() });
+                }
+            }
+
+            List<UUID[]> missingKeys = new ArrayList<UUID[]>();
+            List<UUID[]> uncountedKeys = new ArrayList<UUID[]>();
+            Connection connection = db.openConnection();
+            try {
+                for (Map.Entry<String, List<List<Object>>> entry : parametersBySql.entrySet()) {
+                    List<UUID[]> keys = keysBySql.get(entry.getKey());
+                    List<UUID[]> unknownKeys = new ArrayList<UUID[]>();
+                    int[] affected;
+                    try {
+                        affected = SqlDatabase.Static.executeBatchUpdate(connection, entry.getKey(), entry.getValue());
+                    } catch (BatchUpdateException error) {
+                        // Some drivers keep going or report the ones that
+                        // went through before the failure.
+                        int[] partial = error.getUpdateCounts();
+                        if (partial != null) {
+                            for (int i = 0, length = Math.min(partial.length, keys.size()); i < length; ++ i) {
+                                if (partial[i] > 0) {
+                                    markWritten(unwritten, keys.get(i)[0], keys.get(i)[1]);
+                                } else if (partial[i] == Statement.SUCCESS_NO_INFO) {
+                                    unknownKeys.add(keys.get(i));
+                                }
+                            }
+                        }
+                        if (!unknownKeys.isEmpty()) {
+                            try {
+                                for (UUID[] key : getExistingKeys(db, connection, typeId, symbolId, eventDate, unknownKeys)) {
+                                    markWritten(unwritten, key[0], key[1]);
+                                }
+                            } catch (SQLException checkError) {
+                                error.addSuppressed(checkError);
+                            }
+                        }
+                        throw error;
+                    }
+                    if (affected.length != keys.size()) {
+                        LOGGER.warn(
+                                "Expected [{}] update counts from the JDBC batch but got [{}]!",
+                                keys.size(),
+                                affected.length);
+                    }
+                    for (int i = 0, size = Math.min(affected.length, keys.size()); i < size; ++ i) {
+                        int count = affected[i];
+                        if (count == 0) {
+                            missingKeys.add(keys.get(i));
+                        } else if (count == Statement.SUCCESS_NO_INFO) {
+                            unknownKeys.add(keys.get(i));
+                        } else {
+                            markWritten(unwritten, keys.get(i)[0], keys.get(i)[1]);
+                        }
+                    }
+                    // There's no telling whether the ones without a count
+                    // ran, and unlike SUCCESS_NO_INFO, finding the row
+                    // wouldn't say either, so leave them unwritten.
+                    for (int i = affected.length, size = keys.size(); i < size; ++ i) {
+                        uncountedKeys.add(keys.get(i));
+                    }
+                    if (!unknownKeys.isEmpty()) {
+                        // SUCCESS_NO_INFO means that the driver ran the
+                        // UPDATE but doesn't know how many rows changed,
+                        // which some drivers report for every statement in
+                        // a rewritten batch, so look the rows up instead of
+                        // assuming that they exist.
+                        Set<UUID[]> existingKeys = getExistingKeys(db, connection, typeId, symbolId, eventDate, unknownKeys);
+                        for (UUID[] key : unknownKeys) {
+                            if (existingKeys.contains(key)) {
+                                markWritten(unwritten, key[0], key[1]);
+                            } else {
+                                missingKeys.add(key);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                db.closeConnection(connection);
+            }
+
+            // There is no data for the current date for these, so fall back
+            // to reading the previous cumulative amount and inserting.
+            for (UUID[] key : missingKeys) {
+                doIncrementUpdateOrInsert(db, key[0], typeId, symbolId, key[1], amounts.get(key[0]).get(key[1]), eventDate, true);
+                markWritten(unwritten, key[0], key[1]);
+            }
+
+            // Fail so that the caller requeues the unwritten ones.
+            if (!uncountedKeys.isEmpty()) {
+                throw new SQLException(String.format(
+                        "Missing update counts for [%s] metric increments in the JDBC batch!",
+                        uncountedKeys.size()));
+            }
+        }
+
         // This is for the occasional race condition when we check for the existence of a row, it does not exist, then two threads try to insert at (almost) the same time.
         private static void tryInsertThenUpdate(MetricAccessDatabase db, Connection connection, String insertSql, List<Object> insertParameters, String updateSql, List<Object> updateParameters) throws SQLException, UpdateFailedException {
             SqlVendor vendor = db.getMetricVendor();
@@ -1053,6 +1538,46 @@ class MetricAccess {
             }
         }
 
+        // Corrections in the non-cascading layout are stored under the
+        // negated symbol ID so that they're never mixed with the amounts.
+        static int getCorrectionsSymbolId(int symbolId) {
+            return -symbolId;
+        }
+
+        // Adds the amount to the corrections at or after the start minute and
+        // before the end minute, which only writes the nodes on the two update
+        // paths that aren't shared, one at a time since there are only a few.
+        private static void doIncrementCorrections(MetricAccessDatabase db, Connection connection, UUID id, UUID typeId, int symbolId, UUID dimensionId, double amount, long startMinute, long endMinute) throws SQLException {
+            SqlVendor vendor = db.getMetricVendor();
+            int correctionsSymbolId = getCorrectionsSymbolId(symbolId);
+
+            try {
+                for (Map.Entry<Long, Integer> entry : MetricPartialSums.getRangeUpdateSigns(startMinute, endMinute).entrySet()) {
+                    double nodeAmount = amount * entry.getValue();
+                    long nodeDate = entry.getKey() * DATE_DECIMAL_SHIFT;
+                    List<Object> updateParameters = new ArrayList<Object>();
+                    String updateSql = getUpdateSql(db, updateParameters, id, typeId, correctionsSymbolId, dimensionId, nodeAmount, nodeDate, true, false);
+                    if (0 == SqlDatabase.Static.executeUpdateWithList(vendor, connection, updateSql, updateParameters)) {
+                        List<Object> insertParameters = new ArrayList<Object>();
+                        String insertSql = getMetricInsertSql(db, insertParameters, id, typeId, correctionsSymbolId, dimensionId, nodeAmount, nodeAmount, nodeDate);
+                        tryInsertThenUpdate(db, connection, insertSql, insertParameters, updateSql, updateParameters);
+                    }
+                }
+
+            } catch (UpdateFailedException error) {
+                // Can't repair and retry like the amounts, since that would
+                // increment the ones that were already written again.
+                throw new SQLException("Correction with the wrong type ID!", error);
+            }
+        }
+
+        // Deletes all the corrections, once the cumulative amounts are exact.
+        private static void doDeleteCorrections(MetricAccessDatabase db, Connection connection, UUID id, UUID typeId, int symbolId, UUID dimensionId) throws SQLException {
+            List<Object> parameters = new ArrayList<Object>();
+            String sql = getDeleteDataRowsBetweenSql(db, parameters, id, typeId, getCorrectionsSymbolId(symbolId), dimensionId, 0L, MetricPartialSums.SIZE * DATE_DECIMAL_SHIFT);
+            SqlDatabase.Static.executeUpdateWithList(db.getMetricVendor(), connection, sql, parameters);
+        }
+
         private static void doSetUpdateOrInsert(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, double amount, long eventDate) throws SQLException {
             SqlVendor vendor = db.getMetricVendor();
             Connection connection = db.openConnection();
@@ -1085,6 +1610,8 @@ class MetricAccess {
             try {
                 String sql = getDeleteMetricSql(db, id, typeId, symbolId);
                 SqlDatabase.Static.executeUpdateWithList(db.getMetricVendor(), connection, sql, parameters);
+                String correctionsSql = getDeleteMetricSql(db, id, typeId, getCorrectionsSymbolId(symbolId));
+                SqlDatabase.Static.executeUpdateWithList(db.getMetricVendor(), connection, correctionsSql, parameters);
             } finally {
                 db.closeConnection(connection);
             }
@@ -1158,6 +1685,12 @@ class MetricAccess {
             } finally {
                 db.closeConnection(connection);
             }
+
+            // The amounts moved to the start of each interval, so the
+            // corrections don't line up with the rows anymore.
+            if (db.isMetricNonCascading()) {
+                doReconstructCumulativeAmounts(db, id, typeId, symbolId, dimensionId, null);
+            }
         }
 
         private static void doResummarizeDataRows(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, long eventDate, long firstTimestamp, long lastTimestamp, double amount, double cumulativeAmount) throws SQLException {
@@ -1226,9 +1759,20 @@ class MetricAccess {
         }
 
         static void doReconstructCumulativeAmounts(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, Long minEventDate) throws SQLException {
+            doReconstructCumulativeAmounts(db, id, typeId, symbolId, null, minEventDate);
+        }
+
+        static void doReconstructCumulativeAmounts(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID onlyDimensionId, Long minEventDate) throws SQLException {
+
+            // The corrections in the non-cascading layout may apply to the
+            // rows before minEventDate too, so start at the beginning.
+            if (db.isMetricNonCascading()) {
+                minEventDate = null;
+            }
 
             // for each row, ordered by date, keep a running total of amount and update it into cumulativeAmount
-            String selectSql = getAllDataSql(db, id, typeId, symbolId, null, minEventDate, null, true);
+            String selectSql = getAllDataSql(db, id, typeId, symbolId, onlyDimensionId, minEventDate, null, true);
+            Set<UUID> dimensionIds = new LinkedHashSet<UUID>();
             Connection connection = db.openConnection();
             try {
                 Statement statement = connection.createStatement();
@@ -1239,7 +1783,7 @@ class MetricAccess {
                         double correctCumAmt = 0, calcAmt = 0, amt = 0, cumAmt = 0, lastCorrectCumAmt = 0;
                         long timestamp = 0;
                         while (result.next()) {
-                            UUID dimensionId = UuidUtils.fromBytes(result.getBytes(1));
+                            UUID dimensionId = onlyDimensionId != null ? onlyDimensionId : UuidUtils.fromBytes(result.getBytes(1));
                             if (lastDimensionId == null || !dimensionId.equals(lastDimensionId)) {
                                 // new dimension, reset the correctCumAmt. This depends
                                 // on getAllDataSql ordering by dimensionId, data.
@@ -1247,8 +1791,9 @@ class MetricAccess {
                                 lastCorrectCumAmt = 0;
                             }
                             lastDimensionId = dimensionId;
+                            dimensionIds.add(dimensionId);
 
-                            byte[] data = result.getBytes(2);
+                            byte[] data = result.getBytes(onlyDimensionId != null ? 1 : 2);
                             amt = amountFromBytes(data, AMOUNT_POSITION);
                             cumAmt = amountFromBytes(data, CUMULATIVEAMOUNT_POSITION);
                             timestamp = timestampFromBytes(data);
@@ -1279,6 +1824,18 @@ class MetricAccess {
                 db.closeConnection(connection);
             }
 
+            // All the cumulative amounts from the beginning are exact now, so
+            // the corrections from the non-cascading layout aren't needed.
+            if (minEventDate == null && !dimensionIds.isEmpty()) {
+                connection = db.openConnection();
+                try {
+                    for (UUID dimensionId : dimensionIds) {
+                        doDeleteCorrections(db, connection, id, typeId, symbolId, dimensionId);
+                    }
+                } finally {
+                    db.closeConnection(connection);
+                }
+            }
         }
 
         // METRIC SELECT
@@ -1333,6 +1890,7 @@ class MetricAccess {
 
         private static Map<DateTime, Double> getMetricTimelineByIdAndDimension(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, Long minEventDate, Long maxEventDate, MetricInterval metricInterval, boolean master) throws SQLException {
             String sql = getTimelineSql(db, id, typeId, symbolId, dimensionId, minEventDate, maxEventDate, metricInterval, true);
+            boolean nonCascading = db.isMetricNonCascading();
 
             Map<DateTime, Double> values = new CompactMap<DateTime, Double>();
             Connection connection = master ? db.openConnection() : db.openReadConnection();
@@ -1343,14 +1901,21 @@ class MetricAccess {
                     ResultSet result = db.executeQueryBeforeTimeout(statement, sql, QUERY_TIMEOUT);
                     try {
                         while (result.next()) {
-                            byte[] maxData = result.getBytes(1);
-                            byte[] minData = result.getBytes(2);
-                            long timestamp = result.getLong(3);
+                            long timestamp;
+                            double intervalAmount;
+                            if (nonCascading) {
+                                intervalAmount = result.getDouble(1);
+                                timestamp = result.getLong(2);
+                            } else {
+                                byte[] maxData = result.getBytes(1);
+                                byte[] minData = result.getBytes(2);
+                                timestamp = result.getLong(3);
+                                double maxCumulativeAmount = amountFromBytes(maxData, CUMULATIVEAMOUNT_POSITION);
+                                double minCumulativeAmount = amountFromBytes(minData, CUMULATIVEAMOUNT_POSITION);
+                                double minAmount = amountFromBytes(minData, AMOUNT_POSITION);
+                                intervalAmount = maxCumulativeAmount - (minCumulativeAmount - minAmount);
+                            }
                             timestamp = metricInterval.process(new DateTime(timestamp));
-                            double maxCumulativeAmount = amountFromBytes(maxData, CUMULATIVEAMOUNT_POSITION);
-                            double minCumulativeAmount = amountFromBytes(minData, CUMULATIVEAMOUNT_POSITION);
-                            double minAmount = amountFromBytes(minData, AMOUNT_POSITION);
-                            double intervalAmount = maxCumulativeAmount - (minCumulativeAmount - minAmount);
                             values.put(new DateTime(timestamp), intervalAmount);
                         }
                     } finally {
@@ -1389,6 +1954,48 @@ class MetricAccess {
             return data;
         }
 
+        // Returns the difference between the corrections at the given start
+        // and end timestamps in the non-cascading layout, which only reads
+        // the nodes on the two prefix paths that aren't shared.
+        private static double getCorrectionByIdAndDimension(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, Long startTimestamp, long endTimestamp, boolean master) throws SQLException {
+            Connection connection = master ? db.openConnection() : db.openReadConnection();
+            try {
+                return getCorrection(db, connection, id, typeId, symbolId, dimensionId,
+                        startTimestamp != null ? startTimestamp / DATE_DECIMAL_SHIFT + 1 : null,
+                        endTimestamp / DATE_DECIMAL_SHIFT + 1);
+            } finally {
+                db.closeConnection(connection);
+            }
+        }
+
+        // Returns the sum of the differences between the corrections at
+        // consecutive minutes, at or after the start minute and before the
+        // end minute.
+        private static double getCorrection(MetricAccessDatabase db, Connection connection, UUID id, UUID typeId, int symbolId, UUID dimensionId, Long startMinute, long endMinute) throws SQLException {
+            Map<Long, Integer> signs = MetricPartialSums.getRangeSigns(startMinute, endMinute);
+            if (signs.isEmpty()) {
+                return 0.0d;
+            }
+
+            Map<Long, Double> amounts = new HashMap<Long, Double>();
+            String sql = getCorrectionsSql(db, id, typeId, symbolId, dimensionId, signs.keySet());
+            Statement statement = connection.createStatement();
+            try {
+                ResultSet result = db.executeQueryBeforeTimeout(statement, sql, QUERY_TIMEOUT);
+                try {
+                    while (result.next()) {
+                        byte[] data = result.getBytes(1);
+                        amounts.put(timestampFromBytes(data) / DATE_DECIMAL_SHIFT, amountFromBytes(data, AMOUNT_POSITION));
+                    }
+                } finally {
+                    result.close();
+                }
+            } finally {
+                statement.close();
+            }
+            return MetricPartialSums.sum(signs, amounts);
+        }
+
         private static List<byte[]> getMaxMinDataByIdAndDimension(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, Long minEventDate, Long maxEventDate, boolean master) throws SQLException {
             List<byte[]> datas = new ArrayList<byte[]>();
             String sql = getDataSql(db, id, typeId, symbolId, dimensionId, minEventDate, maxEventDate, true, true, null, null, null);
@@ -1897,6 +2504,7 @@ class ResummarizeTask extends Task {
     private final String name;
     private final AsyncQueue<Metric.DistinctIds> queue = new AsyncQueue<Metric.DistinctIds>(new ArrayBlockingQueue<Metric.DistinctIds>(QUEUE_SIZE));
     private final List<ResummarizeConsumer> consumers = new ArrayList<ResummarizeConsumer>();
+    private volatile boolean completed;
 
     public ResummarizeTask(MetricAccessDatabase database, int symbolId, MetricInterval interval, Long startTimestamp, Long endTimestamp, int numConsumers, String executor, String name) {
         super(executor, name);
@@ -1910,9 +2518,18 @@ class ResummarizeTask extends Task {
         this.name = name;
     }
 
+    /**
+     * Returns {@code true} if the last run went through all the values
+     * without being stopped and without any errors.
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+
     public void doTask() throws Exception {
         DistributedLock lock = new DistributedLock(database, executor + ":" + name);
         boolean locked = false;
+        completed = false;
         try {
             if (lock.tryLock()) {
                 locked = true;
@@ -1940,6 +2557,12 @@ class ResummarizeTask extends Task {
                         }
                     }
                 } while (shouldContinue() && !done);
+
+                long errors = 0;
+                for (ResummarizeConsumer consumer : consumers) {
+                    errors += consumer.getErrorCount();
+                }
+                completed = done && !iter.hasNext() && errors == 0 && shouldContinue();
             }
         } finally {
             if (locked) {
@@ -1967,7 +2590,12 @@ class ResummarizeConsumer extends AsyncConsumer<Metric.DistinctIds> {
 
     @Override
     protected void consume(Metric.DistinctIds tuple) throws Exception {
-        MetricAccess.Static.doResummarize(database, tuple.id, tuple.typeId, symbolId, tuple.dimensionId, interval, startTimestamp, endTimestamp);
+        if (interval != null) {
+            MetricAccess.Static.doResummarize(database, tuple.id, tuple.typeId, symbolId, tuple.dimensionId, interval, startTimestamp, endTimestamp);
+        } else {
+            // No interval means that the cumulative amounts should be reconstructed instead.
+            MetricAccess.Static.doReconstructCumulativeAmounts(database, tuple.id, tuple.typeId, symbolId, tuple.dimensionId, null);
+        }
     }
 
 }
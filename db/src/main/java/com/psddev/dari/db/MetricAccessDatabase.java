@@ -24,4 +24,22 @@ public interface MetricAccessDatabase extends Database {
             throws SQLException;
 
     void closeConnection(Connection connection);
+
+    /**
+     * Returns {@code true} if increments to past event dates should only
+     * update the row for that event date and the latest row, instead of the
+     * cumulative amounts in all rows after it.
+     *
+     * <p>In this layout, each increment to a past event date also records
+     * the amount that the rows in between are missing in a Fenwick tree of
+     * corrections, and reads add up the corrections on two prefix paths.
+     * Increments to the current event date don't touch the corrections.
+     * The data written before this is enabled doesn't need any migration,
+     * but switching back requires reconstructing the cumulative amounts
+     * with {@link MetricResummarizationTask}, which also deletes the
+     * corrections.</p>
+     */
+    default boolean isMetricNonCascading() {
+        return false;
+    }
 }
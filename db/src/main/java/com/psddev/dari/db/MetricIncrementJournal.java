@@ -0,0 +1,442 @@
+package com.psddev.dari.db;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import com.psddev.dari.util.ObjectUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only file that records the increments in a
+ * {@link MetricIncrementBuffer} generation so that they can be replayed if
+ * the JVM stops before they're written to the database.
+ *
+ * <p>Each record is prefixed with its length so that a record that was only
+ * partially written at the end of the file can be detected and ignored.</p>
+ *
+ * <p>A journal holds an exclusive {@link FileLock} on its file for as long as
+ * it's open, so that {@link #replay} can tell the journals that are still in
+ * use, by this or any other JVM sharing the directory, apart from the ones
+ * that were left behind.</p>
+ */
+final class MetricIncrementJournal {
+
+    private static final byte VERSION = 1;
+    private static final String PREFIX = "metric-increments-";
+    private static final String SUFFIX = ".journal";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricIncrementJournal.class);
+
+    private final File file;
+    private FileChannel channel;
+
+    // Records that have been appended but not yet written to the channel.
+    // Whichever thread holds the writing lock writes all of them at once,
+    // so that the concurrent appends don't each wait on their own write.
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final ReentrantLock writing = new ReentrantLock();
+
+    private MetricIncrementJournal(File file) throws IOException {
+        this.file = file;
+
+        // Lock the file before it's visible under the journal name so that
+        // it's never mistaken for one that was left behind.
+        File temporary = new File(file.getParentFile(), file.getName() + TEMPORARY_SUFFIX);
+
+        this.channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+        try {
+            channel.lock();
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (IOException | RuntimeException error) {
+            channel.close();
+            Files.deleteIfExists(temporary.toPath());
+            throw error;
+        }
+    }
+
+    /**
+     * Creates a new journal file in the given {@code directory}.
+     *
+     * @param directory Can't be {@code null}.
+     * @return Never {@code null}.
+     */
+    public static MetricIncrementJournal create(File directory, double waitSeconds) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Can't create [%s]!", directory));
+        }
+
+        return new MetricIncrementJournal(new File(directory, PREFIX + waitSeconds + "-" + UUID.randomUUID() + SUFFIX));
+    }
+
+    /**
+     * Returns all journal files in the given {@code directory}.
+     *
+     * @param directory Can't be {@code null}.
+     * @return Never {@code null}.
+     */
+    public static List<File> list(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+
+        return files != null ? Arrays.asList(files) : Collections.<File>emptyList();
+    }
+
+    /**
+     * Returns the delay that the increments in the given journal
+     * {@code file} were buffered with.
+     *
+     * @param file Can't be {@code null}.
+     * @return {@code null} if the file name doesn't contain it.
+     */
+    public static Double getWaitSeconds(File file) {
+        String name = file.getName();
+        int dashAt = name.indexOf('-', PREFIX.length());
+
+        return name.startsWith(PREFIX) && dashAt > -1
+                ? ObjectUtils.to(Double.class, name.substring(PREFIX.length(), dashAt))
+                : null;
+    }
+
+    /**
+     * Reads all complete entries in the given journal {@code file}.
+     *
+     * @param file Can't be {@code null}.
+     * @return Never {@code null}.
+     */
+    public static List<Entry> read(File file) throws IOException {
+        try (InputStream fileInput = new FileInputStream(file)) {
+            return read(file, fileInput);
+        }
+    }
+
+    /**
+     * Passes all complete entries in the given journal {@code file} to the
+     * given {@code consumer} and deletes it, but only if it's not in use by
+     * any JVM.
+     *
+     * <p>The file stays locked until it's deleted, so the entries are only
+     * ever replayed once even if multiple JVMs try at the same time.</p>
+     *
+     * @param file Can't be {@code null}.
+     * @param consumer Can't be {@code null}. If it throws an exception, the
+     * file isn't deleted.
+     * @return {@code false} if the file is still in use or is already gone.
+     */
+    public static boolean replay(File file, Consumer<List<Entry>> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock lock;
+
+            try {
+                lock = channel.tryLock();
+
+            } catch (OverlappingFileLockException error) {
+
+                // Still in use by this JVM.
+                return false;
+            }
+
+            // Still in use by another JVM, or another one replayed and
+            // deleted it while this one was waiting for the lock.
+            if (lock == null || !file.exists()) {
+                return false;
+            }
+
+            // Closing the stream would close the channel and release the
+            // lock before the file is deleted, so leave that to the outer
+            // try block.
+            consumer.accept(read(file, Channels.newInputStream(channel)));
+            delete(file);
+            return true;
+
+        } catch (NoSuchFileException error) {
+            return false;
+        }
+    }
+
+    private static List<Entry> read(File file, InputStream fileInput) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        DataInputStream input = new DataInputStream(new BufferedInputStream(fileInput));
+
+        while (true) {
+            byte[] record;
+
+            try {
+                record = new byte[input.readInt()];
+                input.readFully(record);
+
+            } catch (EOFException error) {
+                break;
+            }
+
+            try (DataInputStream recordInput = new DataInputStream(new ByteArrayInputStream(record))) {
+                byte version = recordInput.readByte();
+
+                if (version != VERSION) {
+                    LOGGER.warn("Unknown metric increment journal version [{}] in [{}]!", version, file);
+                    break;
+                }
+
+                entries.add(new Entry(
+                        recordInput.readUTF(),
+                        new UUID(recordInput.readLong(), recordInput.readLong()),
+                        recordInput.readUTF(),
+                        new UUID(recordInput.readLong(), recordInput.readLong()),
+                        new UUID(recordInput.readLong(), recordInput.readLong()),
+                        recordInput.readLong(),
+                        recordInput.readBoolean(),
+                        recordInput.readDouble()));
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * Deletes the given journal {@code file}.
+     *
+     * @param file Can't be {@code null}.
+     */
+    public static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            LOGGER.warn("Can't delete the metric increment journal [{}]!", file);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Appends the increment by the given {@code amount} to the given
+     * {@code key}.
+     *
+     * @param key Can't be {@code null}.
+     */
+    public void append(MetricIncrementKey key, double amount) throws IOException {
+        MetricAccess metricAccess = key.getMetricAccess();
+
+        append(
+                metricAccess.getDatabase().getName(),
+                metricAccess.getTypeId(),
+                metricAccess.getFieldName(),
+                key.getId(),
+                key.getDimensionId(),
+                key.getEventDate(),
+                key.isImplicitEventDate(),
+                amount);
+    }
+
+    void append(
+            String databaseName,
+            UUID typeId,
+            String fieldName,
+            UUID id,
+            UUID dimensionId,
+            long eventDate,
+            boolean implicitEventDate,
+            double amount)
+            throws IOException {
+
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(128);
+        DataOutputStream record = new DataOutputStream(recordBytes);
+
+        record.writeInt(0);
+        record.writeByte(VERSION);
+        record.writeUTF(databaseName);
+        record.writeLong(typeId.getMostSignificantBits());
+        record.writeLong(typeId.getLeastSignificantBits());
+        record.writeUTF(fieldName);
+        record.writeLong(id.getMostSignificantBits());
+        record.writeLong(id.getLeastSignificantBits());
+        record.writeLong(dimensionId.getMostSignificantBits());
+        record.writeLong(dimensionId.getLeastSignificantBits());
+        record.writeLong(eventDate);
+        record.writeBoolean(implicitEventDate);
+        record.writeDouble(amount);
+
+        byte[] recordArray = recordBytes.toByteArray();
+
+        ByteBuffer.wrap(recordArray).putInt(0, recordArray.length - 4);
+
+        synchronized (pending) {
+            pending.write(recordArray, 0, recordArray.length);
+        }
+
+        // If another thread is already writing, it'll also write this record
+        // before it lets go of the lock.
+        do {
+            if (!writing.tryLock()) {
+                return;
+            }
+
+            try {
+                writePending();
+
+            } finally {
+                writing.unlock();
+            }
+
+            // Checked after the unlock so that a record appended while the
+            // lock was held isn't left behind.
+        } while (hasPending());
+    }
+
+    private boolean hasPending() {
+        synchronized (pending) {
+            return pending.size() > 0;
+        }
+    }
+
+    private void writePending() throws IOException {
+        ByteBuffer buffer;
+
+        synchronized (pending) {
+            if (pending.size() == 0) {
+                return;
+            }
+
+            buffer = ByteBuffer.wrap(pending.toByteArray());
+            pending.reset();
+        }
+
+        synchronized (this) {
+            if (channel == null) {
+                throw new IOException(String.format("[%s] has already been closed!", file));
+            }
+
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Closes this journal without deleting it so that it can be replayed
+     * later.
+     */
+    public void close() {
+        writing.lock();
+
+        try {
+            writePending();
+
+        } catch (IOException error) {
+            LOGGER.warn("Can't write to the metric increment journal [" + file + "]!", error);
+
+        } finally {
+            writing.unlock();
+        }
+
+        closeChannel();
+    }
+
+    /**
+     * Closes and deletes this journal.
+     */
+    public void delete() {
+
+        // The lock on the file is held until it's deleted so that no one
+        // else replays it in the meantime.
+        delete(file);
+        closeChannel();
+    }
+
+    private synchronized void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+
+            } catch (IOException error) {
+                LOGGER.warn("Can't close the metric increment journal [" + file + "]!", error);
+            }
+
+            channel = null;
+        }
+    }
+
+    /**
+     * One increment read from a journal file.
+     */
+    public static final class Entry {
+
+        private final String databaseName;
+        private final UUID typeId;
+        private final String fieldName;
+        private final UUID id;
+        private final UUID dimensionId;
+        private final long eventDate;
+        private final boolean implicitEventDate;
+        private final double amount;
+
+        public Entry(String databaseName, UUID typeId, String fieldName, UUID id, UUID dimensionId, long eventDate, boolean implicitEventDate, double amount) {
+            this.databaseName = databaseName;
+            this.typeId = typeId;
+            this.fieldName = fieldName;
+            this.id = id;
+            this.dimensionId = dimensionId;
+            this.eventDate = eventDate;
+            this.implicitEventDate = implicitEventDate;
+            this.amount = amount;
+        }
+
+        public String getDatabaseName() {
+            return databaseName;
+        }
+
+        public UUID getTypeId() {
+            return typeId;
+        }
+
+        public String getFieldName() {
+            return fieldName;
+        }
+
+        public UUID getId() {
+            return id;
+        }
+
+        public UUID getDimensionId() {
+            return dimensionId;
+        }
+
+        public long getEventDate() {
+            return eventDate;
+        }
+
+        public boolean isImplicitEventDate() {
+            return implicitEventDate;
+        }
+
+        public double getAmount() {
+            return amount;
+        }
+    }
+}
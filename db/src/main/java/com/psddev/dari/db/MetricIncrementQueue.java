@@ -1,183 +1,527 @@
 package com.psddev.dari.db;
 
+import java.io.File;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.sql.SQLException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.psddev.dari.util.ObjectUtils;
+import com.psddev.dari.util.Settings;
 import com.psddev.dari.util.Task;
-
+import com.psddev.dari.util.UuidUtils;
+
+/**
+ * Write-behind buffer for {@link Metric#incrementEventually}.
+ *
+ * <p>Increments to the same id, dimension and event date are combined in
+ * memory and then written in batches by {@link MetricIncrementQueueTask}.
+ * Each buffer holds at most {@value #DEFAULT_MAXIMUM_SIZE} distinct keys by
+ * default (configurable via {@link #MAXIMUM_SIZE_SETTING}), and once it's
+ * full, new keys are written through immediately by the caller.</p>
+ *
+ * <p>If {@link #JOURNAL_DIRECTORY_SETTING} is set, every increment is also
+ * appended to a local {@link MetricIncrementJournal} before it's buffered,
+ * and the journals left behind by the JVMs that are no longer running are
+ * put back into the buffers once, at startup, by
+ * {@link MetricIncrementReplayTask}. A journal is only deleted after all of
+ * its increments have been written or put back, so a crash in the middle of
+ * a flush may write some of them twice.</p>
+ */
 final class MetricIncrementQueue {
 
-    //private static final Logger LOGGER = LoggerFactory.getLogger(MetricIncrementQueue.class);
+    public static final String MAXIMUM_SIZE_SETTING = "dari/metricIncrementQueueMaximumSize";
+    public static final String JOURNAL_DIRECTORY_SETTING = "dari/metricIncrementQueueJournalDirectory";
+    public static final int DEFAULT_MAXIMUM_SIZE = 100000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricIncrementQueue.class);
 
-    private static final ConcurrentHashMap<Double, ConcurrentHashMap<String, QueuedMetricIncrement>> QUEUED_INCREMENTS = new ConcurrentHashMap<Double, ConcurrentHashMap<String, QueuedMetricIncrement>>();
+    private static final ConcurrentHashMap<Double, MetricIncrementBuffer> BUFFERS = new ConcurrentHashMap<Double, MetricIncrementBuffer>();
+    private static final AtomicBoolean JOURNALS_REPLAYED = new AtomicBoolean();
+
+    private MetricIncrementQueue() {
+    }
 
     public static void queueIncrement(UUID id, UUID dimensionId, DateTime eventDate, MetricAccess metricAccess, double amount, double withinSeconds) {
+        if (amount == 0) {
+            return;
+        }
+
+        double waitSeconds = new BigDecimal(withinSeconds * .75d).setScale(2, BigDecimal.ROUND_HALF_UP).doubleValue();
+        double executeSeconds = new BigDecimal(withinSeconds * .25d).setScale(2, BigDecimal.ROUND_HALF_UP).doubleValue();
+
+        MetricIncrementKey key = new MetricIncrementKey(metricAccess, id, dimensionId, metricAccess.getEventDate(eventDate), eventDate == null);
+        MetricIncrementBuffer buffer = BUFFERS.computeIfAbsent(waitSeconds, MetricIncrementBuffer::new);
 
-        double waitSeconds = new BigDecimal(withinSeconds * .75d).setScale(2).doubleValue();
-        double executeSeconds = new BigDecimal(withinSeconds * .25d).setScale(2).doubleValue();
+        if (!buffer.add(key, amount)) {
 
-        putInMap(id, dimensionId, eventDate, metricAccess, amount, waitSeconds);
+            // The backlog is full, so write through to slow down the callers.
+            try {
+                metricAccess.incrementMetricByDimensionId(id, eventDate, dimensionId, amount);
+            } catch (SQLException ex) {
+                throw new DatabaseException(metricAccess.getDatabase(), "SQLException during MetricAccess.incrementMetricByDimensionId", ex);
+            }
+            return;
+        }
 
         // If the task is already running or has been scheduled, this won't do anything.
-        MetricIncrementQueueTask task = MetricIncrementQueueTask.getInstance(executeSeconds, waitSeconds, QUEUED_INCREMENTS.get(waitSeconds));
+        MetricIncrementQueueTask task = MetricIncrementQueueTask.getInstance(executeSeconds, waitSeconds, buffer);
         task.schedule(waitSeconds);
-
     }
 
-    private static void putInMap(UUID id, UUID dimensionId, DateTime eventDate, MetricAccess metricAccess, double amount, double waitSeconds) {
+    /**
+     * Writes all of the given {@code amounts}, grouped by the metric and
+     * the event date so that each group can be written in batches.
+     *
+     * @param amounts Can't be {@code null}. Successfully written keys are
+     * removed from it, and if a group is only partially written, its keys
+     * are replaced with the ones that make up the rest of it.
+     */
+    static void flush(Map<MetricIncrementKey, Double> amounts) throws SQLException {
+        Map<MetricAccess, Map<Long, List<MetricIncrementKey>>> groups = new HashMap<MetricAccess, Map<Long, List<MetricIncrementKey>>>();
+
+        for (MetricIncrementKey key : amounts.keySet()) {
+            MetricAccess metricAccess = key.getMetricAccess();
+
+            // Implicit event dates can only use the faster path if they're
+            // still current.
+            long eventDate = key.getEventDate();
+            Long groupEventDate = key.isImplicitEventDate() && eventDate == metricAccess.getEventDate(null)
+                    ? null
+                    : eventDate;
+
+            groups.computeIfAbsent(metricAccess, k -> new HashMap<Long, List<MetricIncrementKey>>())
+                    .computeIfAbsent(groupEventDate, k -> new ArrayList<MetricIncrementKey>())
+                    .add(key);
+        }
+
+        for (Map.Entry<MetricAccess, Map<Long, List<MetricIncrementKey>>> entry : groups.entrySet()) {
+            MetricAccess metricAccess = entry.getKey();
+
+            for (Map.Entry<Long, List<MetricIncrementKey>> eventDateEntry : entry.getValue().entrySet()) {
+                Long eventDate = eventDateEntry.getKey();
+                List<MetricIncrementKey> keys = eventDateEntry.getValue();
+                Map<UUID, Map<UUID, Double>> groupAmounts = new HashMap<UUID, Map<UUID, Double>>();
+
+                for (MetricIncrementKey key : keys) {
+                    groupAmounts.computeIfAbsent(key.getId(), k -> new HashMap<UUID, Double>())
+                            .merge(key.getDimensionId(), amounts.get(key), Double::sum);
+                }
+
+                long writeEventDate = eventDate != null ? eventDate : metricAccess.getEventDate(null);
+                Map<UUID, Map<UUID, Double>> unwritten = new HashMap<UUID, Map<UUID, Double>>();
+
+                try {
+                    metricAccess.incrementMetricsByDimensionId(groupAmounts, writeEventDate, eventDate == null, unwritten);
 
-        ConcurrentHashMap<String, QueuedMetricIncrement> queue = QUEUED_INCREMENTS.get(waitSeconds);
-        if (queue == null) {
-            QUEUED_INCREMENTS.putIfAbsent(waitSeconds, new ConcurrentHashMap<String, QueuedMetricIncrement>());
-            queue = QUEUED_INCREMENTS.get(waitSeconds);
+                } catch (SQLException | RuntimeException error) {
+                    amounts.keySet().removeAll(keys);
+                    putUnwritten(amounts, metricAccess, writeEventDate, eventDate == null, unwritten);
+                    throw error;
+                }
+
+                amounts.keySet().removeAll(keys);
+            }
         }
+    }
 
-        String key = getKey(id, dimensionId, eventDate, metricAccess);
-        QueuedMetricIncrement placeholder = new QueuedMetricIncrement(id, dimensionId, eventDate, metricAccess, 0d);
-        while (true) {
-            QueuedMetricIncrement current = queue.putIfAbsent(key, placeholder);
-            if (current == null) {
-                current = placeholder;
+    // Puts back the rows that weren't written as keys. The sum for the null
+    // dimension is added to every other dimension when it's written again,
+    // so that's taken back out of the null dimension key to avoid counting
+    // the part that was already written twice.
+    private static void putUnwritten(
+            Map<MetricIncrementKey, Double> amounts,
+            MetricAccess metricAccess,
+            long eventDate,
+            boolean implicitEventDate,
+            Map<UUID, Map<UUID, Double>> unwritten) {
+
+        for (Map.Entry<UUID, Map<UUID, Double>> entry : unwritten.entrySet()) {
+            UUID id = entry.getKey();
+            double nullDimensionAmount = 0.0d;
+
+            for (Map.Entry<UUID, Double> dimensionEntry : entry.getValue().entrySet()) {
+                UUID dimensionId = dimensionEntry.getKey();
+                double amount = dimensionEntry.getValue();
+
+                if (UuidUtils.ZERO_UUID.equals(dimensionId)) {
+                    nullDimensionAmount += amount;
+
+                } else {
+                    nullDimensionAmount -= amount;
+                    amounts.merge(new MetricIncrementKey(metricAccess, id, dimensionId, eventDate, implicitEventDate), amount, Double::sum);
+                }
             }
-            QueuedMetricIncrement next = new QueuedMetricIncrement(id, dimensionId, eventDate, metricAccess, current.amount + amount);
-            if (queue.replace(key, current, next)) {
-                return;
-            } else {
-                continue;
+
+            if (nullDimensionAmount != 0) {
+                amounts.merge(new MetricIncrementKey(metricAccess, id, UuidUtils.ZERO_UUID, eventDate, implicitEventDate), nullDimensionAmount, Double::sum);
             }
         }
+    }
+
+    /**
+     * Puts the increments in the journals left behind by the JVMs that are
+     * no longer running back into the buffers, once. The journals that are
+     * still in use, including the ones in this JVM, are left alone.
+     */
+    static void replayJournals() {
+        if (JOURNALS_REPLAYED.get() || !JOURNALS_REPLAYED.compareAndSet(false, true)) {
+            return;
+        }
+
+        File directory = getJournalDirectory();
+
+        if (directory == null) {
+            return;
+        }
+
+        for (File file : MetricIncrementJournal.list(directory)) {
+            Double waitSeconds = MetricIncrementJournal.getWaitSeconds(file);
+
+            if (waitSeconds == null) {
+                LOGGER.warn("Can't tell the delay for the metric increments in [{}]; skipping.", file);
+                continue;
+            }
+
+            try {
+                MetricIncrementJournal.replay(file, entries -> {
+                    MetricIncrementBuffer buffer = BUFFERS.computeIfAbsent(waitSeconds, MetricIncrementBuffer::new);
 
+                    LOGGER.info("Replaying [{}] metric increments from [{}]", entries.size(), file);
+
+                    for (MetricIncrementJournal.Entry entry : entries) {
+                        MetricAccess metricAccess = resolveMetricAccess(entry);
+
+                        if (metricAccess == null) {
+                            LOGGER.warn("Can't find the metric for [{}] in [{}]; skipping.", entry.getFieldName(), file);
+                            continue;
+                        }
+
+                        buffer.requeue(
+                                new MetricIncrementKey(metricAccess, entry.getId(), entry.getDimensionId(), entry.getEventDate(), entry.isImplicitEventDate()),
+                                entry.getAmount());
+                    }
+
+                    if (!buffer.isEmpty()) {
+                        double executeSeconds = new BigDecimal(waitSeconds / 3).setScale(2, BigDecimal.ROUND_HALF_UP).doubleValue();
+
+                        MetricIncrementQueueTask.getInstance(executeSeconds, waitSeconds, buffer).schedule(waitSeconds);
+                    }
+                });
+
+            } catch (IOException | RuntimeException error) {
+                LOGGER.error("Can't replay the metric increments in [" + file + "]!", error);
+            }
+        }
     }
 
-    private static String getKey(UUID id, UUID dimensionId, DateTime eventDate, MetricAccess metricAccess) {
-        StringBuilder str = new StringBuilder();
-        str.append(id);
-        str.append(':');
-        str.append(metricAccess.getTypeId());
-        str.append(':');
-        str.append(metricAccess.getSymbolId());
-        str.append(':');
-        if (eventDate != null) {
-            str.append(eventDate.getMillis());
+    // Finds the metric that was used to write the given journal entry.
+    private static MetricAccess resolveMetricAccess(MetricIncrementJournal.Entry entry) {
+        Database database = Database.Static.getInstance(entry.getDatabaseName());
+
+        if (database == null) {
+            return null;
         }
-        str.append(':');
-        str.append(dimensionId);
-        return str.toString();
+
+        DatabaseEnvironment environment = database.getEnvironment();
+        ObjectType type = environment.getTypeById(entry.getTypeId());
+        ObjectField field = type != null ? type.getField(entry.getFieldName()) : null;
+
+        if (field == null) {
+            field = environment.getField(entry.getFieldName());
+        }
+
+        if (field == null) {
+            return null;
+        }
+
+        MetricAccess metricAccess = MetricAccess.Static.getMetricAccess(database, type, field);
+
+        return metricAccess instanceof NullMetricAccess ? null : metricAccess;
     }
 
-}
+    static File getJournalDirectory() {
+        String directory = Settings.get(String.class, JOURNAL_DIRECTORY_SETTING);
 
-class QueuedMetricIncrement {
-    public final UUID id;
-    public final UUID dimensionId;
-    public final DateTime eventDate;
-    public final MetricAccess metricAccess;
-    public final double amount;
+        return ObjectUtils.isBlank(directory) ? null : new File(directory);
+    }
+}
 
-    public QueuedMetricIncrement(UUID id, UUID dimensionId, DateTime eventDate, MetricAccess metricAccess, double amount) {
-        this.id = id;
-        this.dimensionId = dimensionId;
-        this.eventDate = eventDate;
+/**
+ * Key for the increments that can be combined, which avoids building a
+ * string for every increment.
+ */
+final class MetricIncrementKey {
+
+    private final MetricAccess metricAccess;
+    private final long idMost;
+    private final long idLeast;
+    private final long dimensionIdMost;
+    private final long dimensionIdLeast;
+    private final long eventDate;
+    private final boolean implicitEventDate;
+    private final int hashCode;
+
+    public MetricIncrementKey(MetricAccess metricAccess, UUID id, UUID dimensionId, long eventDate, boolean implicitEventDate) {
         this.metricAccess = metricAccess;
-        this.amount = amount;
+        this.idMost = id.getMostSignificantBits();
+        this.idLeast = id.getLeastSignificantBits();
+        this.dimensionIdMost = dimensionId.getMostSignificantBits();
+        this.dimensionIdLeast = dimensionId.getLeastSignificantBits();
+        this.eventDate = eventDate;
+        this.implicitEventDate = implicitEventDate;
+
+        long hash = idMost ^ idLeast;
+        hash = 31 * hash + (dimensionIdMost ^ dimensionIdLeast);
+        hash = 31 * hash + eventDate;
+        this.hashCode = 31 * (int) (hash ^ (hash >>> 32)) + System.identityHashCode(metricAccess);
+    }
+
+    public MetricAccess getMetricAccess() {
+        return metricAccess;
+    }
+
+    public UUID getId() {
+        return new UUID(idMost, idLeast);
+    }
+
+    public UUID getDimensionId() {
+        return new UUID(dimensionIdMost, dimensionIdLeast);
+    }
+
+    public long getEventDate() {
+        return eventDate;
+    }
+
+    public boolean isImplicitEventDate() {
+        return implicitEventDate;
     }
 
     @Override
     public boolean equals(Object other) {
-        if (other == null || !(other instanceof QueuedMetricIncrement)) {
-            return false;
+        if (this == other) {
+            return true;
+
+        } else if (other instanceof MetricIncrementKey) {
+            MetricIncrementKey otherKey = (MetricIncrementKey) other;
+
+            return idMost == otherKey.idMost
+                    && idLeast == otherKey.idLeast
+                    && dimensionIdMost == otherKey.dimensionIdMost
+                    && dimensionIdLeast == otherKey.dimensionIdLeast
+                    && eventDate == otherKey.eventDate
+                    && implicitEventDate == otherKey.implicitEventDate
+                    && metricAccess == otherKey.metricAccess;
+
         } else {
-            QueuedMetricIncrement otherIncr = (QueuedMetricIncrement) other;
-            return this.amount == otherIncr.amount
-                    && this.metricAccess.equals(otherIncr.metricAccess)
-                    && this.dimensionId.equals(otherIncr.dimensionId)
-                    && ((this.eventDate == null && otherIncr.eventDate == null) || (this.eventDate != null && this.eventDate.equals(otherIncr.eventDate)))
-                    && this.id.equals(otherIncr.id);
+            return false;
         }
     }
 
     @Override
     public int hashCode() {
-        return ObjectUtils.hashCode(id, dimensionId, eventDate, metricAccess, amount);
+        return hashCode;
     }
 }
 
-final class MetricIncrementQueueTask extends Task {
-    private static final Logger LOGGER = LoggerFactory.getLogger(MetricIncrementQueue.class);
-    //private static MetricIncrementQueueTask instance;
-    private static final transient ConcurrentHashMap<Double, MetricIncrementQueueTask> INSTANCES = new ConcurrentHashMap<Double, MetricIncrementQueueTask>();
+/**
+ * Bounded buffer of the increments for one delay. The keys are accumulated
+ * in a generation that's swapped out as a whole for each flush, so that the
+ * increments in it and its journal can be discarded together.
+ */
+final class MetricIncrementBuffer {
 
-    private final transient ConcurrentHashMap<String, QueuedMetricIncrement> queuedIncrements;
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricIncrementBuffer.class);
 
-    private final transient double executeSeconds;
-    private final transient double waitSeconds;
+    private final double waitSeconds;
+    private final int maximumSize;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile Generation current;
 
-    private MetricIncrementQueueTask(double executeSeconds, double waitSeconds, ConcurrentHashMap<String, QueuedMetricIncrement> queuedIncrements) {
-        this.queuedIncrements = queuedIncrements;
-        this.executeSeconds = executeSeconds;
+    public MetricIncrementBuffer(double waitSeconds) {
         this.waitSeconds = waitSeconds;
+        this.maximumSize = Settings.getOrDefault(int.class, MetricIncrementQueue.MAXIMUM_SIZE_SETTING, MetricIncrementQueue.DEFAULT_MAXIMUM_SIZE);
+        this.current = newGeneration();
     }
 
-    public static MetricIncrementQueueTask getInstance(double executeSeconds, double waitSeconds, ConcurrentHashMap<String, QueuedMetricIncrement> queuedIncrements) {
+    private Generation newGeneration() {
+        File directory = MetricIncrementQueue.getJournalDirectory();
+        MetricIncrementJournal journal = null;
 
-        MetricIncrementQueueTask instance = INSTANCES.get(executeSeconds);
-        if (instance == null) {
-            INSTANCES.putIfAbsent(executeSeconds, new MetricIncrementQueueTask(executeSeconds, waitSeconds, queuedIncrements));
-            instance = INSTANCES.get(executeSeconds);
+        if (directory != null) {
+            try {
+                journal = MetricIncrementJournal.create(directory, waitSeconds);
+
+            } catch (IOException error) {
+                LOGGER.error("Can't create a metric increment journal in [" + directory + "]!", error);
+            }
         }
 
-        return instance;
+        return new Generation(journal);
     }
 
-    public void doTask() {
+    /**
+     * Adds the given {@code amount} to the given {@code key}.
+     *
+     * @return {@code false} if the buffer is full.
+     */
+    public boolean add(MetricIncrementKey key, double amount) {
+        lock.readLock().lock();
 
-        long sleepMilliseconds = 0L;
-        Iterator<String> iter = null;
-        while (true) {
-            if (queuedIncrements.isEmpty()) {
-                break;
+        try {
+            Generation generation = current;
+            Map<MetricIncrementKey, Double> amounts = generation.amounts;
+
+            if (amounts.size() >= maximumSize && !amounts.containsKey(key)) {
+                return false;
             }
-            if (iter == null || !iter.hasNext()) {
-                if (iter != null) {
-                    long waitMilliseconds = (long) (1000 * waitSeconds);
-                    try {
-                        Thread.sleep(waitMilliseconds);
-                    } catch (InterruptedException ex) {
-                        getThread().interrupt();
-                    }
+
+            if (generation.journal != null) {
+                try {
+                    generation.journal.append(key, amount);
+
+                } catch (IOException error) {
+                    LOGGER.error("Can't write to the metric increment journal!", error);
                 }
-                sleepMilliseconds = (long) (1000 * (executeSeconds / (double) queuedIncrements.size())) - 10L;
-                if (sleepMilliseconds <= 0) {
-                    sleepMilliseconds = 10L;
+            }
+
+            amounts.merge(key, amount, Double::sum);
+            return true;
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Puts back an increment that couldn't be written, even if the buffer
+     * is full, so that it's not lost.
+     */
+    public void requeue(MetricIncrementKey key, double amount) {
+        lock.readLock().lock();
+
+        try {
+            Generation generation = current;
+
+            if (generation.journal != null) {
+                try {
+                    generation.journal.append(key, amount);
+
+                } catch (IOException error) {
+                    LOGGER.error("Can't write to the metric increment journal!", error);
                 }
-                //LOGGER.info("running MetricIncrementQueueTask within " + executeSeconds + " seconds, approx. size: " + queuedIncrements.size() + " sleeping for " + sleepMilliseconds + " milliseconds between executions");
-                iter = queuedIncrements.keySet().iterator();
             }
-            String key = iter.next();
-            QueuedMetricIncrement queuedIncrement = queuedIncrements.remove(key);
-            //LOGGER.info("Incrementing : " + queuedIncrement.metricAccess.getSymbolId() + " / " + queuedIncrement.id + " : " + queuedIncrement.dimensionId + " += " + queuedIncrement.amount );
+
+            generation.amounts.merge(key, amount, Double::sum);
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return current.amounts.isEmpty();
+    }
+
+    /**
+     * Writes all of the increments that have been buffered so far. If that
+     * fails, only the ones that weren't written are put back.
+     */
+    public void flush() throws SQLException {
+        Generation generation;
+
+        lock.writeLock().lock();
+
+        try {
+            generation = current;
+            current = newGeneration();
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        try {
+            MetricIncrementQueue.flush(generation.amounts);
+
+        } finally {
+            for (Map.Entry<MetricIncrementKey, Double> entry : generation.amounts.entrySet()) {
+                requeue(entry.getKey(), entry.getValue());
+            }
+
+            if (generation.journal != null) {
+                generation.journal.delete();
+            }
+        }
+    }
+
+    private static final class Generation {
+
+        public final Map<MetricIncrementKey, Double> amounts = new ConcurrentHashMap<MetricIncrementKey, Double>();
+        public final MetricIncrementJournal journal;
+
+        public Generation(MetricIncrementJournal journal) {
+            this.journal = journal;
+        }
+    }
+}
+
+final class MetricIncrementQueueTask extends Task {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricIncrementQueue.class);
+    private static final transient ConcurrentHashMap<Double, MetricIncrementQueueTask> INSTANCES = new ConcurrentHashMap<Double, MetricIncrementQueueTask>();
+
+    private final transient MetricIncrementBuffer buffer;
+
+    private final transient double executeSeconds;
+    private final transient double waitSeconds;
+
+    private MetricIncrementQueueTask(double executeSeconds, double waitSeconds, MetricIncrementBuffer buffer) {
+        this.buffer = buffer;
+        this.executeSeconds = executeSeconds;
+        this.waitSeconds = waitSeconds;
+    }
+
+    public static MetricIncrementQueueTask getInstance(double executeSeconds, double waitSeconds, MetricIncrementBuffer buffer) {
+        return INSTANCES.computeIfAbsent(waitSeconds, k -> new MetricIncrementQueueTask(executeSeconds, waitSeconds, buffer));
+    }
+
+    public void doTask() {
+
+        // In case the startup task isn't running, such as outside of a
+        // web application.
+        MetricIncrementQueue.replayJournals();
+
+        while (!buffer.isEmpty()) {
             try {
-                queuedIncrement.metricAccess.incrementMetricByDimensionId(queuedIncrement.id, queuedIncrement.eventDate, queuedIncrement.dimensionId, queuedIncrement.amount);
+                buffer.flush();
+
             } catch (SQLException ex) {
-                LOGGER.error("SQLException during incrementMetricByDimensionId: " + ex.getLocalizedMessage());
-                // TODO: log this somewhere so it can be recovered if the database fails catastrophically
-                throw new DatabaseException(queuedIncrement.metricAccess.getDatabase(), "SQLException during MetricAccess.incrementMetricByDimensionId", ex);
+                // The increments are still in the buffer, so try again later.
+                LOGGER.error("SQLException during MetricIncrementQueueTask: " + ex.getLocalizedMessage(), ex);
+            }
+
+            if (buffer.isEmpty() || !shouldContinue()) {
+                break;
             }
+
             try {
-                Thread.sleep(sleepMilliseconds);
+                Thread.sleep((long) (1000 * waitSeconds));
             } catch (InterruptedException ex) {
                 getThread().interrupt();
+                break;
             }
         }
-
     }
-
 }
@@ -0,0 +1,25 @@
+package com.psddev.dari.db;
+
+import org.joda.time.DateTime;
+
+import com.psddev.dari.util.RepeatingTask;
+
+/**
+ * Puts the metric increments in the journals left behind by the JVMs that
+ * are no longer running back into the write-behind buffers, once, shortly
+ * after startup.
+ *
+ * @see Metric#incrementEventually
+ */
+public class MetricIncrementReplayTask extends RepeatingTask {
+
+    @Override
+    protected DateTime calculateRunTime(DateTime currentTime) {
+        return everyMinute(currentTime);
+    }
+
+    @Override
+    protected void doRepeatingTask(DateTime runTime) {
+        MetricIncrementQueue.replayJournals();
+    }
+}
@@ -0,0 +1,130 @@
+package com.psddev.dari.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index math for the corrections that {@link MetricAccess} keeps next to
+ * the amounts in the {@linkplain MetricAccessDatabase#isMetricNonCascading
+ * non-cascading} layout.
+ *
+ * <p>An increment to a past event date there only updates the row for that
+ * event date and the latest row, so the stored cumulative amounts in the
+ * rows in between miss it. The correction at a minute is the sum of all
+ * such amounts, and the tree is a Fenwick tree over the differences between
+ * the corrections at consecutive minutes. Adding an amount to the rows in
+ * between only writes the nodes on two update paths, and reading the
+ * correction at a minute, or the difference between the corrections at two
+ * minutes, only reads the nodes on two prefix paths. Each node is stored at
+ * the minute that's its 1-based tree index minus one.</p>
+ */
+final class MetricPartialSums {
+
+    /** Number of minutes that the tree covers, until the year 4011. */
+    public static final long SIZE = 1L << 30;
+
+    private MetricPartialSums() {
+    }
+
+    /**
+     * Returns the minutes of the nodes that include the difference at the
+     * given {@code minute}.
+     */
+    public static List<Long> getUpdateMinutes(long minute) {
+        checkMinute(minute);
+
+        List<Long> minutes = new ArrayList<>();
+
+        for (long index = minute + 1; index <= SIZE; index += index & -index) {
+            minutes.add(index - 1);
+        }
+
+        return minutes;
+    }
+
+    /**
+     * Returns the minutes of the nodes that add up to the sum of the
+     * differences before the given {@code minute}.
+     */
+    public static List<Long> getPrefixMinutes(long minute) {
+        List<Long> minutes = new ArrayList<>();
+
+        for (long index = Math.min(Math.max(minute, 0L), SIZE); index > 0; index -= index & -index) {
+            minutes.add(index - 1);
+        }
+
+        return minutes;
+    }
+
+    /**
+     * Returns the node minutes and their signs that add up to the sum of the
+     * differences at or after the given {@code startMinute} and before the
+     * given {@code endMinute}. The nodes that the two prefixes share cancel each
+     * other out, so they're left out.
+     *
+     * @param startMinute If {@code null}, starts at the beginning.
+     * @param endMinute If {@code null}, ends after the last minute.
+     */
+    public static Map<Long, Integer> getRangeSigns(Long startMinute, Long endMinute) {
+        Map<Long, Integer> signs = new HashMap<>();
+
+        getPrefixMinutes(endMinute != null ? endMinute : SIZE).forEach(m -> signs.merge(m, 1, Integer::sum));
+
+        if (startMinute != null) {
+            getPrefixMinutes(startMinute).forEach(m -> signs.merge(m, -1, Integer::sum));
+        }
+
+        signs.values().removeIf(sign -> sign == 0);
+        return signs;
+    }
+
+    /**
+     * Returns the node minutes and their signs that add an amount to the
+     * corrections at or after the given {@code startMinute} and before the
+     * given {@code endMinute}. The nodes that the two update paths share
+     * cancel each other out, so they're left out, which keeps the nodes
+     * near the root from being written by every update.
+     */
+    public static Map<Long, Integer> getRangeUpdateSigns(long startMinute, long endMinute) {
+        Map<Long, Integer> signs = new HashMap<>();
+
+        if (startMinute < endMinute) {
+            getUpdateMinutes(startMinute).forEach(m -> signs.merge(m, 1, Integer::sum));
+            getUpdateMinutes(endMinute).forEach(m -> signs.merge(m, -1, Integer::sum));
+            signs.values().removeIf(sign -> sign == 0);
+        }
+
+        return signs;
+    }
+
+    /**
+     * Adds up the given node {@code amounts} using the given {@code signs}
+     * from {@link #getRangeSigns}.
+     *
+     * @param amounts Node amounts by minute. Missing nodes count as zero.
+     * @return Rounded to {@link MetricAccess#AMOUNT_DECIMAL_PLACES}.
+     */
+    public static double sum(Map<Long, Integer> signs, Map<Long, Double> amounts) {
+        double sum = 0.0d;
+
+        for (Map.Entry<Long, Integer> entry : signs.entrySet()) {
+            Double amount = amounts.get(entry.getKey());
+
+            if (amount != null) {
+                sum += entry.getValue() * amount;
+            }
+        }
+
+        // Same precision as the amounts, without the rounding errors.
+        return (double) Math.round(sum * MetricAccess.AMOUNT_DECIMAL_SHIFT) / MetricAccess.AMOUNT_DECIMAL_SHIFT;
+    }
+
+    private static void checkMinute(long minute) {
+        if (minute < 0 || minute >= SIZE) {
+            throw new IllegalArgumentException(String.format(
+                    "Minute [%s] is outside the range of the corrections!", minute));
+        }
+    }
+}
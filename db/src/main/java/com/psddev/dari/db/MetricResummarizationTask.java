@@ -5,6 +5,7 @@ import java.net.UnknownHostException;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
@@ -59,6 +60,28 @@ import com.psddev.dari.util.TypeReference;
  * }
  * </pre>
  *
+ * The same settings can also migrate the data written while
+ * {@link MetricAccessDatabase#isMetricNonCascading()} was enabled back to the
+ * default layout by reconstructing all cumulative amounts, which also
+ * deletes the corrections that it keeps for the past-dated increments.
+ * This only runs once per key, and {@code beforeDays} and
+ * {@code intervalClass} aren't used:
+ *
+ * <pre>
+ * {@code
+ * <Environment name="dari/metricResummarize/migrateAnalytics/fields" type="java.lang.String" value="analytics.*" />
+ * <Environment name="dari/metricResummarize/migrateAnalytics/reconstruct" type="java.lang.Boolean" value="true" />
+ * }
+ * </pre>
+ *
+ * Or, to execute directly:
+ *
+ * <pre>
+ * {@code
+ * MetricResummarizationTask.Static.submitReconstructionTask(database, "migrateAnalytics", new String[] {"analytics.*"});
+ * }
+ * </pre>
+ *
  */
 
 public class MetricResummarizationTask extends RepeatingTask {
@@ -70,6 +93,7 @@ public class MetricResummarizationTask extends RepeatingTask {
     private static final String CONFIG_INTERVAL_CLASS = "intervalClass";
     private static final String CONFIG_DATABASE = "database";
     private static final String CONFIG_HOSTNAME = "hostname";
+    private static final String CONFIG_RECONSTRUCT = "reconstruct";
     private static final Map<String, Map<String, Object>> CONFIG = Settings.get(new TypeReference<Map<String, Map<String, Object>>>() { }, CONFIG_PREFIX);
 
     @Override
@@ -95,6 +119,20 @@ public class MetricResummarizationTask extends RepeatingTask {
             }
             String[] fieldSpecs = fieldsStr.split("\\s+");
 
+            if (ObjectUtils.to(boolean.class, settings.get(CONFIG_RECONSTRUCT))) {
+                Database database = getDatabase(key, settings);
+                if (database == null || !isTaskHost(ObjectUtils.to(String.class, settings.get(CONFIG_HOSTNAME)))) {
+                    continue;
+                }
+
+                try {
+                    Static.submitReconstructionTask(this, database, key, fieldSpecs);
+                } catch (ResummarizationSettingsException e) {
+                    LOGGER.warn(e.getMessage());
+                }
+                continue;
+            }
+
             Integer beforeDays = ObjectUtils.to(Integer.class, settings.get(CONFIG_BEFORE_DAYS));
             if (beforeDays == null) {
                 LOGGER.warn("Metric Resummarization: " + CONFIG_PREFIX + "/" + key + "/" + CONFIG_BEFORE_DAYS + " is required; aborting.");
@@ -107,14 +145,9 @@ public class MetricResummarizationTask extends RepeatingTask {
                 continue;
             }
 
-            Database database = Database.Static.getDefault();
-            String databaseName = ObjectUtils.to(String.class, settings.get(CONFIG_DATABASE));
-            if (databaseName != null) {
-                database = Database.Static.getInstance(databaseName);
-                if (database == null) {
-                    LOGGER.warn("Metric Resummarization: " + CONFIG_PREFIX + "/" + key + "/" + CONFIG_DATABASE + " is an invalid database; aborting.");
-                    continue;
-                }
+            Database database = getDatabase(key, settings);
+            if (database == null) {
+                continue;
             }
             String hostname = ObjectUtils.to(String.class, settings.get(CONFIG_HOSTNAME));
             if (!isTaskHost(hostname)) {
@@ -129,6 +162,18 @@ public class MetricResummarizationTask extends RepeatingTask {
         }
     }
 
+    private static Database getDatabase(String key, Map<String, Object> settings) {
+        String databaseName = ObjectUtils.to(String.class, settings.get(CONFIG_DATABASE));
+        if (databaseName == null) {
+            return Database.Static.getDefault();
+        }
+        Database database = Database.Static.getInstance(databaseName);
+        if (database == null) {
+            LOGGER.warn("Metric Resummarization: " + CONFIG_PREFIX + "/" + key + "/" + CONFIG_DATABASE + " is an invalid database; aborting.");
+        }
+        return database;
+    }
+
     private static boolean isTaskHost(String hostname) {
         if (hostname == null || "localhost".equals(hostname)) {
             return true;
@@ -250,10 +295,8 @@ public class MetricResummarizationTask extends RepeatingTask {
             // Set up the new date range
             DateTime startDate = last.getEndDate();
             DateTime endDate = new DateTime().dayOfMonth().roundFloorCopy().minusDays(beforeDays);
-            last.setRunDate(new DateTime());
-            last.setStartDate(startDate);
-            last.setEndDate(endDate);
-            last.saveImmediately();
+            DateTime runDate = new DateTime();
+            boolean completed = true;
             for (ObjectField field : fields) {
                 LOGGER.info("Submitting Metric Resummarization task : "
                         + "Database: " + database.getName() + ", "
@@ -262,17 +305,95 @@ public class MetricResummarizationTask extends RepeatingTask {
                         + "Start Date: " + startDate + ", "
                         + "End Date: " + endDate);
                 Task task = Metric.Static.submitResummarizeAllBetweenTask(database, field.getParentType(), field, interval, startDate, endDate, 1, "Periodic Metric Resummarization", key + " (" + field.getUniqueName() + ")");
-                do {
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException ex) {
-                        break;
-                    }
-                    if (!task.isRunning()) {
-                        break;
-                    }
-                } while (parentTask == null || parentTask.shouldContinue());
+                completed &= waitForTask(parentTask, task);
+            }
+
+            // Only record the run once all of it went through, so that a
+            // failed or stopped run is retried with the same date range.
+            if (!completed) {
+                throw new ResummarizationSettingsException(key, null, "didn't complete, so it'll be retried.");
             }
+
+            last.setRunDate(runDate);
+            last.setStartDate(startDate);
+            last.setEndDate(endDate);
+            last.saveImmediately();
+        }
+
+        /**
+         * Reconstructs the cumulative amounts in all metric values in the
+         * fields matching the given {@code fieldSpecs}, which migrates them
+         * from the {@linkplain MetricAccessDatabase#isMetricNonCascading
+         * non-cascading} layout. This only runs once per {@code key}.
+         */
+        public static void submitReconstructionTask(Database database, String key, String[] fieldSpecs) {
+            try {
+                submitReconstructionTask(null, database, key, fieldSpecs);
+            } catch (ResummarizationSettingsException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static void submitReconstructionTask(MetricResummarizationTask parentTask, Database database, String key, String[] fieldSpecs) throws ResummarizationSettingsException {
+
+            Set<ObjectField> fields = resolveFieldSpecs(database, key, fieldSpecs);
+
+            if (fields.isEmpty()) {
+                throw new ResummarizationSettingsException(key, null, " specifies no valid fields to reconstruct; aborting.");
+            }
+
+            LastResummarization last = Query.from(LastResummarization.class).using(database).where("key = ?", key).first();
+            if (last == null) {
+                last = new LastResummarization();
+                last.getState().setDatabase(database);
+                last.setKey(key);
+            }
+
+            // The migration only needs to happen once. . .
+            if (last.getRunDate() != null) {
+                throw new ResummarizationSettingsException(key, null, "already reconstructed on " + last.getRunDate().toString("yyyy/MM/dd HH:mm:ss") + ", aborting.");
+            }
+
+            DateTime runDate = new DateTime();
+            boolean completed = true;
+            for (ObjectField field : fields) {
+                LOGGER.info("Submitting Metric Reconstruction task : "
+                        + "Database: " + database.getName() + ", "
+                        + "Field: " + (field != null ? field.getInternalName() : null));
+                Task task = Metric.Static.submitReconstructAllTask(database, field.getParentType(), field, 1, "Metric Reconstruction", key + " (" + field.getUniqueName() + ")");
+                completed &= waitForTask(parentTask, task);
+            }
+
+            // Only mark the migration as done once all of it went through,
+            // so that a failed or stopped reconstruction runs again.
+            if (!completed) {
+                throw new ResummarizationSettingsException(key, null, "didn't complete, so it'll be retried.");
+            }
+
+            last.setRunDate(runDate);
+            last.saveImmediately();
+        }
+
+        // Waits for the given task to finish, and returns whether it went
+        // through everything successfully.
+        private static boolean waitForTask(MetricResummarizationTask parentTask, Task task) {
+            if (task == null) {
+                return false;
+            }
+            do {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                Future<?> future = task.getFuture();
+                if (future != null ? future.isDone() : !task.isRunning()) {
+                    return task.getLastException() == null
+                            && (!(task instanceof ResummarizeTask) || ((ResummarizeTask) task).isCompleted());
+                }
+            } while (parentTask == null || parentTask.shouldContinue());
+            return false;
         }
 
         private static Set<ObjectField> resolveFieldSpecs(Database database, String key, String[] fieldSpecs) throws ResummarizationSettingsException {
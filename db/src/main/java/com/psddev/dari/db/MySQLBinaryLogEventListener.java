@@ -76,6 +76,7 @@ class MySQLBinaryLogEventListener implements EventListener {
             value[0] = UuidUtils.toBytes(ObjectUtils.to(UUID.class, jsonData.get(StateSerializer.TYPE_KEY)));
 
             database.notifyUpdate(database.createSavedObjectFromReplicationCache((byte[]) value[0], bid, (byte[]) value[1], jsonData, null));
+            InvalidationBus.Static.getDefault().publish(ObjectUtils.to(UUID.class, jsonData.get(StateSerializer.TYPE_KEY)), bid);
 
             // populate cache
             if (cache.getIfPresent(bid) != null) {
@@ -87,7 +88,7 @@ class MySQLBinaryLogEventListener implements EventListener {
         }
     }
 
-    private void invalidateCache(byte[] id) {
+    private void invalidateCache(byte[] id, byte[] typeId) {
         id = confirm16Bytes(id);
         if (id != null) {
             UUID bid = ObjectUtils.to(UUID.class, id);
@@ -95,6 +96,7 @@ class MySQLBinaryLogEventListener implements EventListener {
                 LOGGER.debug("Cache invalidate: id=[{}]", StringUtils.hex(id));
             }
             cache.invalidate(bid);
+            InvalidationBus.Static.getDefault().publish(ObjectUtils.to(UUID.class, confirm16Bytes(typeId)), bid);
         }
     }
 
@@ -138,14 +140,14 @@ class MySQLBinaryLogEventListener implements EventListener {
                 }
             } else if (eventType == EventType.DELETE_ROWS || eventType == EventType.EXT_DELETE_ROWS) {
                 for (Serializable[] row : ((DeleteRowsEventData) eventData).getRows()) {
-                    invalidateCache((byte[]) row[0]);
+                    invalidateCache((byte[]) row[0], row.length > 1 && row[1] instanceof byte[] ? (byte[]) row[1] : null);
                 }
             } else if (eventType == EventType.QUERY) {
                 DariQueryEventData queryEventData = (DariQueryEventData) eventData;
                 if (queryEventData.getAction() == DariQueryEventData.Action.UPDATE) {
                     updateCache(queryEventData.getId(), queryEventData.getTypeId(), queryEventData.getData());
                 } else if (queryEventData.getAction() == DariQueryEventData.Action.DELETE) {
-                    invalidateCache(queryEventData.getId());
+                    invalidateCache(queryEventData.getId(), null);
                 }
 
             } else {
@@ -156,6 +158,7 @@ class MySQLBinaryLogEventListener implements EventListener {
 
     private void flushCache() {
         cache.invalidateAll();
+        InvalidationBus.Static.getDefault().publishAll();
     }
 
     private byte[] getByteData(byte[] source, String strSource, int begin, int end) {
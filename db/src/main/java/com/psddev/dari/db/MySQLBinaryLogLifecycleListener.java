@@ -28,6 +28,9 @@ class MySQLBinaryLogLifecycleListener extends AbstractLifecycleListener {
     public void onConnect(BinaryLogClient client) {
         LOGGER.info("Connected to MySQL as a slave");
         connected = true;
+
+        // Anything that was read while disconnected may already be stale.
+        InvalidationBus.Static.getDefault().publishAll();
     }
 
     @Override
@@ -40,5 +43,8 @@ class MySQLBinaryLogLifecycleListener extends AbstractLifecycleListener {
         LOGGER.info("Disconnected from MySQL as a slave");
         connected = false;
         cache.invalidateAll();
+
+        // Changes may be missed until reconnected.
+        InvalidationBus.Static.getDefault().publishAll();
     }
 }
@@ -97,6 +97,11 @@ class NullMetricAccess extends MetricAccess {
         return null;
     }
 
+    @Override
+    public Task submitReconstructAllTask(int numParallel, String executor, String name) {
+        return null;
+    }
+
     @Override
     public UUID getDimensionId(String dimensionValue) throws SQLException {
         return dimensionValue == null || dimensionValue.equals("")
@@ -1,9 +1,9 @@
 package com.psddev.dari.db;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Locale;
@@ -11,9 +11,16 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ForwardingMap;
 import com.psddev.dari.util.CollectionUtils;
 import com.psddev.dari.util.ObjectUtils;
+import com.psddev.dari.util.Settings;
+import com.psddev.dari.util.Stats;
 
 /**
  * Parser for translating a predicate string into a {@linkplain Predicate
@@ -63,6 +70,17 @@ public class PredicateParser {
     public static final String MATCHES_EXACT_ANY_OPERATOR = "matchesexactany";
     public static final String MATCHES_EXACT_ALL_OPERATOR = "matchesexactall";
 
+    public static final String TEMPLATE_CACHE_SIZE_SETTING = "dari/predicateTemplateCacheSize";
+    private static final long DEFAULT_TEMPLATE_CACHE_SIZE = 10000L;
+
+    private static final Stats STATS = new Stats("Predicate Parser");
+
+    private final Cache<String, PredicateTemplate> templates = CacheBuilder
+            .newBuilder()
+            .maximumSize(Settings.getOrDefault(long.class, TEMPLATE_CACHE_SIZE_SETTING, DEFAULT_TEMPLATE_CACHE_SIZE))
+            .recordStats()
+            .build();
+
     private final Map<String, String> compoundOperators; {
         Map<String, String> m = new ConcurrentHashMap<String, String>();
 
@@ -75,7 +93,7 @@ public class PredicateParser {
         m.put(NOT_OPERATOR, NOT_OPERATOR);
         m.put("!", NOT_OPERATOR);
 
-        compoundOperators = m;
+        compoundOperators = new OperatorMap(m);
     }
 
     private final Map<String, String> comparisonOperators; {
@@ -131,7 +149,7 @@ public class PredicateParser {
 
         m.put(MATCHES_ALL_OPERATOR, MATCHES_ALL_OPERATOR);
 
-        comparisonOperators = m;
+        comparisonOperators = new OperatorMap(m);
     }
 
     private final Map<String, Evaluator> evaluators; {
@@ -155,6 +173,60 @@ public class PredicateParser {
         evaluators = m;
     }
 
+    /**
+     * Operator map that clears the parsed predicate strings whenever it's
+     * changed, since they depend on the operators.
+     */
+    private class OperatorMap extends ForwardingMap<String, String> {
+
+        private final Map<String, String> delegate;
+
+        public OperatorMap(Map<String, String> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        protected Map<String, String> delegate() {
+            return delegate;
+        }
+
+        @Override
+        public String put(String key, String value) {
+            try {
+                return delegate.put(key, value);
+            } finally {
+                templates.invalidateAll();
+            }
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ? extends String> map) {
+            try {
+                delegate.putAll(map);
+            } finally {
+                templates.invalidateAll();
+            }
+        }
+
+        @Override
+        public String remove(Object key) {
+            try {
+                return delegate.remove(key);
+            } finally {
+                templates.invalidateAll();
+            }
+        }
+
+        @Override
+        public void clear() {
+            try {
+                delegate.clear();
+            } finally {
+                templates.invalidateAll();
+            }
+        }
+    }
+
     /** Returns the map of compound operators. */
     public Map<String, String> getCompoundOperators() {
         return compoundOperators;
@@ -174,6 +246,9 @@ public class PredicateParser {
      * Parses the given {@code predicateString} along with the given
      * {@code parameters}.
      *
+     * <p>The parsed form of the string is cached so that the subsequent
+     * calls only need to bind the parameters.</p>
+     *
      * @param predicateString If {@code null}, returns {@code null}.
      * @param parameters May be {@code null}.
      * @return May be {@code null}.
@@ -183,28 +258,54 @@ public class PredicateParser {
             return null;
         }
 
-        Queue<String> tokens = new LinkedList<String>();
+        PredicateTemplate template = templates.getIfPresent(predicateString);
 
-        char[] predicateChars = predicateString.toCharArray();
-        for (int i = 0, length = predicateChars.length; i < length; ++ i) {
+        // Hits aren't timed since that would cost about as much as the
+        // lookup itself. See getTemplateHitRate instead.
+        if (template == null) {
+            Stats.Timer timer = STATS.startTimer();
+            template = compileTemplate(predicateString);
 
-            char c = predicateChars[i];
+            templates.put(predicateString, template);
+            timer.stop("Template Miss");
+        }
+
+        return template.bind(new ParameterList(parameters));
+    }
+
+    /**
+     * Returns the ratio of the {@link #parse} calls that found the parsed
+     * form of the predicate string in the cache.
+     *
+     * @return Between {@code 0.0} and {@code 1.0}.
+     */
+    public double getTemplateHitRate() {
+        return templates.stats().hitRate();
+    }
+
+    private PredicateTemplate compileTemplate(String predicateString) {
+        Queue<String> tokens = new ArrayDeque<String>();
+        StringBuilder tokenBuilder = new StringBuilder();
+
+        for (int i = 0, length = predicateString.length(); i < length; ++ i) {
+
+            char c = predicateString.charAt(i);
             if (Character.isWhitespace(c)) {
                 continue;
             }
 
-            StringBuilder tokenBuilder = new StringBuilder();
+            tokenBuilder.setLength(0);
             if ("()[],".indexOf(c) > -1) {
                 tokenBuilder.append(c);
 
             } else if ("'\"".indexOf(c) > -1) {
                 char quote = c;
                 for (++ i; i < length; ++ i) {
-                    c = predicateChars[i];
+                    c = predicateString.charAt(i);
                     if (c == '\\') {
                         ++ i;
                         if (i < length) {
-                            tokenBuilder.append(predicateChars[i]);
+                            tokenBuilder.append(predicateString.charAt(i));
                         }
                     } else if (c == quote) {
                         break;
@@ -216,7 +317,7 @@ public class PredicateParser {
             } else {
                 tokenBuilder.append(c);
                 for (++ i; i < length; ++ i) {
-                    c = predicateChars[i];
+                    c = predicateString.charAt(i);
                     if ("),".indexOf(c) > -1) {
                         -- i;
                         break;
@@ -231,9 +332,29 @@ public class PredicateParser {
             tokens.add(tokenBuilder.toString());
         }
 
-        return readPredicate(tokens, new ParameterList(parameters));
+        PredicateTemplate template = readPredicate(tokens);
+        return template != null ? template : EMPTY_TEMPLATE;
     }
 
+    /**
+     * Parsed form of a predicate string that creates a new predicate
+     * with the given parameters.
+     */
+    private interface PredicateTemplate {
+
+        Predicate bind(ParameterList parameters);
+    }
+
+    /**
+     * Parsed form of a value within a predicate string.
+     */
+    private interface ValueTemplate {
+
+        Object bind(ParameterList parameters);
+    }
+
+    private static final PredicateTemplate EMPTY_TEMPLATE = parameters -> null;
+
     @SuppressWarnings("serial")
     private static class ParameterList extends ArrayList<Object> {
 
@@ -257,10 +378,10 @@ public class PredicateParser {
     }
 
     // Reads: group (compoundOperator group)*
-    private Predicate readPredicate(Queue<String> tokens, ParameterList parameters) {
-        Predicate predicate = readGroup(tokens, parameters);
+    private PredicateTemplate readPredicate(Queue<String> tokens) {
+        PredicateTemplate template = readGroup(tokens);
 
-        if (predicate != null) {
+        if (template != null) {
             for (String operator; (operator = tokens.peek()) != null;) {
 
                 operator = operator.toLowerCase(Locale.ENGLISH);
@@ -270,43 +391,50 @@ public class PredicateParser {
                 }
 
                 tokens.remove();
-                predicate = CompoundPredicate.combine(
+
+                PredicateTemplate left = template;
+                PredicateTemplate right = readGroup(tokens);
+
+                template = parameters -> CompoundPredicate.combine(
                         compoundOperator,
-                        predicate,
-                        readGroup(tokens, parameters));
+                        left.bind(parameters),
+                        right != null ? right.bind(parameters) : null);
             }
         }
 
-        return predicate;
+        return template;
     }
 
     // Reads: '(' predicate ')'
-    private Predicate readGroup(Queue<String> tokens, ParameterList parameters) {
-        Predicate predicate = null;
+    private PredicateTemplate readGroup(Queue<String> tokens) {
+        PredicateTemplate template = null;
         String nextToken = tokens.peek();
 
         if ("(".equals(nextToken)) {
             tokens.remove();
-            predicate = readPredicate(tokens, parameters);
-            if (predicate == null) {
+            template = readPredicate(tokens);
+            if (template == null) {
                 throw new IllegalArgumentException("Empty group!");
             } else if (!")".equals(tokens.poll())) {
                 throw new IllegalArgumentException(String.format(
-                        "Unmatched ( after [%s]!", predicate));
+                        "Unmatched ( after [%s]!", template.bind(new ParameterList())));
             }
 
         } else if ("not".equals(nextToken)
                 || NOT_OPERATOR.equals(nextToken)) {
             tokens.remove();
-            predicate = new CompoundPredicate(
+
+            PredicateTemplate child = readGroup(tokens);
+
+            template = parameters -> new CompoundPredicate(
                     NOT_OPERATOR,
-                    Arrays.asList(readGroup(tokens, parameters)));
+                    Arrays.asList(child != null ? child.bind(parameters) : null));
 
         } else {
-            predicate = readComparison(tokens, parameters);
+            template = readComparison(tokens);
         }
 
-        return predicate;
+        return template;
     }
 
     // Reads: value | '[' value1, value2, valueN ']'
@@ -341,17 +469,13 @@ public class PredicateParser {
     }
 
     // Reads: key operator value
-    private Predicate readComparison(Queue<String> tokens, ParameterList parameters) {
-        String key = tokens.poll();
-        if (key == null) {
+    private PredicateTemplate readComparison(Queue<String> tokens) {
+        String token = tokens.poll();
+        if (token == null) {
             return null;
         }
 
-        String realKey = Query.Static.getCanonicalKey(key);
-        if (realKey != null) {
-            key = realKey;
-        }
-
+        String key = Query.Static.getCanonicalKey(token);
         String operator = tokens.poll();
         boolean isIgnoreCase = false;
         if (operator == null) {
@@ -366,6 +490,7 @@ public class PredicateParser {
         }
 
         Object value = readValue(tokens);
+        ValueTemplate valueTemplate = null;
         if (value == null) {
             throw new IllegalArgumentException(String.format(
                     "No value after [%s] key and [%s] operator!",
@@ -376,55 +501,10 @@ public class PredicateParser {
 
             if (valueString.startsWith("?")) {
                 if (valueString.length() == 1) {
-                    value = parameters.poll();
+                    valueTemplate = ParameterList::poll;
 
                 } else {
-                    String path = valueString.substring(1);
-
-                    // Parse a leading integer as a parameter index.
-                    String indexString = "";
-                    for (char c : path.toCharArray()) {
-
-                        int digit = Character.digit(c, 10);
-
-                        if (digit == -1) {
-                            break;
-
-                        }
-
-                        indexString += c;
-                    }
-
-                    // Default index to 0 if indexString is empty.
-                    int index = ObjectUtils.to(int.class, indexString);
-
-                    // Remove an optional leading parameter index.
-                    path = path.substring(indexString.length());
-
-                    // Remove an optional leading forward slash.
-                    if (path.indexOf('/') == 0) {
-                        path = path.substring(1);
-                    } else if (path.length() > 0) {
-                        throw new IllegalArgumentException(String.format(
-                                "Missing [/] between [%s] and [%s]!",
-                                valueString.substring(0, 1 + indexString.length()),
-                                valueString.substring(1 + indexString.length())));
-                    }
-
-                    // Obtain parameter from the specified ParameterList using the parameter index.
-                    value = index < parameters.size() ? parameters.get(index) : null;
-
-                    if (value != null && path.length() > 0) {
-
-                        // Produce a value using the specified parameter and path.
-                        if (value instanceof State) {
-                            value = ((State) value).getByPath(path);
-                        } else if (value instanceof Recordable) {
-                            value = ((Recordable) value).getState().getByPath(path);
-                        } else {
-                            value = CollectionUtils.getByPath(value, path);
-                        }
-                    }
+                    valueTemplate = readParameterPath(valueString);
                 }
 
             } else if ("true".equalsIgnoreCase(valueString)) {
@@ -442,27 +522,95 @@ public class PredicateParser {
         }
 
         String comparisonOperator = getComparisonOperators().get(operator);
-        if (comparisonOperator != null) {
+        if (comparisonOperator == null) {
+            throw new IllegalArgumentException(String.format(
+                    "[%s] isn't a valid comparison operator!",
+                    operator));
+        }
+
+        boolean ignoreCase = isIgnoreCase;
+
+        if (valueTemplate != null) {
+            ValueTemplate parameterTemplate = valueTemplate;
+
+            return parameters -> {
+                Object parameter = parameterTemplate.bind(parameters);
 
-            if (value instanceof State) {
-                return new ComparisonPredicate(
-                        comparisonOperator,
-                        isIgnoreCase,
-                        key,
-                        Collections.singleton(value));
-            } else {
                 return new ComparisonPredicate(
                         comparisonOperator,
-                        isIgnoreCase,
+                        ignoreCase,
                         key,
-                        ObjectUtils.to(Iterable.class, value));
-            }
+                        parameter instanceof State
+                                ? Collections.singleton(parameter)
+                                : ObjectUtils.to(Iterable.class, parameter));
+            };
 
         } else {
+            Iterable<?> values = ObjectUtils.to(Iterable.class, value);
+
+            return parameters -> new ComparisonPredicate(
+                    comparisonOperator,
+                    ignoreCase,
+                    key,
+                    values);
+        }
+    }
+
+    // Reads: '?' index? ('/' path)?
+    private ValueTemplate readParameterPath(String valueString) {
+        String path = valueString.substring(1);
+
+        // Parse a leading integer as a parameter index.
+        String indexString = "";
+        for (char c : path.toCharArray()) {
+
+            int digit = Character.digit(c, 10);
+
+            if (digit == -1) {
+                break;
+
+            }
+
+            indexString += c;
+        }
+
+        // Default index to 0 if indexString is empty.
+        int index = ObjectUtils.to(int.class, indexString);
+
+        // Remove an optional leading parameter index.
+        path = path.substring(indexString.length());
+
+        // Remove an optional leading forward slash.
+        if (path.indexOf('/') == 0) {
+            path = path.substring(1);
+        } else if (path.length() > 0) {
             throw new IllegalArgumentException(String.format(
-                    "[%s] isn't a valid comparison operator!",
-                    operator));
+                    "Missing [/] between [%s] and [%s]!",
+                    valueString.substring(0, 1 + indexString.length()),
+                    valueString.substring(1 + indexString.length())));
         }
+
+        String valuePath = path;
+
+        return parameters -> {
+
+            // Obtain parameter from the specified ParameterList using the parameter index.
+            Object value = index < parameters.size() ? parameters.get(index) : null;
+
+            if (value != null && valuePath.length() > 0) {
+
+                // Produce a value using the specified parameter and path.
+                if (value instanceof State) {
+                    value = ((State) value).getByPath(valuePath);
+                } else if (value instanceof Recordable) {
+                    value = ((Recordable) value).getState().getByPath(valuePath);
+                } else {
+                    value = CollectionUtils.getByPath(value, valuePath);
+                }
+            }
+
+            return value;
+        };
     }
 
     /**
@@ -489,6 +637,256 @@ public class PredicateParser {
         return evaluator.evaluate(this, object, predicate);
     }
 
+    /**
+     * Compiles the given {@code predicate} into a matcher that can be
+     * reused to evaluate it against many objects.
+     *
+     * <p>The evaluators are looked up, the field paths are resolved into
+     * accessors, and the comparison values are converted only once, so
+     * the matcher is much faster than calling {@link #evaluate} for each
+     * object. It's thread-safe.</p>
+     *
+     * @param predicate If {@code null}, the matcher matches everything.
+     * @return Nonnull.
+     * @throws UnsupportedOperationException If the given {@code predicate}
+     * contains an operator that isn't supported.
+     */
+    public Matcher compile(Predicate predicate) {
+        return new Matcher(predicate != null ? compileNode(predicate) : object -> true);
+    }
+
+    private MatcherNode compileNode(Predicate predicate) {
+        String operator = predicate.getOperator();
+        Evaluator evaluator = evaluators.get(operator);
+
+        if (evaluator == null) {
+            throw new UnsupportedOperationException(String.format(
+                    "[%s] operator not supported!", operator));
+        }
+
+        Class<?> evaluatorClass = evaluator.getClass();
+
+        if (evaluatorClass == AndEvaluator.class) {
+            MatcherNode[] children = compileChildren(predicate);
+
+            return object -> {
+                for (MatcherNode child : children) {
+                    if (!child.matches(object)) {
+                        return false;
+                    }
+                }
+                return true;
+            };
+
+        } else if (evaluatorClass == OrEvaluator.class || evaluatorClass == NotEvaluator.class) {
+            MatcherNode[] children = compileChildren(predicate);
+            boolean not = evaluatorClass == NotEvaluator.class;
+
+            return object -> {
+                for (MatcherNode child : children) {
+                    if (child.matches(object)) {
+                        return !not;
+                    }
+                }
+                return not;
+            };
+
+        } else if (evaluator instanceof ComparisonEvaluator) {
+            return compileComparison((ComparisonPredicate) predicate, (ComparisonEvaluator) evaluator);
+
+        } else {
+            return object -> evaluator.evaluate(this, object, predicate);
+        }
+    }
+
+    private MatcherNode[] compileChildren(Predicate predicate) {
+        List<Predicate> children = ((CompoundPredicate) predicate).getChildren();
+        MatcherNode[] nodes = new MatcherNode[children.size()];
+
+        for (int i = 0, size = nodes.length; i < size; ++ i) {
+            Predicate child = children.get(i);
+            nodes[i] = child != null ? compileNode(child) : object -> true;
+        }
+
+        return nodes;
+    }
+
+    // Same as ComparisonEvaluator#evaluate, but with the key accessor and
+    // the values resolved ahead of time.
+    private MatcherNode compileComparison(ComparisonPredicate comparison, ComparisonEvaluator evaluator) {
+        String key = comparison.getKey();
+        Function<State, Object> accessor;
+
+        if (Query.ANY_KEY.equals(key)) {
+            if (Collections.singletonList("*").equals(comparison.getValues())) {
+                return object -> true;
+            }
+
+            accessor = state -> {
+                List<Object> values = new ArrayList<Object>();
+                for (ObjectIndex index : state.getIndexes()) {
+                    for (String field : index.getFields()) {
+                        values.add(state.getByPath(field));
+                    }
+                }
+                return values;
+            };
+
+        } else {
+            accessor = compileAccessor(key);
+        }
+
+        // Values that don't need a database can be resolved and converted
+        // to each key value class once.
+        List<Object> staticValues = comparison.getValues();
+
+        for (Object value : staticValues) {
+            if (value instanceof Query || value instanceof Class) {
+                staticValues = null;
+                break;
+            }
+        }
+
+        List<Object> fixedValues = staticValues;
+        Map<Class<?>, List<Object>> convertedValues = fixedValues != null ? new ConcurrentHashMap<>() : null;
+
+        return object -> {
+            State state = State.getInstance(object);
+            Object keyValue = accessor.apply(state);
+            List<Object> values = fixedValues != null ? fixedValues : comparison.resolveValues(state.getDatabase());
+
+            if (ObjectUtils.isBlank(keyValue)) {
+                return evaluator.compare(state, Query.MISSING_VALUE, values);
+
+            } else if (keyValue instanceof Iterable) {
+                for (Object item : (Iterable<?>) keyValue) {
+                    if (evaluator.compare(state, item, convertValues(item, values, convertedValues))) {
+                        return true;
+                    }
+                }
+                return false;
+
+            } else {
+                return evaluator.compare(state, keyValue, convertValues(keyValue, values, convertedValues));
+            }
+        };
+    }
+
+    // Plain field names can skip the path parsing and the method lookups in
+    // State#getByPath.
+    private Function<State, Object> compileAccessor(String key) {
+        if (key.indexOf('/') > -1
+                || key.indexOf('.') > -1
+                || key.endsWith("()")
+                || key.startsWith("get")
+                || key.startsWith("is")
+                || key.startsWith("has")) {
+            return state -> state.getByPath(key);
+
+        } else if (State.ID_KEY.equals(key)) {
+            return State::getId;
+
+        } else if (State.TYPE_KEY.equals(key)) {
+            return State::getType;
+
+        } else if (State.LABEL_KEY.equals(key)) {
+            return State::getLabel;
+
+        } else {
+            return state -> state.get(key);
+        }
+    }
+
+    // Same as ComparisonEvaluator#evaluateOne, but without modifying the
+    // given values.
+    private List<Object> convertValues(Object keyValue, List<Object> values, Map<Class<?>, List<Object>> convertedValues) {
+        if (keyValue == null || keyValue instanceof Recordable || keyValue instanceof UUID) {
+            return values;
+        }
+
+        Class<?> keyValueClass = keyValue.getClass();
+
+        if (convertedValues != null) {
+            return convertedValues.computeIfAbsent(keyValueClass, c -> convertValues(c, values));
+
+        } else {
+            return convertValues(keyValueClass, values);
+        }
+    }
+
+    private List<Object> convertValues(Class<?> keyValueClass, List<Object> values) {
+        List<Object> converted = new ArrayList<Object>(values.size());
+
+        for (Object value : values) {
+            converted.add(ObjectUtils.to(keyValueClass, value));
+        }
+
+        return Collections.unmodifiableList(converted);
+    }
+
+    private interface MatcherNode {
+
+        boolean matches(Object object);
+    }
+
+    /**
+     * Compiled form of a predicate.
+     *
+     * @see #compile
+     */
+    public static final class Matcher {
+
+        private final MatcherNode root;
+
+        private Matcher(MatcherNode root) {
+            this.root = root;
+        }
+
+        /**
+         * Returns {@code true} if the given {@code object} matches.
+         */
+        public boolean matches(Object object) {
+            return root.matches(object);
+        }
+
+        /**
+         * Returns all objects in the given {@code objects} that match, in
+         * the same order.
+         *
+         * @param objects Nonnull.
+         * @return Nonnull. Mutable.
+         */
+        public <T> List<T> filter(List<T> objects) {
+            List<T> matched = new ArrayList<T>();
+
+            for (int i = 0, size = objects.size(); i < size; ++ i) {
+                T object = objects.get(i);
+
+                if (root.matches(object)) {
+                    matched.add(object);
+                }
+            }
+
+            return matched;
+        }
+
+        /**
+         * Returns all objects in the given {@code objects} that match, in
+         * the same order, using the common fork-join pool. Only worthwhile
+         * for large inputs, since it costs more than {@link #filter} for
+         * small ones.
+         *
+         * @param objects Nonnull.
+         * @return Nonnull. Mutable.
+         */
+        public <T> List<T> filterParallel(List<T> objects) {
+            return objects
+                    .parallelStream()
+                    .filter(root::matches)
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
     public interface Evaluator {
 
         public boolean evaluate(PredicateParser parser, Object object, Predicate predicate);
@@ -761,6 +1159,13 @@ public class PredicateParser {
             return DEFAULT_PARSER.evaluate(object, predicate);
         }
 
+        /**
+         * Compiles the given {@code predicate} into a reusable matcher.
+         */
+        public static Matcher compile(Predicate predicate) {
+            return DEFAULT_PARSER.compile(predicate);
+        }
+
         /**
          * Returns {@code true} if the given {@code predicateString} along
          * with the given {@code parameters} matches the given {@code object}.
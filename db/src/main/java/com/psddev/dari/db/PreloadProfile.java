@@ -0,0 +1,117 @@
+package com.psddev.dari.db;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Learned set of objects that the requests to a route are likely to read.
+ *
+ * <p>Each object is weighted by an exponential moving average of how often
+ * it's read, so that the objects that are shared by most requests, such
+ * as the site settings or the navigation, rise above the threshold while
+ * the ones that are specific to a single request fade away.</p>
+ */
+final class PreloadProfile {
+
+    // Weight of the latest request in the moving average.
+    private static final double ALPHA = 0.2;
+
+    private static final double MINIMUM_WEIGHT = 0.01;
+
+    private final int maximumSize;
+    private final Map<UUID, Entry> entries = new HashMap<>();
+    private long requests;
+
+    /**
+     * @param maximumSize Maximum number of objects to remember.
+     */
+    public PreloadProfile(int maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Records that a request read the objects with the given IDs.
+     *
+     * @param typeIdsById Type IDs of the objects keyed by their IDs. A
+     *        {@code null} type ID means that the object couldn't be found.
+     *        Nonnull.
+     */
+    public synchronized void update(Map<UUID, UUID> typeIdsById) {
+        ++ requests;
+
+        for (Iterator<Map.Entry<UUID, Entry>> i = entries.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<UUID, Entry> e = i.next();
+            Entry entry = e.getValue();
+            boolean read = typeIdsById.containsKey(e.getKey());
+
+            entry.weight = entry.weight * (1.0 - ALPHA) + (read ? ALPHA : 0.0);
+
+            if (entry.weight < MINIMUM_WEIGHT) {
+                i.remove();
+            }
+        }
+
+        for (Map.Entry<UUID, UUID> e : typeIdsById.entrySet()) {
+            Entry entry = entries.get(e.getKey());
+
+            if (entry == null) {
+                entry = new Entry();
+                entry.weight = ALPHA;
+                entries.put(e.getKey(), entry);
+            }
+
+            entry.typeId = e.getValue();
+        }
+
+        if (entries.size() > maximumSize) {
+            List<Map.Entry<UUID, Entry>> sorted = new ArrayList<>(entries.entrySet());
+
+            sorted.sort(Comparator.comparingDouble(e -> e.getValue().weight));
+
+            for (Map.Entry<UUID, Entry> e : sorted.subList(0, sorted.size() - maximumSize)) {
+                entries.remove(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of requests recorded so far.
+     */
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    /**
+     * Returns the IDs of the objects whose weight is at least the given
+     * {@code threshold}, grouped by their type IDs.
+     *
+     * @param threshold Between {@code 0.0} and {@code 1.0}, where
+     *        {@code 0.5} roughly means that the object was read by at
+     *        least half of the recent requests.
+     * @return Nonnull.
+     */
+    public synchronized Map<UUID, List<UUID>> getIdsByTypeId(double threshold) {
+        Map<UUID, List<UUID>> idsByTypeId = new HashMap<>();
+
+        for (Map.Entry<UUID, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+
+            if (entry.typeId != null && entry.weight >= threshold) {
+                idsByTypeId.computeIfAbsent(entry.typeId, t -> new ArrayList<>()).add(e.getKey());
+            }
+        }
+
+        return idsByTypeId;
+    }
+
+    private static final class Entry {
+
+        public double weight;
+        public UUID typeId;
+    }
+}
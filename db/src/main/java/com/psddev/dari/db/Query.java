@@ -147,6 +147,7 @@ public class Query<E> extends Record {
     private transient boolean noCache;
     private transient boolean master;
     private transient boolean resolveInvisible;
+    private transient int prefetchReferencesDepth;
     private transient Double timeout;
     private transient Map<String, Object> options;
     private final transient Map<String, String> extraSourceColumns = new HashMap<String, String>();
@@ -370,6 +371,30 @@ public class Query<E> extends Record {
         this.resolveInvisible = resolveInvisible;
     }
 
+    /**
+     * Returns how many levels of references will be fetched in bulk for
+     * all objects returned by {@link #selectAll} or {@link #select(long, int)}.
+     *
+     * @return {@code 0} if references are resolved one object at a time.
+     */
+    public int getPrefetchReferencesDepth() {
+        return prefetchReferencesDepth;
+    }
+
+    /**
+     * Sets how many levels of references will be fetched in bulk for all
+     * objects returned by {@link #selectAll} or {@link #select(long, int)}.
+     *
+     * <p>All references found at each level are read using one query per
+     * database, so that accessing them later doesn't trigger a separate
+     * query for every object.</p>
+     *
+     * @param prefetchReferencesDepth {@code 0} to disable.
+     */
+    public void setPrefetchReferencesDepth(int prefetchReferencesDepth) {
+        this.prefetchReferencesDepth = prefetchReferencesDepth;
+    }
+
     /**
      * Gets the maximum allowed execution time (in seconds).
      */
@@ -712,6 +737,17 @@ public class Query<E> extends Record {
         return this;
     }
 
+    /**
+     * Sets this query to fetch references in bulk up to the given
+     * {@code depth}.
+     *
+     * @see #setPrefetchReferencesDepth(int)
+     */
+    public Query<E> prefetchReferences(int depth) {
+        setPrefetchReferencesDepth(depth);
+        return this;
+    }
+
     /**
      * Sets the maximum allowed execution time (in seconds).
      */
@@ -1382,6 +1418,7 @@ public class Query<E> extends Record {
         clone.setCache(!noCache);
         clone.setMaster(master);
         clone.setResolveInvisible(resolveInvisible);
+        clone.setPrefetchReferencesDepth(prefetchReferencesDepth);
         clone.setTimeout(timeout);
         clone.setOptions(options != null ? new HashMap<String, Object>(options) : null);
 
@@ -1572,7 +1609,10 @@ public class Query<E> extends Record {
      * in a {@linkplain #getDatabase database}.
      */
     public PaginatedResult<E> select(long offset, int limit) {
-        return getDatabase().readPartial(this, offset, limit);
+        PaginatedResult<E> result = getDatabase().readPartial(this, offset, limit);
+
+        StateValueUtils.prefetchReferences(this, result.getItems());
+        return result;
     }
 
     /**
@@ -1580,7 +1620,10 @@ public class Query<E> extends Record {
      * {@linkplain #getDatabase database}.
      */
     public List<E> selectAll() {
-        return getDatabase().readAll(this);
+        List<E> items = getDatabase().readAll(this);
+
+        StateValueUtils.prefetchReferences(this, items);
+        return items;
     }
 
     /**
@@ -1,6 +1,12 @@
 package com.psddev.dari.db;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.psddev.dari.util.ObjectUtils;
+import com.psddev.dari.util.Settings;
+import com.psddev.dari.util.Stats;
 
 /**
  * Automatically changing sequence of numbers, similar to a {@code SEQUENCE}
@@ -32,10 +38,25 @@ public class Sequence extends Record {
 
     /** Returns the next number in this sequence. */
     public double next() {
+        return next(1L);
+    }
+
+    /**
+     * Advances this sequence by the given {@code count} and returns the last
+     * number, so that all numbers from {@code next(count) - count + 1}
+     * belong to the caller.
+     *
+     * @param count Must be positive.
+     */
+    public double next(long count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Count must be positive!");
+        }
+
         synchronized (this) {
             State state = getState();
 
-            state.incrementAtomically("value", 1.0);
+            state.incrementAtomically("value", (double) count);
             state.saveImmediately();
 
             return ObjectUtils.to(double.class, state.get("value"));
@@ -45,6 +66,12 @@ public class Sequence extends Record {
     /** {@link Sequence} utility methods. */
     public static final class Static {
 
+        public static final String BLOCK_MAXIMUM_SIZE_SETTING = "dari/sequenceBlockMaximumSize";
+        private static final long DEFAULT_BLOCK_MAXIMUM_SIZE = 1000L;
+
+        private static final Stats STATS = new Stats("Sequence");
+        private static final ConcurrentMap<Database, ConcurrentMap<String, BlockAllocator>> ALLOCATORS = new ConcurrentHashMap<>();
+
         /**
          * Returns the next number in the sequence with the given {@code name},
          * or the given {@code initialValue} if the sequence has never been
@@ -53,16 +80,89 @@ public class Sequence extends Record {
          * @param name Can't be blank.
          */
         public static long nextLong(String name, long initialValue) {
+            Stats.Timer timer = STATS.startTimer();
+
+            try {
+                return (long) findOrCreate(name, initialValue).next();
+
+            } finally {
+                timer.stop("Next");
+            }
+        }
+
+        /**
+         * Returns the next number in the sequence with the given
+         * {@code name} from a block of numbers that's reserved in this
+         * JVM, or the given {@code initialValue} if the sequence has never
+         * been used before.
+         *
+         * <p>Each block is reserved with a single atomic update, and the
+         * numbers within it are handed out without any locking. The block
+         * size starts at {@code 1}, doubles whenever a block is used up
+         * within a second, and halves whenever it lasts longer than a
+         * minute, up to the {@value #BLOCK_MAXIMUM_SIZE_SETTING} setting
+         * ({@value #DEFAULT_BLOCK_MAXIMUM_SIZE} by default).</p>
+         *
+         * <p>The numbers are still unique across the cluster, but unlike
+         * {@link #nextLong}:</p>
+         *
+         * <ul>
+         * <li>They're only increasing within a JVM, since each server
+         * hands out its own block.</li>
+         * <li>The unused numbers in a block are lost when the JVM stops, so
+         * the sequence can have gaps of up to the block size.</li>
+         * </ul>
+         *
+         * <p>Don't mix this with {@link #nextLong} or {@link Sequence#next}
+         * on the same sequence unless gaps and out-of-order numbers are
+         * acceptable.</p>
+         *
+         * <p>The blocks are reserved in the {@linkplain Database.Static#getDefault
+         * default database}, so the sequences with the same name in
+         * different databases are kept apart.</p>
+         *
+         * @param name Can't be blank.
+         */
+        public static long nextLongFromBlock(String name, long initialValue) {
+            Stats.Timer timer = STATS.startTimer();
+
+            try {
+                Database database = Database.Static.getDefault();
+
+                // The wrappers, such as the per-request caching database,
+                // share the sequences in the underlying database.
+                while (database instanceof ForwardingDatabase) {
+                    database = ((ForwardingDatabase) database).getDelegate();
+                }
+
+                Database allocatorDatabase = database;
+
+                return ALLOCATORS
+                        .computeIfAbsent(allocatorDatabase, d -> new ConcurrentHashMap<>())
+                        .computeIfAbsent(name, n -> new BlockAllocator(allocatorDatabase, n, initialValue))
+                        .next();
+
+            } finally {
+                timer.stop("Next From Block");
+            }
+        }
+
+        private static Sequence findOrCreate(String name, long initialValue) {
+            return findOrCreate(Database.Static.getDefault(), name, initialValue);
+        }
+
+        private static Sequence findOrCreate(Database database, String name, long initialValue) {
             Sequence s = null;
 
             while (true) {
-                s = Query.from(Sequence.class).where("name = ?", name).master().noCache().first();
+                s = Query.from(Sequence.class).using(database).where("name = ?", name).master().noCache().first();
 
                 if (s != null) {
                     break;
                 }
 
                 s = new Sequence();
+                s.getState().setDatabase(database);
                 s.setName(name);
                 s.setValue(initialValue);
 
@@ -77,7 +177,88 @@ public class Sequence extends Record {
                 }
             }
 
-            return (long) s.next();
+            return s;
+        }
+    }
+
+    /** Numbers within {@code [next, end)} that can be handed out. */
+    private static final class Block {
+
+        public final AtomicLong next;
+        public final long end;
+
+        public Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    private static final class BlockAllocator {
+
+        private static final long FAST_NANOS = 1000000000L;
+        private static final long SLOW_NANOS = 60L * FAST_NANOS;
+
+        private final Database database;
+        private final String name;
+        private final long initialValue;
+
+        private volatile Block block = new Block(0L, 0L);
+        private Sequence sequence;
+        private long size;
+        private long reserved;
+
+        public BlockAllocator(Database database, String name, long initialValue) {
+            this.database = database;
+            this.name = name;
+            this.initialValue = initialValue;
+        }
+
+        public long next() {
+            while (true) {
+                Block b = block;
+                long value = b.next.getAndIncrement();
+
+                if (value < b.end) {
+                    return value;
+                }
+
+                reserve(b);
+            }
+        }
+
+        // Only the first thread to find the block used up reserves a new
+        // one, and the others retry with it.
+        private synchronized void reserve(Block used) {
+            if (block != used) {
+                return;
+            }
+
+            Stats.Timer timer = Static.STATS.startTimer();
+            long now = System.nanoTime();
+            long maximumSize = Math.max(1L, Settings.getOrDefault(long.class, Static.BLOCK_MAXIMUM_SIZE_SETTING, Static.DEFAULT_BLOCK_MAXIMUM_SIZE));
+
+            if (size == 0L) {
+                size = 1L;
+
+            } else if (now - reserved < FAST_NANOS) {
+                size = Math.min(size * 2L, maximumSize);
+
+            } else if (now - reserved > SLOW_NANOS) {
+                size = Math.max(size / 2L, 1L);
+
+            } else {
+                size = Math.min(size, maximumSize);
+            }
+
+            if (sequence == null) {
+                sequence = Static.findOrCreate(database, name, initialValue);
+            }
+
+            long last = (long) sequence.next(size);
+
+            reserved = now;
+            block = new Block(last - size + 1L, last + 1L);
+            timer.stop("Reserve Block");
         }
     }
 }
@@ -13,11 +13,19 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -28,16 +36,19 @@ import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.FieldStatsInfo;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.response.RangeFacet;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
 import org.apache.solr.common.params.MoreLikeThisParams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.psddev.dari.util.Lazy;
 import com.psddev.dari.util.ObjectUtils;
 import com.psddev.dari.util.PaginatedResult;
@@ -63,7 +74,46 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
     public static final String SAVE_DATA_SUB_SETTING = "saveData";
     public static final String AUTO_COMMIT_SUB_SETTING = "autoCommit";
 
+    /**
+     * Sub-setting name for specifying whether the saves and the deletes
+     * that aren't immediate should be queued and sent to Solr in the
+     * background, merged into batches across transactions.
+     *
+     * <p>Queued updates are lost if the VM stops before they're sent, and
+     * any errors are only logged.</p>
+     */
+    public static final String ASYNC_UPDATES_SUB_SETTING = "asyncUpdates";
+
+    /** Sub-setting name for the maximum number of documents per update request. */
+    public static final String UPDATE_BATCH_SIZE_SUB_SETTING = "updateBatchSize";
+
+    /** Sub-setting name for the maximum estimated bytes per update request. */
+    public static final String UPDATE_BATCH_BYTES_SUB_SETTING = "updateBatchBytes";
+
+    /**
+     * Sub-setting name for the maximum number of milliseconds that a queued
+     * update waits for its batch to fill up.
+     */
+    public static final String UPDATE_BATCH_DELAY_SUB_SETTING = "updateBatchDelay";
+
+    /**
+     * Sub-setting name for the maximum number of queued updates before the
+     * writers block.
+     */
+    public static final String UPDATE_QUEUE_SIZE_SUB_SETTING = "updateQueueSize";
+
+    /**
+     * Sub-setting name for the number of update requests that can be sent
+     * concurrently.
+     */
+    public static final String UPDATE_STREAMS_SUB_SETTING = "updateStreams";
+
     public static final double DEFAULT_COMMIT_WITHIN = 0.0;
+    public static final int DEFAULT_UPDATE_BATCH_SIZE = 500;
+    public static final long DEFAULT_UPDATE_BATCH_BYTES = 5L * 1024L * 1024L;
+    public static final long DEFAULT_UPDATE_BATCH_DELAY = 1000L;
+    public static final int DEFAULT_UPDATE_QUEUE_SIZE = 10000;
+    public static final int DEFAULT_UPDATE_STREAMS = 2;
 
     public static final String TENANT_FIELD = "_s__tenant";
     public static final String ID_FIELD = "id";
@@ -78,7 +128,10 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
     public static final String SCORE_EXTRA = "solr.score";
     public static final String NORMALIZED_SCORE_EXTRA = "solr.normalizedScore";
 
-    private static final int INITIAL_FETCH_SIZE = 100;
+    private static final int CURSOR_FETCH_SIZE = 1000;
+    private static final long UPDATE_FLUSH_TIMEOUT = 60000L;
+    private static final int DEFAULT_ITERABLE_FETCH_SIZE = 200;
+    private static final Pattern CURSOR_SORT_ID_PATTERN = Pattern.compile("(?:^|,)\\s*" + ID_FIELD + "\\s+(?:asc|desc)\\s*(?:,|$)");
     private static final Logger LOGGER = LoggerFactory.getLogger(SolrDatabase.class);
     private static final Pattern UUID_PATTERN = Pattern.compile("([A-Fa-f0-9]{8})-([A-Fa-f0-9]{4})-([A-Fa-f0-9]{4})-([A-Fa-f0-9]{4})-([A-Fa-f0-9]{12})");
 
@@ -88,6 +141,7 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
     private static final String COMMIT_STATS_OPERATION = "Commit";
     private static final String DELETE_STATS_OPERATION = "Delete";
     private static final String QUERY_STATS_OPERATION = "Query";
+    private static final String CURSOR_PAGE_STATS_OPERATION = "Cursor Page";
     private static final String ADD_PROFILER_EVENT = SHORT_NAME + " " + ADD_STATS_OPERATION;
     private static final String COMMIT_PROFILER_EVENT = SHORT_NAME + " " + COMMIT_STATS_OPERATION;
     private static final String DELETE_PROFILER_EVENT = SHORT_NAME + " " + DELETE_STATS_OPERATION;
@@ -95,7 +149,23 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
     private static final int MAX_BINARY_FIELD_LENGTH = 500;
     private static final Set<String> TRUNCATE_FIELD_PREFIXES = new HashSet<>();
 
+    // Bounded so that many concurrent cursors can't create an unbounded
+    // number of threads. When it's full, the cursors fetch their next pages
+    // synchronously instead.
+    private static final int CURSOR_PREFETCHER_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private static final ThreadPoolExecutor CURSOR_PREFETCHER = new ThreadPoolExecutor(
+            CURSOR_PREFETCHER_THREADS,
+            CURSOR_PREFETCHER_THREADS,
+            60L,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(CURSOR_PREFETCHER_THREADS * 4),
+            new ThreadFactoryBuilder()
+                    .setNameFormat("Solr Cursor Prefetcher #%d")
+                    .setDaemon(true)
+                    .build());
+
     static {
+        CURSOR_PREFETCHER.allowCoreThreadTimeOut(true);
         TRUNCATE_FIELD_PREFIXES.add("_sl_");
         TRUNCATE_FIELD_PREFIXES.add("_ss_");
     }
@@ -107,6 +177,9 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
     private volatile String version;
     private volatile boolean saveData = true;
     private volatile boolean autoCommit;
+    private volatile int updateBatchSize = DEFAULT_UPDATE_BATCH_SIZE;
+    private volatile long updateBatchBytes = DEFAULT_UPDATE_BATCH_BYTES;
+    private volatile SolrUpdatePipeline updatePipeline;
 
     /** Returns the underlying Solr server. */
     public SolrServer getServer() {
@@ -181,6 +254,29 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
         this.autoCommit = autoCommit;
     }
 
+    /**
+     * Returns the number of updates that are queued to be sent.
+     *
+     * @see #ASYNC_UPDATES_SUB_SETTING
+     */
+    public int getUpdateQueueDepth() {
+        SolrUpdatePipeline pipeline = updatePipeline;
+
+        return pipeline != null ? pipeline.getQueueDepth() : 0;
+    }
+
+    /**
+     * Returns the number of milliseconds that the oldest queued update has
+     * been waiting to be sent.
+     *
+     * @see #ASYNC_UPDATES_SUB_SETTING
+     */
+    public long getUpdateLag() {
+        SolrUpdatePipeline pipeline = updatePipeline;
+
+        return pipeline != null ? pipeline.getLag() : 0L;
+    }
+
     private static class SolrSchema {
 
         public final int version;
@@ -502,7 +598,7 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
                     throw new UnsupportedIndexException(this, queryKey);
                 }
 
-                solrQuery.addSortField(solrField, isAscending ? SolrQuery.ORDER.asc : SolrQuery.ORDER.desc);
+                solrQuery.addSort(solrField, isAscending ? SolrQuery.ORDER.asc : SolrQuery.ORDER.desc);
                 continue;
 
             } else if (Sorter.RELEVANT_OPERATOR.equals(operator)) {
@@ -532,7 +628,7 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
                     sortPredicate = new CompoundPredicate(PredicateParser.NOT_OPERATOR, Arrays.asList(sortPredicate));
                 }
 
-                solrQuery.addSortField(SCORE_FIELD, SolrQuery.ORDER.desc);
+                solrQuery.addSort(SCORE_FIELD, SolrQuery.ORDER.desc);
                 sortBuilder.append('(');
                 appendPredicate(query, sortBuilder, sortPredicate);
                 sortBuilder.append(")^");
@@ -592,7 +688,7 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
                     geoBuilder.append(location.getY());
                     geoBuilder.append(')');
 
-                    solrQuery.setSortField(geoBuilder.toString(), closest ? SolrQuery.ORDER.asc : SolrQuery.ORDER.desc);
+                    solrQuery.setSort(geoBuilder.toString(), closest ? SolrQuery.ORDER.asc : SolrQuery.ORDER.desc);
                     continue;
                 }
             }
@@ -1202,6 +1298,12 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
 
     /** Commits all pending writes in the underlying Solr server. */
     public void commit() {
+        SolrUpdatePipeline pipeline = updatePipeline;
+
+        if (pipeline != null && !pipeline.flush(UPDATE_FLUSH_TIMEOUT)) {
+            LOGGER.warn("Committing before all queued updates were sent to Solr!");
+        }
+
         doCommit(openConnection());
     }
 
@@ -1276,6 +1378,28 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
         if (autoCommit != null) {
             setAutoCommit(autoCommit);
         }
+
+        updateBatchSize = ObjectUtils.firstNonNull(ObjectUtils.to(Integer.class, settings.get(UPDATE_BATCH_SIZE_SUB_SETTING)), DEFAULT_UPDATE_BATCH_SIZE);
+        updateBatchBytes = ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(UPDATE_BATCH_BYTES_SUB_SETTING)), DEFAULT_UPDATE_BATCH_BYTES);
+
+        SolrUpdatePipeline oldPipeline = updatePipeline;
+
+        if (ObjectUtils.to(boolean.class, settings.get(ASYNC_UPDATES_SUB_SETTING))) {
+            updatePipeline = new SolrUpdatePipeline(
+                    (documents, deleteIds) -> processUpdate(openConnection(), createUpdate(documents, deleteIds), false),
+                    updateBatchSize,
+                    updateBatchBytes,
+                    ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(UPDATE_BATCH_DELAY_SUB_SETTING)), DEFAULT_UPDATE_BATCH_DELAY),
+                    ObjectUtils.firstNonNull(ObjectUtils.to(Integer.class, settings.get(UPDATE_QUEUE_SIZE_SUB_SETTING)), DEFAULT_UPDATE_QUEUE_SIZE),
+                    ObjectUtils.firstNonNull(ObjectUtils.to(Integer.class, settings.get(UPDATE_STREAMS_SUB_SETTING)), DEFAULT_UPDATE_STREAMS));
+
+        } else {
+            updatePipeline = null;
+        }
+
+        if (oldPipeline != null) {
+            oldPipeline.close();
+        }
     }
 
     @Override
@@ -1295,25 +1419,204 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
 
     @Override
     public <T> List<T> readAll(Query<T> query) {
+        SolrCursor cursor = new SolrCursor(query, CURSOR_FETCH_SIZE);
+        List<T> all = new ArrayList<T>();
 
-        // Solr sometimes throws an OutOfMemoryError when the limit
-        // is too large, so read all using 2 separate queries.
-        SolrQuery solrQuery = buildQuery(query);
-        solrQuery.setStart(0);
-        solrQuery.setRows(INITIAL_FETCH_SIZE);
+        for (SolrDocumentList documents; (documents = cursor.next()) != null;) {
+            for (SolrDocument document : documents) {
+                all.add(createSavedObjectWithDocument(document, documents, query));
+            }
+        }
+
+        return all;
+    }
+
+    @Override
+    public <T> Iterable<T> readIterable(Query<T> query, int fetchSize) {
+        return () -> new CursorIterator<T>(query, fetchSize > 0 ? fetchSize : DEFAULT_ITERABLE_FETCH_SIZE);
+    }
+
+    /**
+     * Reads all documents matching a query one page at a time using
+     * {@code cursorMark} deep paging, so that the cost of each page stays
+     * the same no matter how deep it is. The next page is prefetched in the
+     * background while the current one is being processed, so at most 2
+     * pages are held in memory.
+     *
+     * <p>Falls back to paging by offset if the server ignores the cursor,
+     * such as when it's older than Solr 4.7.</p>
+     */
+    class SolrCursor {
+
+        private final Query<?> query;
+        private final SolrQuery solrQuery;
+        private final int rows;
+        private String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+        private int offset;
+        private boolean done;
+        private Future<QueryResponse> prefetch;
+
+        public SolrCursor(Query<?> query, int rows) {
+            this.query = query;
+            this.rows = rows;
+            this.solrQuery = buildQuery(query);
+
+            // Cursors require the unique key as a tie breaker. Without any
+            // sorts, Solr orders by relevance, which has to be kept as the
+            // primary sort so that the matches and boost sorters still work.
+            String sort = solrQuery.get(CommonParams.SORT);
+
+            if (sort == null) {
+                solrQuery.addSort(SCORE_FIELD, SolrQuery.ORDER.desc);
+                solrQuery.addSort(ID_FIELD, SolrQuery.ORDER.asc);
+
+            } else if (!CURSOR_SORT_ID_PATTERN.matcher(sort).find()) {
+                solrQuery.addSort(ID_FIELD, SolrQuery.ORDER.asc);
+            }
+
+            solrQuery.setStart(0);
+            solrQuery.setRows(rows);
+            solrQuery.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+        }
+
+        /**
+         * Returns the next page of documents.
+         *
+         * @return {@code null} if there aren't any more.
+         */
+        public SolrDocumentList next() {
+            if (done) {
+                return null;
+            }
+
+            QueryResponse response = prefetch != null
+                    ? getPrefetched()
+                    : fetch(solrQuery.getCopy());
+
+            prefetch = null;
+
+            SolrDocumentList documents = response.getResults();
+
+            if (documents == null || documents.size() < rows) {
+                done = true;
+
+            } else {
+                String nextCursorMark = response.getNextCursorMark();
+
+                if (nextCursorMark == null) {
+                    if (cursorMark != null) {
+                        LOGGER.debug("Solr server ignored the cursor, so paging by offset instead");
+                        cursorMark = null;
+                        solrQuery.remove(CursorMarkParams.CURSOR_MARK_PARAM);
+                    }
+
+                    offset += documents.size();
+                    solrQuery.setStart(offset);
+
+                } else if (nextCursorMark.equals(cursorMark)) {
+                    done = true;
+
+                } else {
+                    cursorMark = nextCursorMark;
+                    solrQuery.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+                }
+
+                if (!done) {
+                    SolrQuery nextQuery = solrQuery.getCopy();
 
-        PaginatedResult<T> result = queryPartialWithOptions(solrQuery, query);
-        int count = (int) result.getCount();
-        List<T> all = new ArrayList<T>(count);
-        all.addAll(result.getItems());
+                    try {
+                        prefetch = CURSOR_PREFETCHER.submit(() -> fetch(nextQuery));
 
-        if (count > INITIAL_FETCH_SIZE) {
-            solrQuery.setStart(INITIAL_FETCH_SIZE);
-            solrQuery.setRows(count - INITIAL_FETCH_SIZE);
-            all.addAll(queryPartialWithOptions(solrQuery, query).getItems());
+                    } catch (RejectedExecutionException error) {
+                        // Fetched synchronously on the next call instead.
+                    }
+                }
+            }
+
+            return documents != null && !documents.isEmpty() ? documents : null;
         }
 
-        return all;
+        private QueryResponse fetch(SolrQuery pageQuery) {
+            Stats.Timer timer = STATS.startTimer();
+
+            try {
+                return queryWithOptions(pageQuery, query);
+
+            } finally {
+                timer.stop(CURSOR_PAGE_STATS_OPERATION);
+            }
+        }
+
+        private QueryResponse getPrefetched() {
+            boolean interrupted = false;
+
+            try {
+                while (true) {
+                    try {
+                        return prefetch.get();
+
+                    } catch (InterruptedException error) {
+                        interrupted = true;
+                    }
+                }
+
+            } catch (ExecutionException error) {
+                Throwable cause = error.getCause();
+
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+
+                } else {
+                    throw new DatabaseException(SolrDatabase.this, "Can't prefetch from Solr!", cause);
+                }
+
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private class CursorIterator<T> implements Iterator<T> {
+
+        private final Query<T> query;
+        private final SolrCursor cursor;
+        private SolrDocumentList documents;
+        private int index;
+
+        public CursorIterator(Query<T> query, int fetchSize) {
+            this.query = query;
+            this.cursor = new SolrCursor(query, fetchSize);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (documents != null && index < documents.size()) {
+                return true;
+            }
+
+            documents = cursor.next();
+            index = 0;
+            return documents != null;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            T object = createSavedObjectWithDocument(documents.get(index), documents, query);
+
+            ++ index;
+            return object;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 
     @Override
@@ -1391,7 +1694,21 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
             solrQuery.setRows(0);
             solrQuery.setFacetMinCount(1);
 
+            // Aggregates for all groupings are calculated in the same
+            // request by faceting the field statistics.
+            String facetSolrField = solrQuery.getFacetFields()[0];
+            Map<String, String> statsSolrFields = new HashMap<String, String>();
+
+            for (String aggregateField : AbstractGrouping.getAggregateFields(query)) {
+                String statsSolrField = getStatsSolrField(query, aggregateField);
+
+                solrQuery.setGetFieldStatistics(statsSolrField);
+                solrQuery.addStatsFieldFacets(statsSolrField, facetSolrField);
+                statsSolrFields.put(aggregateField, statsSolrField);
+            }
+
             QueryResponse response = queryWithOptions(solrQuery, query);
+            Map<String, FieldStatsInfo> statsInfos = response.getFieldStatsInfo();
 
             for (FacetField facetField : response.getFacetFields()) {
                 List<FacetField.Count> values = facetField.getValues();
@@ -1405,7 +1722,19 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
                     if (field != null) {
                         key = StateValueUtils.toJavaValue(query.getDatabase(), null, field, field.getInternalItemType(), key);
                     }
-                    groupings.add(new SolrGrouping<T>(Arrays.asList(key), query, fields, value.getCount()));
+
+                    SolrGrouping<T> grouping = new SolrGrouping<T>(Arrays.asList(key), query, fields, value.getCount());
+
+                    for (Map.Entry<String, String> entry : statsSolrFields.entrySet()) {
+                        String aggregateField = entry.getKey();
+
+                        setAggregate(
+                                grouping.prefetchAggregate(aggregateField),
+                                mapFullyDenormalizedKey(query, aggregateField).getInternalType(),
+                                findFacetStatsInfo(statsInfos, entry.getValue(), facetSolrField, value.getName()));
+                    }
+
+                    groupings.add(grouping);
                 }
             }
         }
@@ -1413,6 +1742,62 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
         return new PaginatedResult<Grouping<T>>(offset, limit, groupings);
     }
 
+    // Returns the Solr field that can be used to calculate the statistics
+    // of the given numeric field.
+    private String getStatsSolrField(Query<?> query, String field) {
+        Query.MappedKey mappedKey = mapFullyDenormalizedKey(query, field);
+        String internalType = mappedKey.getInternalType();
+
+        if (!ObjectField.NUMBER_TYPE.equals(internalType)
+                && !ObjectField.DATE_TYPE.equals(internalType)) {
+            throw new UnsupportedIndexException(this, field);
+        }
+
+        String solrField = specialFields.get(mappedKey);
+
+        return solrField != null
+                ? solrField
+                : getSolrField(internalType).searchPrefix + mappedKey.getIndexKey(null);
+    }
+
+    // Finds the statistics of the given stats field within the documents
+    // that have the given value in the given facet field.
+    private static FieldStatsInfo findFacetStatsInfo(Map<String, FieldStatsInfo> statsInfos, String statsSolrField, String facetSolrField, String facetValue) {
+        FieldStatsInfo statsInfo = statsInfos != null ? statsInfos.get(statsSolrField) : null;
+        Map<String, List<FieldStatsInfo>> facets = statsInfo != null ? statsInfo.getFacets() : null;
+        List<FieldStatsInfo> facetStatsInfos = facets != null ? facets.get(facetSolrField) : null;
+
+        if (facetStatsInfos != null) {
+            for (FieldStatsInfo facetStatsInfo : facetStatsInfos) {
+                if (ObjectUtils.equals(facetValue, facetStatsInfo.getName())) {
+                    return facetStatsInfo;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static void setAggregate(AbstractGrouping.Aggregate aggregate, String internalType, FieldStatsInfo statsInfo) {
+        if (statsInfo == null) {
+            return;
+        }
+
+        Long count = statsInfo.getCount();
+        Object minimum = statsInfo.getMin();
+        Object maximum = statsInfo.getMax();
+
+        if (ObjectField.DATE_TYPE.equals(internalType)) {
+            minimum = minimum instanceof Number ? new Date(((Number) minimum).longValue()) : minimum;
+            maximum = maximum instanceof Number ? new Date(((Number) maximum).longValue()) : maximum;
+        }
+
+        aggregate.setNonNullCount(count != null ? count : 0L);
+        aggregate.setMinimum(minimum);
+        aggregate.setMaximum(maximum);
+        aggregate.setSum(ObjectUtils.to(double.class, statsInfo.getSum()));
+    }
+
     /** Solr-specific implementation of {@link Grouping}. */
     private static class SolrGrouping<T> extends AbstractGrouping<T> {
 
@@ -1436,13 +1821,41 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The matching documents are found with a cursor and deleted by
+     * their IDs one page at a time, which, unlike a delete by query, doesn't
+     * block the concurrent updates in the Solr server.</p>
+     */
     @Override
     public void deleteByQuery(Query<?> query) {
+        SolrServer server = openConnection();
+        SolrCursor cursor = new SolrCursor(query.clone().referenceOnly().master(), CURSOR_FETCH_SIZE);
         Throwable error = null;
 
         try {
-            SolrServer server = openConnection();
-            server.deleteByQuery(buildQuery(query).getQuery());
+            for (SolrDocumentList documents; (documents = cursor.next()) != null;) {
+                List<String> ids = new ArrayList<String>();
+
+                for (SolrDocument document : documents) {
+                    ids.add(ObjectUtils.to(String.class, document.get(ID_FIELD)));
+                }
+
+                Stats.Timer timer = STATS.startTimer();
+                Profiler.Static.startThreadEvent(DELETE_PROFILER_EVENT, ids.size());
+
+                try {
+                    server.deleteById(ids);
+
+                } finally {
+                    double duration = timer.stop(DELETE_STATS_OPERATION);
+                    Profiler.Static.stopThreadEvent();
+
+                    LOGGER.debug("Solr delete: [{}], Time: [{}]ms", ids.size(), duration);
+                }
+            }
+
             doCommit(server);
 
         } catch (IOException e) {
@@ -1481,6 +1894,64 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
         update.process(server);
     }
 
+    private UpdateRequest createUpdate(List<SolrInputDocument> documents, List<String> deleteIds) {
+        UpdateRequest update = new UpdateRequest();
+
+        if (!documents.isEmpty()) {
+            update.add(documents);
+        }
+
+        if (!deleteIds.isEmpty()) {
+            update.deleteById(deleteIds);
+        }
+
+        return update;
+    }
+
+    // Queues the updates in the pipeline, or sends them in requests that
+    // are bounded by the batch size so that a large transaction doesn't
+    // produce an oversized request.
+    private void sendUpdates(
+            SolrServer server,
+            List<SolrInputDocument> documents,
+            List<String> deleteIds,
+            boolean isImmediate)
+            throws IOException, SolrServerException {
+
+        SolrUpdatePipeline pipeline = updatePipeline;
+
+        if (pipeline != null) {
+            if (isImmediate) {
+                pipeline.writeImmediately(documents, deleteIds);
+
+            } else {
+                pipeline.write(documents, deleteIds);
+            }
+
+            return;
+        }
+
+        List<SolrInputDocument> batch = new ArrayList<>();
+        long batchBytes = 0L;
+
+        for (SolrInputDocument document : documents) {
+            long bytes = SolrUpdatePipeline.estimateBytes(document);
+
+            if (!batch.isEmpty() && (batch.size() >= updateBatchSize || batchBytes + bytes > updateBatchBytes)) {
+                processUpdate(server, createUpdate(batch, Collections.<String>emptyList()), isImmediate);
+                batch = new ArrayList<>();
+                batchBytes = 0L;
+            }
+
+            batch.add(document);
+            batchBytes += bytes;
+        }
+
+        if (!batch.isEmpty() || !deleteIds.isEmpty()) {
+            processUpdate(server, createUpdate(batch, deleteIds), isImmediate);
+        }
+    }
+
     @Override
     protected void doSaves(SolrServer server, boolean isImmediate, List<State> states) {
         Set<String> databaseGroups = getGroups();
@@ -1615,9 +2086,7 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
             Profiler.Static.startThreadEvent(ADD_PROFILER_EVENT, documentsSize);
 
             try {
-                UpdateRequest update = new UpdateRequest();
-                update.add(documents);
-                processUpdate(server, update, isImmediate);
+                sendUpdates(server, documents, Collections.<String>emptyList(), isImmediate);
 
             } finally {
                 double duration = timer.stop(ADD_STATS_OPERATION);
@@ -1848,9 +2317,7 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
             Profiler.Static.startThreadEvent(DELETE_PROFILER_EVENT, statesSize);
 
             try {
-                UpdateRequest update = new UpdateRequest();
-                update.deleteById(idStrings);
-                processUpdate(openConnection(), update, isImmediate);
+                sendUpdates(openConnection(), Collections.<SolrInputDocument>emptyList(), idStrings, isImmediate);
 
             } finally {
                 double duration = timer.stop(DELETE_STATS_OPERATION);
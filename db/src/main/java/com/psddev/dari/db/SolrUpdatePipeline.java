@@ -0,0 +1,635 @@
+package com.psddev.dari.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.psddev.dari.util.Stats;
+
+/**
+ * Queues the Solr document adds and deletes, and sends them in the
+ * background in batches that are bounded by the number of documents, their
+ * estimated size, and how long they've waited.
+ *
+ * <p>Repeated updates of the same ID that are still queued are merged so
+ * that only the latest one is sent, and an ID is never sent on more than
+ * one stream at a time so that the updates can't be reordered. When the
+ * queue is full, the writers block until the streams catch up.</p>
+ *
+ * <p>A batch that Solr rejects as a bad request is split in halves until
+ * the offending updates are isolated, and those are logged and dropped.
+ * The other failures are retried with an exponential backoff, up to
+ * {@value #MAXIMUM_ATTEMPTS} times per update.</p>
+ */
+final class SolrUpdatePipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SolrUpdatePipeline.class);
+    private static final Stats STATS = new Stats("Solr Updates");
+
+    static final int MAXIMUM_ATTEMPTS = 5;
+    private static final long MINIMUM_BACKOFF = 100L;
+    private static final long MAXIMUM_BACKOFF = 30000L;
+
+    private final Sender sender;
+    private final int batchSize;
+    private final long batchBytes;
+    private final long batchDelay;
+    private final int queueSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    // Guarded by lock.
+    private final Map<String, Update> pending = new LinkedHashMap<>();
+    private final Set<String> inFlight = new HashSet<>();
+    private long pendingBytes;
+    private int flushes;
+    private boolean closed;
+
+    /**
+     * Creates an instance and starts the given number of {@code streams}.
+     *
+     * @param sender Nonnull.
+     * @param batchSize Maximum number of documents in a batch.
+     * @param batchBytes Maximum estimated size of a batch in bytes.
+     * @param batchDelay Maximum number of milliseconds that an update waits
+     *        for its batch to fill up.
+     * @param queueSize Maximum number of queued updates before the writers
+     *        block.
+     * @param streams Number of batches that can be sent concurrently.
+     */
+    public SolrUpdatePipeline(Sender sender, int batchSize, long batchBytes, long batchDelay, int queueSize, int streams) {
+        this.sender = sender;
+        this.batchSize = Math.max(batchSize, 1);
+        this.batchBytes = Math.max(batchBytes, 1L);
+        this.batchDelay = Math.max(batchDelay, 0L);
+        this.queueSize = Math.max(queueSize, this.batchSize);
+
+        for (int i = 0; i < Math.max(streams, 1); ++ i) {
+            Thread stream = new Thread(this::stream, "Solr Update Stream #" + (i + 1));
+
+            stream.setDaemon(true);
+            stream.start();
+        }
+    }
+
+    /**
+     * Returns the estimated size of the given {@code document} in bytes.
+     *
+     * @param document Nonnull.
+     */
+    public static long estimateBytes(SolrInputDocument document) {
+        long bytes = 0L;
+
+        for (SolrInputField field : document) {
+            bytes += field.getName().length();
+
+            for (Object value : field) {
+                bytes += value instanceof CharSequence ? ((CharSequence) value).length() : 16L;
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Queues the given {@code documents} to be added and the given
+     * {@code deleteIds} to be deleted, blocking while the queue is full.
+     *
+     * @param documents Nonnull.
+     * @param deleteIds Nonnull.
+     */
+    public void write(List<SolrInputDocument> documents, List<String> deleteIds) {
+        List<Update> updates = toUpdates(documents, deleteIds);
+        boolean interrupted = false;
+
+        lock.lock();
+
+        try {
+            for (Update update : updates) {
+                while (!closed && pending.size() >= queueSize && !pending.containsKey(update.id)) {
+                    STATS.startTimer().stop("Backpressure");
+
+                    try {
+                        changed.await();
+
+                    } catch (InterruptedException error) {
+                        interrupted = true;
+                    }
+                }
+
+                if (closed) {
+                    throw new IllegalStateException("Pipeline is closed!");
+                }
+
+                enqueue(update);
+            }
+
+            changed.signalAll();
+
+        } finally {
+            lock.unlock();
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Sends the given {@code documents} and {@code deleteIds} in the
+     * current thread, superseding any queued updates of the same IDs, and
+     * after waiting for the updates of the same IDs that are already being
+     * sent.
+     *
+     * @param documents Nonnull.
+     * @param deleteIds Nonnull.
+     */
+    public void writeImmediately(List<SolrInputDocument> documents, List<String> deleteIds) throws IOException, SolrServerException {
+        List<Update> updates = toUpdates(documents, deleteIds);
+        Set<String> ids = new HashSet<>();
+
+        for (Update update : updates) {
+            ids.add(update.id);
+        }
+
+        lock.lock();
+
+        try {
+            for (String id : ids) {
+                Update old = pending.remove(id);
+
+                if (old != null) {
+                    pendingBytes -= old.bytes;
+                }
+            }
+
+            while (containsAny(inFlight, ids)) {
+                changed.awaitUninterruptibly();
+            }
+
+            inFlight.addAll(ids);
+
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            send(updates);
+
+        } finally {
+            lock.lock();
+
+            try {
+                inFlight.removeAll(ids);
+                changed.signalAll();
+
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Blocks until all updates that are queued at the time of the call are
+     * sent, or the given {@code timeout} in milliseconds elapses.
+     *
+     * @return {@code true} if all updates were sent.
+     */
+    public boolean flush(long timeout) {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        boolean interrupted = false;
+
+        lock.lock();
+
+        try {
+            ++ flushes;
+            changed.signalAll();
+
+            try {
+                while (!pending.isEmpty() || !inFlight.isEmpty()) {
+                    long remaining = end - System.nanoTime();
+
+                    if (remaining <= 0L) {
+                        return false;
+                    }
+
+                    try {
+                        changed.awaitNanos(remaining);
+
+                    } catch (InterruptedException error) {
+                        interrupted = true;
+                    }
+                }
+
+                return true;
+
+            } finally {
+                -- flushes;
+            }
+
+        } finally {
+            lock.unlock();
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stops the streams once all the queued updates are sent, and rejects
+     * any further writes.
+     */
+    public void close() {
+        lock.lock();
+
+        try {
+            closed = true;
+            changed.signalAll();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of updates that are waiting to be sent.
+     */
+    public int getQueueDepth() {
+        lock.lock();
+
+        try {
+            return pending.size();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of milliseconds that the oldest queued update has
+     * been waiting.
+     */
+    public long getLag() {
+        lock.lock();
+
+        try {
+            Iterator<Update> i = pending.values().iterator();
+
+            return i.hasNext() ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - i.next().queued) : 0L;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Update> toUpdates(List<SolrInputDocument> documents, List<String> deleteIds) {
+        List<Update> updates = new ArrayList<>();
+
+        for (SolrInputDocument document : documents) {
+            updates.add(new Update(String.valueOf(document.getFieldValue(SolrDatabase.ID_FIELD)), document));
+        }
+
+        for (String id : deleteIds) {
+            updates.add(new Update(id, null));
+        }
+
+        return updates;
+    }
+
+    // Keeps the position and the queued time of the update that's being
+    // replaced so that the lag reflects the oldest unsent change.
+    private void enqueue(Update update) {
+        Update old = pending.get(update.id);
+
+        if (old != null) {
+            pendingBytes -= old.bytes;
+            update.queued = old.queued;
+            update.timer = old.timer;
+            STATS.startTimer().stop("Merge");
+        }
+
+        pending.put(update.id, update);
+        pendingBytes += update.bytes;
+    }
+
+    private static boolean containsAny(Set<String> set, Collection<String> values) {
+        for (String value : values) {
+            if (set.contains(value)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void stream() {
+        while (true) {
+            List<Update> batch = takeBatch();
+
+            if (batch == null) {
+                return;
+            }
+
+            try {
+                List<Update> failed = new ArrayList<>();
+                Exception error = sendIsolating(batch, failed);
+
+                if (failed.size() < batch.size()) {
+                    batch.get(0).timer.stop("Lag", batch.size() - failed.size());
+                }
+
+                if (error != null) {
+                    LOGGER.warn(String.format("Can't send [%s] updates to Solr! Retrying...", failed.size()), error);
+                    STATS.startTimer().stop("Batch Failure");
+                    backOff(failed);
+                    requeue(failed, error);
+                }
+
+            } finally {
+                lock.lock();
+
+                try {
+                    for (Update update : batch) {
+                        inFlight.remove(update.id);
+                    }
+
+                    changed.signalAll();
+
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    // Waits until a batch fills up, its oldest update has waited long
+    // enough, or a flush is requested.
+    private List<Update> takeBatch() {
+        lock.lock();
+
+        try {
+            while (true) {
+                if (!pending.isEmpty()) {
+                    long wait = batchDelay - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pending.values().iterator().next().queued);
+
+                    if (wait <= 0L
+                            || flushes > 0
+                            || closed
+                            || pending.size() >= batchSize
+                            || pendingBytes >= batchBytes) {
+
+                        List<Update> batch = removeBatch();
+
+                        if (!batch.isEmpty()) {
+                            return batch;
+                        }
+
+                        // Everything queued is already being sent by the
+                        // other streams.
+                        changed.awaitUninterruptibly();
+
+                    } else {
+                        changed.await(wait, TimeUnit.MILLISECONDS);
+                    }
+
+                } else if (closed) {
+                    return null;
+
+                } else {
+                    changed.awaitUninterruptibly();
+                }
+            }
+
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            return null;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Update> removeBatch() {
+        List<Update> batch = new ArrayList<>();
+        long bytes = 0L;
+
+        for (Iterator<Update> i = pending.values().iterator(); i.hasNext() && batch.size() < batchSize;) {
+            Update update = i.next();
+
+            if (inFlight.contains(update.id)) {
+                continue;
+            }
+
+            if (!batch.isEmpty() && bytes + update.bytes > batchBytes) {
+                break;
+            }
+
+            i.remove();
+            pendingBytes -= update.bytes;
+            bytes += update.bytes;
+            inFlight.add(update.id);
+            batch.add(update);
+        }
+
+        return batch;
+    }
+
+    // Sends the updates, and when Solr rejects them as a bad request,
+    // splits them in halves to find and drop the offending ones. Collects
+    // the updates that failed for any other reason in the given list, and
+    // returns the last such error.
+    private Exception sendIsolating(List<Update> updates, List<Update> failed) {
+        try {
+            send(updates);
+            return null;
+
+        } catch (IOException | SolrServerException | RuntimeException error) {
+            if (!isPermanent(error)) {
+                failed.addAll(updates);
+                return error;
+
+            } else if (updates.size() == 1) {
+                drop(updates.get(0), error);
+                return null;
+
+            } else {
+                int half = updates.size() / 2;
+
+                STATS.startTimer().stop("Batch Split");
+
+                Exception firstError = sendIsolating(updates.subList(0, half), failed);
+                Exception secondError = sendIsolating(updates.subList(half, updates.size()), failed);
+
+                return secondError != null ? secondError : firstError;
+            }
+        }
+    }
+
+    // Retrying won't help when Solr says that the request itself is bad or
+    // conflicts with the document's version. The other client errors, such
+    // as 401, 403, 404 and 429, usually come from the setup or the load
+    // instead of the documents, so they're retried with a backoff.
+    private static boolean isPermanent(Throwable error) {
+        for (; error != null; error = error.getCause()) {
+            if (error instanceof SolrException) {
+                int code = ((SolrException) error).code();
+
+                return code == SolrException.ErrorCode.BAD_REQUEST.code
+                        || code == SolrException.ErrorCode.CONFLICT.code;
+            }
+        }
+
+        return false;
+    }
+
+    private void drop(Update update, Throwable error) {
+        LOGGER.error(String.format("Can't send the update for [%s] to Solr! Dropping...", update.id), error);
+        STATS.startTimer().stop("Drop");
+    }
+
+    // Waits before the failed updates are put back, doubling the wait after
+    // each attempt up to a cap. The updates are still in flight so that the
+    // other streams can't retry them sooner.
+    private void backOff(List<Update> failed) {
+        int attempts = 0;
+
+        for (Update update : failed) {
+            ++ update.attempts;
+
+            if (update.attempts < MAXIMUM_ATTEMPTS) {
+                attempts = Math.max(attempts, update.attempts);
+            }
+        }
+
+        if (attempts <= 0) {
+            return;
+        }
+
+        long backoff = MINIMUM_BACKOFF;
+
+        for (int i = 1; i < attempts && backoff < MAXIMUM_BACKOFF; ++ i) {
+            backoff *= 2L;
+        }
+
+        try {
+            Thread.sleep(Math.min(backoff, MAXIMUM_BACKOFF));
+
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Puts the failed updates back unless they've been superseded or have
+    // been tried too many times.
+    private void requeue(List<Update> failed, Exception error) {
+        List<Update> dropped = new ArrayList<>();
+
+        lock.lock();
+
+        try {
+            for (Update update : failed) {
+                if (pending.containsKey(update.id)) {
+                    continue;
+                }
+
+                if (update.attempts >= MAXIMUM_ATTEMPTS) {
+                    dropped.add(update);
+
+                } else {
+                    pending.put(update.id, update);
+                    pendingBytes += update.bytes;
+                }
+            }
+
+        } finally {
+            lock.unlock();
+        }
+
+        for (Update update : dropped) {
+            drop(update, error);
+        }
+    }
+
+    private void send(List<Update> updates) throws IOException, SolrServerException {
+        List<SolrInputDocument> documents = new ArrayList<>();
+        List<String> deleteIds = new ArrayList<>();
+        long bytes = 0L;
+
+        for (Update update : updates) {
+            if (update.document != null) {
+                if (!documents.isEmpty() && (documents.size() >= batchSize || bytes + update.bytes > batchBytes)) {
+                    sendBatch(documents, deleteIds);
+                    documents = new ArrayList<>();
+                    deleteIds = new ArrayList<>();
+                    bytes = 0L;
+                }
+
+                documents.add(update.document);
+                bytes += update.bytes;
+
+            } else {
+                deleteIds.add(update.id);
+            }
+        }
+
+        if (!documents.isEmpty() || !deleteIds.isEmpty()) {
+            sendBatch(documents, deleteIds);
+        }
+    }
+
+    private void sendBatch(List<SolrInputDocument> documents, List<String> deleteIds) throws IOException, SolrServerException {
+        Stats.Timer timer = STATS.startTimer();
+
+        try {
+            sender.send(documents, deleteIds);
+
+        } finally {
+            timer.stop("Batch", documents.size() + deleteIds.size());
+        }
+    }
+
+    /** Sends a batch of updates to Solr. */
+    @FunctionalInterface
+    public interface Sender {
+
+        /**
+         * @param documents Nonnull.
+         * @param deleteIds Nonnull.
+         */
+        void send(List<SolrInputDocument> documents, List<String> deleteIds) throws IOException, SolrServerException;
+    }
+
+    private static final class Update {
+
+        public final String id;
+        public final SolrInputDocument document;
+        public final long bytes;
+        public long queued = System.nanoTime();
+        public Stats.Timer timer = STATS.startTimer();
+        public int attempts;
+
+        public Update(String id, SolrInputDocument document) {
+            this.id = id;
+            this.document = document;
+            this.bytes = document != null ? estimateBytes(document) : id.length();
+        }
+    }
+}
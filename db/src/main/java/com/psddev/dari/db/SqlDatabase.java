@@ -108,6 +108,7 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
     public static final String ENABLE_FUNNEL_CACHE_SUB_SETTING = "enableFunnelCache";
     public static final String REPLICATION_CACHE_SIZE_SUB_SETTING = "replicationCacheSize";
     public static final String INDEX_SPATIAL_SUB_SETTING = "indexSpatial";
+    public static final String METRIC_NON_CASCADING_SUB_SETTING = "metricNonCascading";
 
     public static final String RECORD_TABLE = "Record";
     public static final String RECORD_UPDATE_TABLE = "RecordUpdate";
@@ -172,6 +173,7 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
     private volatile boolean enableFunnelCache;
     private volatile long replicationCacheMaximumSize;
     private volatile boolean indexSpatial;
+    private volatile boolean metricNonCascading;
 
     private final transient ConcurrentMap<Class<?>, UUID> singletonIds = new ConcurrentHashMap<>();
     private transient volatile Cache<UUID, Object[]> replicationCache;
@@ -438,6 +440,15 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
         this.indexSpatial = indexSpatial;
     }
 
+    @Override
+    public boolean isMetricNonCascading() {
+        return metricNonCascading;
+    }
+
+    public void setMetricNonCascading(boolean metricNonCascading) {
+        this.metricNonCascading = metricNonCascading;
+    }
+
     /**
      * Returns {@code true} if the {@link #RECORD_TABLE} in this database
      * has the {@link #IN_ROW_INDEX_COLUMN}.
@@ -1880,6 +1891,7 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
         Long replicationCacheMaxSize = ObjectUtils.to(Long.class, settings.get(REPLICATION_CACHE_SIZE_SUB_SETTING));
         setReplicationCacheMaximumSize(replicationCacheMaxSize != null ? replicationCacheMaxSize : DEFAULT_REPLICATION_CACHE_SIZE);
         setIndexSpatial(ObjectUtils.firstNonNull(ObjectUtils.to(Boolean.class, settings.get(INDEX_SPATIAL_SUB_SETTING)), Boolean.TRUE));
+        setMetricNonCascading(ObjectUtils.to(boolean.class, settings.get(METRIC_NON_CASCADING_SUB_SETTING)));
 
         if (isEnableReplicationCache()
                 && vendor instanceof SqlVendor.MySQL
@@ -3100,6 +3112,11 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
             return sqlQuery.hashCode();
         }
 
+        @Override
+        public Set<UUID> getDependencies(SqlDatabase db) {
+            return InvalidationIndex.getQueryTags(query, db);
+        }
+
         @Override
         public List<FunnelCachedObject> produce(SqlDatabase db) {
             ConnectionRef extraConnectionRef = db.new ConnectionRef();
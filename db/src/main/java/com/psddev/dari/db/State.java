@@ -427,6 +427,53 @@ public class State implements Map<String, Object> {
         putAll(values);
     }
 
+    /**
+     * Sets all the values from the given {@code decoder}, which puts them
+     * straight into this state as they're read instead of into an
+     * intermediate map that's then copied.
+     *
+     * @param decoder Nonnull.
+     */
+    void setValues(JsonStateDecoder decoder) {
+        clear();
+
+        if (linkedObjects.isEmpty()) {
+            decoder.decode(null, this::put);
+            return;
+        }
+
+        // References are kept in the raw values as is so that they can all
+        // be resolved at once afterwards, same as #putAll.
+        Object object = linkedObjects.values().iterator().next();
+        boolean lazyLoaded = object != null && getType() != null && getType().isLazyLoaded();
+
+        decoder.decode(this::getField, (key, value) -> {
+            if (StateValueUtils.toIdIfReference(value) != null) {
+                rawValues.put(key, value);
+
+            } else {
+                if (!lazyLoaded && key.startsWith("_")) {
+                    rawValues.put(key, value);
+                }
+
+                put(key, value);
+            }
+        });
+
+        if (lazyLoaded) {
+            Map<String, Object> metricObjects = new HashMap<>();
+            resolveMetricReferences(metricObjects);
+            for (Map.Entry<String, Object> e : metricObjects.entrySet()) {
+                put(e.getKey(), e.getValue());
+            }
+            flags &= ~ALL_RESOLVED_FLAG;
+
+        } else {
+            flags &= ~ALL_RESOLVED_FLAG;
+            resolveReferences();
+        }
+    }
+
     /**
      * Returns a map of all values converted to only simple types:
      * {@code null}, {@link java.lang.Boolean}, {@link java.lang.Number},
@@ -35,20 +35,84 @@ public interface StateSerializer {
         return ObjectUtils.toJson(values).getBytes(StandardCharsets.UTF_8);
     }
 
+    /**
+     * Serializes the given {@code values} map from a {@link State} instance
+     * into a compact binary byte array that's suitable for storing in a
+     * database.
+     *
+     * <p>The result starts with a version byte so that it can be stored
+     * alongside the JSON produced by {@link #serialize} and read back using
+     * {@link #deserialize}.</p>
+     *
+     * @param values Nonnull.
+     * @return Nonnull.
+     */
+    static byte[] serializeBinary(Map<String, Object> values) {
+        Preconditions.checkNotNull(values);
+        return BinaryStateSerializer.serialize(values);
+    }
+
+    /**
+     * Returns {@code true} if the given {@code data} was produced by
+     * {@link #serializeBinary}.
+     *
+     * <p>Deserializing such data only reads its header, and the values are
+     * freshly decoded as they're accessed, so the result can be handed to
+     * a {@link State} without making a defensive copy.</p>
+     *
+     * @param data Nonnull.
+     */
+    static boolean isBinary(byte[] data) {
+        Preconditions.checkNotNull(data);
+        return BinaryStateSerializer.isBinary(data);
+    }
+
     /**
      * Deserializes the given {@code data} byte array from a database into
      * a map that's suitable for use by a {@link State} instance.
      *
+     * <p>Binary data produced by {@link #serializeBinary} is detected
+     * automatically, and its values are only decoded as they're
+     * accessed.</p>
+     *
      * @param data Nonnull.
      * @return Nonnull.
      */
     static Map<String, Object> deserialize(byte[] data) {
         Preconditions.checkNotNull(data);
+
+        if (BinaryStateSerializer.isBinary(data)) {
+            return BinaryStateSerializer.deserialize(data);
+        }
+
         @SuppressWarnings("unchecked")
         Map<String, Object> dataMap = (Map<String, Object>) ObjectUtils.fromJson(data);
         return dataMap;
     }
 
+    /**
+     * Deserializes the given {@code data} byte array from a database
+     * straight into the given {@code state}, replacing all its values.
+     *
+     * <p>Unlike passing the result of {@link #deserialize} to
+     * {@link State#setValues(Map)}, JSON data is streamed into the state one
+     * top-level value at a time without building an intermediate map.</p>
+     *
+     * @param data Nonnull.
+     * @param state Nonnull.
+     */
+    static void deserialize(byte[] data, State state) {
+        Preconditions.checkNotNull(data);
+        Preconditions.checkNotNull(state);
+
+        if (BinaryStateSerializer.isBinary(data)) {
+            state.setValues(BinaryStateSerializer.deserialize(data));
+
+        } else {
+            state.setValues(new JsonStateDecoder(data));
+        }
+    }
+
     static Object toJavaValue(Database database, Object object, ObjectField field, String type, Object value) {
         return StateValueUtils.toJavaValue(database, object, field, type, value);
     }
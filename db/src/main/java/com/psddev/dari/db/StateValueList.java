@@ -2,6 +2,7 @@ package com.psddev.dari.db;
 
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -81,6 +82,12 @@ class StateValueList extends AbstractList<Object> {
         hasConvertedAll = true;
     }
 
+    // Returns the items that haven't been converted yet without resolving
+    // any references.
+    Iterable<?> getUnconvertedItems() {
+        return hasConvertedAll ? Collections.emptyList() : list;
+    }
+
     // --- AbstractList support ---
 
     @Override
@@ -1,6 +1,7 @@
 package com.psddev.dari.db;
 
 import java.util.AbstractMap;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -74,6 +75,12 @@ class StateValueMap extends AbstractMap<String, Object> {
         hasConvertedAll = true;
     }
 
+    // Returns the values that haven't been converted yet without resolving
+    // any references.
+    Iterable<?> getUnconvertedValues() {
+        return hasConvertedAll ? Collections.emptyList() : map.values();
+    }
+
     // --- AbstractMap support ---
 
     @Override
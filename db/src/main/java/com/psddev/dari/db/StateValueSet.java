@@ -1,6 +1,7 @@
 package com.psddev.dari.db;
 
 import java.util.AbstractSet;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Map;
@@ -80,6 +81,12 @@ class StateValueSet extends AbstractSet<Object> {
         hasConvertedAll = true;
     }
 
+    // Returns the items that haven't been converted yet without resolving
+    // any references.
+    Iterable<?> getUnconvertedItems() {
+        return hasConvertedAll ? Collections.emptyList() : set;
+    }
+
     // --- AbstractSet support ---
 
     @Override
@@ -5,11 +5,14 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -181,6 +184,137 @@ abstract class StateValueUtils {
         return resolveReferences(database, parent, items, null);
     }
 
+    /**
+     * Fetches all references within the given {@code objects} up to the
+     * {@linkplain Query#getPrefetchReferencesDepth depth} specified in the
+     * given {@code query}, using one query per database at each level.
+     *
+     * <p>Fetched objects are stored in the state extras of their parents so
+     * that {@link #resolveReferences} can find them without another
+     * query.</p>
+     */
+    public static void prefetchReferences(Query<?> query, Iterable<?> objects) {
+        int depth = query.getPrefetchReferencesDepth();
+
+        if (depth <= 0 || objects == null || query.isResolveToReferenceOnly()) {
+            return;
+        }
+
+        Map<UUID, Object> known = new HashMap<UUID, Object>();
+        List<State> states = new ArrayList<State>();
+
+        for (Object object : objects) {
+            State state = State.getInstance(object);
+
+            if (state != null) {
+                known.put(state.getId(), object);
+                states.add(state);
+            }
+        }
+
+        for (int level = 0; level < depth && !states.isEmpty(); ++ level) {
+
+            // Find IDs that haven't been fetched yet, grouped by database.
+            Map<State, Set<UUID>> idsByState = new LinkedHashMap<State, Set<UUID>>();
+            Map<Database, Set<UUID>> unresolvedIdsByDatabase = new LinkedHashMap<Database, Set<UUID>>();
+            Map<Database, Set<UUID>> unresolvedTypeIdsByDatabase = new HashMap<Database, Set<UUID>>();
+
+            for (State state : states) {
+                Map<UUID, UUID> refs = new LinkedHashMap<UUID, UUID>();
+
+                collectReferences(state.getRawValues(), refs);
+
+                if (refs.isEmpty()) {
+                    continue;
+                }
+
+                idsByState.put(state, refs.keySet());
+
+                for (Map.Entry<UUID, UUID> entry : refs.entrySet()) {
+                    UUID id = entry.getKey();
+
+                    if (!known.containsKey(id)) {
+                        Database database = state.getDatabase();
+
+                        unresolvedIdsByDatabase.computeIfAbsent(database, d -> new LinkedHashSet<UUID>()).add(id);
+                        unresolvedTypeIdsByDatabase.computeIfAbsent(database, d -> new HashSet<UUID>()).add(entry.getValue());
+                    }
+                }
+            }
+
+            List<State> fetchedStates = new ArrayList<State>();
+
+            for (Map.Entry<Database, Set<UUID>> entry : unresolvedIdsByDatabase.entrySet()) {
+                Database database = entry.getKey();
+                Set<UUID> unresolvedIds = entry.getValue();
+                Query<?> prefetchQuery = Query
+                        .from(Object.class)
+                        .where("_id = ?", unresolvedIds)
+                        .using(database)
+                        .option(State.UNRESOLVED_TYPE_IDS_QUERY_OPTION, unresolvedTypeIdsByDatabase.get(database));
+
+                prefetchQuery.setCache(query.isCache());
+                prefetchQuery.setMaster(query.isMaster());
+
+                for (Object object : prefetchQuery.selectAll()) {
+                    State state = State.getInstance(object);
+
+                    known.put(state.getId(), object);
+                    fetchedStates.add(state);
+                }
+
+                // Remember the missing ones so that they're not read again.
+                for (UUID id : unresolvedIds) {
+                    known.putIfAbsent(id, null);
+                }
+            }
+
+            for (Map.Entry<State, Set<UUID>> entry : idsByState.entrySet()) {
+                Map<String, Object> extras = entry.getKey().getExtras();
+
+                for (UUID id : entry.getValue()) {
+                    extras.putIfAbsent(State.SUB_DATA_STATE_EXTRA_PREFIX + id, known.get(id));
+                }
+            }
+
+            states = fetchedStates;
+        }
+    }
+
+    // Collects the IDs and the type IDs of all references within the given
+    // value, including the ones nested in collections, without triggering
+    // their resolution. Embedded objects are skipped, because they resolve
+    // their references using their own state.
+    private static void collectReferences(Object value, Map<UUID, UUID> refs) {
+        if (value instanceof StateValueList) {
+            collectReferences(((StateValueList) value).getUnconvertedItems(), refs);
+
+        } else if (value instanceof StateValueSet) {
+            collectReferences(((StateValueSet) value).getUnconvertedItems(), refs);
+
+        } else if (value instanceof StateValueMap) {
+            collectReferences(((StateValueMap) value).getUnconvertedValues(), refs);
+
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            UUID id = toIdIfReference(map);
+
+            if (id != null) {
+                refs.put(id, ObjectUtils.to(UUID.class, map.get(StateSerializer.TYPE_KEY)));
+
+            } else if (!map.containsKey(StateSerializer.TYPE_KEY)) {
+                for (Object item : map.values()) {
+                    collectReferences(item, refs);
+                }
+            }
+
+        } else if (value instanceof Iterable) {
+            for (Object item : (Iterable<?>) value) {
+                collectReferences(item, refs);
+            }
+        }
+    }
+
     /**
      * Converts the given {@code value} to an instance of the type that
      * matches the given {@code field} and {@code type} and is most
@@ -0,0 +1,79 @@
+package com.psddev.dari.db;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class InvalidationIndexTest {
+
+    private final InvalidationIndex<String> index = new InvalidationIndex<>();
+    private final UUID typeId = UUID.randomUUID();
+    private final UUID otherTypeId = UUID.randomUUID();
+    private final UUID id = UUID.randomUUID();
+
+    @Test
+    public void invalidateByType() {
+        assertThat(index.register("typed", Collections.singleton(typeId), index.begin()), is(true));
+        assertThat(index.register("other", Collections.singleton(otherTypeId), index.begin()), is(true));
+
+        assertThat(index.invalidate(typeId, id), contains("typed"));
+        assertThat(index.isRegistered("typed"), is(false));
+        assertThat(index.isRegistered("other"), is(true));
+    }
+
+    @Test
+    public void invalidateById() {
+        index.register("byId", Collections.singleton(id), index.begin());
+
+        assertThat(index.invalidate(otherTypeId, UUID.randomUUID()), empty());
+        assertThat(index.invalidate(otherTypeId, id), contains("byId"));
+    }
+
+    @Test
+    public void untaggedAlwaysInvalidated() {
+        index.register("untagged", null, index.begin());
+        index.register("typed", Collections.singleton(typeId), index.begin());
+
+        assertThat(index.invalidate(otherTypeId, id), contains("untagged"));
+        assertThat(index.invalidate(null, id), contains("typed"));
+        assertThat(index.getSize(), is(0));
+    }
+
+    @Test
+    public void registerAfterChange() {
+        long sequence = index.begin();
+
+        index.invalidate(typeId, id);
+        assertThat(index.register("stale", Collections.singleton(typeId), sequence), is(false));
+        assertThat(index.isRegistered("stale"), is(false));
+    }
+
+    @Test
+    public void registerAfterUnrelatedChange() {
+        long sequence = index.begin();
+
+        index.invalidate(otherTypeId, id);
+        assertThat(index.register("fresh", Collections.singleton(typeId), sequence), is(true));
+        assertThat(index.register("untagged", null, sequence), is(false));
+    }
+
+    @Test
+    public void registerAfterInvalidateAll() {
+        long sequence = index.begin();
+
+        index.invalidateAll();
+        assertThat(index.register("stale", Collections.singleton(typeId), sequence), is(false));
+    }
+
+    @Test
+    public void registerAfterUnknownTypeChange() {
+        long sequence = index.begin();
+
+        index.invalidate(null, id);
+        assertThat(index.register("stale", Collections.singleton(typeId), sequence), is(false));
+    }
+}
@@ -0,0 +1,78 @@
+package com.psddev.dari.db;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class LocalInvalidationBusTest {
+
+    private final LocalInvalidationBus bus = new LocalInvalidationBus();
+
+    private static class RecordingListener implements InvalidationListener {
+
+        public final List<UUID> ids = new ArrayList<>();
+        public int all;
+
+        @Override
+        public void invalidate(UUID typeId, UUID id) {
+            ids.add(id);
+        }
+
+        @Override
+        public void invalidateAll() {
+            ++ all;
+        }
+    }
+
+    @Test
+    public void publish() {
+        RecordingListener listener = new RecordingListener();
+        UUID id = UUID.randomUUID();
+
+        bus.subscribe(listener);
+        bus.publish(UUID.randomUUID(), id);
+        bus.publishAll();
+
+        assertThat(listener.ids, contains(id));
+        assertThat(listener.all, is(1));
+    }
+
+    @Test
+    public void unsubscribe() {
+        RecordingListener listener = new RecordingListener();
+
+        bus.subscribe(listener);
+        bus.unsubscribe(listener);
+        bus.publish(UUID.randomUUID(), UUID.randomUUID());
+
+        assertThat(listener.ids, empty());
+    }
+
+    @Test
+    public void brokenListener() {
+        RecordingListener listener = new RecordingListener();
+
+        bus.subscribe(new InvalidationListener() {
+
+            @Override
+            public void invalidate(UUID typeId, UUID id) {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public void invalidateAll() {
+                throw new IllegalStateException();
+            }
+        });
+
+        bus.subscribe(listener);
+        bus.publishAll();
+
+        assertThat(listener.all, is(1));
+    }
+}
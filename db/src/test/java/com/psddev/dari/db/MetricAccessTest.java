@@ -0,0 +1,188 @@
+package com.psddev.dari.db;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class MetricAccessTest {
+
+    private static final long EVENT_DATE = 1700000000000L / MetricAccess.DATE_DECIMAL_SHIFT * MetricAccess.DATE_DECIMAL_SHIFT;
+
+    private final UUID typeId = UUID.randomUUID();
+    private final List<UUID> ids = new ArrayList<>();
+    private final List<String> queries = new ArrayList<>();
+    private final List<UUID[]> existingKeys = new ArrayList<>();
+
+    private MetricAccessDatabase database;
+    private PreparedStatement prepared;
+
+    @Before
+    public void before() throws SQLException {
+        database = mock(MetricAccessDatabase.class);
+        Connection connection = mock(Connection.class);
+        Statement statement = mock(Statement.class);
+        prepared = mock(PreparedStatement.class);
+
+        when(database.getMetricVendor()).thenReturn(new SqlVendor.PostgreSQL());
+        when(database.openConnection()).thenReturn(connection);
+        when(connection.getAutoCommit()).thenReturn(true);
+        when(connection.createStatement()).thenReturn(statement);
+        when(connection.prepareStatement(anyString())).thenReturn(prepared);
+        when(prepared.executeUpdate()).thenReturn(1);
+
+        // The SELECT that looks up the rows returns the existing keys.
+        when(database.executeQueryBeforeTimeout(eq(statement), anyString(), anyInt())).thenAnswer(invocation -> {
+            queries.add((String) invocation.getArguments()[1]);
+
+            Iterator<UUID[]> keys = existingKeys.iterator();
+            UUID[][] current = new UUID[1][];
+            ResultSet result = mock(ResultSet.class);
+
+            when(result.next()).thenAnswer(i -> {
+                current[0] = keys.hasNext() ? keys.next() : null;
+                return current[0] != null;
+            });
+            when(result.getString(1)).thenAnswer(i -> current[0][0].toString());
+            when(result.getString(2)).thenAnswer(i -> current[0][1].toString());
+            return result;
+        });
+
+        for (int i = 0; i < 3; ++ i) {
+            ids.add(UUID.randomUUID());
+        }
+    }
+
+    private Map<UUID, Map<UUID, Double>> createAmounts() {
+        Map<UUID, Map<UUID, Double>> amounts = new HashMap<>();
+
+        for (UUID id : ids) {
+            Map<UUID, Double> dimensionAmounts = new HashMap<>();
+
+            dimensionAmounts.put(id, 1.0d);
+            amounts.put(id, dimensionAmounts);
+        }
+
+        return amounts;
+    }
+
+    private Map<UUID, Map<UUID, Double>> copy(Map<UUID, Map<UUID, Double>> amounts) {
+        Map<UUID, Map<UUID, Double>> copy = new HashMap<>();
+
+        amounts.forEach((id, dimensionAmounts) -> copy.put(id, new HashMap<>(dimensionAmounts)));
+        return copy;
+    }
+
+    @Test
+    public void successNoInfoLooksUpRows() throws SQLException {
+        when(prepared.executeBatch()).thenReturn(new int[] { Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO });
+        existingKeys.add(new UUID[] { ids.get(1), ids.get(1) });
+
+        Map<UUID, Map<UUID, Double>> amounts = createAmounts();
+        Map<UUID, Map<UUID, Double>> unwritten = copy(amounts);
+
+        MetricAccess.Static.doIncrementUpdateOrInsertAll(database, typeId, 1, amounts, EVENT_DATE, true, unwritten);
+
+        assertThat(queries, hasSize(1));
+        assertThat(queries.get(0), containsString(" IN ("));
+        ids.forEach(id -> assertThat(queries.get(0), containsString(id.toString())));
+
+        // Only the 2 missing rows are written again one at a time.
+        verify(prepared, times(1)).executeBatch();
+        verify(prepared, times(2)).executeUpdate();
+        assertThat(unwritten.entrySet(), empty());
+    }
+
+    @Test
+    public void successNoInfoFoundRowsAreWritten() throws SQLException {
+        when(prepared.executeBatch()).thenReturn(new int[] { Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO });
+        ids.forEach(id -> existingKeys.add(new UUID[] { id, id }));
+
+        Map<UUID, Map<UUID, Double>> amounts = createAmounts();
+        Map<UUID, Map<UUID, Double>> unwritten = copy(amounts);
+
+        MetricAccess.Static.doIncrementUpdateOrInsertAll(database, typeId, 1, amounts, EVENT_DATE, true, unwritten);
+
+        verify(prepared, never()).executeUpdate();
+        assertThat(unwritten.entrySet(), empty());
+    }
+
+    @Test
+    public void countsDontNeedLookup() throws SQLException {
+        when(prepared.executeBatch()).thenReturn(new int[] { 1, 0, 1 });
+
+        Map<UUID, Map<UUID, Double>> amounts = createAmounts();
+        Map<UUID, Map<UUID, Double>> unwritten = copy(amounts);
+
+        MetricAccess.Static.doIncrementUpdateOrInsertAll(database, typeId, 1, amounts, EVENT_DATE, true, unwritten);
+
+        assertThat(queries, empty());
+        verify(prepared, times(1)).executeUpdate();
+        assertThat(unwritten.entrySet(), empty());
+    }
+
+    @Test
+    public void successNoInfoBeforeBatchFailure() throws SQLException {
+        when(prepared.executeBatch()).thenThrow(new BatchUpdateException(new int[] { Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO }));
+
+        Map<UUID, Map<UUID, Double>> amounts = createAmounts();
+        Map<UUID, Map<UUID, Double>> unwritten = copy(amounts);
+
+        // Only the first in the batch order has a row.
+        UUID first = amounts.keySet().iterator().next();
+
+        existingKeys.add(new UUID[] { first, first });
+
+        try {
+            MetricAccess.Static.doIncrementUpdateOrInsertAll(database, typeId, 1, amounts, EVENT_DATE, true, unwritten);
+            fail();
+
+        } catch (BatchUpdateException error) {
+            // Expected.
+        }
+
+        assertThat(queries, hasSize(1));
+        verify(prepared, never()).executeUpdate();
+        assertThat(unwritten.keySet(), hasSize(2));
+        assertThat(unwritten, not(hasKey(first)));
+    }
+
+    @Test
+    public void missingCountsAreRequeued() throws SQLException {
+        when(prepared.executeBatch()).thenReturn(new int[] { 1 });
+        ids.forEach(id -> existingKeys.add(new UUID[] { id, id }));
+
+        Map<UUID, Map<UUID, Double>> amounts = createAmounts();
+        Map<UUID, Map<UUID, Double>> unwritten = copy(amounts);
+        UUID first = amounts.keySet().iterator().next();
+
+        try {
+            MetricAccess.Static.doIncrementUpdateOrInsertAll(database, typeId, 1, amounts, EVENT_DATE, true, unwritten);
+            fail();
+
+        } catch (SQLException error) {
+            // Expected.
+        }
+
+        // The rows exist, but that doesn't say whether they were updated.
+        assertThat(queries, empty());
+        verify(prepared, never()).executeUpdate();
+        assertThat(unwritten.keySet(), hasSize(2));
+        assertThat(unwritten, not(hasKey(first)));
+    }
+}
@@ -0,0 +1,163 @@
+package com.psddev.dari.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class MetricIncrementJournalTest {
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("metric-increments").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        MetricIncrementJournal.list(directory).forEach(MetricIncrementJournal::delete);
+        directory.delete();
+    }
+
+    private MetricIncrementJournal createJournal(int count) throws IOException {
+        MetricIncrementJournal journal = MetricIncrementJournal.create(directory, 1.5);
+        UUID typeId = UUID.randomUUID();
+
+        for (int i = 0; i < count; ++ i) {
+            journal.append("database", typeId, "field", UUID.randomUUID(), UUID.randomUUID(), i, i % 2 == 0, i + 0.5);
+        }
+
+        return journal;
+    }
+
+    @Test
+    public void readAll() throws IOException {
+        createJournal(10);
+
+        List<File> files = MetricIncrementJournal.list(directory);
+
+        assertThat(files, hasSize(1));
+
+        List<MetricIncrementJournal.Entry> entries = MetricIncrementJournal.read(files.get(0));
+
+        assertThat(entries, hasSize(10));
+
+        MetricIncrementJournal.Entry entry = entries.get(3);
+
+        assertThat(entry.getDatabaseName(), is("database"));
+        assertThat(entry.getFieldName(), is("field"));
+        assertThat(entry.getEventDate(), is(3L));
+        assertThat(entry.isImplicitEventDate(), is(false));
+        assertThat(entry.getAmount(), is(3.5));
+    }
+
+    @Test
+    public void ignoreTornRecord() throws IOException {
+        MetricIncrementJournal journal = createJournal(5);
+        File file = journal.getFile();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        assertThat(MetricIncrementJournal.read(file), hasSize(4));
+    }
+
+    @Test
+    public void concurrentAppends() throws Exception {
+        MetricIncrementJournal journal = MetricIncrementJournal.create(directory, 1.5);
+        UUID typeId = UUID.randomUUID();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+
+        try {
+            for (int t = 0; t < 8; ++ t) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 500; ++ i) {
+                        journal.append("database", typeId, "field", UUID.randomUUID(), UUID.randomUUID(), i, true, 1.0);
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(MetricIncrementJournal.read(journal.getFile()), hasSize(4000));
+    }
+
+    @Test
+    public void waitSeconds() throws IOException {
+        assertThat(MetricIncrementJournal.getWaitSeconds(createJournal(0).getFile()), is(1.5));
+    }
+
+    @Test
+    public void replaySkipsOpenJournal() throws IOException {
+        MetricIncrementJournal journal = createJournal(3);
+        List<MetricIncrementJournal.Entry> replayed = new ArrayList<>();
+
+        assertThat(MetricIncrementJournal.replay(journal.getFile(), replayed::addAll), is(false));
+        assertThat(replayed, empty());
+        assertThat(journal.getFile().exists(), is(true));
+    }
+
+    @Test
+    public void replayClosedJournal() throws IOException {
+        MetricIncrementJournal journal = createJournal(3);
+        List<MetricIncrementJournal.Entry> replayed = new ArrayList<>();
+
+        journal.close();
+
+        assertThat(MetricIncrementJournal.replay(journal.getFile(), replayed::addAll), is(true));
+        assertThat(replayed, hasSize(3));
+        assertThat(MetricIncrementJournal.list(directory), empty());
+        assertThat(MetricIncrementJournal.replay(journal.getFile(), replayed::addAll), is(false));
+    }
+
+    @Test
+    public void replayKeepsFileOnError() throws IOException {
+        MetricIncrementJournal journal = createJournal(3);
+
+        journal.close();
+
+        try {
+            MetricIncrementJournal.replay(journal.getFile(), entries -> {
+                throw new IllegalStateException();
+            });
+            fail();
+
+        } catch (IllegalStateException error) {
+            // Expected.
+        }
+
+        assertThat(MetricIncrementJournal.list(directory), hasSize(1));
+    }
+
+    @Test
+    public void delete() throws IOException {
+        MetricIncrementJournal journal = createJournal(1);
+
+        journal.delete();
+
+        assertThat(MetricIncrementJournal.list(directory), empty());
+    }
+}
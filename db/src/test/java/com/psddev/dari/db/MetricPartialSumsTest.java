@@ -0,0 +1,271 @@
+package com.psddev.dari.db;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class MetricPartialSumsTest {
+
+    private static final double DELTA = 0.000001;
+    private static final long START_MINUTE = 29000000L;
+
+    private Random random;
+
+    // Default layout: cumulative amount and amount by minute.
+    private NavigableMap<Long, double[]> cascading;
+
+    // Non-cascading layout: stored cumulative amount and amount by minute,
+    // and the corrections.
+    private NavigableMap<Long, double[]> nonCascading;
+    private Map<Long, Double> nodes;
+
+    @Before
+    public void before() {
+        random = new Random(42);
+        cascading = new TreeMap<>();
+        nonCascading = new TreeMap<>();
+        nodes = new HashMap<>();
+    }
+
+    private void incrementCascading(long minute, double amount) {
+        if (!cascading.containsKey(minute)) {
+            Map.Entry<Long, double[]> previous = cascading.floorEntry(minute);
+            cascading.put(minute, new double[] { previous != null ? previous.getValue()[0] : 0.0d, 0.0d });
+        }
+        cascading.get(minute)[1] += amount;
+        cascading.tailMap(minute, true).values().forEach(row -> row[0] += amount);
+    }
+
+    private double correction(Long startMinute, long endMinute) {
+        return MetricPartialSums.sum(MetricPartialSums.getRangeSigns(startMinute, endMinute), nodes);
+    }
+
+    // Same as MetricAccess.Static.doIncrementUpdateOrInsert.
+    private void incrementNonCascading(long minute, double amount) {
+        Map.Entry<Long, double[]> latest = nonCascading.lastEntry();
+
+        if (latest == null || latest.getKey() < minute) {
+            nonCascading.put(minute, new double[] { (latest != null ? latest.getValue()[0] : 0.0d) + amount, amount });
+
+        } else if (latest.getKey() == minute) {
+            latest.getValue()[0] += amount;
+            latest.getValue()[1] += amount;
+
+        } else {
+            double[] row = nonCascading.get(minute);
+
+            if (row != null) {
+                row[0] += amount;
+                row[1] += amount;
+
+            } else {
+                Map.Entry<Long, double[]> previous = nonCascading.floorEntry(minute);
+                double previousCumulativeAmount = previous != null ? previous.getValue()[0] : 0.0d;
+
+                previousCumulativeAmount -= correction(previous != null ? previous.getKey() + 1 : null, minute + 1);
+                nonCascading.put(minute, new double[] { previousCumulativeAmount + amount, amount });
+            }
+
+            latest.getValue()[0] += amount;
+            MetricPartialSums.getRangeUpdateSigns(minute + 1, latest.getKey()).forEach((m, sign) -> nodes.merge(m, amount * sign, Double::sum));
+        }
+    }
+
+    private void increment(long minute, double amount) {
+        incrementCascading(minute, amount);
+        incrementNonCascading(minute, amount);
+    }
+
+    private Double read(NavigableMap<Long, double[]> rows, Long startMinute, Long endMinute) {
+        if (startMinute != null && endMinute != null && startMinute >= endMinute) {
+            return null;
+        }
+
+        rows = rows.subMap(
+                startMinute != null ? startMinute : Long.MIN_VALUE, true,
+                endMinute != null ? endMinute : Long.MAX_VALUE, false);
+
+        if (rows.isEmpty()) {
+            return null;
+        }
+
+        double[] max = rows.lastEntry().getValue();
+
+        if (startMinute == null) {
+            return max[0];
+
+        } else {
+            double[] min = rows.firstEntry().getValue();
+            return max[0] - (min[0] - min[1]);
+        }
+    }
+
+    // Same as MetricAccess#getMetric.
+    private Double readNonCascading(Long startMinute, Long endMinute) {
+        Double amount = read(nonCascading, startMinute, endMinute);
+
+        if (amount != null) {
+            NavigableMap<Long, double[]> rows = nonCascading.subMap(
+                    startMinute != null ? startMinute : Long.MIN_VALUE, true,
+                    endMinute != null ? endMinute : Long.MAX_VALUE, false);
+
+            amount += correction(startMinute != null ? rows.firstKey() + 1 : null, rows.lastKey() + 1);
+        }
+
+        return amount;
+    }
+
+    private void incrementRandomly(int count) {
+        for (int i = 0; i < count; ++ i) {
+            increment(START_MINUTE + random.nextInt(5000), random.nextInt(1000) / 10.0d);
+        }
+    }
+
+    private void assertReadsMatch() {
+        for (int i = 0; i < 500; ++ i) {
+            Long start = random.nextInt(10) == 0 ? null : START_MINUTE - 100 + random.nextInt(5200);
+            Long end = random.nextInt(10) == 0 ? null : START_MINUTE - 100 + random.nextInt(5200);
+            Double expected = read(cascading, start, end);
+
+            if (expected == null) {
+                assertThat(start + " to " + end, readNonCascading(start, end), nullValue());
+
+            } else {
+                assertThat(start + " to " + end, readNonCascading(start, end), closeTo(expected, DELTA));
+            }
+        }
+    }
+
+    @Test
+    public void updateMinutes() {
+        assertThat(MetricPartialSums.getUpdateMinutes(0L), hasSize(31));
+        assertThat(MetricPartialSums.getUpdateMinutes(MetricPartialSums.SIZE - 1), contains(MetricPartialSums.SIZE - 1));
+        assertThat(MetricPartialSums.getUpdateMinutes(4L), contains(4L, 5L, 7L, 15L, 31L, 63L, 127L, 255L, 511L, 1023L, 2047L, 4095L, 8191L, 16383L, 32767L, 65535L, 131071L, 262143L, 524287L, 1048575L, 2097151L, 4194303L, 8388607L, 16777215L, 33554431L, 67108863L, 134217727L, 268435455L, 536870911L, 1073741823L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void updateMinutesNegative() {
+        MetricPartialSums.getUpdateMinutes(-1L);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void updateMinutesTooLarge() {
+        MetricPartialSums.getUpdateMinutes(MetricPartialSums.SIZE);
+    }
+
+    @Test
+    public void prefixMinutes() {
+        assertThat(MetricPartialSums.getPrefixMinutes(0L), empty());
+        assertThat(MetricPartialSums.getPrefixMinutes(7L), contains(6L, 5L, 3L));
+        assertThat(MetricPartialSums.getPrefixMinutes(Long.MAX_VALUE), contains(MetricPartialSums.SIZE - 1));
+    }
+
+    @Test
+    public void rangeSignsCancelSharedNodes() {
+        Map<Long, Integer> signs = MetricPartialSums.getRangeSigns(START_MINUTE + 60, START_MINUTE + 120);
+
+        assertThat(signs.size(), lessThan(MetricPartialSums.getPrefixMinutes(START_MINUTE + 60).size() + MetricPartialSums.getPrefixMinutes(START_MINUTE + 120).size()));
+        assertThat(signs.values(), everyItem(anyOf(is(1), is(-1))));
+    }
+
+    @Test
+    public void rangeUpdateSignsCancelSharedNodes() {
+        Map<Long, Integer> signs = MetricPartialSums.getRangeUpdateSigns(START_MINUTE + 60, START_MINUTE + 120);
+
+        assertThat(signs.size(), lessThan(MetricPartialSums.getUpdateMinutes(START_MINUTE + 60).size() + MetricPartialSums.getUpdateMinutes(START_MINUTE + 120).size()));
+        assertThat(signs.values(), everyItem(anyOf(is(1), is(-1))));
+        assertThat(signs, not(hasKey(MetricPartialSums.SIZE - 1)));
+    }
+
+    @Test
+    public void rangeUpdateSignsEmpty() {
+        assertThat(MetricPartialSums.getRangeUpdateSigns(START_MINUTE, START_MINUTE).entrySet(), empty());
+        assertThat(MetricPartialSums.getRangeUpdateSigns(START_MINUTE + 1, START_MINUTE).entrySet(), empty());
+    }
+
+    @Test
+    public void readsMatch() {
+        incrementRandomly(2000);
+        assertReadsMatch();
+    }
+
+    @Test
+    public void readsMatchWithNegativeAmounts() {
+        increment(START_MINUTE + 120, 2.5d);
+        increment(START_MINUTE, 5.0d);
+        increment(START_MINUTE + 60, -5.0d);
+
+        assertThat(readNonCascading(START_MINUTE, START_MINUTE + 120), closeTo(0.0d, DELTA));
+        assertThat(readNonCascading(START_MINUTE + 1, START_MINUTE + 60), nullValue());
+        assertReadsMatch();
+    }
+
+    @Test
+    public void currentIncrementsDontWriteCorrections() {
+        for (int i = 0; i < 1000; ++ i) {
+            increment(START_MINUTE + i / 3, random.nextInt(1000) / 10.0d);
+        }
+
+        assertThat(nodes.entrySet(), empty());
+        assertReadsMatch();
+    }
+
+    @Test
+    public void readsMatchAfterReconstruction() {
+        incrementRandomly(1000);
+
+        // Reconstruct the cumulative amounts from the non-cascading amounts
+        // and delete the corrections like
+        // MetricAccess.Static.doReconstructCumulativeAmounts.
+        double cumulativeAmount = 0.0d;
+
+        for (Map.Entry<Long, double[]> entry : nonCascading.entrySet()) {
+            cumulativeAmount += entry.getValue()[1];
+            entry.getValue()[0] = cumulativeAmount;
+        }
+
+        nodes.clear();
+
+        for (Map.Entry<Long, double[]> entry : cascading.entrySet()) {
+            double[] row = nonCascading.get(entry.getKey());
+
+            assertThat(row[0], closeTo(entry.getValue()[0], DELTA));
+            assertThat(row[1], closeTo(entry.getValue()[1], DELTA));
+        }
+
+        assertReadsMatch();
+    }
+
+    @Test
+    public void readsMatchAfterEnablingOnDefaultLayout() {
+        for (int i = 0; i < 1000; ++ i) {
+            incrementCascading(START_MINUTE + random.nextInt(5000), random.nextInt(1000) / 10.0d);
+        }
+
+        cascading.forEach((minute, row) -> nonCascading.put(minute, row.clone()));
+        assertReadsMatch();
+
+        incrementRandomly(1000);
+        assertReadsMatch();
+    }
+
+    @Test
+    public void readsTouchFewNodes() {
+        incrementRandomly(5000);
+
+        List<Long> prefix = MetricPartialSums.getPrefixMinutes(START_MINUTE + 5000);
+
+        assertThat(prefix.size(), lessThanOrEqualTo(30));
+        assertThat(MetricPartialSums.getRangeSigns(START_MINUTE, START_MINUTE + 5000).size(), lessThanOrEqualTo(60));
+        assertThat(MetricPartialSums.getRangeUpdateSigns(START_MINUTE, START_MINUTE + 5000).size(), lessThanOrEqualTo(60));
+    }
+}
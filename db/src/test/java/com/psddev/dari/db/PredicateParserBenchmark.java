@@ -0,0 +1,68 @@
+package com.psddev.dari.db;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link PredicateParser#parse} when the parsed form of the
+ * predicate string is already cached against when it has to be compiled.
+ *
+ * <p>Not run by the tests. To run it after {@code mvn test-compile}:</p>
+ *
+ * <pre>
+ * mvn exec:exec -Dexec.classpathScope=test -Dexec.executable=java -Dexec.args="-cp %classpath com.psddev.dari.db.PredicateParserBenchmark"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PredicateParserBenchmark {
+
+    private static final String PREDICATE = "name = ? and (age > ? or tags contains ?) and not parent/_id = ?";
+
+    private PredicateParser parser;
+    private Object[] parameters;
+    private long cold;
+
+    @Setup
+    public void setup() {
+        parser = new PredicateParser();
+        parameters = new Object[] { "foo", 20, "bar", UUID.randomUUID() };
+        cold = 0L;
+    }
+
+    @Benchmark
+    public Predicate cached() {
+        return parser.parse(PREDICATE, parameters);
+    }
+
+    @Benchmark
+    public Predicate cold() {
+        // A different field name each time so that it's never cached.
+        return parser.parse(PREDICATE + " and f" + (cold++) + " = ?", parameters);
+    }
+
+    public static void main(String[] arguments) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PredicateParserBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
@@ -2,6 +2,7 @@ package com.psddev.dari.db;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
@@ -154,6 +155,36 @@ public class PredicateParserTest {
     	parser.parse(" = 1 ");
     }
 
+    /*
+     * Template caching
+     */
+    @Test
+    public void parse_cached_binds_parameters() {
+        String predicateString = "a = ? and (b = ?0 or c != 'x')";
+        Predicate first = parser.parse(predicateString, "1");
+        Predicate second = parser.parse(predicateString, "2");
+
+        assertEquals(0.5, parser.getTemplateHitRate(), 0.0);
+        assertEquals(parser.parse("a = '1' and (b = '1' or c != 'x')"), first);
+        assertEquals(parser.parse("a = '2' and (b = '2' or c != 'x')"), second);
+    }
+
+    @Test
+    public void parse_cached_operator_change() {
+        assertEquals(parser.parse("a = 1"), parser.parse("a = 1"));
+
+        parser.getComparisonOperators().put("same", PredicateParser.EQUALS_ANY_OPERATOR);
+        assertEquals(parser.parse("a = 1"), parser.parse("a same 1"));
+
+        parser.getComparisonOperators().remove("same");
+        try {
+            parser.parse("a same 1");
+            fail();
+        } catch (IllegalArgumentException error) {
+            // Expected since the operator was removed.
+        }
+    }
+
     /*
      * Comparison handling
      */
@@ -451,6 +482,11 @@ public class PredicateParserTest {
         }
     }
 
+    @Test
+    public void compile_null_matches_everything() {
+        assertTrue(parser.compile(null).matches(new Object()));
+    }
+
     /**
      * For use in testing {@link PredicateParser.Static#evaluate} against hysteresis
      * effects of evaluating successive incompatibly-typed fields.
@@ -0,0 +1,89 @@
+package com.psddev.dari.db;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class PreloadProfileTest {
+
+    private final UUID typeId = UUID.randomUUID();
+    private final UUID sharedId = UUID.randomUUID();
+
+    private Map<UUID, UUID> read(UUID... ids) {
+        Map<UUID, UUID> typeIdsById = new HashMap<>();
+
+        for (UUID id : ids) {
+            typeIdsById.put(id, typeId);
+        }
+
+        return typeIdsById;
+    }
+
+    @Test
+    public void sharedObjectsRiseAboveThreshold() {
+        PreloadProfile profile = new PreloadProfile(100);
+
+        for (int i = 0; i < 10; ++ i) {
+            profile.update(read(sharedId, UUID.randomUUID()));
+        }
+
+        Map<UUID, List<UUID>> idsByTypeId = profile.getIdsByTypeId(0.5);
+
+        assertThat(profile.getRequests(), is(10L));
+        assertThat(idsByTypeId.keySet(), contains(typeId));
+        assertThat(idsByTypeId.get(typeId), contains(sharedId));
+    }
+
+    @Test
+    public void unreadObjectsFade() {
+        PreloadProfile profile = new PreloadProfile(100);
+
+        for (int i = 0; i < 10; ++ i) {
+            profile.update(read(sharedId));
+        }
+
+        for (int i = 0; i < 10; ++ i) {
+            profile.update(Collections.emptyMap());
+        }
+
+        assertThat(profile.getIdsByTypeId(0.5).entrySet(), empty());
+    }
+
+    @Test
+    public void missingObjectsSkipped() {
+        PreloadProfile profile = new PreloadProfile(100);
+
+        for (int i = 0; i < 10; ++ i) {
+            profile.update(Collections.singletonMap(sharedId, null));
+        }
+
+        assertThat(profile.getIdsByTypeId(0.0).entrySet(), empty());
+    }
+
+    @Test
+    public void boundedSize() {
+        PreloadProfile profile = new PreloadProfile(2);
+
+        profile.update(read(sharedId));
+        profile.update(read(sharedId, UUID.randomUUID(), UUID.randomUUID()));
+
+        List<UUID> ids = profile.getIdsByTypeId(0.0).get(typeId);
+
+        assertThat(ids, hasSize(2));
+        assertThat(ids, hasItem(sharedId));
+    }
+
+    @Test
+    public void normalizeRoute() {
+        assertThat(CachingDatabaseFilter.normalizeRoute("/article/123", "b=2&a=1&_cache=true"), is("/article/*?a&b"));
+        assertThat(CachingDatabaseFilter.normalizeRoute("/item/" + UUID.randomUUID() + "/edit", null), is("/item/*/edit"));
+        assertThat(CachingDatabaseFilter.normalizeRoute("/news/some-slug", ""), is("/news/some-slug"));
+    }
+}
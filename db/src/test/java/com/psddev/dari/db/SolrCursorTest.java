@@ -0,0 +1,135 @@
+package com.psddev.dari.db;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class SolrCursorTest {
+
+    private final List<SolrParams> requests = new ArrayList<>();
+    private final Map<String, String> nextCursorMarks = new HashMap<>();
+    private final Map<String, Integer> pageSizes = new HashMap<>();
+    private SolrDatabase database;
+
+    @Before
+    public void before() throws Exception {
+        SolrServer server = mock(SolrServer.class);
+
+        when(server.query(Mockito.any(SolrParams.class), eq(SolrRequest.METHOD.POST))).thenAnswer(invocation -> {
+            SolrParams params = (SolrParams) invocation.getArguments()[0];
+            String cursorMark = params.get(CursorMarkParams.CURSOR_MARK_PARAM);
+
+            requests.add(params);
+
+            SolrDocumentList documents = new SolrDocumentList();
+
+            for (int i = 0, size = pageSizes.getOrDefault(cursorMark, 0); i < size; ++ i) {
+                SolrDocument document = new SolrDocument();
+
+                document.setField(SolrDatabase.ID_FIELD, cursorMark + i);
+                documents.add(document);
+            }
+
+            NamedList<Object> response = new NamedList<>();
+
+            response.add("response", documents);
+            response.add(CursorMarkParams.CURSOR_MARK_NEXT, nextCursorMarks.getOrDefault(cursorMark, cursorMark));
+
+            QueryResponse queryResponse = new QueryResponse();
+
+            queryResponse.setResponse(response);
+            return queryResponse;
+        });
+
+        database = new SolrDatabase();
+        database.setServer(server);
+    }
+
+    private List<Integer> readPageSizes(int rows) {
+        return readPageSizes(Query.fromAll(), rows);
+    }
+
+    private List<Integer> readPageSizes(Query<?> query, int rows) {
+        SolrDatabase.SolrCursor cursor = database.new SolrCursor(query.using(database), rows);
+        List<Integer> sizes = new ArrayList<>();
+
+        for (SolrDocumentList documents; (documents = cursor.next()) != null;) {
+            sizes.add(documents.size());
+        }
+
+        return sizes;
+    }
+
+    @Test
+    public void pagesWithCursorMarks() {
+        pageSizes.put(CursorMarkParams.CURSOR_MARK_START, 2);
+        pageSizes.put("a", 2);
+        pageSizes.put("b", 1);
+        nextCursorMarks.put(CursorMarkParams.CURSOR_MARK_START, "a");
+        nextCursorMarks.put("a", "b");
+        nextCursorMarks.put("b", "c");
+
+        assertThat(readPageSizes(2), contains(2, 2, 1));
+        assertThat(requests, hasSize(3));
+
+        for (SolrParams request : requests) {
+            assertThat(request.get(CommonParams.SORT), containsString(SolrDatabase.ID_FIELD + " asc"));
+            assertThat(request.getInt(CommonParams.START), is(0));
+        }
+    }
+
+    @Test
+    public void keepsRelevanceWithoutSorts() {
+        readPageSizes(2);
+
+        assertThat(requests.get(0).get(CommonParams.SORT), is(SolrDatabase.SCORE_FIELD + " desc," + SolrDatabase.ID_FIELD + " asc"));
+    }
+
+    @Test
+    public void keepsRelevanceWithNewestBoost() {
+        readPageSizes(Query.fromAll().sortNewest(2.0, "_any"), 2);
+
+        assertThat(requests.get(0).get(CommonParams.SORT), is(SolrDatabase.SCORE_FIELD + " desc," + SolrDatabase.ID_FIELD + " asc"));
+    }
+
+    @Test
+    public void relevantSortIsntRepeated() {
+        readPageSizes(Query.fromAll().sortRelevant(1.0, "_any matches ?", "foo"), 2);
+
+        assertThat(requests.get(0).get(CommonParams.SORT), is(SolrDatabase.SCORE_FIELD + " desc," + SolrDatabase.ID_FIELD + " asc"));
+    }
+
+    @Test
+    public void stopsWhenCursorMarkRepeats() {
+        pageSizes.put(CursorMarkParams.CURSOR_MARK_START, 2);
+        pageSizes.put("a", 2);
+        nextCursorMarks.put(CursorMarkParams.CURSOR_MARK_START, "a");
+
+        assertThat(readPageSizes(2), contains(2, 2));
+        assertThat(requests, hasSize(2));
+    }
+
+    @Test
+    public void emptyResults() {
+        assertThat(readPageSizes(2), empty());
+        assertThat(requests, hasSize(1));
+    }
+}
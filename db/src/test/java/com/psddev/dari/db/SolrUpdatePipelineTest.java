@@ -0,0 +1,207 @@
+package com.psddev.dari.db;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class SolrUpdatePipelineTest {
+
+    private final List<List<String>> batches = new CopyOnWriteArrayList<>();
+    private final Set<String> badIds = Collections.synchronizedSet(new HashSet<>());
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger attempts = new AtomicInteger();
+    private volatile SolrException.ErrorCode failureCode;
+    private SolrUpdatePipeline pipeline;
+
+    private SolrUpdatePipeline create(int batchSize, long batchDelay) {
+        pipeline = new SolrUpdatePipeline((documents, deleteIds) -> {
+            List<String> batch = new ArrayList<>();
+
+            for (SolrInputDocument document : documents) {
+                batch.add(document.getFieldValue(SolrDatabase.ID_FIELD) + "=" + document.getFieldValue("value"));
+            }
+
+            batch.addAll(deleteIds);
+            attempts.incrementAndGet();
+
+            for (String idValue : batch) {
+                if (badIds.contains(idValue.split("=")[0])) {
+                    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Bad document!");
+                }
+            }
+
+            if (failures.getAndDecrement() > 0) {
+                if (failureCode != null) {
+                    throw new SolrException(failureCode, "Failed!");
+                }
+
+                throw new IOException("Unavailable!");
+            }
+
+            batches.add(batch);
+        }, batchSize, Long.MAX_VALUE, batchDelay, 1000, 2);
+
+        return pipeline;
+    }
+
+    private List<SolrInputDocument> documents(String... idValues) {
+        List<SolrInputDocument> documents = new ArrayList<>();
+
+        for (String idValue : idValues) {
+            String[] parts = idValue.split("=");
+            SolrInputDocument document = new SolrInputDocument();
+
+            document.setField(SolrDatabase.ID_FIELD, parts[0]);
+            document.setField("value", parts[1]);
+            documents.add(document);
+        }
+
+        return documents;
+    }
+
+    @After
+    public void after() {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void mergesRepeatedUpdates() {
+        create(100, 60000L);
+
+        pipeline.write(documents("a=1", "b=1"), Collections.emptyList());
+        pipeline.write(documents("a=2"), Collections.emptyList());
+        pipeline.write(Collections.emptyList(), Collections.singletonList("b"));
+
+        assertThat(pipeline.getQueueDepth(), is(2));
+        assertThat(pipeline.flush(5000L), is(true));
+        assertThat(batches, contains(contains("a=2", "b")));
+        assertThat(pipeline.getQueueDepth(), is(0));
+        assertThat(pipeline.getLag(), is(0L));
+    }
+
+    @Test
+    public void boundedBatchSize() {
+        create(2, 60000L);
+
+        pipeline.write(documents("a=1", "b=1", "c=1", "d=1", "e=1"), Collections.emptyList());
+
+        assertThat(pipeline.flush(5000L), is(true));
+        int sent = 0;
+
+        for (List<String> batch : batches) {
+            assertThat(batch.size(), lessThanOrEqualTo(2));
+            sent += batch.size();
+        }
+
+        assertThat(sent, is(5));
+    }
+
+    @Test
+    public void sendsAfterDelay() throws InterruptedException {
+        create(100, 10L);
+
+        pipeline.write(documents("a=1"), Collections.emptyList());
+
+        for (int i = 0; i < 500 && batches.isEmpty(); ++ i) {
+            Thread.sleep(10L);
+        }
+
+        assertThat(batches, contains(contains("a=1")));
+    }
+
+    @Test
+    public void immediateSupersedesQueued() throws Exception {
+        create(100, 60000L);
+
+        pipeline.write(documents("a=1", "b=1"), Collections.emptyList());
+        pipeline.writeImmediately(documents("a=2"), Collections.emptyList());
+
+        assertThat(batches, contains(contains("a=2")));
+        assertThat(pipeline.getQueueDepth(), is(1));
+        assertThat(pipeline.flush(5000L), is(true));
+        assertThat(batches.get(batches.size() - 1), contains("b=1"));
+    }
+
+    @Test
+    public void dropsBadDocument() {
+        create(100, 60000L);
+        badIds.add("c");
+
+        pipeline.write(documents("a=1", "b=1", "c=1", "d=1", "e=1"), Collections.emptyList());
+
+        assertThat(pipeline.flush(5000L), is(true));
+        List<String> sent = new ArrayList<>();
+
+        for (List<String> batch : batches) {
+            sent.addAll(batch);
+        }
+
+        assertThat(sent, containsInAnyOrder("a=1", "b=1", "d=1", "e=1"));
+        assertThat(pipeline.getQueueDepth(), is(0));
+    }
+
+    @Test
+    public void retriesTransientFailures() {
+        create(100, 60000L);
+        failures.set(2);
+
+        pipeline.write(documents("a=1"), Collections.emptyList());
+
+        assertThat(pipeline.flush(10000L), is(true));
+        assertThat(batches, contains(contains("a=1")));
+        assertThat(attempts.get(), is(3));
+    }
+
+    @Test
+    public void retriesOtherClientErrors() {
+        create(100, 60000L);
+        failureCode = SolrException.ErrorCode.FORBIDDEN;
+        failures.set(2);
+
+        pipeline.write(documents("a=1", "b=1"), Collections.emptyList());
+
+        assertThat(pipeline.flush(10000L), is(true));
+        assertThat(batches, contains(contains("a=1", "b=1")));
+        assertThat(attempts.get(), is(3));
+    }
+
+    @Test
+    public void dropsConflictingDocument() {
+        create(100, 60000L);
+        failureCode = SolrException.ErrorCode.CONFLICT;
+        failures.set(1);
+
+        pipeline.write(documents("a=1"), Collections.emptyList());
+
+        assertThat(pipeline.flush(5000L), is(true));
+        assertThat(batches, empty());
+        assertThat(attempts.get(), is(1));
+    }
+
+    @Test
+    public void dropsAfterMaximumAttempts() {
+        create(100, 60000L);
+        failures.set(Integer.MAX_VALUE);
+
+        pipeline.write(documents("a=1"), Collections.emptyList());
+
+        assertThat(pipeline.flush(30000L), is(true));
+        assertThat(batches, empty());
+        assertThat(attempts.get(), is(SolrUpdatePipeline.MAXIMUM_ATTEMPTS));
+    }
+}
@@ -0,0 +1,211 @@
+package com.psddev.dari.db;
+
+import com.psddev.dari.util.CompactMap;
+import com.psddev.dari.util.JsonParsingException;
+import com.psddev.dari.util.ObjectUtils;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class StateSerializerTest {
+
+    private Map<String, Object> createValues() {
+        Map<String, Object> reference = new CompactMap<>();
+        reference.put(StateSerializer.REFERENCE_KEY, UUID.randomUUID().toString());
+        reference.put(StateSerializer.TYPE_KEY, UUID.randomUUID().toString());
+
+        List<Object> list = new ArrayList<>();
+        list.add(new CompactMap<>(reference));
+        list.add(null);
+        list.add("item");
+
+        Map<String, Object> values = new CompactMap<>();
+        values.put(StateSerializer.ID_KEY, UUID.randomUUID().toString());
+        values.put(StateSerializer.TYPE_KEY, UUID.randomUUID().toString());
+        values.put("string", "foo ☃");
+        values.put("upperCaseUuid", UUID.randomUUID().toString().toUpperCase());
+        values.put("empty", "");
+        values.put("int", 42);
+        values.put("long", Long.MIN_VALUE);
+        values.put("negative", -1L);
+        values.put("double", 1.5);
+        values.put("decimal", new BigDecimal("2.25"));
+        values.put("true", Boolean.TRUE);
+        values.put("false", Boolean.FALSE);
+        values.put("null", null);
+        values.put("reference", reference);
+        values.put("list", list);
+        values.put("numbers", Arrays.asList(1, 2, 3));
+        return values;
+    }
+
+    private Map<String, Object> copy(Map<String, Object> map) {
+        return new CompactMap<>(map);
+    }
+
+    @Test
+    public void binaryMatchesJson() {
+        Map<String, Object> values = createValues();
+        Map<String, Object> json = StateSerializer.deserialize(StateSerializer.serialize(values));
+        Map<String, Object> binary = StateSerializer.deserialize(StateSerializer.serializeBinary(values));
+
+        assertThat(copy(binary), is(json));
+    }
+
+    @Test
+    public void binaryIsSmaller() {
+        Map<String, Object> values = createValues();
+
+        assertThat(
+                StateSerializer.serializeBinary(values).length,
+                lessThan(StateSerializer.serialize(values).length));
+    }
+
+    @Test
+    public void jsonStillReadable() {
+        Map<String, Object> values = createValues();
+        byte[] json = ObjectUtils.toJson(values).getBytes(StandardCharsets.UTF_8);
+
+        assertThat(StateSerializer.deserialize(json), is(ObjectUtils.fromJson(json)));
+    }
+
+    @Test
+    public void lazyGet() {
+        Map<String, Object> values = createValues();
+        Map<String, Object> binary = StateSerializer.deserialize(StateSerializer.serializeBinary(values));
+
+        assertThat(binary.size(), is(values.size()));
+        assertThat(binary.containsKey("null"), is(true));
+        assertThat(binary.containsKey("missing"), is(false));
+        assertThat(binary.get(StateSerializer.TYPE_KEY), is(values.get(StateSerializer.TYPE_KEY)));
+        assertThat(binary.get("long"), is(Long.MIN_VALUE));
+        assertThat(binary.get("missing"), nullValue());
+    }
+
+    @Test
+    public void iterate() {
+        Map<String, Object> values = createValues();
+        Map<String, Object> binary = StateSerializer.deserialize(StateSerializer.serializeBinary(values));
+        Map<String, Object> copy = new CompactMap<>();
+
+        for (Map.Entry<String, Object> entry : binary.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue());
+        }
+
+        assertThat(copy.keySet(), is(values.keySet()));
+        assertThat(copy.get("list"), is(binary.get("list")));
+    }
+
+    @Test
+    public void iterateAndSet() {
+        Map<String, Object> values = createValues();
+        Map<String, Object> binary = StateSerializer.deserialize(StateSerializer.serializeBinary(values));
+
+        for (Map.Entry<String, Object> entry : binary.entrySet()) {
+            if (entry.getKey().equals("string")) {
+                entry.setValue("bar");
+            }
+        }
+
+        assertThat(binary.get("string"), is("bar"));
+        assertThat(binary.size(), is(values.size()));
+    }
+
+    @Test
+    public void isBinary() {
+        Map<String, Object> values = createValues();
+
+        assertThat(StateSerializer.isBinary(StateSerializer.serializeBinary(values)), is(true));
+        assertThat(StateSerializer.isBinary(StateSerializer.serialize(values)), is(false));
+    }
+
+    @Test
+    public void modify() {
+        Map<String, Object> values = createValues();
+        Map<String, Object> binary = StateSerializer.deserialize(StateSerializer.serializeBinary(values));
+
+        binary.put("string", "bar");
+        binary.remove("int");
+
+        assertThat(binary.get("string"), is("bar"));
+        assertThat(binary.containsKey("int"), is(false));
+        assertThat(binary.size(), is(values.size() - 1));
+    }
+
+    @Test
+    public void empty() {
+        Map<String, Object> binary = StateSerializer.deserialize(StateSerializer.serializeBinary(new CompactMap<>()));
+
+        assertThat(binary.isEmpty(), is(true));
+    }
+
+    private State createState() {
+        Database database = mock(Database.class);
+        State state = new State();
+
+        when(database.getEnvironment()).thenReturn(mock(DatabaseEnvironment.class));
+        state.setDatabase(database);
+        return state;
+    }
+
+    @Test
+    public void jsonIntoState() {
+        Map<String, Object> values = createValues();
+        byte[] json = StateSerializer.serialize(values);
+        State expected = createState();
+        State actual = createState();
+
+        expected.setValues(StateSerializer.deserialize(json));
+        StateSerializer.deserialize(json, actual);
+
+        assertThat(actual.getId(), is(expected.getId()));
+        assertThat(actual.getRawValues(), is(expected.getRawValues()));
+    }
+
+    @Test
+    public void jsonTypedFields() {
+        UUID id = UUID.randomUUID();
+        Map<String, Object> values = new CompactMap<>();
+        values.put("date", 1000L);
+        values.put("uuid", id.toString());
+        values.put("uuids", Arrays.asList(id.toString(), "bad"));
+        values.put("other", 1000L);
+
+        Map<String, ObjectField> fields = new HashMap<>();
+        fields.put("date", createField(ObjectField.DATE_TYPE));
+        fields.put("uuid", createField(ObjectField.UUID_TYPE));
+        fields.put("uuids", createField(ObjectField.LIST_TYPE + "/" + ObjectField.UUID_TYPE));
+
+        Map<String, Object> decoded = new CompactMap<>();
+        new JsonStateDecoder(StateSerializer.serialize(values)).decode(fields::get, decoded::put);
+
+        assertThat(decoded.get("date"), is(new Date(1000L)));
+        assertThat(decoded.get("uuid"), is(id));
+        assertThat(decoded.get("uuids"), is(Arrays.asList(id, "bad")));
+        assertThat(decoded.get("other"), is(1000L));
+    }
+
+    private ObjectField createField(String internalType) {
+        ObjectField field = mock(ObjectField.class);
+
+        when(field.getInternalType()).thenReturn(internalType);
+        return field;
+    }
+
+    @Test(expected = JsonParsingException.class)
+    public void jsonIntoStateNotObject() {
+        StateSerializer.deserialize("[ ]".getBytes(StandardCharsets.UTF_8), createState());
+    }
+}
@@ -23,7 +23,9 @@ import org.jooq.impl.SQLDataType;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -94,6 +96,14 @@ public class H2Database extends AbstractSqlDatabase {
         return "schema-12.sql";
     }
 
+    @Override
+    protected org.jooq.Query upsert(DSLContext context, Table<Record> table, List<Field<?>> keys, Map<Field<?>, Field<?>> values) {
+        return context
+                .mergeInto(table, values.keySet())
+                .key(keys)
+                .values(values.values());
+    }
+
     @Override
     protected Condition compare(ComparisonPredicate comparison, SqlCompareOptions options) {
         String operator = comparison.getOperator();
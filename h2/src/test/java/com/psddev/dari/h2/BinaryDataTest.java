@@ -0,0 +1,59 @@
+package com.psddev.dari.h2;
+
+import com.psddev.dari.db.Database;
+import com.psddev.dari.db.Query;
+import com.psddev.dari.sql.AbstractSqlDatabase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class BinaryDataTest extends WriteTest {
+
+    private static void setEnableBinaryData(boolean enableBinaryData) {
+        Database.Static.getFirst(AbstractSqlDatabase.class).setEnableBinaryData(enableBinaryData);
+    }
+
+    @Before
+    public void enableBinaryData() {
+        setEnableBinaryData(true);
+    }
+
+    @After
+    public void disableBinaryData() {
+        setEnableBinaryData(false);
+    }
+
+    @Test
+    public void readJsonThenWriteBinary() {
+        setEnableBinaryData(false);
+
+        WriteModel model = new WriteModel();
+        model.number = 1;
+        model.string = "json";
+        model.list.add("a");
+        model.save();
+
+        setEnableBinaryData(true);
+
+        WriteModel json = Query.from(WriteModel.class).where("_id = ?", model).first();
+
+        assertThat(json.string, is("json"));
+        assertThat(json.list, contains("a"));
+
+        json.string = "binary";
+        json.save();
+
+        WriteModel binary = Query.from(WriteModel.class).where("_id = ?", model).first();
+
+        assertThat(binary.number, is(1));
+        assertThat(binary.string, is("binary"));
+        assertThat(binary.list, contains("a"));
+
+        setEnableBinaryData(false);
+
+        assertThat(Query.from(WriteModel.class).where("_id = ?", model).first().string, is("binary"));
+    }
+}
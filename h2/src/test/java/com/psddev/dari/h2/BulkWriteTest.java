@@ -0,0 +1,118 @@
+package com.psddev.dari.h2;
+
+import com.psddev.dari.db.Database;
+import com.psddev.dari.db.Query;
+import com.psddev.dari.sql.AbstractSqlDatabase;
+import com.psddev.dari.util.Stats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class BulkWriteTest extends WriteTest {
+
+    @Before
+    public void enableBulkSaves() {
+        Database.Static.getFirst(AbstractSqlDatabase.class).setEnableBulkSaves(true);
+    }
+
+    @After
+    public void disableBulkSaves() {
+        Database.Static.getFirst(AbstractSqlDatabase.class).setEnableBulkSaves(false);
+    }
+
+    private List<WriteModel> saveAll(List<WriteModel> models) {
+        Database database = Database.Static.getDefault();
+
+        database.beginWrites();
+
+        try {
+            models.forEach(WriteModel::save);
+            database.commitWrites();
+
+        } finally {
+            database.endWrites();
+        }
+
+        return models;
+    }
+
+    private List<WriteModel> createBulkTestModels() {
+        List<WriteModel> models = new ArrayList<>();
+
+        for (int i = 0; i < 50; ++ i) {
+            WriteModel model = new WriteModel();
+            model.number = i;
+            models.add(model);
+        }
+
+        return saveAll(models);
+    }
+
+    @Test
+    public void saveNew() {
+        List<WriteModel> models = createBulkTestModels();
+
+        assertThat(Query.from(WriteModel.class).count(), is((long) models.size()));
+        assertThat(Query.from(WriteModel.class).where("_id = ?", models.get(10)).first().number, is(10));
+
+        assertThat(
+                Stats.Static.getAll().stream()
+                        .filter(s -> "SQL".equals(s.getName()))
+                        .mapToLong(s -> s.getMeasurements().get("SQL: Batch Upsert").getOverallTotalCount())
+                        .sum(),
+                greaterThan(0L));
+    }
+
+    @Test
+    public void saveExisting() {
+        List<WriteModel> models = createBulkTestModels();
+
+        models.forEach(m -> m.string = "updated");
+        saveAll(models);
+
+        assertThat(Query.from(WriteModel.class).count(), is((long) models.size()));
+
+        Query.from(WriteModel.class)
+                .selectAll()
+                .forEach(m -> assertThat(m.string, is("updated")));
+    }
+
+    @Test
+    public void saveExistingDeleted() {
+        List<WriteModel> models = createBulkTestModels();
+
+        Query.from(WriteModel.class).deleteAll();
+        saveAll(models);
+
+        assertThat(Query.from(WriteModel.class).count(), is((long) models.size()));
+    }
+
+    @Test
+    public void saveMixedAtomically() {
+        List<WriteModel> models = createBulkTestModels();
+        List<WriteModel> mixed = new ArrayList<>();
+        WriteModel atomic = Query.from(WriteModel.class).where("_id = ?", models.get(0)).first();
+
+        atomic.getState().incrementAtomically("number", 5);
+        mixed.add(atomic);
+        mixed.add(new WriteModel());
+        mixed.add(models.get(1));
+        saveAll(mixed);
+
+        assertThat(Query.from(WriteModel.class).count(), is((long) models.size() + 1));
+        assertThat(Query.from(WriteModel.class).where("_id = ?", atomic).first().number, is(5));
+    }
+
+    @Test
+    public void lastUpdate() {
+        createBulkTestModels();
+
+        assertThat(Query.from(WriteModel.class).lastUpdate(), notNullValue());
+    }
+}
@@ -0,0 +1,237 @@
+package com.psddev.dari.h2;
+
+import com.psddev.dari.db.Database;
+import com.psddev.dari.db.DistributedLock;
+import com.psddev.dari.db.Query;
+import com.psddev.dari.db.State;
+import com.psddev.dari.util.Settings;
+import com.psddev.dari.util.StringUtils;
+import com.psddev.dari.util.UuidUtils;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class DistributedLockTest extends AbstractTest {
+
+    private <T> Future<T> submit(ExecutorService executor, Callable<T> callable) {
+        Database database = Database.Static.getDefault();
+
+        return executor.submit(() -> {
+            Database.Static.overrideDefault(database);
+
+            try {
+                return callable.call();
+
+            } finally {
+                Database.Static.restoreDefault();
+            }
+        });
+    }
+
+    @Test
+    public void lockAndUnlock() {
+        DistributedLock lock = DistributedLock.Static.getInstance(Database.Static.getDefault(), "lockAndUnlock");
+
+        lock.lock();
+
+        try {
+            assertThat(lock.isLeaseValid(), is(true));
+            assertThat(lock.getToken(), greaterThan(0L));
+
+        } finally {
+            lock.unlock();
+        }
+
+        assertThat(lock.isLeaseValid(), is(false));
+        assertThat(lock.getToken(), is(0L));
+    }
+
+    @Test(expected = DistributedLock.ReentrantException.class)
+    public void reentrant() {
+        DistributedLock lock = DistributedLock.Static.getInstance(Database.Static.getDefault(), "reentrant");
+
+        lock.lock();
+
+        try {
+            lock.tryLock();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Test
+    public void tokensIncrease() {
+        DistributedLock lock = DistributedLock.Static.getInstance(Database.Static.getDefault(), "tokensIncrease");
+        long first;
+
+        lock.lock();
+
+        try {
+            first = lock.getToken();
+
+        } finally {
+            lock.unlock();
+        }
+
+        lock.lock();
+
+        try {
+            assertThat(lock.getToken(), greaterThan(first));
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Test
+    public void tokensIncreaseAcrossInstances() {
+        DistributedLock first = DistributedLock.Static.getInstance(Database.Static.getDefault(), "tokensIncreaseAcrossInstances");
+
+        // Different lock ID, like one from another VM.
+        DistributedLock second = new DistributedLock(Database.Static.getDefault(), "tokensIncreaseAcrossInstances") { };
+        long token;
+
+        first.lock();
+
+        try {
+            token = first.getToken();
+
+        } finally {
+            first.unlock();
+        }
+
+        // The counter survives the release, so the next acquisition gets
+        // the very next token.
+        second.lock();
+
+        try {
+            assertThat(second.getToken(), is(token + 1L));
+
+        } finally {
+            second.unlock();
+        }
+
+        first.lock();
+
+        try {
+            assertThat(first.getToken(), is(token + 2L));
+
+        } finally {
+            first.unlock();
+        }
+    }
+
+    @Test
+    public void unlockWhileRenewing() throws InterruptedException {
+        String key = "unlockWhileRenewing";
+        DistributedLock lock = DistributedLock.Static.getInstance(Database.Static.getDefault(), key);
+
+        // Renews about every millisecond, so that the renewals often save
+        // while the lock is being released.
+        Settings.setOverride(DistributedLock.LEASE_SETTING, 3L);
+
+        try {
+            for (int i = 0; i < 50; ++ i) {
+                lock.lock();
+
+                try {
+                    Thread.sleep(2L);
+
+                } finally {
+                    lock.unlock();
+                }
+
+                State record = State.getInstance(Query
+                        .from(Object.class)
+                        .where("_id = ?", UuidUtils.fromBytes(StringUtils.md5(key)))
+                        .noCache()
+                        .master()
+                        .first());
+
+                assertThat(record.get("lockId"), nullValue());
+            }
+
+        } finally {
+            Settings.setOverride(DistributedLock.LEASE_SETTING, null);
+        }
+    }
+
+    @Test
+    public void tryLockTimesOutWhileHeld() throws Exception {
+        DistributedLock lock = DistributedLock.Static.getInstance(Database.Static.getDefault(), "tryLockTimesOutWhileHeld");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            lock.lock();
+
+            try {
+                assertThat(submit(executor, lock::tryLock).get(), is(false));
+                assertThat(submit(executor, () -> lock.tryLock(100L, TimeUnit.MILLISECONDS)).get(), is(false));
+
+            } finally {
+                lock.unlock();
+            }
+
+            assertThat(submit(executor, () -> {
+                boolean locked = lock.tryLock(1L, TimeUnit.SECONDS);
+
+                if (locked) {
+                    lock.unlock();
+                }
+
+                return locked;
+            }).get(), is(true));
+
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void waiterAcquiresAfterRelease() throws Exception {
+        DistributedLock lock = DistributedLock.Static.getInstance(Database.Static.getDefault(), "waiterAcquiresAfterRelease");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch started = new CountDownLatch(1);
+
+        try {
+            lock.lock();
+
+            Future<Long> waiter;
+
+            try {
+                waiter = submit(executor, () -> {
+                    started.countDown();
+                    lock.lock();
+
+                    try {
+                        return lock.getToken();
+
+                    } finally {
+                        lock.unlock();
+                    }
+                });
+
+                started.await();
+                Thread.sleep(100L);
+                assertThat(waiter.isDone(), is(false));
+
+            } finally {
+                lock.unlock();
+            }
+
+            assertThat(waiter.get(5L, TimeUnit.SECONDS), greaterThan(0L));
+
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
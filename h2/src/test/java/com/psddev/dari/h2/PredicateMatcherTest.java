@@ -0,0 +1,52 @@
+package com.psddev.dari.h2;
+
+import com.psddev.dari.db.Predicate;
+import com.psddev.dari.db.PredicateParser;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PredicateMatcherTest extends AbstractTest {
+
+    @Test
+    public void matchesSameAsEvaluate() {
+        List<StringIndexModel> models = new ArrayList<>();
+
+        for (String one : Arrays.asList("alpha", "beta", "gamma", null)) {
+            StringIndexModel model = new StringIndexModel();
+            model.setOne(one);
+            model.setSet(new LinkedHashSet<>(Arrays.asList(one != null ? one : "delta", "epsilon")));
+            models.add(model);
+        }
+
+        for (Predicate predicate : Arrays.asList(
+                PredicateParser.Static.parse("one = alpha"),
+                PredicateParser.Static.parse("one != alpha and not one startsWith g"),
+                PredicateParser.Static.parse("one = missing or one contains et"),
+                PredicateParser.Static.parse("_id = ?", models.get(1)),
+                PredicateParser.Static.parse("set = delta"),
+                PredicateParser.Static.parse("one > b"))) {
+
+            PredicateParser.Matcher matcher = PredicateParser.Static.compile(predicate);
+            List<StringIndexModel> expected = new ArrayList<>();
+
+            for (StringIndexModel model : models) {
+                boolean evaluated = PredicateParser.Static.evaluate(model, predicate);
+
+                assertEquals(predicate.toString(), evaluated, matcher.matches(model));
+
+                if (evaluated) {
+                    expected.add(model);
+                }
+            }
+
+            assertEquals(expected, matcher.filter(models));
+            assertEquals(expected, matcher.filterParallel(models));
+        }
+    }
+}
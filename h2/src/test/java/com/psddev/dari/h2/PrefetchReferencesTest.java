@@ -0,0 +1,109 @@
+package com.psddev.dari.h2;
+
+import com.psddev.dari.db.Query;
+import com.psddev.dari.db.State;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class PrefetchReferencesTest extends AbstractTest {
+
+    private static final int SIZE = 10;
+
+    private static ReferenceModel LEAF;
+
+    @BeforeClass
+    public static void createModels() {
+        LEAF = new ReferenceModel();
+        LEAF.name = "leaf";
+        LEAF.save();
+
+        for (int i = 0; i < SIZE; ++ i) {
+            ReferenceModel middle = new ReferenceModel();
+            middle.name = "middle" + i;
+            middle.reference = LEAF;
+            middle.save();
+
+            ReferenceModel top = new ReferenceModel();
+            top.name = "top";
+            top.reference = middle;
+            top.references.add(middle);
+            top.references.add(LEAF);
+            top.save();
+        }
+    }
+
+    private boolean isPrefetched(ReferenceModel model, ReferenceModel reference) {
+        return model.getState().getExtras().containsKey(State.SUB_DATA_STATE_EXTRA_PREFIX + reference.getId());
+    }
+
+    @Test
+    public void disabled() {
+        for (ReferenceModel top : Query.from(ReferenceModel.class).where("name = top").selectAll()) {
+            assertThat(top.getState().getExtras().keySet(), not(hasItem(startsWith(State.SUB_DATA_STATE_EXTRA_PREFIX))));
+        }
+    }
+
+    @Test
+    public void depthOne() {
+        List<ReferenceModel> tops = Query.from(ReferenceModel.class)
+                .where("name = top")
+                .prefetchReferences(1)
+                .selectAll();
+
+        assertThat(tops, hasSize(SIZE));
+
+        for (ReferenceModel top : tops) {
+            assertThat(isPrefetched(top, LEAF), is(true));
+
+            ReferenceModel middle = top.getReference();
+
+            assertThat(middle.name, startsWith("middle"));
+            assertThat(isPrefetched(top, middle), is(true));
+            assertThat(isPrefetched(middle, LEAF), is(false));
+            assertThat(top.getReferences(), contains(middle, LEAF));
+        }
+    }
+
+    @Test
+    public void depthTwo() {
+        List<ReferenceModel> tops = Query.from(ReferenceModel.class)
+                .where("name = top")
+                .prefetchReferences(2)
+                .select(0, SIZE)
+                .getItems();
+
+        assertThat(tops, hasSize(SIZE));
+
+        for (ReferenceModel top : tops) {
+            ReferenceModel middle = top.getReference();
+
+            assertThat(isPrefetched(middle, LEAF), is(true));
+            assertThat(middle.getReference().name, is("leaf"));
+        }
+    }
+
+    @Test
+    public void missing() {
+        ReferenceModel missing = new ReferenceModel();
+        missing.name = "missing";
+
+        ReferenceModel model = new ReferenceModel();
+        model.name = "withMissing";
+        model.reference = missing;
+        model.save();
+
+        ReferenceModel prefetched = Query.from(ReferenceModel.class)
+                .where("name = withMissing")
+                .prefetchReferences(1)
+                .selectAll()
+                .get(0);
+
+        assertThat(isPrefetched(prefetched, missing), is(true));
+        assertThat(prefetched.getReference(), nullValue());
+    }
+}
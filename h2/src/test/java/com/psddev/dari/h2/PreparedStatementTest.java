@@ -0,0 +1,116 @@
+package com.psddev.dari.h2;
+
+import com.psddev.dari.db.Database;
+import com.psddev.dari.db.Query;
+import com.psddev.dari.sql.AbstractSqlDatabase;
+import com.psddev.dari.util.PaginatedResult;
+import com.psddev.dari.util.Stats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class PreparedStatementTest extends AbstractTest {
+
+    private static Set<ReadModel> MODELS;
+
+    @BeforeClass
+    public static void createModels() {
+        MODELS = new HashSet<>();
+
+        for (int i = 0; i < 26; ++ i) {
+            ReadModel model = new ReadModel();
+            model.text = "prepared" + (char) ('a' + i);
+            model.save();
+            MODELS.add(model);
+        }
+    }
+
+    @Before
+    public void enablePreparedStatements() {
+        Database.Static.getFirst(AbstractSqlDatabase.class).setEnablePreparedStatements(true);
+    }
+
+    @After
+    public void disablePreparedStatements() {
+        Database.Static.getFirst(AbstractSqlDatabase.class).setEnablePreparedStatements(false);
+    }
+
+    @Test
+    public void byId() {
+        for (ReadModel model : MODELS) {
+            assertThat(
+                    Query.from(ReadModel.class).where("_id = ?", model.getId()).first(),
+                    is(model));
+        }
+
+        // Every read should have gone through a prepared statement.
+        assertThat(
+                Stats.Static.getAll().stream()
+                        .filter(s -> "SQL".equals(s.getName()))
+                        .mapToLong(s -> s.getMeasurements().get("SQL: Prepare").getOverallTotalCount())
+                        .sum(),
+                greaterThanOrEqualTo((long) MODELS.size()));
+    }
+
+    @Test
+    public void byIds() {
+        List<ReadModel> expected = new ArrayList<>(MODELS).subList(0, 5);
+
+        assertThat(
+                new HashSet<>(Query.from(ReadModel.class).where("_id = ?", expected).selectAll()),
+                is(new HashSet<>(expected)));
+    }
+
+    @Test
+    public void byIndexedString() {
+        assertThat(
+                Query.from(ReadModel.class).where("text = ?", "prepareda").first().text,
+                is("prepareda"));
+    }
+
+    @Test
+    public void startsWith() {
+        assertThat(
+                Query.from(ReadModel.class).where("text startsWith ?", "prepared").count(),
+                is((long) MODELS.size()));
+    }
+
+    @Test
+    public void sortedPartial() {
+        PaginatedResult<ReadModel> result = Query.from(ReadModel.class)
+                .where("text startsWith ?", "prepared")
+                .sortDescending("text")
+                .select(1, 2);
+
+        assertThat(
+                result.getItems().stream().map(m -> m.text).collect(Collectors.toList()),
+                contains("preparedy", "preparedx"));
+
+        assertThat(result.getCount(), is((long) MODELS.size()));
+    }
+
+    @Test
+    public void sortedIterable() {
+        List<String> texts = new ArrayList<>();
+
+        Query.from(ReadModel.class)
+                .where("text startsWith ?", "prepared")
+                .sortAscending("text")
+                .iterable(5)
+                .forEach(m -> texts.add(m.text));
+
+        assertThat(texts, hasSize(MODELS.size()));
+        assertThat(texts.get(0), is("prepareda"));
+        assertThat(texts.get(25), is("preparedz"));
+    }
+}
@@ -18,16 +18,27 @@ public class ReadModel extends Record {
     @Indexed
     public Set<String> letters;
 
+    @Indexed
+    public int textLength;
+
+    @Indexed
+    public Set<Integer> letterCodes;
+
     @Override
     protected void beforeSave() {
         if (text != null) {
             int textLength = text.length();
 
+            this.textLength = textLength;
+
             if (textLength > 0) {
                 firstLetter = text.substring(0, 1);
                 letters = IntStream.range(0, textLength)
                         .mapToObj(i -> text.substring(i, i + 1))
                         .collect(Collectors.toSet());
+                letterCodes = letters.stream()
+                        .map(letter -> letter.charAt(0) - 'a')
+                        .collect(Collectors.toSet());
             }
         }
     }
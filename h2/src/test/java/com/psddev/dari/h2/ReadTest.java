@@ -3,16 +3,25 @@ package com.psddev.dari.h2;
 import com.psddev.dari.db.Database;
 import com.psddev.dari.db.Grouping;
 import com.psddev.dari.db.Query;
+import com.psddev.dari.db.State;
 import com.psddev.dari.sql.AbstractSqlDatabase;
 import com.psddev.dari.util.PaginatedResult;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
@@ -92,6 +101,97 @@ public class ReadTest extends AbstractTest {
         });
     }
 
+    @Test
+    public void allGroupedOneAggregates() {
+        List<Grouping<ReadModel>> groupings = Query.from(ReadModel.class)
+                .option(Grouping.AGGREGATE_FIELDS_QUERY_OPTION, "textLength")
+                .groupBy("firstLetter");
+
+        assertThat(
+                groupings,
+                hasSize(25));
+
+        groupings.forEach(g -> {
+            String firstLetter = (String) g.getKeys().get(0);
+            int length = firstLetter.charAt(0) - 'a';
+
+            assertThat(firstLetter, g.getCount(), is((long) length));
+            assertThat(firstLetter, g.getNonNullCount("textLength"), is((long) length));
+            assertThat(firstLetter, g.getMinimum("textLength"), is((Object) 1.0));
+            assertThat(firstLetter, g.getMaximum("textLength"), is((Object) (double) length));
+            assertThat(firstLetter, g.getSum("textLength"), is(length * (length + 1) / 2.0));
+        });
+    }
+
+    @Test
+    public void allGroupedSetAggregates() {
+        List<Grouping<ReadModel>> groupings = Query.from(ReadModel.class)
+                .option(Grouping.AGGREGATE_FIELDS_QUERY_OPTION, "textLength")
+                .groupBy("letters");
+
+        assertThat(
+                groupings,
+                hasSize(25));
+
+        groupings.forEach(g -> {
+            String letter = (String) g.getKeys().get(0);
+            long count = 0;
+
+            for (int i = 0, l = letter.charAt(0) - 'a', j = 25; i < l; ++ i, j -= 2) {
+                count += j;
+            }
+
+            assertThat(letter, g.getCount(), is(count));
+            assertThat(letter, g.getNonNullCount("textLength"), is(count));
+        });
+    }
+
+    @Test
+    public void allGroupedMultiValuedAggregates() {
+        List<Grouping<ReadModel>> groupings = Query.from(ReadModel.class)
+                .where("letters = ?", Arrays.asList("b", "c"))
+                .option(Grouping.AGGREGATE_FIELDS_QUERY_OPTION, Arrays.asList("textLength", "letterCodes"))
+                .groupBy("firstLetter");
+
+        Map<String, List<ReadModel>> expected = MODELS.stream()
+                .filter(m -> m.letters.contains("b") || m.letters.contains("c"))
+                .collect(Collectors.groupingBy(m -> m.firstLetter));
+
+        assertThat(
+                groupings,
+                hasSize(expected.size()));
+
+        groupings.forEach(g -> {
+            String firstLetter = (String) g.getKeys().get(0);
+            List<ReadModel> models = expected.get(firstLetter);
+
+            assertThat(firstLetter, g.getCount(), is((long) models.size()));
+            assertThat(firstLetter, g.getNonNullCount("textLength"), is((long) models.size()));
+            assertThat(firstLetter, g.getSum("textLength"), is(models.stream().mapToDouble(m -> m.textLength).sum()));
+            assertThat(firstLetter, g.getNonNullCount("letterCodes"), is((long) models.size()));
+            assertThat(firstLetter, g.getMinimum("letterCodes"), is((Object) models.stream().flatMap(m -> m.letterCodes.stream()).mapToDouble(c -> c).min().getAsDouble()));
+            assertThat(firstLetter, g.getMaximum("letterCodes"), is((Object) models.stream().flatMap(m -> m.letterCodes.stream()).mapToDouble(c -> c).max().getAsDouble()));
+            assertThat(firstLetter, g.getSum("letterCodes"), is(models.stream().flatMap(m -> m.letterCodes.stream()).mapToDouble(c -> c).sum()));
+        });
+    }
+
+    @Test
+    public void allGroupedAggregatesSorted() {
+        List<Grouping<ReadModel>> groupings = Query.from(ReadModel.class)
+                .option(Grouping.AGGREGATE_FIELDS_QUERY_OPTION, "textLength")
+                .sortDescending("firstLetter")
+                .groupBy("firstLetter");
+
+        assertThat(
+                groupings.stream().map(g -> (String) g.getKeys().get(0)).collect(Collectors.toList()),
+                contains(MODELS.stream().map(m -> m.firstLetter).distinct().sorted(Comparator.reverseOrder()).toArray()));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void allGroupedAggregateNotFetched() {
+        Query.from(ReadModel.class).groupBy("firstLetter").get(0).getSum("textLength");
+    }
+
     @Test
     public void count() {
         assertThat(
@@ -137,6 +237,59 @@ public class ReadTest extends AbstractTest {
         iterable(true, 1);
     }
 
+    @Test
+    public void iterableByIdSmallFetchSize() {
+        Set<ReadModel> result = new HashSet<>();
+
+        Query.from(ReadModel.class)
+                .iterable(7)
+                .forEach(result::add);
+
+        assertThat(result, is(MODELS));
+    }
+
+    @Test
+    public void iterableByIdParallelStream() {
+        Set<ReadModel> result = StreamSupport
+                .stream(Query.from(ReadModel.class).iterable(7).spliterator(), true)
+                .collect(Collectors.toSet());
+
+        assertThat(result, is(MODELS));
+    }
+
+    @Test
+    public void iterableByIdParallelStreamAllTypes() {
+        for (int i = 0; i < 10; ++ i) {
+            new WriteModel().save();
+        }
+
+        try {
+            List<UUID> ids = StreamSupport
+                    .stream(Query.fromAll().iterable(7).spliterator(), true)
+                    .map(o -> State.getInstance(o).getId())
+                    .collect(Collectors.toList());
+
+            assertThat(ids, hasSize((int) Query.fromAll().count()));
+            assertThat(new HashSet<>(ids), hasSize(ids.size()));
+
+        } finally {
+            Query.from(WriteModel.class).deleteAll();
+        }
+    }
+
+    @Test
+    public void iterableByIdClose() throws IOException {
+        Iterator<ReadModel> i = Query.from(ReadModel.class).iterable(1).iterator();
+
+        assertThat(i, instanceOf(Closeable.class));
+        assertThat(i.hasNext(), is(true));
+        i.next();
+
+        ((Closeable) i).close();
+
+        assertThat(i.hasNext(), is(false));
+    }
+
     private void iterableNext(boolean disableByIdIterator) {
         Iterator<ReadModel> i = Query
                 .from(ReadModel.class)
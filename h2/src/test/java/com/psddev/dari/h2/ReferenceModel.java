@@ -0,0 +1,23 @@
+package com.psddev.dari.h2;
+
+import com.psddev.dari.db.Record;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ReferenceModel extends Record {
+
+    @Indexed
+    public String name;
+
+    public ReferenceModel reference;
+    public final List<ReferenceModel> references = new ArrayList<>();
+
+    public ReferenceModel getReference() {
+        return reference;
+    }
+
+    public List<ReferenceModel> getReferences() {
+        return references;
+    }
+}
@@ -0,0 +1,99 @@
+package com.psddev.dari.h2;
+
+import com.psddev.dari.db.Database;
+import com.psddev.dari.db.Sequence;
+import com.psddev.dari.util.CollectionUtils;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class SequenceTest extends AbstractTest {
+
+    @Test
+    public void nextLong() {
+        long first = Sequence.Static.nextLong("nextLong", 100L);
+
+        assertThat(Sequence.Static.nextLong("nextLong", 100L), is(first + 1));
+    }
+
+    @Test
+    public void nextLongFromBlockPerDatabase() {
+        HikariDataSource dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl("jdbc:h2:mem:test" + UUID.randomUUID().toString().replaceAll("-", "") + ";DB_CLOSE_DELAY=-1");
+
+        Map<String, Object> settings = new HashMap<>();
+        CollectionUtils.putByPath(settings, H2Database.DATA_SOURCE_SUB_SETTING, dataSource);
+
+        H2Database other = new H2Database();
+        other.setName("other");
+        other.initialize("", settings);
+
+        assertThat(Sequence.Static.nextLongFromBlock("nextLongFromBlockPerDatabase", 10L), is(11L));
+
+        Database.Static.overrideDefault(other);
+
+        try {
+            assertThat(Sequence.Static.nextLongFromBlock("nextLongFromBlockPerDatabase", 20L), is(21L));
+
+        } finally {
+            Database.Static.restoreDefault();
+            dataSource.close();
+        }
+
+        assertThat(Sequence.Static.nextLongFromBlock("nextLongFromBlockPerDatabase", 10L), is(12L));
+    }
+
+    @Test
+    public void nextLongFromBlockUniqueUnderContention() throws Exception {
+        int threads = 8;
+        int perThread = 500;
+        Set<Long> values = ConcurrentHashMap.newKeySet();
+        Database database = Database.Static.getDefault();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+
+            for (int t = 0; t < threads; ++ t) {
+                futures.add(executor.submit(() -> {
+                    Database.Static.overrideDefault(database);
+
+                    try {
+                        for (int i = 0; i < perThread; ++ i) {
+                            assertTrue(values.add(Sequence.Static.nextLongFromBlock("nextLongFromBlock", 0L)));
+                        }
+
+                    } finally {
+                        Database.Static.restoreDefault();
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(values, hasSize(threads * perThread));
+        assertThat(values, everyItem(greaterThan(0L)));
+
+        // The numbers reserved for this JVM are skipped.
+        assertThat(Sequence.Static.nextLong("nextLongFromBlock", 0L), greaterThan((long) threads * perThread));
+    }
+}
@@ -0,0 +1,638 @@
+package com.psddev.dari.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.psddev.dari.util.JavaImageEditor.MEGA_BYTE;
+
+/**
+ * Index of the images in the {@link JavaImageEditor} cache directory that
+ * keeps the cache under its size limit by evicting the least recently used
+ * images, without scanning the directory.
+ *
+ * <p>The entries are kept in parallel arrays that are addressed by a linear
+ * probing table of path hashes, and the eviction picks the oldest out of a
+ * few random entries, which approximates LRU closely at a constant cost.
+ * The index is saved to a snapshot file in the cache directory every
+ * minute, so that it can be loaded without a scan on restart. The files
+ * that were written after the last snapshot are picked up by a single
+ * scan in the background.</p>
+ *
+ * <p>When the cache directory is shared, only the process that holds the
+ * lock on the snapshot writes it, so that the processes don't overwrite
+ * each other's snapshots.</p>
+ */
+class JavaImageCacheIndex implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JavaImageCacheIndex.class);
+
+    private static final String SNAPSHOT_FILE_NAME = ".dari-java-image-cache-index";
+    private static final String SNAPSHOT_LOCK_FILE_NAME = SNAPSHOT_FILE_NAME + ".lock";
+    private static final int SNAPSHOT_MAGIC = 0x4a494349;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final long SNAPSHOT_INTERVAL_SECONDS = 60L;
+
+    // Evicting down to less than the limit makes room for a burst of new
+    // images before the next eviction.
+    private static final double EVICTION_RATIO = 0.8;
+    private static final int EVICTION_SAMPLES = 8;
+    private static final int EVICTION_BATCH_SIZE = 1000;
+
+    // Matches the directories that JavaImageServlet creates from the
+    // MD5 of the request URL.
+    private static final Pattern BASE_DIRECTORY_PATTERN = Pattern.compile("[0-9a-f]{2}");
+    private static final Pattern IMAGE_DIRECTORY_PATTERN = Pattern.compile("[0-9a-f]{4}");
+
+    private static final Stats STATS = new Stats("Java Image Cache");
+
+    private final Path root;
+    private final long maximumSize;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final ScheduledExecutorService executor;
+
+    // Slot + 1 of each entry, or 0 if empty.
+    private int[] table = new int[16];
+
+    private long[] hashes = new long[8];
+    private byte[][] paths = new byte[8][];
+    private long[] sizes = new long[8];
+    // Atomic since the hits update the entries under the read lock.
+    private AtomicLongArray accesses = new AtomicLongArray(8);
+    private int count;
+    private long totalSize;
+    private volatile boolean dirty;
+
+    // Guarded by this.
+    private FileChannel snapshotLockChannel;
+    private FileLock snapshotLock;
+
+    /**
+     * @param root Cache directory. Nonnull.
+     * @param maximumSize Maximum total size of the cached images in bytes.
+     */
+    public JavaImageCacheIndex(Path root, long maximumSize) {
+        this.root = root.toAbsolutePath().normalize();
+        this.maximumSize = maximumSize;
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("dari-java-image-cache-index-%d")
+                .build());
+
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = executor;
+    }
+
+    /**
+     * Loads the index from the last snapshot, and starts saving the
+     * snapshots and scanning for the images that aren't in it.
+     */
+    public void open() {
+        Stats.Timer timer = STATS.startTimer();
+
+        try {
+            loadSnapshot();
+
+        } catch (NoSuchFileException error) {
+            // Scan below finds all the images.
+
+        } catch (IOException error) {
+            LOGGER.warn(String.format("Unable to load image cache index from %s", root), error);
+        }
+
+        timer.stop("Load");
+        lockSnapshot();
+
+        executor.scheduleWithFixedDelay(this::saveSnapshotIfDirty, SNAPSHOT_INTERVAL_SECONDS, SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        executor.execute(this::scan);
+    }
+
+    /** Returns the number of images in the index. */
+    public int getCount() {
+        lock.readLock().lock();
+
+        try {
+            return count;
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Returns the total size of the images in the index in bytes. */
+    public long getTotalSize() {
+        lock.readLock().lock();
+
+        try {
+            return totalSize;
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the given image {@code file} that was just written to the cache
+     * directory, and evicts the least recently used images in the
+     * background if the cache is over its limit.
+     *
+     * @param file Nonnull.
+     * @param size Size of the file in bytes.
+     */
+    public void add(Path file, long size) {
+        put(toBytes(file), size, System.currentTimeMillis(), true);
+    }
+
+    /**
+     * Marks the given image {@code file} as used now so that it's evicted
+     * after the images that haven't been used since.
+     *
+     * @param file Nonnull.
+     */
+    public void touch(Path file) {
+        byte[] path = toBytes(file);
+        long hash = hash(path);
+
+        lock.readLock().lock();
+
+        try {
+            int slot = findSlot(hash, path);
+
+            if (slot >= 0) {
+                accesses.set(slot, System.currentTimeMillis());
+                dirty = true;
+                return;
+            }
+
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // Not in the index yet because it was written by another process
+        // or before the scan caught up.
+        try {
+            add(file, Files.size(file));
+
+        } catch (IOException error) {
+            // Already deleted, so there's nothing to track.
+        }
+    }
+
+    /**
+     * Stops the background tasks and saves the snapshot.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        saveSnapshotIfDirty();
+        unlockSnapshot();
+    }
+
+    private byte[] toBytes(Path file) {
+        String path = root.relativize(file.toAbsolutePath().normalize()).toString();
+
+        if (file.getFileSystem().getSeparator().equals("\\")) {
+            path = path.replace('\\', '/');
+        }
+
+        return path.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long hash(byte[] path) {
+        return Hashing.murmur3_128().hashBytes(path).asLong();
+    }
+
+    private int findSlot(long hash, byte[] path) {
+        int mask = table.length - 1;
+
+        for (int i = (int) hash & mask; table[i] != 0; i = (i + 1) & mask) {
+            int slot = table[i] - 1;
+
+            if (hashes[slot] == hash && Arrays.equals(paths[slot], path)) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    // Adds or updates the entry, unless it's already there and replace is
+    // false, which is used for the entries found while scanning.
+    private void put(byte[] path, long size, long access, boolean replace) {
+        long hash = hash(path);
+
+        lock.writeLock().lock();
+
+        try {
+            int slot = findSlot(hash, path);
+
+            if (slot >= 0) {
+                if (!replace) {
+                    return;
+                }
+
+                totalSize += size - sizes[slot];
+
+            } else {
+                slot = count;
+
+                ensureCapacity(count + 1);
+                ++ count;
+                hashes[slot] = hash;
+                paths[slot] = path;
+                insertIntoTable(hash, slot);
+                totalSize += size;
+            }
+
+            sizes[slot] = size;
+            accesses.set(slot, access);
+            dirty = true;
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (totalSize > maximumSize && evicting.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::evict);
+
+            } catch (RuntimeException error) {
+                evicting.set(false);
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > hashes.length) {
+            int length = hashes.length * 2;
+
+            hashes = Arrays.copyOf(hashes, length);
+            paths = Arrays.copyOf(paths, length);
+            sizes = Arrays.copyOf(sizes, length);
+
+            AtomicLongArray newAccesses = new AtomicLongArray(length);
+
+            for (int i = 0; i < count; ++ i) {
+                newAccesses.set(i, accesses.get(i));
+            }
+
+            accesses = newAccesses;
+        }
+
+        // Keeps the load factor at or below 0.5 so that the probes are
+        // short.
+        if (capacity * 2 > table.length) {
+            table = new int[table.length * 2];
+
+            for (int slot = 0; slot < count; ++ slot) {
+                insertIntoTable(hashes[slot], slot);
+            }
+        }
+    }
+
+    private void insertIntoTable(long hash, int slot) {
+        int mask = table.length - 1;
+        int i = (int) hash & mask;
+
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+
+        table[i] = slot + 1;
+    }
+
+    private int findTableIndex(int slot) {
+        int mask = table.length - 1;
+
+        for (int i = (int) hashes[slot] & mask; table[i] != 0; i = (i + 1) & mask) {
+            if (table[i] == slot + 1) {
+                return i;
+            }
+        }
+
+        throw new IllegalStateException();
+    }
+
+    // Removes the entry by moving the last entry into its slot, so that
+    // the arrays stay dense for the random sampling.
+    private void removeSlot(int slot) {
+        removeFromTable(findTableIndex(slot));
+
+        int last = count - 1;
+        totalSize -= sizes[slot];
+
+        if (slot != last) {
+            table[findTableIndex(last)] = slot + 1;
+            hashes[slot] = hashes[last];
+            paths[slot] = paths[last];
+            sizes[slot] = sizes[last];
+            accesses.set(slot, accesses.get(last));
+        }
+
+        paths[last] = null;
+        count = last;
+        dirty = true;
+    }
+
+    // Deletes with the backward shift so that no tombstones are needed.
+    private void removeFromTable(int index) {
+        int mask = table.length - 1;
+        int hole = index;
+
+        table[hole] = 0;
+
+        for (int i = (hole + 1) & mask; table[i] != 0; i = (i + 1) & mask) {
+            int home = (int) hashes[table[i] - 1] & mask;
+
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                table[hole] = table[i];
+                table[i] = 0;
+                hole = i;
+            }
+        }
+    }
+
+    private void evict() {
+        try {
+            long target = (long) (maximumSize * EVICTION_RATIO);
+            long sizeBefore = getTotalSize();
+            long bytesDeleted = 0L;
+            int filesDeleted = 0;
+
+            if (sizeBefore <= maximumSize) {
+                return;
+            }
+
+            LOGGER.info(String.format("Image cache size (%.2fmb) exceeds limit of %.2fmb. Attempting to resize to 80%% of limit.", ((float) sizeBefore / MEGA_BYTE), ((float) maximumSize / MEGA_BYTE)));
+
+            while (!Thread.currentThread().isInterrupted()) {
+                List<byte[]> victims = new ArrayList<>();
+
+                lock.writeLock().lock();
+
+                try {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+
+                    while (totalSize > target && count > 0 && victims.size() < EVICTION_BATCH_SIZE) {
+                        int oldest = 0;
+
+                        // Few enough entries to find the exact oldest.
+                        if (count <= EVICTION_SAMPLES) {
+                            for (int i = 1; i < count; ++ i) {
+                                if (accesses.get(i) < accesses.get(oldest)) {
+                                    oldest = i;
+                                }
+                            }
+
+                        } else {
+                            oldest = random.nextInt(count);
+
+                            for (int i = 1; i < EVICTION_SAMPLES; ++ i) {
+                                int sample = random.nextInt(count);
+
+                                if (accesses.get(sample) < accesses.get(oldest)) {
+                                    oldest = sample;
+                                }
+                            }
+                        }
+
+                        victims.add(paths[oldest]);
+                        bytesDeleted += sizes[oldest];
+                        removeSlot(oldest);
+                    }
+
+                } finally {
+                    lock.writeLock().unlock();
+                }
+
+                if (victims.isEmpty()) {
+                    break;
+                }
+
+                Stats.Timer timer = STATS.startTimer();
+
+                for (byte[] victim : victims) {
+                    try {
+                        Files.deleteIfExists(root.resolve(new String(victim, StandardCharsets.UTF_8)));
+                        ++ filesDeleted;
+
+                    } catch (IOException error) {
+                        LOGGER.debug("Unable to delete cached image", error);
+                    }
+                }
+
+                timer.stop("Evict", victims.size());
+            }
+
+            LOGGER.info(String.format("Removed %s files, recoverd %.2fmb. Current size %.2fmb", filesDeleted, ((float) bytesDeleted / MEGA_BYTE), ((float) getTotalSize() / MEGA_BYTE)));
+
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    // Adds the images that aren't in the index, using their last modified
+    // times as the last access times.
+    private void scan() {
+        Stats.Timer timer = STATS.startTimer();
+        int found = 0;
+
+        try (DirectoryStream<Path> baseDirectories = Files.newDirectoryStream(root, p -> BASE_DIRECTORY_PATTERN.matcher(p.getFileName().toString()).matches())) {
+            for (Path baseDirectory : baseDirectories) {
+                if (!Files.isDirectory(baseDirectory)) {
+                    continue;
+                }
+
+                try (DirectoryStream<Path> imageDirectories = Files.newDirectoryStream(baseDirectory, p -> IMAGE_DIRECTORY_PATTERN.matcher(p.getFileName().toString()).matches())) {
+                    for (Path imageDirectory : imageDirectories) {
+                        if (!Files.isDirectory(imageDirectory)) {
+                            continue;
+                        }
+
+                        try (DirectoryStream<Path> files = Files.newDirectoryStream(imageDirectory, p -> !p.getFileName().toString().startsWith("."))) {
+                            for (Path file : files) {
+                                if (Thread.currentThread().isInterrupted()) {
+                                    return;
+                                }
+
+                                try {
+                                    if (Files.isRegularFile(file)) {
+                                        put(toBytes(file), Files.size(file), Files.getLastModifiedTime(file).toMillis(), false);
+                                        ++ found;
+                                    }
+
+                                } catch (IOException error) {
+                                    // Deleted while scanning.
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+
+        } catch (IOException error) {
+            LOGGER.warn(String.format("Unable to scan image cache in %s", root), error);
+
+        } finally {
+            timer.stop("Scan", found);
+        }
+    }
+
+    private void loadSnapshot() throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(root.resolve(SNAPSHOT_FILE_NAME))))) {
+            if (input.readInt() != SNAPSHOT_MAGIC || input.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Unrecognized image cache index snapshot!");
+            }
+
+            int snapshotCount = input.readInt();
+
+            for (int i = 0; i < snapshotCount; ++ i) {
+                byte[] path = new byte[input.readUnsignedShort()];
+
+                input.readFully(path);
+                put(path, input.readLong(), input.readLong(), false);
+            }
+        }
+
+        dirty = false;
+    }
+
+    // Tries to become the process that writes the snapshot, which fails
+    // while another process or another index in this one holds the lock.
+    private synchronized boolean lockSnapshot() {
+        if (snapshotLock != null) {
+            return true;
+        }
+
+        try {
+            if (snapshotLockChannel == null) {
+                snapshotLockChannel = FileChannel.open(root.resolve(SNAPSHOT_LOCK_FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+
+            snapshotLock = snapshotLockChannel.tryLock();
+
+        } catch (OverlappingFileLockException error) {
+            // Held by another index in this process.
+
+        } catch (IOException error) {
+            LOGGER.warn(String.format("Unable to lock image cache index in %s", root), error);
+        }
+
+        return snapshotLock != null;
+    }
+
+    private synchronized void unlockSnapshot() {
+        if (snapshotLockChannel != null) {
+            try {
+                snapshotLockChannel.close();
+
+            } catch (IOException error) {
+                // Closing the channel releases the lock regardless.
+            }
+
+            snapshotLockChannel = null;
+            snapshotLock = null;
+        }
+    }
+
+    private synchronized void saveSnapshotIfDirty() {
+        if (!dirty || !lockSnapshot()) {
+            return;
+        }
+
+        byte[][] snapshotPaths;
+        long[] snapshotSizes;
+        long[] snapshotAccesses;
+        int snapshotCount;
+
+        // Copies so that the lock isn't held while writing.
+        lock.readLock().lock();
+
+        try {
+            dirty = false;
+            snapshotCount = count;
+            snapshotPaths = Arrays.copyOf(paths, count);
+            snapshotSizes = Arrays.copyOf(sizes, count);
+            snapshotAccesses = new long[count];
+
+            for (int i = 0; i < count; ++ i) {
+                snapshotAccesses[i] = accesses.get(i);
+            }
+
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Stats.Timer timer = STATS.startTimer();
+        Path snapshot = root.resolve(SNAPSHOT_FILE_NAME);
+        Path temporary = null;
+
+        try {
+            temporary = Files.createTempFile(root, SNAPSHOT_FILE_NAME, ".tmp");
+
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                output.writeInt(SNAPSHOT_MAGIC);
+                output.writeInt(SNAPSHOT_VERSION);
+                output.writeInt(snapshotCount);
+
+                for (int i = 0; i < snapshotCount; ++ i) {
+                    output.writeShort(snapshotPaths[i].length);
+                    output.write(snapshotPaths[i]);
+                    output.writeLong(snapshotSizes[i]);
+                    output.writeLong(snapshotAccesses[i]);
+                }
+            }
+
+            Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temporary = null;
+
+        } catch (IOException error) {
+            dirty = true;
+            LOGGER.warn(String.format("Unable to save image cache index to %s", snapshot), error);
+
+        } finally {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+
+                } catch (IOException error) {
+                    // Ignore since the temporary file is unused.
+                }
+            }
+
+            timer.stop("Save", snapshotCount);
+        }
+    }
+}
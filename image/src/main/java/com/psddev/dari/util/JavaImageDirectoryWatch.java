@@ -18,6 +18,11 @@ import org.slf4j.LoggerFactory;
 
 import static com.psddev.dari.util.JavaImageEditor.MEGA_BYTE;
 
+/**
+ * @deprecated Use {@link JavaImageEditor#initCacheIndex} instead, which
+ *             tracks the cached images without scanning the directory.
+ */
+@Deprecated
 public class JavaImageDirectoryWatch implements Runnable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(JavaImageDirectoryWatch.class);
@@ -5,6 +5,7 @@ import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Polygon;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.geom.Ellipse2D;
 import java.awt.image.BufferedImage;
@@ -12,14 +13,31 @@ import java.awt.image.BufferedImageOp;
 import java.awt.image.ConvolveOp;
 import java.awt.image.Kernel;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
 import java.nio.file.FileSystems;
+import java.nio.file.Paths;
 import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.servlet.http.HttpServletRequest;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.imgscalr.Scalr;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -109,6 +127,21 @@ public class JavaImageEditor extends AbstractUrlImageEditor {
     /** Setting key for quality to use for the output images. */
     private static final String QUALITY_SETTING = "quality";
 
+    /** Setting key for the number of threads that transform the images. */
+    private static final String WORKER_THREADS_SETTING = "workerThreads";
+
+    /** Setting key for the number of transforms that can wait for a thread before new ones are rejected. */
+    private static final String WORKER_QUEUE_SIZE_SETTING = "workerQueueSize";
+
+    private static final int DEFAULT_WORKER_QUEUE_SIZE = 100;
+
+    // Source images are decoded at no less than this multiple of the
+    // output size so that the final resize still has enough pixels to
+    // sample from.
+    private static final int SUBSAMPLING_MARGIN = 2;
+
+    private static final Stats STATS = new Stats("Java Image Editor");
+
     protected static final String TIFF_READER_CLASS = "com.sun.media.imageioimpl.plugins.tiff.TIFFImageReaderSpi";
     protected static final String THUMBNAIL_COMMAND = "thumbnail";
 
@@ -119,6 +152,10 @@ public class JavaImageEditor extends AbstractUrlImageEditor {
     private boolean disableCache;
     private String cachePath;
     private Long cacheLimitInMegaBytes = 500L;
+    private int workerThreads = Runtime.getRuntime().availableProcessors();
+    private int workerQueueSize = DEFAULT_WORKER_QUEUE_SIZE;
+    private ThreadPoolExecutor workers;
+    private volatile JavaImageCacheIndex cacheIndex;
 
     public Scalr.Method getQuality() {
         return quality;
@@ -186,6 +223,22 @@ public class JavaImageEditor extends AbstractUrlImageEditor {
         this.cacheLimitInMegaBytes = cacheLimitInMegaBytes;
     }
 
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public int getWorkerQueueSize() {
+        return workerQueueSize;
+    }
+
+    public void setWorkerQueueSize(int workerQueueSize) {
+        this.workerQueueSize = workerQueueSize;
+    }
+
     @Override
     public String getBaseUrl() {
 
@@ -445,6 +498,14 @@ public class JavaImageEditor extends AbstractUrlImageEditor {
             setErrorImage(ObjectUtils.to(String.class, settings.get("errorImage")));
         }
 
+        if (!ObjectUtils.isBlank(settings.get(WORKER_THREADS_SETTING))) {
+            setWorkerThreads(ObjectUtils.to(int.class, settings.get(WORKER_THREADS_SETTING)));
+        }
+
+        if (!ObjectUtils.isBlank(settings.get(WORKER_QUEUE_SIZE_SETTING))) {
+            setWorkerQueueSize(ObjectUtils.to(int.class, settings.get(WORKER_QUEUE_SIZE_SETTING)));
+        }
+
         if (!ObjectUtils.isBlank(settings.get("disableCache"))) {
             setDisableCache(ObjectUtils.to(Boolean.class, settings.get("disableCache")));
         }
@@ -458,12 +519,44 @@ public class JavaImageEditor extends AbstractUrlImageEditor {
                 setCacheLimitInMegaBytes(ObjectUtils.to(Long.class, settings.get("cacheLimitInMegaBytes")));
             }
 
-            initWatchService(getCacheLimitInMegaBytes() * MEGA_BYTE);
+            initCacheIndex(getCacheLimitInMegaBytes() * MEGA_BYTE);
 
         }
 
     }
 
+    /**
+     * Starts tracking the images in the cache directory so that the least
+     * recently used ones are removed when the total size of the cache
+     * exceeds the given {@code maximumCacheSizeInBytes}.
+     *
+     * @param maximumCacheSizeInBytes If {@code null}, uses
+     *        {@link #getCacheLimitInMegaBytes}.
+     */
+    public synchronized void initCacheIndex(Long maximumCacheSizeInBytes) {
+        if (maximumCacheSizeInBytes == null) {
+            maximumCacheSizeInBytes = cacheLimitInMegaBytes * MEGA_BYTE;
+        }
+
+        if (cacheIndex != null) {
+            cacheIndex.close();
+        }
+
+        cacheIndex = new JavaImageCacheIndex(Paths.get(getCachePath()), maximumCacheSizeInBytes);
+        cacheIndex.open();
+    }
+
+    /**
+     * Returns the index of the images in the cache directory.
+     *
+     * @return {@code null} if the cache isn't used.
+     */
+    JavaImageCacheIndex getCacheIndex() {
+        return cacheIndex;
+    }
+
+    /** @deprecated Use {@link #initCacheIndex} instead. */
+    @Deprecated
     public void initWatchService(Long maximumCacheSizeInBytes) {
 
         if (maximumCacheSizeInBytes == null) {
@@ -482,6 +575,184 @@ public class JavaImageEditor extends AbstractUrlImageEditor {
         }
     }
 
+    private synchronized ThreadPoolExecutor getWorkers() {
+        if (workers == null) {
+            int threads = Math.max(1, workerThreads);
+
+            workers = new ThreadPoolExecutor(
+                    threads,
+                    threads,
+                    60L,
+                    TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, workerQueueSize)),
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("dari-java-image-editor-%d")
+                            .build());
+
+            workers.allowCoreThreadTimeOut(true);
+        }
+
+        return workers;
+    }
+
+    /**
+     * Throws a {@link RejectedExecutionException} if too many transforms are
+     * already waiting for a thread, so that the caller can give up before
+     * doing any work for a transform that would be rejected anyway.
+     */
+    public void checkTransformCapacity() {
+        if (getWorkers().getQueue().remainingCapacity() == 0) {
+            STATS.startTimer().stop("Reject");
+            throw new RejectedExecutionException("Too many image transforms waiting for a thread!");
+        }
+    }
+
+    /**
+     * Runs the given image {@code transform} on the bounded pool of worker
+     * threads and waits for its result, so that the number of images that
+     * are transformed at the same time doesn't grow with the number of
+     * requests. The pool is sized for the CPU, so the transform shouldn't
+     * wait on any I/O.
+     *
+     * @param transform Nonnull.
+     * @throws RejectedExecutionException If too many transforms are already
+     *         waiting for a thread.
+     */
+    public <T> T transform(Callable<T> transform) throws IOException {
+        Stats.Timer queueTimer = STATS.startTimer();
+        Future<T> future;
+
+        try {
+            future = getWorkers().submit(() -> {
+                queueTimer.stop("Queue");
+
+                Stats.Timer timer = STATS.startTimer();
+
+                try {
+                    return transform.call();
+
+                } finally {
+                    timer.stop("Transform");
+                }
+            });
+
+        } catch (RejectedExecutionException error) {
+            STATS.startTimer().stop("Reject");
+            throw error;
+        }
+
+        try {
+            return future.get();
+
+        } catch (InterruptedException error) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the image transform!", error);
+
+        } catch (ExecutionException error) {
+            Throwable cause = error.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    /**
+     * Reads the image at the given {@code url}, decoding only the pixels
+     * within the given {@code region}, and skipping the rows and the
+     * columns that aren't needed to produce an image of the given
+     * {@code width} and {@code height}.
+     *
+     * <p>The image that's returned is still at least twice as large as the
+     * given size, but can be much smaller than the source, so it should be
+     * resized afterwards.</p>
+     *
+     * @param url Nonnull.
+     * @param region If {@code null}, reads the entire image. Otherwise,
+     *        it's clipped to the bounds of the image.
+     * @param width If {@code null} or not positive, doesn't limit the
+     *        subsampling based on the width.
+     * @param height If {@code null} or not positive, doesn't limit the
+     *        subsampling based on the height.
+     * @return {@code null} if the image format isn't supported.
+     * @throws IllegalArgumentException If the region is outside the image.
+     */
+    public BufferedImage read(URL url, Rectangle region, Integer width, Integer height) throws IOException {
+        try (InputStream input = url.openStream();
+                ImageInputStream imageInput = ImageIO.createImageInputStream(input)) {
+
+            if (imageInput == null) {
+                return null;
+            }
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInput);
+
+            if (!readers.hasNext()) {
+                return null;
+            }
+
+            ImageReader reader = readers.next();
+
+            try {
+                reader.setInput(imageInput, true, true);
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                Rectangle source = new Rectangle(reader.getWidth(0), reader.getHeight(0));
+
+                if (region != null) {
+                    source = source.intersection(region);
+
+                    if (source.isEmpty()) {
+                        throw new IllegalArgumentException(String.format(
+                                "Region %s is outside the image!", region));
+                    }
+
+                    param.setSourceRegion(source);
+                }
+
+                int subsampling = Math.min(
+                        getSubsampling(source.width, width),
+                        getSubsampling(source.height, height));
+
+                if (subsampling == Integer.MAX_VALUE) {
+                    subsampling = 1;
+
+                } else if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+
+                Stats.Timer timer = STATS.startTimer();
+
+                try {
+                    return reader.read(0, param);
+
+                } finally {
+                    timer.stop(subsampling > 1 ? "Subsampled Read" : "Read");
+                }
+
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    static int getSubsampling(int sourceSize, Integer size) {
+        return size != null && size > 0
+                ? Math.max(1, sourceSize / (size * SUBSAMPLING_MARGIN))
+                : Integer.MAX_VALUE;
+    }
+
     protected String getBaseUrlFromRequest(HttpServletRequest request) {
 
         StringBuilder baseUrlBuilder = new StringBuilder();
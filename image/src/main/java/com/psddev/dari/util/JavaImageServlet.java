@@ -1,15 +1,20 @@
 package com.psddev.dari.util;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
@@ -17,6 +22,15 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.imageio.ImageIO;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -25,15 +39,37 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.imgscalr.Scalr;
 import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 @RoutingFilter.Path(application = "_image", value = "")
 public class JavaImageServlet extends HttpServlet {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JavaImageServlet.class);
     private static final List<String> BASIC_COMMANDS = Arrays.asList("circle", "grayscale", "invert", "sepia", "star", "starburst", "flipH", "flipV", "sharpen", "blur"); //Commands that don't require a value
     private static final List<String> PNG_COMMANDS = Arrays.asList("circle", "star", "starburst"); //Commands that return a PNG regardless of input
     private static final String QUALITY_OPTION = "quality";
+    private static final Pattern RANGE_PATTERN = Pattern.compile("^bytes=(\\d{0,18})-(\\d{0,18})$");
+    private static final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
     private static SimpleDateFormat expiresDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz");
     protected static final String SERVLET_PATH = StringUtils.ensureEnd(RoutingFilter.Static.getApplicationPath("_image"), "/");
 
+    //Renders in progress keyed by the request URL, so that the concurrent requests for the same image share one render
+    private static final ConcurrentMap<String, CompletableFuture<RenderedImage>> RENDERS = new ConcurrentHashMap<>();
+
+    private final JavaImageEditor javaImageEditor;
+
+    public JavaImageServlet() {
+        this(null);
+    }
+
+    //Uses the given editor instead of the one from the settings
+    JavaImageServlet(JavaImageEditor javaImageEditor) {
+        this.javaImageEditor = javaImageEditor;
+    }
+
     @Override
     public void service(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
 
@@ -58,7 +94,9 @@ public class JavaImageServlet extends HttpServlet {
                 imageType = "gif";
             }
 
-            JavaImageEditor javaImageEditor = ObjectUtils.to(JavaImageEditor.class, ImageEditor.Static.getInstance(ImageEditor.JAVA_IMAGE_EDITOR_NAME));
+            JavaImageEditor javaImageEditor = this.javaImageEditor != null
+                    ? this.javaImageEditor
+                    : ObjectUtils.to(JavaImageEditor.class, ImageEditor.Static.getInstance(ImageEditor.JAVA_IMAGE_EDITOR_NAME));
 
             if (Settings.isProduction() && ObjectUtils.isBlank(javaImageEditor.getSharedSecret())) {
                 response.sendError(HttpServletResponse.SC_NOT_FOUND);
@@ -102,6 +140,7 @@ public class JavaImageServlet extends HttpServlet {
             }
 
             //Local Cache
+            String requestUrl = request.getQueryString() != null ? request.getServletPath() + "?" + request.getQueryString() : request.getServletPath();
             File file = null;
             if (cacheImage) {
                 String cachePath = javaImageEditor.getCachePath();
@@ -109,7 +148,6 @@ public class JavaImageServlet extends HttpServlet {
                     cachePath += "/";
                 }
 
-                String requestUrl = request.getQueryString() != null ? request.getServletPath() + "?" + request.getQueryString() : request.getServletPath();
                 String md5Hex = StringUtils.hex(StringUtils.md5(requestUrl));
                 String baseDir = cachePath + md5Hex.substring(0, 2);
                 String imageDir = baseDir + "/" + md5Hex.substring(2, 6);
@@ -142,342 +180,618 @@ public class JavaImageServlet extends HttpServlet {
                 filePath = imageFolder + "/" + filePath;
                 file = new File(filePath);
                 if (file.exists() && !file.isDirectory()) {
-                    ServletOutputStream out = response.getOutputStream();
+                    JavaImageCacheIndex cacheIndex = javaImageEditor.getCacheIndex();
+                    if (cacheIndex != null) {
+                        cacheIndex.touch(file.toPath());
+                    }
 
-                    response.setHeader("Content-Type", "image/" + imageType);
-                    response.setContentLength((int) file.length());
+                    sendFile(request, response, file, "image/" + imageType);
+                    return;
+                }
+            }
 
-                    BufferedInputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+            RenderedImage renderedImage;
 
-                    int b;
-                    while ((b = inputStream.read()) != -1) {
-                        out.write(b);
-                    }
+            try {
+                renderedImage = render(requestUrl, file, request, javaImageEditor, imageUrl, parameters, imageType);
 
-                    inputStream.close();
-                    out.close();
+            } catch (RejectedExecutionException error) {
+                response.setHeader("Retry-After", "1");
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
 
-                    return;
-                }
+            //Sent from the cache file when there is one, so that the ETag matches the one on the later requests
+            if (file != null && file.isFile()) {
+                sendFile(request, response, file, "image/" + renderedImage.imageType);
+            } else {
+                sendData(request, response, renderedImage.data, "image/" + renderedImage.imageType, renderedImage.eTag);
             }
+        } else {
+            throw new IOException("No source image provided");
+        }
+    }
+
+    //Renders the image only once for all concurrent requests with the same key, and saves it in the local cache file if one is given
+    private RenderedImage render(String key, File file, HttpServletRequest request, JavaImageEditor javaImageEditor, String imageUrl, String[] parameters, String imageType) throws IOException {
+        CompletableFuture<RenderedImage> future = new CompletableFuture<>();
+        CompletableFuture<RenderedImage> existing = RENDERS.putIfAbsent(key, future);
 
-            BufferedImage bufferedImage;
+        if (existing != null) {
+            long waitSeconds = Settings.getOrDefault(Long.class, "dari/imageEditor/_java/renderWaitSeconds", 30L);
 
             try {
-                if (!imageUrl.startsWith("http")) {
-                    imageUrl = JspUtils.getAbsoluteUrl(request, imageUrl);
-                }
+                return existing.get(waitSeconds, TimeUnit.SECONDS);
+
+            } catch (TimeoutException error) {
+                //The other render may be stuck on a slow source, so don't make this request wait any longer
+                LOGGER.warn(String.format("Timed out waiting %s seconds for the concurrent render of image %s, rendering it again", waitSeconds, imageUrl));
+                return renderNow(file, request, javaImageEditor, imageUrl, parameters, imageType);
+
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+                throw new IOException(String.format("Interrupted while waiting for image %s", imageUrl), error);
 
-                URL url = new URL(imageUrl);
-                URI uri = new URI(url.getProtocol(), url.getAuthority(), url.getPath(), url.getQuery(), url.getRef());
+            } catch (ExecutionException error) {
+                Throwable cause = error.getCause();
+
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
 
-                if ((imageUrl.endsWith("tif") || imageUrl.endsWith("tiff")) && ObjectUtils.getClassByName(JavaImageEditor.TIFF_READER_CLASS) != null) {
-                    bufferedImage = JavaImageTiffReader.readTiff(uri.toString());
                 } else {
-                    bufferedImage = ImageIO.read(new URL(uri.toString()));
+                    throw new IOException(String.format("Unable to process image %s", imageUrl), cause);
                 }
-            } catch (URISyntaxException ex) {
-                bufferedImage = null;
             }
+        }
+
+        try {
+            RenderedImage renderedImage = renderNow(file, request, javaImageEditor, imageUrl, parameters, imageType);
+
+            future.complete(renderedImage);
+            return renderedImage;
+
+        } catch (IOException | RuntimeException | Error error) {
+            future.completeExceptionally(error);
+            throw error;
+
+        } finally {
+            RENDERS.remove(key, future);
+        }
+    }
 
-            if (bufferedImage == null) {
-                throw new IOException(String.format("Unable to process image %s", imageUrl));
+    private RenderedImage renderNow(File file, HttpServletRequest request, JavaImageEditor javaImageEditor, String imageUrl, String[] parameters, String imageType) throws IOException {
+        String absoluteImageUrl = imageUrl.startsWith("http") ? imageUrl : JspUtils.getAbsoluteUrl(request, imageUrl);
+        DecodeHint decodeHint = isTiff(absoluteImageUrl) ? null : findDecodeHint(parameters, !StringUtils.isBlank(javaImageEditor.getSharedSecret()));
+
+        //Downloads and decodes the source in the request thread, since the transform pool is sized for the CPU and shouldn't wait on the network
+        //But not when the transform would be rejected anyway
+        javaImageEditor.checkTransformCapacity();
+
+        BufferedImage source = readImage(javaImageEditor, absoluteImageUrl, decodeHint);
+        RenderedImage renderedImage = javaImageEditor.transform(() -> renderImage(javaImageEditor, source, decodeHint, parameters, imageType));
+
+        if (file != null) {
+            writeCacheFile(javaImageEditor.getCacheIndex(), file, renderedImage.data);
+        }
+
+        return renderedImage;
+    }
+
+    //Writes to a temporary file first so that the concurrent requests never see a partially written image
+    private void writeCacheFile(JavaImageCacheIndex cacheIndex, File file, byte[] data) {
+        Path path = file.toPath();
+        Path temporaryPath = null;
+
+        try {
+            temporaryPath = Files.createTempFile(path.getParent(), ".", ".tmp");
+            Files.write(temporaryPath, data);
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            if (cacheIndex != null) {
+                cacheIndex.add(path, data.length);
             }
 
-            Scalr.Method quality = null;
-            for (int i = 0; i < parameters.length; i = i + 2) {
-                String command = parameters[i];
+        } catch (IOException error) {
+            LOGGER.warn(String.format("Unable to cache image in %s", file), error);
 
-                if (command.equals(QUALITY_OPTION)) {
-                    String value = parameters[i + 1];
-                    try {
-                        quality = Scalr.Method.valueOf(Scalr.Method.class, value.toUpperCase());
-                    } catch (IllegalArgumentException ex) {
-                        quality = javaImageEditor.findQualityByInteger(Integer.parseInt(value));
-                    }
+            if (temporaryPath != null) {
+                try {
+                    Files.deleteIfExists(temporaryPath);
+                } catch (IOException deleteError) {
+                    //Ignore since the temporary file is unused
                 }
             }
+        }
+    }
 
-            for (int i = 0; i < parameters.length; i = i + 2) {
-                String command = parameters[i];
-                String value = i + 1 < parameters.length ? parameters[i + 1] : "";
-                boolean validComand = true;
-
-                if (command.equals(ImageEditor.RESIZE_COMMAND)) {
-                    String option = null;
-                    Integer width = null;
-                    Integer height = null;
-
-                    if (value.endsWith("!")) {
-                        option = ImageEditor.RESIZE_OPTION_IGNORE_ASPECT_RATIO;
-                    } else if (value.endsWith(">")) {
-                        option = ImageEditor.RESIZE_OPTION_ONLY_SHRINK_LARGER;
-                    } else if (value.endsWith("<")) {
-                        option = ImageEditor.RESIZE_OPTION_ONLY_ENLARGE_SMALLER;
-                    } else if (value.endsWith("^")) {
-                        option = ImageEditor.RESIZE_OPTION_FILL_AREA;
-                    }
-                    if (option != null) {
-                        value = value.substring(0, value.length() - 1);
-                    }
+    private static boolean isTiff(String imageUrl) {
+        return (imageUrl.endsWith("tif") || imageUrl.endsWith("tiff")) && ObjectUtils.getClassByName(JavaImageEditor.TIFF_READER_CLASS) != null;
+    }
 
-                    String[] wh = value.split("x");
-                    width = parseInteger(wh[0]);
-                    if (wh.length == 2) {
-                        height = parseInteger(wh[1]);
-                    }
+    //Only decodes the region and the resolution in the given hint, which is null for TIFF images
+    private BufferedImage readImage(JavaImageEditor javaImageEditor, String imageUrl, DecodeHint decodeHint) throws IOException {
+        BufferedImage bufferedImage;
 
-                    bufferedImage = javaImageEditor.reSize(bufferedImage, width, height, option, quality);
+        try {
+            URL url = new URL(imageUrl);
+            URI uri = new URI(url.getProtocol(), url.getAuthority(), url.getPath(), url.getQuery(), url.getRef());
 
-                } else if (command.equals(ImageEditor.CROP_COMMAND)) {
-                    Integer x = 0;
-                    Integer y = 0;
-                    Integer width = null;
-                    Integer height = null;
-                    String[] size;
+            if (decodeHint == null) {
+                bufferedImage = JavaImageTiffReader.readTiff(uri.toString());
+            } else {
+                bufferedImage = javaImageEditor.read(new URL(uri.toString()), decodeHint.region, decodeHint.width, decodeHint.height);
+            }
+        } catch (URISyntaxException ex) {
+            bufferedImage = null;
+        }
 
-                    if (value.contains("+")) {
-                        int delimiter = value.indexOf("+");
-                        String[] xy = value.substring(delimiter + 1).split("\\+");
+        if (bufferedImage == null) {
+            throw new IOException(String.format("Unable to process image %s", imageUrl));
+        }
 
-                        x = parseInteger(xy[0]) != null ? parseInteger(xy[0]) : 0;
-                        y = parseInteger(xy[1]) != null ? parseInteger(xy[1]) : 0;
+        return bufferedImage;
+    }
 
-                        size = value.substring(0, delimiter).split("x");
+    private RenderedImage renderImage(JavaImageEditor javaImageEditor, BufferedImage bufferedImage, DecodeHint decodeHint, String[] parameters, String imageType) throws IOException {
+        Scalr.Method quality = null;
+        for (int i = 0; i < parameters.length; i = i + 2) {
+            String command = parameters[i];
+
+            if (command.equals(QUALITY_OPTION)) {
+                String value = parameters[i + 1];
+                try {
+                    quality = Scalr.Method.valueOf(Scalr.Method.class, value.toUpperCase());
+                } catch (IllegalArgumentException ex) {
+                    quality = javaImageEditor.findQualityByInteger(Integer.parseInt(value));
+                }
+            }
+        }
 
-                    } else {
-                        size = value.split("x");
-                        if (size.length > 3) {
-                            x = parseInteger(size[0]) != null ? parseInteger(size[0]) : 0;
-                            y = parseInteger(size[1]) != null ? parseInteger(size[1]) : 0;
-                            size[0] = size[2];
-                            size[1] = size[3];
-                        }
-                    }
+        for (int i = 0; i < parameters.length; i = i + 2) {
+            String command = parameters[i];
+            String value = i + 1 < parameters.length ? parameters[i + 1] : "";
+            boolean validComand = true;
 
-                    width = parseInteger(size[0]);
-                    if (size.length > 1) {
-                        height = parseInteger(size[1]);
-                    }
+            //The crop was already applied while decoding
+            if (decodeHint != null && i == decodeHint.regionIndex) {
+                continue;
+            }
 
-                    bufferedImage = javaImageEditor.crop(bufferedImage, x, y, width, height);
+            if (command.equals(ImageEditor.RESIZE_COMMAND)) {
+                String option = null;
+                Integer width = null;
+                Integer height = null;
+
+                if (value.endsWith("!")) {
+                    option = ImageEditor.RESIZE_OPTION_IGNORE_ASPECT_RATIO;
+                } else if (value.endsWith(">")) {
+                    option = ImageEditor.RESIZE_OPTION_ONLY_SHRINK_LARGER;
+                } else if (value.endsWith("<")) {
+                    option = ImageEditor.RESIZE_OPTION_ONLY_ENLARGE_SMALLER;
+                } else if (value.endsWith("^")) {
+                    option = ImageEditor.RESIZE_OPTION_FILL_AREA;
+                }
+                if (option != null) {
+                    value = value.substring(0, value.length() - 1);
+                }
 
-                } else if (command.equals(JavaImageEditor.THUMBNAIL_COMMAND)) {
-                    String option = null;
+                String[] wh = value.split("x");
+                width = parseInteger(wh[0]);
+                if (wh.length == 2) {
+                    height = parseInteger(wh[1]);
+                }
 
-                    if (value.endsWith("!")) {
-                        option = ImageEditor.RESIZE_OPTION_IGNORE_ASPECT_RATIO;
-                    } else if (value.endsWith(">")) {
-                        option = ImageEditor.RESIZE_OPTION_ONLY_SHRINK_LARGER;
-                    } else if (value.endsWith("<")) {
-                        option = ImageEditor.RESIZE_OPTION_ONLY_ENLARGE_SMALLER;
-                    } else if (value.endsWith("^")) {
-                        option = ImageEditor.RESIZE_OPTION_FILL_AREA;
-                    }
-                    if (option != null) {
-                        value = value.substring(0, value.length() - 1);
-                    }
+                bufferedImage = javaImageEditor.reSize(bufferedImage, width, height, option, quality);
 
-                    String[] wh = value.split("x");
-                    if (ObjectUtils.isBlank(wh) || wh.length < 2) {
-                        continue;
-                    }
-                    Integer width = ObjectUtils.to(Integer.class, wh[0]);
-                    Integer height = ObjectUtils.to(Integer.class, wh[1]);
+            } else if (command.equals(ImageEditor.CROP_COMMAND)) {
+                Integer[] crop = parseCrop(value);
 
-                    int resizeHeight =  height;
-                    int resizeWidth = width;
+                bufferedImage = javaImageEditor.crop(bufferedImage, crop[0], crop[1], crop[2], crop[3]);
 
-                    if (option == null || !option.equals(ImageEditor.RESIZE_OPTION_IGNORE_ASPECT_RATIO)) {
-                        resizeHeight = (int) ((double) bufferedImage.getHeight() / (double) bufferedImage.getWidth() * (double) width);
-                        resizeWidth  = (int) ((double) bufferedImage.getWidth() / (double) bufferedImage.getHeight() * (double) height);
-                    }
+            } else if (command.equals(JavaImageEditor.THUMBNAIL_COMMAND)) {
+                String option = null;
 
-                    bufferedImage = javaImageEditor.reSize(bufferedImage, resizeWidth, resizeHeight, option, quality);
-                    if ((width != bufferedImage.getWidth() || height != bufferedImage.getHeight())) {
+                if (value.endsWith("!")) {
+                    option = ImageEditor.RESIZE_OPTION_IGNORE_ASPECT_RATIO;
+                } else if (value.endsWith(">")) {
+                    option = ImageEditor.RESIZE_OPTION_ONLY_SHRINK_LARGER;
+                } else if (value.endsWith("<")) {
+                    option = ImageEditor.RESIZE_OPTION_ONLY_ENLARGE_SMALLER;
+                } else if (value.endsWith("^")) {
+                    option = ImageEditor.RESIZE_OPTION_FILL_AREA;
+                }
+                if (option != null) {
+                    value = value.substring(0, value.length() - 1);
+                }
 
-                        //Allows for crop when reSized size is slightly off
-                        if (width > bufferedImage.getWidth() && (width - 2) <= bufferedImage.getWidth()) {
-                            width = bufferedImage.getWidth();
-                        }
+                String[] wh = value.split("x");
+                if (ObjectUtils.isBlank(wh) || wh.length < 2) {
+                    continue;
+                }
+                Integer width = ObjectUtils.to(Integer.class, wh[0]);
+                Integer height = ObjectUtils.to(Integer.class, wh[1]);
 
-                        if (height > bufferedImage.getHeight() && (height - 2) <= bufferedImage.getHeight()) {
-                            height = bufferedImage.getHeight();
-                        }
+                int resizeHeight =  height;
+                int resizeWidth = width;
 
-                        int x = 0;
-                        int y = 0;
+                if (option == null || !option.equals(ImageEditor.RESIZE_OPTION_IGNORE_ASPECT_RATIO)) {
+                    resizeHeight = (int) ((double) bufferedImage.getHeight() / (double) bufferedImage.getWidth() * (double) width);
+                    resizeWidth  = (int) ((double) bufferedImage.getWidth() / (double) bufferedImage.getHeight() * (double) height);
+                }
 
-                        //center automatic crop
-                        if (bufferedImage.getWidth() > width) {
-                            x = (bufferedImage.getWidth() - width) / 2;
-                        }
-                        if (bufferedImage.getHeight() > height) {
-                            y = (bufferedImage.getHeight() - height) / 2;
-                        }
+                bufferedImage = javaImageEditor.reSize(bufferedImage, resizeWidth, resizeHeight, option, quality);
+                if ((width != bufferedImage.getWidth() || height != bufferedImage.getHeight())) {
 
-                        if (width <= bufferedImage.getWidth() && height <= bufferedImage.getHeight()) {
-                            bufferedImage = javaImageEditor.crop(bufferedImage, x, y, width, height);
-                        }
+                    //Allows for crop when reSized size is slightly off
+                    if (width > bufferedImage.getWidth() && (width - 2) <= bufferedImage.getWidth()) {
+                        width = bufferedImage.getWidth();
                     }
 
-                } else if (command.equals("grayscale")) {
-                    bufferedImage = javaImageEditor.grayscale(bufferedImage);
+                    if (height > bufferedImage.getHeight() && (height - 2) <= bufferedImage.getHeight()) {
+                        height = bufferedImage.getHeight();
+                    }
 
-                } else if (command.equals("brightness")) {
-                    String[] wh = value.split("x");
-                    Double brightness = Double.valueOf(wh[0]);
-                    Double contrast = wh.length > 1 ? Double.valueOf(wh[1]) : 0.0d;
+                    int x = 0;
+                    int y = 0;
 
-                    if (Math.abs(brightness) < 0) {
-                        brightness *= 100;
+                    //center automatic crop
+                    if (bufferedImage.getWidth() > width) {
+                        x = (bufferedImage.getWidth() - width) / 2;
+                    }
+                    if (bufferedImage.getHeight() > height) {
+                        y = (bufferedImage.getHeight() - height) / 2;
                     }
 
-                    if (Math.abs(contrast) < 0) {
-                        contrast *= 100;
+                    if (width <= bufferedImage.getWidth() && height <= bufferedImage.getHeight()) {
+                        bufferedImage = javaImageEditor.crop(bufferedImage, x, y, width, height);
                     }
+                }
+
+            } else if (command.equals("grayscale")) {
+                bufferedImage = javaImageEditor.grayscale(bufferedImage);
+
+            } else if (command.equals("brightness")) {
+                String[] wh = value.split("x");
+                Double brightness = Double.valueOf(wh[0]);
+                Double contrast = wh.length > 1 ? Double.valueOf(wh[1]) : 0.0d;
+
+                if (Math.abs(brightness) < 0) {
+                    brightness *= 100;
+                }
+
+                if (Math.abs(contrast) < 0) {
+                    contrast *= 100;
+                }
+
+                bufferedImage = javaImageEditor.brightness(bufferedImage, brightness.intValue(), contrast.intValue());
 
-                    bufferedImage = javaImageEditor.brightness(bufferedImage, brightness.intValue(), contrast.intValue());
+            } else if (command.equals("sharpen")) {
+                Integer ammount = null;
+                try {
+                    ammount = Integer.parseInt(value);
+                } catch (NumberFormatException ex) {
+                    ammount = 2;
+                }
+                bufferedImage = javaImageEditor.sharpen(bufferedImage, ammount);
+
+            } else if (command.equals("blur")) {
+                int defaultBlur = 1;
+
+                if (value.contains("x")) {
+                    String[] axywh = value.split("x");
+                    int ammount = defaultBlur;
+                    int sizeOffset = 0;
+                    if (axywh.length > 4) {
+                        ammount = Integer.parseInt(axywh[0]);
+                        sizeOffset = 1;
+                    }
+                    int x = Integer.parseInt(axywh[sizeOffset]);
+                    int y = Integer.parseInt(axywh[sizeOffset + 1]);
+                    int w = Integer.parseInt(axywh[sizeOffset + 2]);
+                    int h = Integer.parseInt(axywh[sizeOffset + 3]);
 
-                } else if (command.equals("sharpen")) {
+                    bufferedImage = javaImageEditor.blurArea(bufferedImage, ammount, x, y, w, h);
+                } else {
                     Integer ammount = null;
                     try {
                         ammount = Integer.parseInt(value);
                     } catch (NumberFormatException ex) {
-                        ammount = 2;
-                    }
-                    bufferedImage = javaImageEditor.sharpen(bufferedImage, ammount);
-
-                } else if (command.equals("blur")) {
-                    int defaultBlur = 1;
-
-                    if (value.contains("x")) {
-                        String[] axywh = value.split("x");
-                        int ammount = defaultBlur;
-                        int sizeOffset = 0;
-                        if (axywh.length > 4) {
-                            ammount = Integer.parseInt(axywh[0]);
-                            sizeOffset = 1;
-                        }
-                        int x = Integer.parseInt(axywh[sizeOffset]);
-                        int y = Integer.parseInt(axywh[sizeOffset + 1]);
-                        int w = Integer.parseInt(axywh[sizeOffset + 2]);
-                        int h = Integer.parseInt(axywh[sizeOffset + 3]);
-
-                        bufferedImage = javaImageEditor.blurArea(bufferedImage, ammount, x, y, w, h);
-                    } else {
-                        Integer ammount = null;
-                        try {
-                            ammount = Integer.parseInt(value);
-                        } catch (NumberFormatException ex) {
-                            ammount = defaultBlur;
-                        }
-                        bufferedImage = javaImageEditor.blur(bufferedImage, ammount);
+                        ammount = defaultBlur;
                     }
+                    bufferedImage = javaImageEditor.blur(bufferedImage, ammount);
+                }
 
-                } else if (command.equals("contrast")) {
-                    Double contrast = Double.valueOf(value);
-                    if (Math.abs(contrast) < 0) {
-                        contrast *= 100;
-                    }
+            } else if (command.equals("contrast")) {
+                Double contrast = Double.valueOf(value);
+                if (Math.abs(contrast) < 0) {
+                    contrast *= 100;
+                }
 
-                    bufferedImage = javaImageEditor.brightness(bufferedImage, 0, contrast.intValue());
+                bufferedImage = javaImageEditor.brightness(bufferedImage, 0, contrast.intValue());
 
-                } else if (command.equals("flipflop")) {
-                    if (value.equals("horizontal")) {
-                        bufferedImage = javaImageEditor.flipHorizontal(bufferedImage);
-                    } else if (value.equals("vertical")) {
-                        bufferedImage = javaImageEditor.flipVertical(bufferedImage);
-                    }
-                } else if (command.equals("flipH")) {
+            } else if (command.equals("flipflop")) {
+                if (value.equals("horizontal")) {
                     bufferedImage = javaImageEditor.flipHorizontal(bufferedImage);
-                } else if (command.equals("flipV")) {
+                } else if (value.equals("vertical")) {
                     bufferedImage = javaImageEditor.flipVertical(bufferedImage);
-                } else if (command.equals("invert")) {
-                    bufferedImage = javaImageEditor.invert(bufferedImage);
-
-                } else if (command.equals("rotate")) {
-                    bufferedImage = javaImageEditor.rotate(bufferedImage, Integer.valueOf(parameters[i + 1]));
-
-                } else if (command.equals("sepia")) {
-                    bufferedImage = javaImageEditor.sepia(bufferedImage);
-
-                } else if (command.equals("format")) {
-                    imageType = value;
-
-                } else if (command.equals("circle")) {
-                    bufferedImage = javaImageEditor.circle(bufferedImage);
-
-                } else if (command.equals("star")) {
-                    bufferedImage = javaImageEditor.star(bufferedImage);
-
-                } else if (command.equals("starburst")) {
-                    int size = 5;
-                    int count = 30;
-                    if (value.contains("x")) {
-                        String[] sc = value.split("x");
-                        if (!StringUtils.isBlank(sc[0])) {
-                            size = Integer.parseInt(sc[0]);
-                        }
-                        if (sc.length > 1 && !StringUtils.isBlank(sc[1])) {
-                            count = Integer.parseInt(sc[1]);
-                        }
+                }
+            } else if (command.equals("flipH")) {
+                bufferedImage = javaImageEditor.flipHorizontal(bufferedImage);
+            } else if (command.equals("flipV")) {
+                bufferedImage = javaImageEditor.flipVertical(bufferedImage);
+            } else if (command.equals("invert")) {
+                bufferedImage = javaImageEditor.invert(bufferedImage);
+
+            } else if (command.equals("rotate")) {
+                bufferedImage = javaImageEditor.rotate(bufferedImage, Integer.valueOf(parameters[i + 1]));
+
+            } else if (command.equals("sepia")) {
+                bufferedImage = javaImageEditor.sepia(bufferedImage);
+
+            } else if (command.equals("format")) {
+                imageType = value;
+
+            } else if (command.equals("circle")) {
+                bufferedImage = javaImageEditor.circle(bufferedImage);
+
+            } else if (command.equals("star")) {
+                bufferedImage = javaImageEditor.star(bufferedImage);
+
+            } else if (command.equals("starburst")) {
+                int size = 5;
+                int count = 30;
+                if (value.contains("x")) {
+                    String[] sc = value.split("x");
+                    if (!StringUtils.isBlank(sc[0])) {
+                        size = Integer.parseInt(sc[0]);
+                    }
+                    if (sc.length > 1 && !StringUtils.isBlank(sc[1])) {
+                        count = Integer.parseInt(sc[1]);
                     }
-                    bufferedImage = javaImageEditor.starburst(bufferedImage, size, count);
-
-                } else {
-                    validComand = false;
                 }
+                bufferedImage = javaImageEditor.starburst(bufferedImage, size, count);
 
-                if (PNG_COMMANDS.contains(command)) {
-                    imageType = "png";
-                }
+            } else {
+                validComand = false;
+            }
+
+            if (PNG_COMMANDS.contains(command)) {
+                imageType = "png";
+            }
+
+            //shift offset if a command wasn't found or a basic command has no value
+            if (!validComand || (BASIC_COMMANDS.contains(command) && !StringUtils.isBlank(value) && !value.toLowerCase().equals("true"))) {
+                i = i - 1;
+            }
+        }
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        ImageIO.write(bufferedImage, imageType, byteArrayOutputStream);
+        byteArrayOutputStream.flush();
+        byte[] data = byteArrayOutputStream.toByteArray();
+        String eTag = null;
+
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update(data);
+            eTag = "\"" + StringUtils.hex(md.digest()) + "\"";
+        } catch (NoSuchAlgorithmException ex) {
+            //No Such Algorithm Exception don't write eTag
+        }
+
+        return new RenderedImage(data, imageType, eTag);
+    }
+
+    //Hands the cached image file to the container's sendfile when it's available, so that the kernel copies it to the socket directly
+    //Otherwise, the file channel transfer still has to copy through the servlet output stream, but only a buffer at a time
+    private void sendFile(HttpServletRequest request, HttpServletResponse response, File file, String contentType) throws IOException {
+        long length = file.length();
+        String eTag = "\"" + Long.toHexString(file.lastModified()) + "-" + Long.toHexString(length) + "\"";
+        long[] range = prepareResponse(request, response, contentType, length, eTag);
+
+        if (range == null) {
+            return;
+        }
 
-                //shift offset if a command wasn't found or a basic command has no value
-                if (!validComand || (BASIC_COMMANDS.contains(command) && !StringUtils.isBlank(value) && !value.toLowerCase().equals("true"))) {
-                    i = i - 1;
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTRIBUTE))) {
+            request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, file.getAbsolutePath());
+            request.setAttribute(SENDFILE_START_ATTRIBUTE, range[0]);
+            request.setAttribute(SENDFILE_END_ATTRIBUTE, range[0] + range[1]);
+            return;
+        }
+
+        try (FileChannel fileChannel = new FileInputStream(file).getChannel();
+                ServletOutputStream out = response.getOutputStream()) {
+
+            WritableByteChannel outChannel = Channels.newChannel(out);
+
+            for (long position = range[0], end = range[0] + range[1]; position < end;) {
+                long transferred = fileChannel.transferTo(position, end - position, outChannel);
+
+                if (transferred <= 0) {
+                    break;
                 }
+
+                position += transferred;
             }
+        }
+    }
+
+    private void sendData(HttpServletRequest request, HttpServletResponse response, byte[] data, String contentType, String eTag) throws IOException {
+        long[] range = prepareResponse(request, response, contentType, data.length, eTag);
+
+        if (range == null) {
+            return;
+        }
+
+        try (ServletOutputStream out = response.getOutputStream()) {
+            out.write(data, (int) range[0], (int) range[1]);
+        }
+    }
+
+    //Sets the response headers and returns the offset and the length of the content to send, or null if there's nothing to send
+    private long[] prepareResponse(HttpServletRequest request, HttpServletResponse response, String contentType, long length, String eTag) throws IOException {
+        Integer maxAge = Settings.getOrDefault(Integer.class, "dari/imageEditor/_java/max-age", 31536000);
+        DateTime expires = new DateTime().plusSeconds(maxAge);
 
-            Integer maxAge = Settings.getOrDefault(Integer.class, "dari/imageEditor/_java/max-age", 31536000);
-            response.setContentType("image/" + imageType);
-            response.setHeader("Cache-Control", String.format("%s, public", maxAge.toString()));
-            response.setHeader("Edge-Control", String.format("downstream-ttl=%s", maxAge));
-            DateTime expires = new DateTime().plusSeconds(maxAge);
+        response.setContentType(contentType);
+        response.setHeader("Cache-Control", String.format("%s, public", maxAge.toString()));
+        response.setHeader("Edge-Control", String.format("downstream-ttl=%s", maxAge));
+
+        synchronized (expiresDateFormat) {
             if (!expiresDateFormat.getTimeZone().equals(TimeZone.getTimeZone("GMT"))) {
                 expiresDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
             }
             response.setHeader("Expires", expiresDateFormat.format(expires.toDate()));
-            ServletOutputStream out = response.getOutputStream();
-            ImageIO.write(bufferedImage, imageType, out);
+        }
+
+        //Error images shouldn't be validated or partially sent
+        if (eTag == null || response.getStatus() != HttpServletResponse.SC_OK) {
+            response.setContentLengthLong(length);
+            return new long[] { 0L, length };
+        }
 
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            ImageIO.write(bufferedImage, imageType, byteArrayOutputStream);
-            byteArrayOutputStream.flush();
-            byte[] data = byteArrayOutputStream.toByteArray();
+        response.setHeader("ETag", eTag);
+        response.setHeader("Accept-Ranges", "bytes");
 
-            try {
-                MessageDigest md = MessageDigest.getInstance("MD5");
-                md.update(data);
-                byte[] hash = md.digest();
-                StringBuilder eTag = new StringBuilder();
-                for (int hashIndex = 0; hashIndex < hash.length; hashIndex++) {
-                    eTag.append(Integer.toString((hash[hashIndex] & 0xff) + 0x100, 16).substring(1));
-                }
-                response.setHeader("ETag", eTag.toString());
-            } catch (NoSuchAlgorithmException ex) {
-                //No Such Algorithm Exception don't write eTag
+        if (matchesETag(request.getHeader("If-None-Match"), eTag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return null;
+        }
+
+        String range = request.getHeader("Range");
+        String ifRange = request.getHeader("If-Range");
+
+        if (range != null && (ifRange == null || ifRange.equals(eTag))) {
+            Matcher rangeMatcher = RANGE_PATTERN.matcher(range.trim());
+
+            if (rangeMatcher.matches() && !(rangeMatcher.group(1).isEmpty() && rangeMatcher.group(2).isEmpty())) {
+                long start;
+                long end;
+
+                if (rangeMatcher.group(1).isEmpty()) {
+                    start = Math.max(0L, length - Long.parseLong(rangeMatcher.group(2)));
+                    end = length - 1;
+
+                } else {
+                    start = Long.parseLong(rangeMatcher.group(1));
+                    end = rangeMatcher.group(2).isEmpty() ? length - 1 : Math.min(Long.parseLong(rangeMatcher.group(2)), length - 1);
+                }
+
+                if (start > end) {
+                    response.setHeader("Content-Range", "bytes */" + length);
+                    response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return null;
+                }
+
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+                response.setContentLengthLong(end - start + 1);
+                return new long[] { start, end - start + 1 };
             }
+        }
 
-            if (cacheImage) {
-                FileOutputStream fileOutputStream = new FileOutputStream(file);
-                ImageIO.write(bufferedImage, imageType, fileOutputStream);
+        response.setContentLengthLong(length);
+        return new long[] { 0L, length };
+    }
+
+    private boolean matchesETag(String ifNoneMatch, String eTag) {
+        if (StringUtils.isBlank(ifNoneMatch)) {
+            return false;
+        }
+
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+
+            if (candidate.equals("*") || StringUtils.removeStart(candidate, "W/").equals(eTag)) {
+                return true;
             }
+        }
+
+        return false;
+    }
+
+    //Finds the leading crop and resize that allow the source image to be decoded partially
+    DecodeHint findDecodeHint(String[] parameters, boolean signed) {
+        DecodeHint hint = new DecodeHint();
+
+        for (int i = signed ? 2 : 0; i + 1 < parameters.length; i = i + 2) {
+            String command = parameters[i];
+            String value = parameters[i + 1];
+
+            if (command.equals(QUALITY_OPTION) || command.equals("format")) {
+                continue;
+
+            } else if (command.equals(ImageEditor.CROP_COMMAND) && hint.region == null) {
+                Integer[] crop = parseCrop(value);
+
+                if (crop[2] != null && crop[3] != null) {
+                    hint.region = new Rectangle(crop[0], crop[1], crop[2], crop[3]);
+                    hint.regionIndex = i;
+                    continue;
+                }
+
+            } else if (command.equals(ImageEditor.RESIZE_COMMAND) || command.equals(JavaImageEditor.THUMBNAIL_COMMAND)) {
+                if (value.endsWith("<")) {
+                    break;
+                }
+
+                if (value.endsWith("!") || value.endsWith(">") || value.endsWith("^")) {
+                    value = value.substring(0, value.length() - 1);
+                }
+
+                String[] wh = value.split("x");
+                Integer width = wh.length > 0 ? parseInteger(wh[0]) : null;
+                Integer height = wh.length > 1 ? parseInteger(wh[1]) : null;
+
+                if (command.equals(ImageEditor.RESIZE_COMMAND) || (width != null && height != null)) {
+                    hint.width = width;
+                    hint.height = height;
+                }
+            }
+
+            break;
+        }
+
+        return hint;
+    }
+
+    //Returns the x, y, width and height of the crop
+    private Integer[] parseCrop(String value) {
+        Integer x = 0;
+        Integer y = 0;
+        Integer width = null;
+        Integer height = null;
+        String[] size;
+
+        if (value.contains("+")) {
+            int delimiter = value.indexOf("+");
+            String[] xy = value.substring(delimiter + 1).split("\\+");
+
+            x = parseInteger(xy[0]) != null ? parseInteger(xy[0]) : 0;
+            y = parseInteger(xy[1]) != null ? parseInteger(xy[1]) : 0;
+
+            size = value.substring(0, delimiter).split("x");
 
-            out.close();
         } else {
-            throw new IOException("No source image provided");
+            size = value.split("x");
+            if (size.length > 3) {
+                x = parseInteger(size[0]) != null ? parseInteger(size[0]) : 0;
+                y = parseInteger(size[1]) != null ? parseInteger(size[1]) : 0;
+                size[0] = size[2];
+                size[1] = size[3];
+            }
         }
+
+        width = parseInteger(size[0]);
+        if (size.length > 1) {
+            height = parseInteger(size[1]);
+        }
+
+        return new Integer[] { x, y, width, height };
     }
 
     private Integer parseInteger(String integer) {
@@ -487,4 +801,25 @@ public class JavaImageServlet extends HttpServlet {
             return Integer.parseInt(integer);
         }
     }
+
+    static final class DecodeHint {
+
+        public Rectangle region;
+        public int regionIndex = -1;
+        public Integer width;
+        public Integer height;
+    }
+
+    private static final class RenderedImage {
+
+        public final byte[] data;
+        public final String imageType;
+        public final String eTag;
+
+        public RenderedImage(byte[] data, String imageType, String eTag) {
+            this.data = data;
+            this.imageType = imageType;
+            this.eTag = eTag;
+        }
+    }
 }
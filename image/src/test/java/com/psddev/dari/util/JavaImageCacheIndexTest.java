@@ -0,0 +1,127 @@
+package com.psddev.dari.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JavaImageCacheIndexTest {
+
+    private Path root;
+
+    @Before
+    public void before() throws IOException {
+        root = Files.createTempDirectory("dari-java-image-cache-index-test");
+    }
+
+    @After
+    public void after() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted((x, y) -> y.compareTo(x)).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    // Outside the directories that the background scan looks at, so that
+    // only the test decides when the images are used.
+    private Path image(String name, int size) throws IOException {
+        Path file = root.resolve("images").resolve(name);
+
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[size]);
+        return file;
+    }
+
+    // Makes sure that the next access is recorded at a later time.
+    private void tick() throws InterruptedException {
+        Thread.sleep(5L);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        JavaImageCacheIndex index = new JavaImageCacheIndex(root, 300L);
+
+        try {
+            index.open();
+
+            Path a = image("a", 100);
+            Path b = image("b", 100);
+            Path c = image("c", 100);
+            Path d = image("d", 100);
+
+            index.add(a, 100L);
+            tick();
+            index.add(b, 100L);
+            tick();
+            index.add(c, 100L);
+            tick();
+            index.touch(a);
+            tick();
+            index.add(d, 100L);
+
+            for (int i = 0; i < 500 && index.getTotalSize() > 240L; ++ i) {
+                Thread.sleep(10L);
+            }
+
+            assertEquals(200L, index.getTotalSize());
+            assertEquals(2, index.getCount());
+            assertTrue(Files.exists(a));
+            assertFalse(Files.exists(b));
+            assertFalse(Files.exists(c));
+            assertTrue(Files.exists(d));
+
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void reloadsSnapshot() {
+        JavaImageCacheIndex index = new JavaImageCacheIndex(root, 1000L);
+
+        index.open();
+        index.add(root.resolve("ab/abcd/a"), 100L);
+        index.add(root.resolve("ab/abcd/b"), 200L);
+        index.close();
+
+        // The files don't exist, so the entries can only come from the
+        // snapshot.
+        JavaImageCacheIndex reloaded = new JavaImageCacheIndex(root, 1000L);
+
+        try {
+            reloaded.open();
+
+            assertEquals(2, reloaded.getCount());
+            assertEquals(300L, reloaded.getTotalSize());
+
+        } finally {
+            reloaded.close();
+        }
+    }
+
+    @Test
+    public void onlyLockHolderSavesSnapshot() {
+        Path snapshot = root.resolve(".dari-java-image-cache-index");
+        JavaImageCacheIndex holder = new JavaImageCacheIndex(root, 1000L);
+        JavaImageCacheIndex other = new JavaImageCacheIndex(root, 1000L);
+
+        holder.open();
+        other.open();
+        other.add(root.resolve("ab/abcd/a"), 100L);
+        other.close();
+
+        assertFalse(Files.exists(snapshot));
+
+        holder.add(root.resolve("ab/abcd/b"), 200L);
+        holder.close();
+
+        assertTrue(Files.exists(snapshot));
+    }
+}
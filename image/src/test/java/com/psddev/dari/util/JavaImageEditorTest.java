@@ -0,0 +1,143 @@
+package com.psddev.dari.util;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class JavaImageEditorTest {
+
+    private Path root;
+    private URL image;
+    private JavaImageEditor editor;
+
+    @Before
+    public void before() throws IOException {
+        root = Files.createTempDirectory("dari-java-image-editor-test");
+
+        // Red on the left half and blue on the right half.
+        BufferedImage source = new BufferedImage(400, 200, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = source.createGraphics();
+
+        graphics.setColor(Color.RED);
+        graphics.fillRect(0, 0, 200, 200);
+        graphics.setColor(Color.BLUE);
+        graphics.fillRect(200, 0, 200, 200);
+        graphics.dispose();
+
+        Path file = root.resolve("source.png");
+
+        ImageIO.write(source, "png", file.toFile());
+        image = file.toUri().toURL();
+        editor = new JavaImageEditor();
+    }
+
+    @After
+    public void after() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted((x, y) -> y.compareTo(x)).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private void assertSize(int width, int height, BufferedImage image) {
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+    }
+
+    private void assertColor(Color color, BufferedImage image) {
+        assertEquals(color.getRGB(), image.getRGB(0, 0));
+        assertEquals(color.getRGB(), image.getRGB(image.getWidth() - 1, image.getHeight() - 1));
+    }
+
+    @Test
+    public void subsampling() {
+        assertEquals(4, JavaImageEditor.getSubsampling(400, 50));
+        assertEquals(3, JavaImageEditor.getSubsampling(400, 60));
+        assertEquals(1, JavaImageEditor.getSubsampling(400, 200));
+        assertEquals(1, JavaImageEditor.getSubsampling(400, 1000));
+    }
+
+    @Test
+    public void subsamplingWithoutSize() {
+        assertEquals(Integer.MAX_VALUE, JavaImageEditor.getSubsampling(400, null));
+        assertEquals(Integer.MAX_VALUE, JavaImageEditor.getSubsampling(400, 0));
+        assertEquals(Integer.MAX_VALUE, JavaImageEditor.getSubsampling(400, -1));
+    }
+
+    @Test
+    public void readEntireImage() throws IOException {
+        assertSize(400, 200, editor.read(image, null, null, null));
+    }
+
+    @Test
+    public void readSubsampled() throws IOException {
+
+        // Still twice the requested size.
+        assertSize(100, 50, editor.read(image, null, 50, 25));
+    }
+
+    @Test
+    public void readSubsampledByTheSmallerFactor() throws IOException {
+        assertSize(200, 100, editor.read(image, null, 50, 50));
+    }
+
+    @Test
+    public void readWithoutHeight() throws IOException {
+        assertSize(100, 50, editor.read(image, null, 50, null));
+    }
+
+    @Test
+    public void readWithoutWidth() throws IOException {
+        assertSize(100, 50, editor.read(image, null, null, 25));
+    }
+
+    @Test
+    public void readRegion() throws IOException {
+        BufferedImage region = editor.read(image, new Rectangle(200, 50, 100, 100), null, null);
+
+        assertSize(100, 100, region);
+        assertColor(Color.BLUE, region);
+    }
+
+    @Test
+    public void readRegionClipped() throws IOException {
+        BufferedImage region = editor.read(image, new Rectangle(300, 100, 500, 500), null, null);
+
+        assertSize(100, 100, region);
+        assertColor(Color.BLUE, region);
+    }
+
+    @Test
+    public void readRegionSubsampled() throws IOException {
+        BufferedImage region = editor.read(image, new Rectangle(0, 0, 200, 200), 25, 25);
+
+        assertSize(50, 50, region);
+        assertColor(Color.RED, region);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void readRegionOutside() throws IOException {
+        editor.read(image, new Rectangle(400, 0, 100, 100), null, null);
+    }
+
+    @Test
+    public void readUnsupported() throws IOException {
+        Path file = root.resolve("source.txt");
+
+        Files.write(file, "foo".getBytes("UTF-8"));
+        assertNull(editor.read(file.toUri().toURL(), null, null, null));
+    }
+}
@@ -0,0 +1,452 @@
+package com.psddev.dari.util;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class JavaImageServletTest {
+
+    private static final AtomicInteger PATHS = new AtomicInteger();
+
+    private Path root;
+    private HttpServer server;
+    private byte[] source;
+    private AtomicInteger sourceRequests;
+    private CountDownLatch sourceGate;
+    private JavaImageEditor editor;
+    private JavaImageServlet servlet;
+
+    @Before
+    public void before() throws IOException {
+        root = Files.createTempDirectory("dari-java-image-servlet-test");
+
+        BufferedImage image = new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        ImageIO.write(image, "png", output);
+        source = output.toByteArray();
+        sourceRequests = new AtomicInteger();
+        sourceGate = new CountDownLatch(0);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(null);
+        server.createContext("/", exchange -> {
+            sourceRequests.incrementAndGet();
+
+            try {
+                sourceGate.await();
+
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+            }
+
+            exchange.sendResponseHeaders(200, source.length);
+
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(source);
+            }
+        });
+        server.start();
+
+        editor = new JavaImageEditor();
+        editor.setCachePath(root.toString());
+        editor.setWorkerThreads(2);
+        servlet = new JavaImageServlet(editor);
+    }
+
+    @After
+    public void after() throws IOException {
+        server.stop(0);
+
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted((x, y) -> y.compareTo(x)).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    // Unique per test since the renders in progress are shared by all
+    // servlets.
+    private String newPath() {
+        return "/_image/resize/16x8/http://127.0.0.1:" + server.getAddress().getPort() + "/" + PATHS.incrementAndGet() + ".png";
+    }
+
+    private Exchange service(String path, Map<String, String> headers, boolean sendfile) throws Exception {
+        Exchange exchange = new Exchange(path, headers, sendfile);
+
+        servlet.service(exchange.request, exchange.response);
+        return exchange;
+    }
+
+    private Exchange service(String path, String... headers) throws Exception {
+        Map<String, String> headerMap = new HashMap<>();
+
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            headerMap.put(headers[i], headers[i + 1]);
+        }
+
+        return service(path, headerMap, false);
+    }
+
+    @Test
+    public void rendersOnceThenSendsCachedFile() throws Exception {
+        String path = newPath();
+        Exchange first = service(path);
+        Exchange second = service(path);
+
+        assertEquals(1, sourceRequests.get());
+        assertEquals(200, first.status);
+        assertEquals(200, second.status);
+        assertEquals("image/png", first.contentType);
+
+        BufferedImage rendered = ImageIO.read(new ByteArrayInputStream(first.body()));
+
+        assertEquals(16, rendered.getWidth());
+        assertEquals(8, rendered.getHeight());
+        assertArrayEquals(first.body(), second.body());
+        assertEquals(first.body().length, first.contentLength);
+        assertEquals("bytes", first.headers.get("Accept-Ranges"));
+    }
+
+    @Test
+    public void eTagMatchesAcrossRequests() throws Exception {
+        String path = newPath();
+        Exchange first = service(path);
+        String eTag = first.headers.get("ETag");
+
+        assertNotNull(eTag);
+        assertEquals(eTag, service(path).headers.get("ETag"));
+    }
+
+    @Test
+    public void ifNoneMatch() throws Exception {
+        String path = newPath();
+        String eTag = service(path).headers.get("ETag");
+        Exchange notModified = service(path, "If-None-Match", "\"other\", W/" + eTag);
+
+        assertEquals(304, notModified.status);
+        assertEquals(0, notModified.body().length);
+
+        Exchange modified = service(path, "If-None-Match", "\"other\"");
+
+        assertEquals(200, modified.status);
+        assertTrue(modified.body().length > 0);
+    }
+
+    @Test
+    public void range() throws Exception {
+        String path = newPath();
+        byte[] full = service(path).body();
+        Exchange partial = service(path, "Range", "bytes=2-11");
+
+        assertEquals(206, partial.status);
+        assertEquals("bytes 2-11/" + full.length, partial.headers.get("Content-Range"));
+        assertEquals(10L, partial.contentLength);
+        assertArrayEquals(Arrays.copyOfRange(full, 2, 12), partial.body());
+    }
+
+    @Test
+    public void suffixRange() throws Exception {
+        String path = newPath();
+        byte[] full = service(path).body();
+        Exchange partial = service(path, "Range", "bytes=-5");
+
+        assertEquals(206, partial.status);
+        assertArrayEquals(Arrays.copyOfRange(full, full.length - 5, full.length), partial.body());
+    }
+
+    @Test
+    public void ifRange() throws Exception {
+        String path = newPath();
+        Exchange first = service(path);
+        String eTag = first.headers.get("ETag");
+
+        assertEquals(206, service(path, "Range", "bytes=0-0", "If-Range", eTag).status);
+
+        Exchange stale = service(path, "Range", "bytes=0-0", "If-Range", "\"stale\"");
+
+        assertEquals(200, stale.status);
+        assertArrayEquals(first.body(), stale.body());
+    }
+
+    @Test
+    public void unsatisfiableRange() throws Exception {
+        String path = newPath();
+        int length = service(path).body().length;
+        Exchange unsatisfiable = service(path, "Range", "bytes=" + length + "-");
+
+        assertEquals(416, unsatisfiable.status);
+        assertEquals("bytes */" + length, unsatisfiable.headers.get("Content-Range"));
+        assertEquals(0, unsatisfiable.body().length);
+    }
+
+    @Test
+    public void sendfile() throws Exception {
+        String path = newPath();
+        int length = service(path).body().length;
+        Exchange exchange = service(path, new HashMap<>(), true);
+
+        assertEquals(200, exchange.status);
+        assertEquals(0, exchange.body().length);
+        assertTrue(Files.isRegularFile(Paths.get((String) exchange.attributes.get("org.apache.tomcat.sendfile.filename"))));
+        assertEquals(0L, exchange.attributes.get("org.apache.tomcat.sendfile.start"));
+        assertEquals((long) length, exchange.attributes.get("org.apache.tomcat.sendfile.end"));
+
+        Map<String, String> headers = new HashMap<>();
+
+        headers.put("Range", "bytes=3-");
+
+        Exchange partial = service(path, headers, true);
+
+        assertEquals(206, partial.status);
+        assertEquals(3L, partial.attributes.get("org.apache.tomcat.sendfile.start"));
+        assertEquals((long) length, partial.attributes.get("org.apache.tomcat.sendfile.end"));
+    }
+
+    @Test
+    public void transferToWithoutSendfile() throws Exception {
+        String path = newPath();
+        byte[] full = service(path).body();
+        Exchange exchange = service(path);
+
+        assertNull(exchange.attributes.get("org.apache.tomcat.sendfile.filename"));
+        assertArrayEquals(full, exchange.body());
+    }
+
+    @Test
+    public void concurrentRequestsRenderOnce() throws Exception {
+        String path = newPath();
+        Exchange[] exchanges = new Exchange[2];
+        Thread[] threads = new Thread[2];
+
+        sourceGate = new CountDownLatch(1);
+
+        for (int i = 0; i < 2; ++ i) {
+            int index = i;
+
+            threads[i] = new Thread(() -> {
+                try {
+                    exchanges[index] = service(path);
+
+                } catch (Exception error) {
+                    throw new IllegalStateException(error);
+                }
+            });
+        }
+
+        threads[0].start();
+
+        for (int i = 0; i < 500 && sourceRequests.get() == 0; ++ i) {
+            Thread.sleep(10L);
+        }
+
+        // Only waiting on the render in progress times out.
+        threads[1].start();
+
+        for (int i = 0; i < 500 && threads[1].getState() != Thread.State.TIMED_WAITING; ++ i) {
+            Thread.sleep(10L);
+        }
+
+        assertEquals(Thread.State.TIMED_WAITING, threads[1].getState());
+
+        sourceGate.countDown();
+        threads[0].join(10000L);
+        threads[1].join(10000L);
+
+        assertEquals(1, sourceRequests.get());
+        assertEquals(200, exchanges[0].status);
+        assertEquals(200, exchanges[1].status);
+        assertArrayEquals(exchanges[0].body(), exchanges[1].body());
+        assertFalse(exchanges[0].body().length == 0);
+    }
+
+    @Test
+    public void rejectedTransformRetriesLater() throws Exception {
+        JavaImageEditor busyEditor = new JavaImageEditor();
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread[] threads = new Thread[2];
+
+        busyEditor.setCachePath(root.toString());
+        busyEditor.setWorkerThreads(1);
+        busyEditor.setWorkerQueueSize(1);
+
+        // One transform running and one waiting fill the pool.
+        for (int i = 0; i < 2; ++ i) {
+            threads[i] = new Thread(() -> {
+                try {
+                    busyEditor.transform(() -> {
+                        running.countDown();
+                        done.await();
+                        return null;
+                    });
+
+                } catch (IOException error) {
+                    throw new IllegalStateException(error);
+                }
+            });
+        }
+
+        try {
+            threads[0].start();
+            running.await();
+            threads[1].start();
+
+            for (int i = 0; i < 500 && threads[1].getState() != Thread.State.WAITING; ++ i) {
+                Thread.sleep(10L);
+            }
+
+            Exchange exchange = new Exchange(newPath(), new HashMap<>(), false);
+
+            new JavaImageServlet(busyEditor).service(exchange.request, exchange.response);
+
+            assertEquals(503, exchange.status);
+            assertEquals("1", exchange.headers.get("Retry-After"));
+            assertEquals(0, sourceRequests.get());
+
+        } finally {
+            done.countDown();
+            threads[0].join(10000L);
+            threads[1].join(10000L);
+        }
+    }
+
+    @Test
+    public void decodeHintFromCropAndResize() {
+        JavaImageServlet.DecodeHint hint = servlet.findDecodeHint(new String[] { "crop", "10x20+5+6", "resize", "50x30" }, false);
+
+        assertEquals(new Rectangle(5, 6, 10, 20), hint.region);
+        assertEquals(0, hint.regionIndex);
+        assertEquals(Integer.valueOf(50), hint.width);
+        assertEquals(Integer.valueOf(30), hint.height);
+    }
+
+    @Test
+    public void decodeHintSkipsSignature() {
+        JavaImageServlet.DecodeHint hint = servlet.findDecodeHint(new String[] { "abcdef0", "2147483647", "quality", "90", "resize", "50x" }, true);
+
+        assertNull(hint.region);
+        assertEquals(Integer.valueOf(50), hint.width);
+        assertNull(hint.height);
+    }
+
+    @Test
+    public void decodeHintThumbnailNeedsBothSizes() {
+        JavaImageServlet.DecodeHint hint = servlet.findDecodeHint(new String[] { "thumbnail", "50x" }, false);
+
+        assertNull(hint.width);
+        assertNull(hint.height);
+        assertEquals(Integer.valueOf(50), servlet.findDecodeHint(new String[] { "thumbnail", "50x30^" }, false).width);
+    }
+
+    @Test
+    public void noDecodeHintWhenEnlarging() {
+        JavaImageServlet.DecodeHint hint = servlet.findDecodeHint(new String[] { "crop", "10x20+5+6", "resize", "50x30<" }, false);
+
+        assertEquals(new Rectangle(5, 6, 10, 20), hint.region);
+        assertNull(hint.width);
+        assertNull(hint.height);
+    }
+
+    @Test
+    public void noDecodeHintAfterOtherCommands() {
+        JavaImageServlet.DecodeHint hint = servlet.findDecodeHint(new String[] { "rotate", "90", "crop", "10x20+5+6", "resize", "50x30" }, false);
+
+        assertNull(hint.region);
+        assertEquals(-1, hint.regionIndex);
+        assertNull(hint.width);
+    }
+
+    @Test
+    public void decodeHintWithoutCropSize() {
+        JavaImageServlet.DecodeHint hint = servlet.findDecodeHint(new String[] { "crop", "10+5+6", "resize", "50x30" }, false);
+
+        assertNull(hint.region);
+        assertNull(hint.width);
+    }
+
+    private static final class Exchange {
+
+        public final HttpServletRequest request = mock(HttpServletRequest.class);
+        public final HttpServletResponse response = mock(HttpServletResponse.class);
+        public final Map<String, Object> attributes = new HashMap<>();
+        public final Map<String, String> headers = new HashMap<>();
+        public final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        public int status = 200;
+        public String contentType;
+        public long contentLength = -1L;
+
+        public Exchange(String path, Map<String, String> requestHeaders, boolean sendfile) throws IOException {
+            when(request.getServletPath()).thenReturn(path);
+            when(request.getHeader(anyString())).thenAnswer(invocation -> requestHeaders.get((String) invocation.getArguments()[0]));
+            when(request.getAttribute(anyString())).thenAnswer(invocation -> attributes.get((String) invocation.getArguments()[0]));
+            doAnswer(invocation -> attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1])).when(request).setAttribute(anyString(), any());
+
+            if (sendfile) {
+                attributes.put("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+            }
+
+            when(response.getStatus()).thenAnswer(invocation -> status);
+            doAnswer(invocation -> status = (Integer) invocation.getArguments()[0]).when(response).setStatus(anyInt());
+            doAnswer(invocation -> status = (Integer) invocation.getArguments()[0]).when(response).sendError(anyInt());
+            doAnswer(invocation -> headers.put((String) invocation.getArguments()[0], (String) invocation.getArguments()[1])).when(response).setHeader(anyString(), anyString());
+            doAnswer(invocation -> contentType = (String) invocation.getArguments()[0]).when(response).setContentType(anyString());
+            doAnswer(invocation -> contentLength = (Long) invocation.getArguments()[0]).when(response).setContentLengthLong(anyLong());
+            when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+
+                @Override
+                public void write(int b) {
+                    output.write(b);
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener listener) {
+                }
+            });
+        }
+
+        public byte[] body() {
+            return output.toByteArray();
+        }
+    }
+}
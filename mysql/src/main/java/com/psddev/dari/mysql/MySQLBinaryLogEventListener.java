@@ -8,8 +8,7 @@ import com.github.shyiko.mysql.binlog.event.EventType;
 import com.github.shyiko.mysql.binlog.event.TableMapEventData;
 import com.github.shyiko.mysql.binlog.event.UpdateRowsEventData;
 import com.github.shyiko.mysql.binlog.event.WriteRowsEventData;
-import com.google.common.cache.Cache;
-import com.psddev.dari.db.State;
+import com.psddev.dari.db.InvalidationBus;
 import com.psddev.dari.db.StateSerializer;
 import com.psddev.dari.db.shyiko.DariQueryEventData;
 import com.psddev.dari.util.StringUtils;
@@ -18,6 +17,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -28,20 +28,24 @@ class MySQLBinaryLogEventListener implements EventListener {
     private static final Logger LOGGER = LoggerFactory.getLogger(MySQLBinaryLogEventListener.class);
 
     private final MySQLDatabase mysqlDatabase;
-    private final Cache<UUID, Object[]> cache;
+    private final MySQLReplicationCache cache;
     private final String databaseName;
     private final String recordTableName;
+    private final String symbolTableName;
 
     private Long recordTableId;
+    private Long symbolTableId;
     private boolean invalidateCacheOnCommit;
     private final List<Serializable[]> pendingUpdates = new ArrayList<>();
     private final List<Serializable[]> pendingInvalidates = new ArrayList<>();
+    private final List<Serializable[]> pendingSymbols = new ArrayList<>();
 
-    public MySQLBinaryLogEventListener(MySQLDatabase mysqlDatabase, Cache<UUID, Object[]> cache, String databaseName, String recordTableName) {
+    public MySQLBinaryLogEventListener(MySQLDatabase mysqlDatabase, MySQLReplicationCache cache, String databaseName, String recordTableName, String symbolTableName) {
         this.mysqlDatabase = mysqlDatabase;
         this.cache = cache;
         this.databaseName = databaseName;
         this.recordTableName = recordTableName;
+        this.symbolTableName = symbolTableName;
     }
 
     @Override
@@ -84,15 +88,33 @@ class MySQLBinaryLogEventListener implements EventListener {
             LOGGER.debug("XID");
             commit();
 
-        // Only work on changes to the Record table.
+        // Only work on changes to the Record and the Symbol tables.
         } else if (eventData instanceof TableMapEventData) {
             TableMapEventData tableMapEventData = (TableMapEventData) eventData;
 
-            if (tableMapEventData.getDatabase().equals(databaseName)
-                    && tableMapEventData.getTable().equalsIgnoreCase(recordTableName)) {
+            if (tableMapEventData.getDatabase().equals(databaseName)) {
+                if (tableMapEventData.getTable().equalsIgnoreCase(recordTableName)) {
+                    recordTableId = tableMapEventData.getTableId();
+                    LOGGER.debug("Table ID: {}", recordTableId);
 
-                recordTableId = tableMapEventData.getTableId();
-                LOGGER.debug("Table ID: {}", recordTableId);
+                } else if (tableMapEventData.getTable().equalsIgnoreCase(symbolTableName)) {
+                    symbolTableId = tableMapEventData.getTableId();
+                    LOGGER.debug("Symbol table ID: {}", symbolTableId);
+                }
+            }
+
+        } else if (symbolTableId != null) {
+            try {
+                if (eventData instanceof WriteRowsEventData) {
+                    WriteRowsEventData d = (WriteRowsEventData) eventData;
+
+                    if (d.getTableId() == symbolTableId) {
+                        pendingSymbols.addAll(d.getRows());
+                    }
+                }
+
+            } finally {
+                symbolTableId = null;
             }
 
         } else if (recordTableId != null) {
@@ -147,13 +169,33 @@ class MySQLBinaryLogEventListener implements EventListener {
         invalidateCacheOnCommit = false;
         pendingUpdates.clear();
         pendingInvalidates.clear();
+        pendingSymbols.clear();
     }
 
     private void commit() {
+        InvalidationBus bus = InvalidationBus.Static.getDefault();
+
         try {
+
+            // Symbols created by other servers are cached before the
+            // records that might use them.
+            pendingSymbols.forEach(row -> {
+                Object id = row[0];
+                Object value = row[1];
+                String symbol = value instanceof byte[]
+                        ? new String((byte[]) value, StandardCharsets.UTF_8)
+                        : value != null ? value.toString() : null;
+
+                if (id instanceof Number && symbol != null) {
+                    LOGGER.debug("Symbol: {} = {}", symbol, id);
+                    mysqlDatabase.cacheReplicatedSymbolId(symbol, ((Number) id).intValue());
+                }
+            });
+
             if (invalidateCacheOnCommit) {
                 LOGGER.debug("Invalidate all");
                 cache.invalidateAll();
+                bus.publishAll();
 
             } else {
                 pendingUpdates.forEach(row -> {
@@ -166,13 +208,9 @@ class MySQLBinaryLogEventListener implements EventListener {
 
                         mysqlDatabase.notifyUpdate(object);
 
-                        if (cache.getIfPresent(id) != null) {
-                            LOGGER.debug("Update: {}", id);
-                            cache.put(id, new Object[]{
-                                    UuidUtils.toBytes(State.getInstance(object).getTypeId()),
-                                    data,
-                                    dataJson});
-                        }
+                        LOGGER.debug("Update: {}", id);
+                        cache.replaceIfPresent(id, data, dataJson);
+                        bus.publish(typeId(row), id);
                     }
                 });
 
@@ -182,6 +220,7 @@ class MySQLBinaryLogEventListener implements EventListener {
                     if (id != null) {
                         LOGGER.debug("Invalidate: {}", id);
                         cache.invalidate(id);
+                        bus.publish(typeId(row), id);
                     }
                 });
             }
@@ -191,6 +230,10 @@ class MySQLBinaryLogEventListener implements EventListener {
         }
     }
 
+    private UUID typeId(Serializable[] row) {
+        return row.length > 1 && row[1] instanceof byte[] ? uuid((byte[]) row[1]) : null;
+    }
+
     // Binary fields don't include trailing 0s so add them back.
     private UUID uuid(byte[] bytes) {
         int bytesLength = bytes.length;
@@ -1,22 +1,20 @@
 package com.psddev.dari.mysql;
 
-import java.util.UUID;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.shyiko.mysql.binlog.BinaryLogClient;
 import com.github.shyiko.mysql.binlog.BinaryLogClient.AbstractLifecycleListener;
-import com.google.common.cache.Cache;
+import com.psddev.dari.db.InvalidationBus;
 
 class MySQLBinaryLogLifecycleListener extends AbstractLifecycleListener {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MySQLBinaryLogLifecycleListener.class);
 
-    private final Cache<UUID, Object[]> cache;
+    private final MySQLReplicationCache cache;
     private volatile boolean connected;
 
-    public MySQLBinaryLogLifecycleListener(Cache<UUID, Object[]> cache) {
+    public MySQLBinaryLogLifecycleListener(MySQLReplicationCache cache) {
         this.cache = cache;
     }
 
@@ -28,6 +26,9 @@ class MySQLBinaryLogLifecycleListener extends AbstractLifecycleListener {
     public void onConnect(BinaryLogClient client) {
         LOGGER.info("Connected to MySQL as a slave");
         connected = true;
+
+        // Anything that was read while disconnected may already be stale.
+        InvalidationBus.Static.getDefault().publishAll();
     }
 
     @Override
@@ -40,5 +41,8 @@ class MySQLBinaryLogLifecycleListener extends AbstractLifecycleListener {
         LOGGER.info("Disconnected from MySQL as a slave");
         connected = false;
         cache.invalidateAll();
+
+        // Changes may be missed until reconnected.
+        InvalidationBus.Static.getDefault().publishAll();
     }
 }
@@ -13,7 +13,6 @@ import com.github.shyiko.mysql.binlog.event.deserialization.RotateEventDataDeser
 import com.github.shyiko.mysql.binlog.event.deserialization.RowsQueryEventDataDeserializer;
 import com.github.shyiko.mysql.binlog.event.deserialization.TableMapEventDataDeserializer;
 import com.github.shyiko.mysql.binlog.event.deserialization.XidEventDataDeserializer;
-import com.google.common.cache.Cache;
 import com.psddev.dari.db.shyiko.DariDeleteRowsEventDataDeserializer;
 import com.psddev.dari.db.shyiko.DariQueryEventDataDeserializer;
 import com.psddev.dari.db.shyiko.DariUpdateRowsEventDataDeserializer;
@@ -31,7 +30,6 @@ import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
-import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -46,7 +44,7 @@ class MySQLBinaryLogReader {
     private final MySQLBinaryLogLifecycleListener lifecycleListener;
     private final AtomicBoolean running = new AtomicBoolean();
 
-    public MySQLBinaryLogReader(MySQLDatabase database, Cache<UUID, Object[]> cache, DataSource dataSource, String recordTableName) {
+    public MySQLBinaryLogReader(MySQLDatabase database, MySQLReplicationCache cache, DataSource dataSource, String recordTableName, String symbolTableName) {
         String host = database.getReplicationCacheHost();
         Integer port;
         String schema;
@@ -125,7 +123,7 @@ class MySQLBinaryLogReader {
 
         client.setServerId(RANDOM.nextLong());
         client.registerLifecycleListener(lifecycleListener);
-        client.registerEventListener(new MySQLBinaryLogEventListener(database, cache, schema, recordTableName));
+        client.registerEventListener(new MySQLBinaryLogEventListener(database, cache, schema, recordTableName, symbolTableName));
 
         @SuppressWarnings("rawtypes")
         Map<EventType, EventDataDeserializer> eventDataDeserializers = new HashMap<>();
@@ -1,8 +1,7 @@
 package com.psddev.dari.mysql;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.psddev.dari.db.CompoundPredicate;
+import com.psddev.dari.db.DistributedLock;
 import com.psddev.dari.db.MetricAccessDatabase;
 import com.psddev.dari.db.ObjectType;
 import com.psddev.dari.db.Predicate;
@@ -14,13 +13,16 @@ import com.psddev.dari.db.State;
 import com.psddev.dari.db.StateSerializer;
 import com.psddev.dari.sql.AbstractSqlDatabase;
 import com.psddev.dari.sql.SqlDatabaseException;
-import com.psddev.dari.util.CompactMap;
 import com.psddev.dari.util.ObjectUtils;
 import com.psddev.dari.util.Profiler;
 import com.psddev.dari.util.UuidUtils;
 import org.jooq.Converter;
+import org.jooq.DSLContext;
 import org.jooq.DataType;
+import org.jooq.Field;
+import org.jooq.Record;
 import org.jooq.SQLDialect;
+import org.jooq.Table;
 import org.jooq.conf.ParamType;
 import org.jooq.impl.DSL;
 import org.jooq.util.mysql.MySQLDataType;
@@ -28,24 +30,25 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.stream.Collectors;
 
 /**
  * Database implementation for use with MySQL.
  *
  * @see <a href="http://www.mysql.com/">MySQL</a>
  */
-public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDatabase {
+public class MySQLDatabase extends AbstractSqlDatabase implements DistributedLock.Waiter, MetricAccessDatabase {
 
     /**
      * Sub-setting name for specifying whether the replication caching should
@@ -107,9 +110,49 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
      *
      * @see #getReplicationCacheMaximumSize()
      * @see #setReplicationCacheMaximumSize(long)
+     * @deprecated No replacement. The replication cache is now bounded by
+     *             {@link #REPLICATION_CACHE_MAXIMUM_BYTES_SUB_SETTING}.
      */
+    @Deprecated
     public static final String REPLICATION_CACHE_SIZE_SUB_SETTING = "replicationCacheSize";
 
+    /**
+     * Sub-setting name for specifying the approximate maximum number of
+     * bytes that the replication cache can hold.
+     *
+     * @see #getReplicationCacheMaximumBytes()
+     * @see #setReplicationCacheMaximumBytes(long)
+     */
+    public static final String REPLICATION_CACHE_MAXIMUM_BYTES_SUB_SETTING = "replicationCacheMaximumBytes";
+
+    /**
+     * Default value for {@link #REPLICATION_CACHE_MAXIMUM_BYTES_SUB_SETTING}.
+     */
+    public static final long DEFAULT_REPLICATION_CACHE_MAXIMUM_BYTES = 100L * 1024L * 1024L;
+
+    /**
+     * Sub-setting name for specifying whether the increments to past metric
+     * event dates should leave the cumulative amounts in the later rows
+     * alone.
+     *
+     * @see #isMetricNonCascading()
+     * @see #setMetricNonCascading(boolean)
+     */
+    public static final String METRIC_NON_CASCADING_SUB_SETTING = "metricNonCascading";
+
+    /**
+     * Sub-setting name for specifying whether the threads waiting for a
+     * {@link DistributedLock} should park on a MySQL {@code GET_LOCK}
+     * instead of retrying.
+     *
+     * <p>Each held lock keeps a connection open until it's released, so
+     * the connection pool should be sized accordingly.</p>
+     *
+     * @see #isEnableLockWait()
+     * @see #setEnableLockWait(boolean)
+     */
+    public static final String ENABLE_LOCK_WAIT_SUB_SETTING = "enableLockWait";
+
     private static final Logger LOGGER = LoggerFactory.getLogger(MySQLDatabase.class);
 
     private static final DataType<UUID> UUID_TYPE = MySQLDataType.BINARY.asConvertedDataType(new Converter<byte[], UUID>() {
@@ -142,8 +185,11 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
     private volatile String replicationCacheUsername;
     private volatile String replicationCachePassword;
     private volatile long replicationCacheMaximumSize;
+    private volatile long replicationCacheMaximumBytes;
+    private volatile boolean metricNonCascading;
+    private volatile boolean enableLockWait;
 
-    private volatile Cache<UUID, Object[]> replicationCache;
+    private volatile MySQLReplicationCache replicationCache;
     private volatile MySQLBinaryLogReader binaryLogReader;
     private volatile boolean binlogFormatStatement;
 
@@ -266,7 +312,9 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
      * Returns the maximum number of items to hold in the replication cache.
      *
      * @see #REPLICATION_CACHE_SIZE_SUB_SETTING
+     * @deprecated Use {@link #setReplicationCacheMaximumBytes} instead.
      */
+    @Deprecated
     public void setReplicationCacheMaximumSize(long replicationCacheMaximumSize) {
         this.replicationCacheMaximumSize = replicationCacheMaximumSize;
     }
@@ -275,11 +323,209 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
      * Sets the maximum number of items to hold in the replication cache.
      *
      * @see #REPLICATION_CACHE_SIZE_SUB_SETTING
+     * @deprecated Use {@link #getReplicationCacheMaximumBytes} instead.
      */
+    @Deprecated
     public long getReplicationCacheMaximumSize() {
         return this.replicationCacheMaximumSize;
     }
 
+    /**
+     * Returns the approximate maximum number of bytes that the replication
+     * cache can hold.
+     *
+     * @see #REPLICATION_CACHE_MAXIMUM_BYTES_SUB_SETTING
+     */
+    public long getReplicationCacheMaximumBytes() {
+        return replicationCacheMaximumBytes;
+    }
+
+    /**
+     * Sets the approximate maximum number of bytes that the replication
+     * cache can hold.
+     *
+     * @see #REPLICATION_CACHE_MAXIMUM_BYTES_SUB_SETTING
+     */
+    public void setReplicationCacheMaximumBytes(long replicationCacheMaximumBytes) {
+        this.replicationCacheMaximumBytes = replicationCacheMaximumBytes;
+    }
+
+    /**
+     * Returns the approximate number of bytes that the replication cache
+     * currently holds.
+     *
+     * @return {@code 0} if the replication cache isn't enabled.
+     */
+    public long getReplicationCacheBytes() {
+        MySQLReplicationCache cache = replicationCache;
+
+        return cache != null ? cache.getBytes() : 0L;
+    }
+
+    /**
+     * Returns the approximate total number of bytes that have been put into
+     * the replication cache.
+     *
+     * @return {@code 0} if the replication cache isn't enabled.
+     */
+    public long getReplicationCachePutBytes() {
+        MySQLReplicationCache cache = replicationCache;
+
+        return cache != null ? cache.getPutBytes() : 0L;
+    }
+
+    /**
+     * Returns the approximate total number of bytes that have been evicted
+     * from the replication cache because it was full.
+     *
+     * @return {@code 0} if the replication cache isn't enabled.
+     */
+    public long getReplicationCacheEvictedBytes() {
+        MySQLReplicationCache cache = replicationCache;
+
+        return cache != null ? cache.getEvictedBytes() : 0L;
+    }
+
+    /**
+     * Returns {@code true} if the increments to past metric event dates
+     * should leave the cumulative amounts in the later rows alone.
+     *
+     * @see #METRIC_NON_CASCADING_SUB_SETTING
+     */
+    @Override
+    public boolean isMetricNonCascading() {
+        return metricNonCascading;
+    }
+
+    /**
+     * Sets whether the increments to past metric event dates should leave
+     * the cumulative amounts in the later rows alone.
+     *
+     * @see #METRIC_NON_CASCADING_SUB_SETTING
+     */
+    public void setMetricNonCascading(boolean metricNonCascading) {
+        this.metricNonCascading = metricNonCascading;
+    }
+
+    /**
+     * Returns {@code true} if the threads waiting for a
+     * {@link DistributedLock} should park on a MySQL {@code GET_LOCK}.
+     *
+     * @see #ENABLE_LOCK_WAIT_SUB_SETTING
+     */
+    public boolean isEnableLockWait() {
+        return enableLockWait;
+    }
+
+    /**
+     * Sets whether the threads waiting for a {@link DistributedLock} should
+     * park on a MySQL {@code GET_LOCK}.
+     *
+     * @see #ENABLE_LOCK_WAIT_SUB_SETTING
+     */
+    public void setEnableLockWait(boolean enableLockWait) {
+        this.enableLockWait = enableLockWait;
+    }
+
+    // Fits within the 64 character limit on the lock names in MySQL 5.7.
+    private String getLockName(UUID keyId) {
+        return "dari/lock/" + keyId;
+    }
+
+    // Returns 1 if the lock was taken, 0 if it timed out, or null on an
+    // error.
+    private Integer getLock(Connection connection, UUID keyId, long timeout) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+            statement.setString(1, getLockName(keyId));
+            statement.setLong(2, timeout);
+
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next() ? ObjectUtils.to(Integer.class, result.getObject(1)) : null;
+            }
+        }
+    }
+
+    private void releaseLock(Connection connection, UUID keyId) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+            statement.setString(1, getLockName(keyId));
+            statement.executeQuery().close();
+        }
+    }
+
+    // Holds a GET_LOCK on a dedicated connection for as long as the
+    // distributed lock is held, so that the waiters in other VMs can park
+    // on it.
+    @Override
+    public Object acquired(UUID keyId) {
+        if (!isEnableLockWait()) {
+            return null;
+        }
+
+        Connection connection = openConnection();
+        boolean locked = false;
+
+        try {
+            // Short timeout in case a waiter is just passing through.
+            Integer result = getLock(connection, keyId, 1L);
+            locked = result != null && result == 1;
+
+        } catch (SQLException error) {
+            LOGGER.warn(String.format("Can't get the MySQL lock for [%s]!", keyId), error);
+
+        } finally {
+            if (!locked) {
+                closeConnection(connection);
+            }
+        }
+
+        return locked ? connection : null;
+    }
+
+    @Override
+    public void released(UUID keyId, Object handle) {
+        if (!(handle instanceof Connection)) {
+            return;
+        }
+
+        Connection connection = (Connection) handle;
+
+        try {
+            releaseLock(connection, keyId);
+
+        } catch (SQLException error) {
+            LOGGER.warn(String.format("Can't release the MySQL lock for [%s]!", keyId), error);
+
+        } finally {
+            closeConnection(connection);
+        }
+    }
+
+    @Override
+    public boolean await(UUID keyId, long timeout) {
+        if (!isEnableLockWait()) {
+            return false;
+        }
+
+        Connection connection = openConnection();
+
+        try {
+            Integer result = getLock(connection, keyId, (timeout + 999L) / 1000L);
+
+            if (result != null && result == 1) {
+                releaseLock(connection, keyId);
+            }
+
+            return result != null;
+
+        } catch (SQLException error) {
+            LOGGER.warn(String.format("Can't wait on the MySQL lock for [%s]!", keyId), error);
+            return false;
+
+        } finally {
+            closeConnection(connection);
+        }
+    }
+
     @Override
     protected SQLDialect getDialect() {
         return SQLDialect.MYSQL;
@@ -300,7 +546,10 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
     @Override
     public void invalidateCaches() {
         super.invalidateCaches();
-        replicationCache.invalidateAll();
+
+        if (replicationCache != null) {
+            replicationCache.invalidateAll();
+        }
     }
 
     @Override
@@ -315,16 +564,25 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
         setReplicationCacheUsername(ObjectUtils.to(String.class, settings.get(REPLICATION_CACHE_USERNAME_SUB_SETTING)));
         setReplicationCachePassword(ObjectUtils.to(String.class, settings.get(REPLICATION_CACHE_PASSWORD_SUB_SETTING)));
         setReplicationCacheMaximumSize(ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(REPLICATION_CACHE_SIZE_SUB_SETTING)), 10000L));
+        setReplicationCacheMaximumBytes(ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(REPLICATION_CACHE_MAXIMUM_BYTES_SUB_SETTING)), DEFAULT_REPLICATION_CACHE_MAXIMUM_BYTES));
+        setMetricNonCascading(ObjectUtils.to(boolean.class, settings.get(METRIC_NON_CASCADING_SUB_SETTING)));
+        setEnableLockWait(ObjectUtils.to(boolean.class, settings.get(ENABLE_LOCK_WAIT_SUB_SETTING)));
 
         if (isEnableReplicationCache()
                 && (binaryLogReader == null
                 || !binaryLogReader.isRunning())) {
 
-            replicationCache = CacheBuilder.newBuilder().maximumSize(getReplicationCacheMaximumSize()).build();
+            if (settings.get(REPLICATION_CACHE_SIZE_SUB_SETTING) != null) {
+                LOGGER.warn("[{}] is ignored because the replication cache is now bounded by [{}]!",
+                        REPLICATION_CACHE_SIZE_SUB_SETTING,
+                        REPLICATION_CACHE_MAXIMUM_BYTES_SUB_SETTING);
+            }
+
+            replicationCache = new MySQLReplicationCache(getReplicationCacheMaximumBytes());
 
             try {
                 LOGGER.info("Starting MySQL binary log reader");
-                binaryLogReader = new MySQLBinaryLogReader(this, replicationCache, getReadDataSource(), recordTable.getName());
+                binaryLogReader = new MySQLBinaryLogReader(this, replicationCache, getReadDataSource(), recordTable.getName(), symbolTable.getName());
                 binaryLogReader.start();
 
             } catch (IllegalArgumentException error) {
@@ -405,15 +663,20 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
         return object;
     }
 
+    // Caches a symbol that was created by another server.
+    void cacheReplicatedSymbolId(String symbol, int id) {
+        cacheSymbolId(symbol, id);
+    }
+
     // Creates a previously saved object from the replication cache.
     <T> T createSavedObjectFromReplicationCache(UUID id, byte[] data, Map<String, Object> dataJson, Query<T> query) {
         UUID typeId = ObjectUtils.to(UUID.class, dataJson.get(StateSerializer.TYPE_KEY));
         T object = createSavedObject(typeId, id, query);
         State state = State.getInstance(object);
-        @SuppressWarnings("unchecked")
-        Map<String, Object> dataJsonClone = (Map<String, Object>) cloneJson(dataJson);
 
-        state.setValues(dataJsonClone);
+        // The given map is never shared since the replication cache only
+        // holds the data, which is deserialized into new values every time.
+        state.setValues(dataJson);
 
         if (query != null && ObjectUtils.to(boolean.class, query.getOptions().get(RETURN_ORIGINAL_DATA_QUERY_OPTION))) {
             state.getExtras().put(ORIGINAL_DATA_EXTRA, data);
@@ -422,32 +685,6 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
         return swapObjectType(query, object);
     }
 
-    // Clones the object so that it's safe to use in multiple threads.
-    private static Object cloneJson(Object object) {
-        if (object instanceof Map) {
-            @SuppressWarnings("unchecked")
-            Map<String, Object> map = (Map<String, Object>) object;
-            Map<String, Object> clone = new CompactMap<>(map.size());
-
-            for (Map.Entry<?, ?> entry : map.entrySet()) {
-                clone.put((String) entry.getKey(), cloneJson(entry.getValue()));
-            }
-
-            return clone;
-
-        } else if (object instanceof List) {
-            @SuppressWarnings("unchecked")
-            List<Object> objectList = (List<Object>) object;
-
-            return objectList.stream()
-                    .map(MySQLDatabase::cloneJson)
-                    .collect(Collectors.toList());
-
-        } else {
-            return object;
-        }
-    }
-
     @Override
     public <T> List<T> readAll(Query<T> query) {
         if (checkReplicationCache(query)) {
@@ -487,9 +724,9 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
                     continue;
                 }
 
-                Object[] value = replicationCache.getIfPresent(id);
+                MySQLReplicationCache.Entry entry = replicationCache.getIfPresent(id);
 
-                if (value == null) {
+                if (entry == null) {
                     if (missingIds == null) {
                         missingIds = new ArrayList<>();
                     }
@@ -498,16 +735,14 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
                     continue;
                 }
 
-                UUID typeId = ObjectUtils.to(UUID.class, value[0]);
-                byte[] data = (byte[]) value[1];
-                @SuppressWarnings("unchecked")
-                Map<String, Object> dataJson = (Map<String, Object>) value[2];
+                Map<String, Object> dataJson = StateSerializer.deserialize(entry.getBinaryData());
+                UUID typeId = ObjectUtils.to(UUID.class, dataJson.get(StateSerializer.TYPE_KEY));
 
                 objects = createReplicationCacheObjects(
                         objects,
                         typeId,
                         id,
-                        data,
+                        entry.getData(),
                         dataJson,
                         query);
             }
@@ -543,7 +778,7 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
                         UUID typeId = ObjectUtils.to(UUID.class, dataJson.get(StateSerializer.TYPE_KEY));
 
                         if (!UuidUtils.ZERO_UUID.equals(typeId)) {
-                            replicationCache.put(id, new Object[] { UuidUtils.toBytes(typeId), data, dataJson });
+                            replicationCache.put(id, data, dataJson);
                         }
 
                         resultObjects = createReplicationCacheObjects(
@@ -649,6 +884,23 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
         return super.readFirst(query);
     }
 
+    @Override
+    protected org.jooq.Query upsert(DSLContext context, Table<Record> table, List<Field<?>> keys, Map<Field<?>, Field<?>> values) {
+        Map<Field<?>, Field<?>> updates = new LinkedHashMap<>();
+
+        for (Field<?> field : values.keySet()) {
+            if (!keys.contains(field)) {
+                updates.put(field, DSL.field("VALUES({0})", field.getDataType(), field));
+            }
+        }
+
+        return context
+                .insertInto(table, values.keySet())
+                .values(values.values())
+                .onDuplicateKeyUpdate()
+                .set(updates);
+    }
+
     @Override
     protected boolean shouldUseSavepoint() {
         return false;
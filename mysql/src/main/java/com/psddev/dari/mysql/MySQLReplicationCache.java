@@ -0,0 +1,187 @@
+package com.psddev.dari.mysql;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.psddev.dari.db.StateSerializer;
+import com.psddev.dari.util.Stats;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replication cache that's bounded by the approximate number of bytes that
+ * its entries occupy.
+ *
+ * <p>Each entry holds the record data as it was read from the column, and
+ * the same data in the binary format if it had to be converted from JSON.
+ * Since {@link StateSerializer#deserialize} decodes binary data into new
+ * values on demand, the objects can be created from the cache without
+ * copying anything.</p>
+ */
+final class MySQLReplicationCache {
+
+    // Approximate size of the key, the array header and the cache entry.
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private static final Stats STATS = new Stats("MySQL Replication Cache");
+
+    private final Cache<UUID, Entry> cache;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong putBytes = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+
+    /**
+     * Creates an instance that holds at most the given {@code maximumBytes}.
+     *
+     * @param maximumBytes Must be positive.
+     */
+    public MySQLReplicationCache(long maximumBytes) {
+        this.cache = CacheBuilder
+                .newBuilder()
+                .maximumWeight(maximumBytes)
+                .<UUID, Entry>weigher((id, entry) -> entry.weigh())
+                .<UUID, Entry>removalListener(removal -> {
+                    Entry entry = removal.getValue();
+
+                    if (entry != null) {
+                        int weight = entry.weigh();
+
+                        bytes.addAndGet(-weight);
+
+                        if (removal.getCause() == RemovalCause.SIZE) {
+                            STATS.startTimer().stop("Eviction");
+                            evictedBytes.addAndGet(weight);
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Returns the approximate number of bytes in use.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Returns the approximate total number of bytes that have been put into
+     * this cache.
+     */
+    public long getPutBytes() {
+        return putBytes.get();
+    }
+
+    /**
+     * Returns the approximate total number of bytes that have been evicted
+     * from this cache because it was full.
+     */
+    public long getEvictedBytes() {
+        return evictedBytes.get();
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    public long getSize() {
+        return cache.size();
+    }
+
+    /**
+     * Returns the entry associated with the given {@code id}.
+     *
+     * @param id Nonnull.
+     * @return Nullable.
+     */
+    public Entry getIfPresent(UUID id) {
+        Stats.Timer timer = STATS.startTimer();
+        Entry entry = cache.getIfPresent(id);
+
+        timer.stop(entry != null ? "Hit" : "Miss");
+        return entry;
+    }
+
+    /**
+     * Associates the given {@code data} with the given {@code id}.
+     *
+     * @param id Nonnull.
+     * @param data Nonnull. Record data as it was read from the column.
+     * @param dataJson Nonnull. Deserialized form of the given {@code data}
+     *        that's used to convert JSON into the binary format.
+     */
+    public void put(UUID id, byte[] data, Map<String, Object> dataJson) {
+        Entry entry = new Entry(data, StateSerializer.isBinary(data) ? data : StateSerializer.serializeBinary(dataJson));
+        int weight = entry.weigh();
+
+        bytes.addAndGet(weight);
+        putBytes.addAndGet(weight);
+        cache.put(id, entry);
+    }
+
+    /**
+     * Replaces the data associated with the given {@code id} only if it's
+     * already cached.
+     *
+     * @see #put
+     */
+    public void replaceIfPresent(UUID id, byte[] data, Map<String, Object> dataJson) {
+        if (cache.getIfPresent(id) != null) {
+            put(id, data, dataJson);
+        }
+    }
+
+    /**
+     * Removes the data associated with the given {@code id}.
+     *
+     * @param id Nonnull.
+     */
+    public void invalidate(UUID id) {
+        cache.invalidate(id);
+    }
+
+    /**
+     * Removes all data.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Cached record data.
+     */
+    public static final class Entry {
+
+        private final byte[] data;
+        private final byte[] binaryData;
+
+        private Entry(byte[] data, byte[] binaryData) {
+            this.data = data;
+            this.binaryData = binaryData;
+        }
+
+        /**
+         * Returns the record data as it was read from the column.
+         *
+         * @return Nonnull.
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * Returns the record data in the binary format, which is the same
+         * as {@link #getData} unless that's JSON.
+         *
+         * @return Nonnull.
+         */
+        public byte[] getBinaryData() {
+            return binaryData;
+        }
+
+        private int weigh() {
+            return data.length + (binaryData != data ? binaryData.length : 0) + ENTRY_OVERHEAD;
+        }
+    }
+}
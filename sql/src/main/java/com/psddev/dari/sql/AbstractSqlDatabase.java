@@ -6,6 +6,7 @@ import com.google.common.base.Suppliers;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.psddev.dari.db.AbstractDatabase;
+import com.psddev.dari.db.AbstractGrouping;
 import com.psddev.dari.db.AtomicOperation;
 import com.psddev.dari.db.ComparisonPredicate;
 import com.psddev.dari.db.Grouping;
@@ -62,6 +63,7 @@ import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -70,10 +72,14 @@ import java.sql.SQLTimeoutException;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -142,6 +148,33 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
      */
     public static final String INDEX_SPATIAL_SUB_SETTING = "indexSpatial";
 
+    /**
+     * Sub-setting name for specifying whether the reads should use prepared
+     * statements with bind parameters instead of inlining all values.
+     *
+     * @see #isEnablePreparedStatements()
+     * @see #setEnablePreparedStatements(boolean)
+     */
+    public static final String ENABLE_PREPARED_STATEMENTS_SUB_SETTING = "enablePreparedStatements";
+
+    /**
+     * Sub-setting name for specifying whether saving multiple objects at
+     * once should use JDBC batches and native upserts.
+     *
+     * @see #isEnableBulkSaves()
+     * @see #setEnableBulkSaves(boolean)
+     */
+    public static final String ENABLE_BULK_SAVES_SUB_SETTING = "enableBulkSaves";
+
+    /**
+     * Sub-setting name for specifying whether the record data should be
+     * written in the compact binary format.
+     *
+     * @see #isEnableBinaryData()
+     * @see #setEnableBinaryData(boolean)
+     */
+    public static final String ENABLE_BINARY_DATA_SUB_SETTING = "enableBinaryData";
+
     public static final String CONNECTION_QUERY_OPTION = "sql.connection";
     public static final String RETURN_ORIGINAL_DATA_QUERY_OPTION = "sql.returnOriginalData";
     public static final String DISABLE_BY_ID_ITERATOR_OPTION = "sql.disableByIdIterator";
@@ -151,6 +184,7 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AbstractSqlDatabase.class);
     private static final Stats STATS = new Stats("SQL");
+    private static final int SYMBOL_BATCH_SIZE = 200;
 
     private static final DataType<String> STRING_INDEX_TYPE = SQLDataType.LONGVARBINARY.asConvertedDataType(new Converter<byte[], String>() {
 
@@ -195,6 +229,9 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
     private volatile DataSource readDataSource;
     private volatile String catalog;
     private volatile boolean indexSpatial;
+    private volatile boolean enablePreparedStatements;
+    private volatile boolean enableBulkSaves;
+    private volatile boolean enableBinaryData;
 
     /**
      * jOOQ table that represents the {@code Record} table.
@@ -428,6 +465,103 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
         this.indexSpatial = indexSpatial;
     }
 
+    /**
+     * Returns {@code true} if the reads should use prepared statements with
+     * bind parameters.
+     *
+     * <p>Rendering the values as bind parameters makes the SQL only depend
+     * on the shape of the query, so the prepared statement caches in the
+     * JDBC driver (e.g. {@code cachePrepStmts} in MySQL Connector/J) and in
+     * the database (e.g. the H2 query cache) can reuse the parsed and
+     * planned statements across different values.</p>
+     *
+     * <p>The connections are handed back to the pool after every read, so
+     * the statements aren't cached here. They're only reused if the driver
+     * or the pool caches them per physical connection, which has to be
+     * enabled in the data source:</p>
+     *
+     * <ul>
+     * <li>MySQL Connector/J: {@code cachePrepStmts=true},
+     * {@code prepStmtCacheSize} (e.g. {@code 250}) and
+     * {@code prepStmtCacheSqlLimit} (e.g. {@code 2048}), along with
+     * {@code useServerPrepStmts=true} so that the server keeps the parsed
+     * statements too.</li>
+     * <li>H2: {@code QUERY_CACHE_SIZE} in the JDBC URL, which caches the
+     * parsed statements per session.</li>
+     * </ul>
+     *
+     * <p>The time spent preparing the statements is reported as
+     * {@code SQL: Prepare} in {@code Stats("SQL")}. It drops when the
+     * driver's cache is hit, but the count itself doesn't tell hits and
+     * misses apart. There's no separate hit/miss stat, because JDBC doesn't
+     * expose whether {@code prepareStatement} was served from the driver's
+     * cache, and counting the SQL strings here would only measure how
+     * repetitive the queries are.</p>
+     *
+     * @see #ENABLE_PREPARED_STATEMENTS_SUB_SETTING
+     */
+    public boolean isEnablePreparedStatements() {
+        return enablePreparedStatements;
+    }
+
+    /**
+     * Sets whether the reads should use prepared statements with bind
+     * parameters.
+     *
+     * @see #ENABLE_PREPARED_STATEMENTS_SUB_SETTING
+     */
+    public void setEnablePreparedStatements(boolean enablePreparedStatements) {
+        this.enablePreparedStatements = enablePreparedStatements;
+    }
+
+    /**
+     * Returns {@code true} if saving multiple objects at once should use
+     * JDBC batches and native upserts.
+     *
+     * <p>Objects with atomic operations are still saved one at a time,
+     * since they need to be compared against the existing data.</p>
+     *
+     * @see #ENABLE_BULK_SAVES_SUB_SETTING
+     * @see #upsert(DSLContext, Table, List, Map)
+     */
+    public boolean isEnableBulkSaves() {
+        return enableBulkSaves;
+    }
+
+    /**
+     * Sets whether saving multiple objects at once should use JDBC batches
+     * and native upserts.
+     *
+     * @see #ENABLE_BULK_SAVES_SUB_SETTING
+     */
+    public void setEnableBulkSaves(boolean enableBulkSaves) {
+        this.enableBulkSaves = enableBulkSaves;
+    }
+
+    /**
+     * Returns {@code true} if the record data should be written in the
+     * compact binary format.
+     *
+     * <p>Existing JSON data can still be read either way, and is converted
+     * the next time that the record is saved.</p>
+     *
+     * @see #ENABLE_BINARY_DATA_SUB_SETTING
+     * @see StateSerializer#serializeBinary(Map)
+     */
+    public boolean isEnableBinaryData() {
+        return enableBinaryData;
+    }
+
+    /**
+     * Sets whether the record data should be written in the compact binary
+     * format.
+     *
+     * @see #ENABLE_BINARY_DATA_SUB_SETTING
+     */
+    public void setEnableBinaryData(boolean enableBinaryData) {
+        this.enableBinaryData = enableBinaryData;
+    }
+
     /**
      * Returns the jOOQ dialect that should be used to construct the SQL
      * statements.
@@ -787,6 +921,9 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
         setReadDataSource(createDataSource(settings, READ_DATA_SOURCE_JNDI_NAME_SUB_SETTING, READ_DATA_SOURCE_SUB_SETTING));
         setCatalog(ObjectUtils.to(String.class, settings.get(CATALOG_SUB_SETTING)));
         setIndexSpatial(ObjectUtils.to(boolean.class, settings.get(INDEX_SPATIAL_SUB_SETTING)));
+        setEnablePreparedStatements(ObjectUtils.to(boolean.class, settings.get(ENABLE_PREPARED_STATEMENTS_SUB_SETTING)));
+        setEnableBulkSaves(ObjectUtils.to(boolean.class, settings.get(ENABLE_BULK_SAVES_SUB_SETTING)));
+        setEnableBinaryData(ObjectUtils.to(boolean.class, settings.get(ENABLE_BINARY_DATA_SUB_SETTING)));
 
         setUp();
 
@@ -806,6 +943,11 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
             closeConnection(connection);
         }
 
+        // Warm up the symbol cache so that the first writes don't have to.
+        if (existingTables.contains("symbol")) {
+            symbolIds.get();
+        }
+
         // Which index tables to actually use?
         numberSqlIndexes = filterSqlIndexes(existingTables, new NumberSqlIndex(this, "RecordNumber", 3));
         stringSqlIndexes = filterSqlIndexes(existingTables, new StringSqlIndex(this, "RecordString", 4));
@@ -997,6 +1139,27 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
         return addComment(new SqlQuery(this, query).select((int) offset, limit), query);
     }
 
+    // Builds an SQL statement that's either prepared or inlined depending on
+    // #isEnablePreparedStatements.
+    private SqlStatement buildSelectSqlStatement(Query<?> query, long offset, int limit) {
+        if (!isEnablePreparedStatements()) {
+            return SqlStatement.inlined(buildSelectStatement(query, offset, limit));
+        }
+
+        Preconditions.checkNotNull(query);
+        Preconditions.checkArgument(offset >= 0L);
+        Preconditions.checkArgument(limit > 0);
+        return addComment(new SqlQuery(this, query, "", true).selectSqlStatement((int) offset, limit), query);
+    }
+
+    // Adds comment to the SQL statement to improve debugging.
+    private SqlStatement addComment(SqlStatement sqlStatement, Query<?> query) {
+        String sql = sqlStatement.getSql();
+        String commentedSql = addComment(sql, query);
+
+        return sql.equals(commentedSql) ? sqlStatement : sqlStatement.withSql(commentedSql);
+    }
+
     // Adds comment to the SQL to improve debugging.
     private String addComment(String sql, Query<?> query) {
         if (query != null) {
@@ -1032,8 +1195,15 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
      */
     public <R> R select(String sqlQuery, Query<?> query, SqlSelectFunction<R> selectFunction) {
         Preconditions.checkNotNull(sqlQuery);
+
+        return select(SqlStatement.inlined(sqlQuery), query, selectFunction);
+    }
+
+    // Selects using the SQL statement, which may be prepared.
+    private <R> R select(SqlStatement sqlStatement, Query<?> query, SqlSelectFunction<R> selectFunction) {
         Preconditions.checkNotNull(selectFunction);
 
+        String sqlQuery = sqlStatement.getSql();
         Connection connection = openQueryConnection(query);
 
         try {
@@ -1047,7 +1217,7 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
                 }
             }
 
-            try (Statement statement = connection.createStatement()) {
+            try (Statement statement = createStatement(connection, sqlStatement)) {
                 if (timeout > 0.0d) {
                     statement.setQueryTimeout((int) Math.ceil(timeout));
                 }
@@ -1057,7 +1227,7 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
                 ResultSet result;
 
                 try {
-                    result = statement.executeQuery(sqlQuery);
+                    result = sqlStatement.executeQuery(statement);
 
                 } finally {
                     double duration = timer.stop("SQL: Query");
@@ -1072,13 +1242,49 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
             }
 
         } catch (SQLException error) {
-            throw createSelectError(sqlQuery, query, error);
+            throw createSelectError(sqlStatement.toString(), query, error);
 
         } finally {
             closeResources(query, connection, null, null);
         }
     }
 
+    // Creates a JDBC statement that can execute the SQL statement, binding
+    // all the parameter values if it's prepared.
+    //
+    // The prepared statements aren't cached here on purpose. The connection
+    // goes back to the pool right after the read, so a cache would have to
+    // be keyed by the physical connection behind the pool, bypass the pool's
+    // statement tracking and avoid reusing a statement that an open iterator
+    // still holds. The driver's statement cache already does that per
+    // physical connection (see #isEnablePreparedStatements), and closing the
+    // statement below just returns it there.
+    Statement createStatement(Connection connection, SqlStatement sqlStatement) throws SQLException {
+        if (!sqlStatement.isPrepared()) {
+            return connection.createStatement();
+        }
+
+        String sql = sqlStatement.getSql();
+        Stats.Timer timer = STATS.startTimer();
+        PreparedStatement statement = null;
+
+        try {
+            statement = connection.prepareStatement(sql);
+            sqlStatement.bind(statement);
+            return statement;
+
+        } catch (SQLException | RuntimeException error) {
+            if (statement != null) {
+                statement.close();
+            }
+
+            throw error;
+
+        } finally {
+            timer.stop("SQL: Prepare");
+        }
+    }
+
     // Creates an error that happened during #select.
     SqlDatabaseException createSelectError(String sqlQuery, Query<?> query, SQLException error) {
         String message;
@@ -1145,7 +1351,7 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
             byte[] data = result.getBytes(3);
 
             if (data != null) {
-                objectState.setValues(StateSerializer.deserialize(data));
+                StateSerializer.deserialize(data, objectState);
                 objectState.getExtras().put(DATA_LENGTH_EXTRA, data.length);
 
                 if (query != null
@@ -1168,7 +1374,15 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
      * @return Nonnull.
      */
     public <T> List<T> selectList(String sqlQuery, Query<T> query) {
-        return select(sqlQuery, query, result -> {
+        Preconditions.checkNotNull(sqlQuery);
+
+        return selectList(SqlStatement.inlined(sqlQuery), query);
+    }
+
+    // Selects a list of objects using the SQL statement, which may be
+    // prepared.
+    private <T> List<T> selectList(SqlStatement sqlStatement, Query<T> query) {
+        return select(sqlStatement, query, result -> {
             List<T> objects = new ArrayList<>();
 
             while (result.next()) {
@@ -1181,7 +1395,7 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
 
     @Override
     public <T> List<T> readAll(Query<T> query) {
-        return selectList(buildSelectStatement(query), query);
+        return selectList(buildSelectSqlStatement(query, 0L, Integer.MAX_VALUE), query);
     }
 
     /**
@@ -1198,9 +1412,11 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
 
     @Override
     public long readCount(Query<?> query) {
-        String sqlQuery = buildCountStatement(query);
+        SqlStatement sqlStatement = isEnablePreparedStatements()
+                ? addComment(new SqlQuery(this, query, "", true).countSqlStatement(), query)
+                : SqlStatement.inlined(buildCountStatement(query));
 
-        return select(sqlQuery, query, result -> result.next()
+        return select(sqlStatement, query, result -> result.next()
                 ? ObjectUtils.to(long.class, result.getObject(1))
                 : 0L);
     }
@@ -1216,14 +1432,20 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
     public <T> T selectFirst(String sqlQuery, Query<T> query) {
         Preconditions.checkNotNull(sqlQuery);
 
-        return select(sqlQuery, query, result -> result.next()
+        return selectFirst(SqlStatement.inlined(sqlQuery), query);
+    }
+
+    // Selects the first object using the SQL statement, which may be
+    // prepared.
+    private <T> T selectFirst(SqlStatement sqlStatement, Query<T> query) {
+        return select(sqlStatement, query, result -> result.next()
                 ? createSavedObjectUsingResultSet(result, query)
                 : null);
     }
 
     @Override
     public <T> T readFirst(Query<T> query) {
-        return selectFirst(buildSelectStatement(query, 0L, 1), query);
+        return selectFirst(buildSelectSqlStatement(query, 0L, 1), query);
     }
 
     /**
@@ -1236,7 +1458,9 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
      * @return Nonnull.
      */
     public <T> Iterable<T> selectIterable(String sqlQuery, int fetchSize, Query<T> query) {
-        return () -> new SqlIterator<>(this, sqlQuery, fetchSize, query);
+        Preconditions.checkNotNull(sqlQuery);
+
+        return () -> new SqlIterator<>(this, SqlStatement.inlined(sqlQuery), fetchSize, query);
     }
 
     @Override
@@ -1247,7 +1471,9 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
             }
         }
 
-        return selectIterable(buildSelectStatement(query), fetchSize, query);
+        SqlStatement sqlStatement = buildSelectSqlStatement(query, 0L, Integer.MAX_VALUE);
+
+        return () -> new SqlIterator<>(this, sqlStatement, fetchSize, query);
     }
 
     /**
@@ -1281,8 +1507,7 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
         }
 
         // 2. Select one more item than requested.
-        String sqlQuery = buildSelectStatement(query, offset, limit + 1);
-        List<T> items = selectList(sqlQuery, query);
+        List<T> items = selectList(buildSelectSqlStatement(query, offset, limit + 1), query);
         int size = items.size();
 
         // 3. If there are less items than the requested limit, there aren't
@@ -1333,7 +1558,7 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
         Preconditions.checkNotNull(query);
         Preconditions.checkNotNull(fields);
         Preconditions.checkArgument(fields.length > 0);
-        return addComment(new SqlQuery(this, query).groupStatement(fields), query);
+        return addComment(new SqlQuery(this, query).groupStatement(AbstractGrouping.getAggregateFields(query), fields), query);
     }
 
     @Override
@@ -1346,10 +1571,18 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
         }
 
         String sqlQuery = buildGroupStatement(query, fields);
+        List<String> aggregateFields = AbstractGrouping.getAggregateFields(query);
+        int aggregateFieldsSize = aggregateFields.size();
+        boolean[] aggregateDates = new boolean[aggregateFieldsSize];
+
+        for (int i = 0; i < aggregateFieldsSize; ++ i) {
+            aggregateDates[i] = ObjectField.DATE_TYPE.equals(query.mapEmbeddedKey(getEnvironment(), aggregateFields.get(i)).getInternalType());
+        }
 
         return select(sqlQuery, query, result -> {
             List<Grouping<T>> groupings = new ArrayList<>();
             int fieldsLength = fields.length;
+            int keysIndex = 2 + aggregateFieldsSize * 4;
             int groupingsCount = 0;
 
             for (int i = 0, last = (int) offset + limit; result.next(); ++ i, ++ groupingsCount) {
@@ -1365,9 +1598,21 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
                 if (SqlQuery.COUNT_ALIAS.equals(aggregateColumnName)) {
                     long count = ObjectUtils.to(long.class, result.getObject(1));
                     for (int j = 0; j < fieldsLength; ++ j) {
-                        keys.add(result.getObject(j + 2));
+                        keys.add(result.getObject(j + keysIndex));
                     }
                     grouping = new SqlGrouping<>(keys, query, fields, count);
+
+                    for (int j = 0; j < aggregateFieldsSize; ++ j) {
+                        boolean date = aggregateDates[j];
+                        int column = 2 + j * 4;
+
+                        grouping.setAggregate(
+                                aggregateFields.get(j),
+                                ObjectUtils.to(long.class, result.getObject(column)),
+                                toAggregateValue(result.getObject(column + 1), date),
+                                toAggregateValue(result.getObject(column + 2), date),
+                                ObjectUtils.to(double.class, result.getObject(column + 3)));
+                    }
                 } else {
                     throw new UnsupportedOperationException();
                 }
@@ -1424,6 +1669,16 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
         });
     }
 
+    // Converts the minimum or the maximum from the number index back to
+    // the field type.
+    private static Object toAggregateValue(Object value, boolean date) {
+        Double valueDouble = ObjectUtils.to(Double.class, value);
+
+        return date && valueDouble != null
+                ? new Date(valueDouble.longValue())
+                : valueDouble;
+    }
+
     @Override
     protected void beginTransaction(Connection connection, boolean isImmediate) throws SQLException {
         connection.setAutoCommit(false);
@@ -1545,158 +1800,427 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
 
             double now = System.currentTimeMillis() / 1000.0;
 
-            for (State state : states) {
-                boolean isNew = state.isNew();
-                UUID id = state.getId();
-                UUID typeId = state.getVisibilityAwareTypeId();
-                byte[] data = null;
-
-                // Save data.
-                while (true) {
-
-                    // Looks like a new object so try to INSERT.
-                    if (isNew) {
-                        if (data == null) {
-                            data = StateSerializer.serialize(state.getSimpleValues());
-                        }
+            if (isEnableBulkSaves() && states.size() > 1) {
+                doSavesInBulk(connection, context, states, now);
 
-                        if (execute(connection, context, context
-                                .insertInto(recordTable,
-                                        recordIdField,
-                                        recordTypeIdField,
-                                        recordDataField)
-                                .select(context.select(
-                                        DSL.inline(id, uuidType()),
-                                        DSL.inline(typeId, uuidType()),
-                                        DSL.inline(data, byteArrayType()))
-                                        .whereNotExists(context
-                                                .selectOne()
-                                                .from(recordTable)
-                                                .where(recordIdField.eq(id))
-                                                .and(recordTypeIdField.eq(typeId))))) < 1) {
-
-                            // INSERT failed so retry with UPDATE.
-                            isNew = false;
-                            continue;
-                        }
+            } else {
+                for (State state : states) {
+                    boolean isNew = saveRecord(connection, context, state, state.isNew());
 
-                    } else {
-                        List<AtomicOperation> atomicOperations = state.getAtomicOperations();
+                    saveRecordUpdate(connection, context, state, isNew, now);
+                }
+            }
+        }
+    }
 
-                        // Normal update.
-                        if (atomicOperations.isEmpty()) {
-                            if (data == null) {
-                                data = StateSerializer.serialize(state.getSimpleValues());
-                            }
+    // Serializes the given state in the configured format.
+    private byte[] serializeData(State state) {
+        Map<String, Object> values = state.getSimpleValues();
 
-                            if (execute(connection, context, context
-                                    .update(recordTable)
-                                    .set(recordTypeIdField, typeId)
-                                    .set(recordDataField, data)
-                                    .where(recordIdField.eq(id))) < 1) {
+        return isEnableBinaryData()
+                ? StateSerializer.serializeBinary(values)
+                : StateSerializer.serialize(values);
+    }
 
-                                // UPDATE failed so retry with INSERT.
-                                isNew = true;
-                                continue;
-                            }
+    // Saves the data for the state in the Record table, and returns whether
+    // the object was new in the end.
+    private boolean saveRecord(Connection connection, DSLContext context, State state, boolean isNew) throws SQLException {
+        UUID id = state.getId();
+        UUID typeId = state.getVisibilityAwareTypeId();
+        byte[] data = null;
 
-                        } else {
-
-                            // Atomic operations requested, so find the old object.
-                            Object oldObject = Query
-                                    .from(Object.class)
-                                    .where("_id = ?", id)
-                                    .using(this)
-                                    .option(CONNECTION_QUERY_OPTION, connection)
-                                    .option(RETURN_ORIGINAL_DATA_QUERY_OPTION, Boolean.TRUE)
-                                    .master()
-                                    .noCache()
-                                    .first();
-
-                            if (oldObject == null) {
-                                retryWrites();
-                                break;
-                            }
+        while (true) {
 
-                            // Restore the data from the old object.
-                            State oldState = State.getInstance(oldObject);
-                            UUID oldTypeId = oldState.getVisibilityAwareTypeId();
-                            byte[] oldData = (byte[]) oldState.getExtra(ORIGINAL_DATA_EXTRA);
+            // Looks like a new object so try to INSERT.
+            if (isNew) {
+                if (data == null) {
+                    data = serializeData(state);
+                }
 
-                            state.setValues(oldState.getValues());
+                if (execute(connection, context, context
+                        .insertInto(recordTable,
+                                recordIdField,
+                                recordTypeIdField,
+                                recordDataField)
+                        .select(context.select(
+                                DSL.inline(id, uuidType()),
+                                DSL.inline(typeId, uuidType()),
+                                DSL.inline(data, byteArrayType()))
+                                .whereNotExists(context
+                                        .selectOne()
+                                        .from(recordTable)
+                                        .where(recordIdField.eq(id))
+                                        .and(recordTypeIdField.eq(typeId))))) < 1) {
 
-                            // Apply all the atomic operations.
-                            for (AtomicOperation operation : atomicOperations) {
-                                String field = operation.getField();
-                                state.putByPath(field, oldState.getByPath(field));
-                            }
+                    // INSERT failed so retry with UPDATE.
+                    isNew = false;
+                    continue;
+                }
 
-                            for (AtomicOperation operation : atomicOperations) {
-                                operation.execute(state);
-                            }
+            } else {
+                List<AtomicOperation> atomicOperations = state.getAtomicOperations();
 
-                            data = StateSerializer.serialize(state.getSimpleValues());
+                // Normal update.
+                if (atomicOperations.isEmpty()) {
+                    if (data == null) {
+                        data = serializeData(state);
+                    }
 
-                            if (execute(connection, context, context
-                                    .update(recordTable)
-                                    .set(recordTypeIdField, typeId)
-                                    .set(recordDataField, data)
-                                    .where(recordIdField.eq(id))
-                                    .and(recordTypeIdField.eq(oldTypeId))
-                                    .and(recordDataField.eq(oldData))) < 1) {
+                    if (execute(connection, context, context
+                            .update(recordTable)
+                            .set(recordTypeIdField, typeId)
+                            .set(recordDataField, data)
+                            .where(recordIdField.eq(id))) < 1) {
 
-                                // UPDATE failed so start over.
-                                retryWrites();
-                                break;
-                            }
-                        }
+                        // UPDATE failed so retry with INSERT.
+                        isNew = true;
+                        continue;
                     }
 
-                    // Success!
-                    break;
-                }
+                } else {
 
-                // Save update date.
-                while (true) {
-                    if (isNew) {
-                        if (execute(connection, context, context
-                                .insertInto(recordUpdateTable,
-                                        recordUpdateIdField,
-                                        recordUpdateTypeIdField,
-                                        recordUpdateDateField)
-                                .select(context.select(
-                                        DSL.inline(id, uuidType()),
-                                        DSL.inline(typeId, uuidType()),
-                                        DSL.inline(now, doubleType()))
-                                        .whereNotExists(context
-                                                .selectOne()
-                                                .from(recordUpdateTable)
-                                                .where(recordUpdateIdField.eq(id))))) < 1) {
-
-                            // INSERT failed so retry with UPDATE.
-                            isNew = false;
-                            continue;
-                        }
+                    // Atomic operations requested, so find the old object.
+                    Object oldObject = Query
+                            .from(Object.class)
+                            .where("_id = ?", id)
+                            .using(this)
+                            .option(CONNECTION_QUERY_OPTION, connection)
+                            .option(RETURN_ORIGINAL_DATA_QUERY_OPTION, Boolean.TRUE)
+                            .master()
+                            .noCache()
+                            .first();
+
+                    if (oldObject == null) {
+                        retryWrites();
+                        break;
+                    }
 
-                    } else {
-                        if (execute(connection, context, context
-                                .update(recordUpdateTable)
-                                .set(recordUpdateTypeIdField, typeId)
-                                .set(recordUpdateDateField, now)
-                                .where(recordUpdateIdField.eq(id))) < 1) {
+                    // Restore the data from the old object.
+                    State oldState = State.getInstance(oldObject);
+                    UUID oldTypeId = oldState.getVisibilityAwareTypeId();
+                    byte[] oldData = (byte[]) oldState.getExtra(ORIGINAL_DATA_EXTRA);
 
-                            // UPDATE failed so retry with INSERT.
-                            isNew = true;
-                            continue;
-                        }
+                    state.setValues(oldState.getValues());
+
+                    // Apply all the atomic operations.
+                    for (AtomicOperation operation : atomicOperations) {
+                        String field = operation.getField();
+                        state.putByPath(field, oldState.getByPath(field));
                     }
 
-                    break;
+                    for (AtomicOperation operation : atomicOperations) {
+                        operation.execute(state);
+                    }
+
+                    data = serializeData(state);
+
+                    if (execute(connection, context, context
+                            .update(recordTable)
+                            .set(recordTypeIdField, typeId)
+                            .set(recordDataField, data)
+                            .where(recordIdField.eq(id))
+                            .and(recordTypeIdField.eq(oldTypeId))
+                            .and(recordDataField.eq(oldData))) < 1) {
+
+                        // UPDATE failed so start over.
+                        retryWrites();
+                        break;
+                    }
+                }
+            }
+
+            // Success!
+            break;
+        }
+
+        return isNew;
+    }
+
+    // Saves the update date for the state in the RecordUpdate table.
+    private void saveRecordUpdate(Connection connection, DSLContext context, State state, boolean isNew, double now) throws SQLException {
+        UUID id = state.getId();
+        UUID typeId = state.getVisibilityAwareTypeId();
+
+        while (true) {
+            if (isNew) {
+                if (execute(connection, context, context
+                        .insertInto(recordUpdateTable,
+                                recordUpdateIdField,
+                                recordUpdateTypeIdField,
+                                recordUpdateDateField)
+                        .select(context.select(
+                                DSL.inline(id, uuidType()),
+                                DSL.inline(typeId, uuidType()),
+                                DSL.inline(now, doubleType()))
+                                .whereNotExists(context
+                                        .selectOne()
+                                        .from(recordUpdateTable)
+                                        .where(recordUpdateIdField.eq(id))))) < 1) {
+
+                    // INSERT failed so retry with UPDATE.
+                    isNew = false;
+                    continue;
+                }
+
+            } else {
+                if (execute(connection, context, context
+                        .update(recordUpdateTable)
+                        .set(recordUpdateTypeIdField, typeId)
+                        .set(recordUpdateDateField, now)
+                        .where(recordUpdateIdField.eq(id))) < 1) {
+
+                    // UPDATE failed so retry with INSERT.
+                    isNew = true;
+                    continue;
+                }
+            }
+
+            break;
+        }
+    }
+
+    // Saves the data and the update dates for all states using JDBC batches
+    // and native upserts where possible.
+    private void doSavesInBulk(Connection connection, DSLContext context, List<State> states, double now) throws SQLException {
+        Param<UUID> idParam = DSL.param(recordIdField.getName(), uuidType());
+        Param<UUID> typeIdParam = DSL.param(recordTypeIdField.getName(), uuidType());
+        Param<byte[]> dataParam = DSL.param(recordDataField.getName(), byteArrayType());
+        Param<Double> updateDateParam = DSL.param(recordUpdateDateField.getName(), doubleType());
+
+        Map<Field<?>, Field<?>> recordValues = new LinkedHashMap<>();
+
+        recordValues.put(recordIdField, idParam);
+        recordValues.put(recordTypeIdField, typeIdParam);
+        recordValues.put(recordDataField, dataParam);
+
+        org.jooq.Query recordUpsert = upsert(
+                context,
+                recordTable,
+                Arrays.asList(recordTypeIdField, recordIdField),
+                recordValues);
+
+        List<State> inserts = new ArrayList<>();
+        List<Map<String, Object>> insertBindValues = new ArrayList<>();
+        List<State> updates = new ArrayList<>();
+        List<Map<String, Object>> updateBindValues = new ArrayList<>();
+
+        for (State state : states) {
+            if (state.isNew()) {
+
+                // INSERT one at a time if there isn't a native upsert, since
+                // each may need to fall back to an UPDATE.
+                if (recordUpsert == null) {
+                    saveRecord(connection, context, state, true);
+
+                } else {
+                    inserts.add(state);
+                    insertBindValues.add(recordBindValues(state, idParam, typeIdParam, dataParam));
                 }
+
+            } else if (state.getAtomicOperations().isEmpty()) {
+                updates.add(state);
+                updateBindValues.add(recordBindValues(state, idParam, typeIdParam, dataParam));
+
+            } else {
+
+                // Atomic operations need the old data so they can't be
+                // batched.
+                saveRecord(connection, context, state, false);
+            }
+        }
+
+        if (!inserts.isEmpty()) {
+            executeBatch(connection, context, recordUpsert, insertBindValues, "SQL: Batch Upsert");
+        }
+
+        if (!updates.isEmpty()) {
+            int[] counts = executeBatch(
+                    connection,
+                    context,
+                    context.update(recordTable)
+                            .set(recordTypeIdField, typeIdParam)
+                            .set(recordDataField, dataParam)
+                            .where(recordIdField.eq(idParam)),
+                    updateBindValues,
+                    "SQL: Batch Update");
+
+            retryMissingUpdates(connection, context, updates, counts);
+        }
+
+        Map<Field<?>, Field<?>> recordUpdateValues = new LinkedHashMap<>();
+
+        recordUpdateValues.put(recordUpdateIdField, idParam);
+        recordUpdateValues.put(recordUpdateTypeIdField, typeIdParam);
+        recordUpdateValues.put(recordUpdateDateField, updateDateParam);
+
+        org.jooq.Query recordUpdateUpsert = upsert(
+                context,
+                recordUpdateTable,
+                Collections.singletonList(recordUpdateIdField),
+                recordUpdateValues);
+
+        if (recordUpdateUpsert == null) {
+            for (State state : states) {
+                saveRecordUpdate(connection, context, state, state.isNew(), now);
+            }
+
+        } else {
+            List<Map<String, Object>> recordUpdateBindValues = new ArrayList<>();
+
+            for (State state : states) {
+                Map<String, Object> bindValues = new HashMap<>();
+
+                bindValues.put(idParam.getName(), state.getId());
+                bindValues.put(typeIdParam.getName(), state.getVisibilityAwareTypeId());
+                bindValues.put(updateDateParam.getName(), now);
+                recordUpdateBindValues.add(bindValues);
             }
+
+            executeBatch(connection, context, recordUpdateUpsert, recordUpdateBindValues, "SQL: Batch Upsert");
         }
     }
 
+    // Retries the batched UPDATEs that didn't find a row with INSERTs.
+    //
+    // 0 means that the row is missing. Statement.SUCCESS_NO_INFO means that
+    // the driver ran the statement but doesn't know how many rows changed,
+    // which some drivers report for every statement in a rewritten batch,
+    // so the rows are looked up with a single SELECT instead of being
+    // assumed to exist. If the driver returns fewer counts than statements,
+    // there's no telling which ones ran, so all of them are saved again one
+    // at a time, which is safe since UPDATE is idempotent.
+    private void retryMissingUpdates(Connection connection, DSLContext context, List<State> updates, int[] counts) throws SQLException {
+        if (counts.length != updates.size()) {
+            LOGGER.warn(
+                    "Expected [{}] update counts from the JDBC batch but got [{}]! Falling back to saving one at a time.",
+                    updates.size(),
+                    counts.length);
+
+            for (State state : updates) {
+                saveRecord(connection, context, state, false);
+            }
+
+            return;
+        }
+
+        List<State> missing = new ArrayList<>();
+        Map<UUID, State> unknown = new LinkedHashMap<>();
+
+        for (int i = 0, length = counts.length; i < length; ++ i) {
+            State state = updates.get(i);
+
+            if (counts[i] == 0) {
+                missing.add(state);
+
+            } else if (counts[i] == Statement.SUCCESS_NO_INFO) {
+                unknown.put(state.getId(), state);
+            }
+        }
+
+        if (!unknown.isEmpty()) {
+            for (UUID id : context
+                    .select(recordIdField)
+                    .from(recordTable)
+                    .where(recordIdField.in(unknown.keySet()))
+                    .fetch(recordIdField)) {
+
+                unknown.remove(id);
+            }
+
+            missing.addAll(unknown.values());
+        }
+
+        for (State state : missing) {
+            saveRecord(connection, context, state, true);
+        }
+    }
+
+    // Creates the bind values for the state in the Record table.
+    private Map<String, Object> recordBindValues(State state, Param<UUID> idParam, Param<UUID> typeIdParam, Param<byte[]> dataParam) {
+        Map<String, Object> bindValues = new HashMap<>();
+
+        bindValues.put(idParam.getName(), state.getId());
+        bindValues.put(typeIdParam.getName(), state.getVisibilityAwareTypeId());
+        bindValues.put(dataParam.getName(), serializeData(state));
+        return bindValues;
+    }
+
+    // Executes the query as a JDBC batch, once per each bind values.
+    private int[] executeBatch(
+            Connection connection,
+            DSLContext context,
+            org.jooq.Query query,
+            List<Map<String, Object>> bindValuesList,
+            String operation) throws SQLException {
+
+        boolean useSavepoint = shouldUseSavepoint();
+        Savepoint savepoint = null;
+        int size = bindValuesList.size();
+
+        Stats.Timer timer = STATS.startTimer();
+        Profiler.Static.startThreadEvent(operation);
+
+        try {
+            if (useSavepoint && !connection.getAutoCommit()) {
+                savepoint = connection.setSavepoint();
+            }
+
+            BatchBindStep batch = context.batch(query);
+
+            for (Map<String, Object> bindValues : bindValuesList) {
+                batch = batch.bind(bindValues);
+            }
+
+            int[] counts = batch.execute();
+
+            if (savepoint != null) {
+                connection.releaseSavepoint(savepoint);
+            }
+
+            return counts;
+
+        } catch (DataAccessException error) {
+            if (savepoint != null) {
+                connection.rollback(savepoint);
+            }
+
+            Throwables.propagateIfInstanceOf(error.getCause(), SQLException.class);
+            throw error;
+
+        } finally {
+            double time = timer.stop(operation);
+            Profiler.Static.stopThreadEvent(size + " Rows");
+
+            LOGGER.debug(
+                    "SQL batch: [{}], Rows: [{}], Time: [{}]ms",
+                    new Object[] {
+                            query,
+                            size,
+                            time * 1000.0
+                    });
+        }
+    }
+
+    /**
+     * Returns a jOOQ query that inserts a row with the given {@code values}
+     * into the given {@code table}, or updates the existing row that has the
+     * same values for the given {@code keys}, in a single statement.
+     *
+     * <p>This is used to write multiple objects at once when
+     * {@link #isEnableBulkSaves()} is {@code true}, and by default, it
+     * returns {@code null} to indicate that the database doesn't support it
+     * natively, so the rows should be written one at a time.</p>
+     *
+     * @param context Nonnull.
+     * @param table Nonnull.
+     * @param keys Nonnull. Nonempty.
+     * @param values Nonnull. Nonempty. Maps the table fields to their values.
+     * @return Nullable.
+     */
+    protected org.jooq.Query upsert(DSLContext context, Table<Record> table, List<Field<?>> keys, Map<Field<?>, Field<?>> values) {
+        return null;
+    }
+
     // Deletes all index data associated with the states.
     private void deleteIndexes(DSLContext context, ObjectIndex onlyIndex, List<State> states) throws SQLException {
         Set<UUID> stateIds = states.stream()
@@ -1741,96 +2265,213 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
             return cachedId;
         }
 
-        // Try to find the ID from the database.
-        Connection readConnection = openReadConnection();
+        Integer id = findSymbolIds(Collections.singleton(symbol), create).get(symbol);
 
-        try {
-            int id = readSymbolId(symbol, readConnection);
+        return id != null ? id : -1;
+    }
 
-            if (id > 0 || !create) {
-                return id;
+    /**
+     * Finds the unique IDs associated with all of the given {@code symbols}
+     * at once, creating the missing ones on demand if requested.
+     *
+     * <p>The cached IDs are returned without any locking, and the rest are
+     * read, and if necessary, created using a constant number of
+     * statements.</p>
+     *
+     * @param symbols Nonnull.
+     * @param create {@code true} to create the IDs on demand.
+     * @return Nonnull. Doesn't contain the symbols that aren't associated
+     *         with an ID if their creation isn't requested.
+     */
+    protected Map<String, Integer> findSymbolIds(Collection<String> symbols, boolean create) {
+        Preconditions.checkNotNull(symbols);
+
+        Map<String, Integer> cachedIds = symbolIds.get();
+        Map<String, Integer> ids = new HashMap<>();
+        Set<String> missing = new LinkedHashSet<>();
+
+        for (String symbol : symbols) {
+            Integer id = cachedIds.get(symbol);
+
+            if (id != null) {
+                ids.put(symbol, id);
+
+            } else {
+                missing.add(symbol);
             }
+        }
+
+        if (missing.isEmpty()) {
+            return ids;
+        }
+
+        // Try to find the IDs from the database.
+        Connection readConnection = openReadConnection();
+
+        try {
+            readSymbolIds(missing, ids, readConnection);
 
         } finally {
             closeConnection(readConnection);
         }
 
-        // Create the ID and re-fetch it from the database to make sure that
-        // it's correct in case of unique constraint violation.
+        if (missing.isEmpty() || !create) {
+            return ids;
+        }
+
+        // Create the IDs and re-fetch them from the database to make sure
+        // that they're correct in case of unique constraint violation. This
+        // uses a separate connection so that the IDs that are cached are
+        // never rolled back.
         Connection connection = openConnection();
 
         try {
             try (DSLContext context = openContext(connection)) {
-                org.jooq.Query createQuery = context
-                        .insertInto(symbolTable, symbolValueField)
-                        .select(context
-                                .select(DSL.inline(symbol, stringIndexType()))
-                                .whereNotExists(context
-                                        .selectOne()
-                                        .from(symbolTable)
-                                        .where(symbolValueField.eq(symbol))));
+                List<String> missingList = new ArrayList<>(missing);
 
-                try {
-                    createQuery.execute();
+                for (int i = 0, size = missingList.size(); i < size; i += SYMBOL_BATCH_SIZE) {
+                    List<String> batch = missingList.subList(i, Math.min(i + SYMBOL_BATCH_SIZE, size));
 
-                } catch (DataAccessException error) {
-                    throw convertJooqError(error, createQuery);
+                    try {
+                        createSymbols(context, batch);
+
+                    } catch (DataAccessException error) {
+
+                        // Another writer created some of the same symbols at
+                        // the same time, so fall back to one at a time.
+                        for (String symbol : batch) {
+                            createSymbols(context, Collections.singletonList(symbol));
+                        }
+                    }
                 }
             }
 
-            return readSymbolId(symbol, connection);
+            readSymbolIds(missing, ids, connection);
 
         } finally {
             closeConnection(connection);
         }
+
+        return ids;
+    }
+
+    // Creates all given symbols that don't exist yet in a single statement.
+    private void createSymbols(DSLContext context, List<String> symbols) {
+        org.jooq.Select<Record1<String>> select = null;
+
+        for (String symbol : symbols) {
+            org.jooq.Select<Record1<String>> symbolSelect = context
+                    .select(DSL.inline(symbol, stringIndexType()))
+                    .whereNotExists(context
+                            .selectOne()
+                            .from(symbolTable)
+                            .where(symbolValueField.eq(symbol)));
+
+            select = select != null ? select.unionAll(symbolSelect) : symbolSelect;
+        }
+
+        org.jooq.Query createQuery = context
+                .insertInto(symbolTable, symbolValueField)
+                .select(select);
+
+        try {
+            createQuery.execute();
+
+        } catch (DataAccessException error) {
+            if (symbols.size() > 1) {
+                throw error;
+
+            } else {
+                throw convertJooqError(error, createQuery);
+            }
+        }
     }
 
-    // Reads the symbol ID from the database.
-    private int readSymbolId(String symbol, Connection connection) {
+    // Reads the symbol IDs from the database, caches them, and removes the
+    // found ones from the given missing set.
+    private void readSymbolIds(Set<String> missing, Map<String, Integer> ids, Connection connection) {
+        Map<String, Integer> cachedIds = symbolIds.get();
+        List<String> missingList = new ArrayList<>(missing);
+
         try (DSLContext context = openContext(connection)) {
-            ResultQuery<Record1<Integer>> selectQuery = context
-                    .select(symbolIdField)
-                    .from(symbolTable)
-                    .where(symbolValueField.eq(symbol));
+            for (int i = 0, size = missingList.size(); i < size; i += SYMBOL_BATCH_SIZE) {
+                ResultQuery<Record2<Integer, String>> selectQuery = context
+                        .select(symbolIdField, symbolValueField)
+                        .from(symbolTable)
+                        .where(symbolValueField.in(missingList.subList(i, Math.min(i + SYMBOL_BATCH_SIZE, size))));
 
-            try {
-                Integer id = selectQuery
-                        .fetchOptional()
-                        .map(Record1::value1)
-                        .orElse(null);
+                try {
+                    for (Record2<Integer, String> record : selectQuery.fetch()) {
+                        String symbol = record.value2();
+                        Integer id = record.value1();
 
-                if (id != null) {
-                    symbolIds.get().put(symbol, id);
-                    return id;
+                        cachedIds.put(symbol, id);
+                        ids.put(symbol, id);
+                        missing.remove(symbol);
+                    }
 
-                } else {
-                    return -1;
+                } catch (DataAccessException error) {
+                    throw convertJooqError(error, selectQuery);
                 }
-
-            } catch (DataAccessException error) {
-                throw convertJooqError(error, selectQuery);
             }
         }
     }
 
+    /**
+     * Caches the given symbol {@code id} that was created elsewhere, such
+     * as by another server in the cluster.
+     *
+     * @param symbol Nonnull.
+     */
+    protected void cacheSymbolId(String symbol, int id) {
+        Preconditions.checkNotNull(symbol);
+
+        symbolIds.get().put(symbol, id);
+    }
+
     // Inserts all index data associated with the states.
     private void insertIndexes(DSLContext context, ObjectIndex onlyIndex, List<State> states) throws SQLException {
         Map<Table<Record>, BatchBindStep> batches = new HashMap<>();
         Map<Table<Record>, Set<Map<String, Object>>> bindValuesSets = new HashMap<>();
 
+        Map<State, List<SqlIndexValue>> sqlIndexValuesByState = new LinkedHashMap<>();
+        Set<String> symbols = new HashSet<>();
+
+        // Resolve all symbols up front so that the missing ones can be
+        // created together.
         for (State state : states) {
+            List<SqlIndexValue> sqlIndexValues = new ArrayList<>();
+
+            for (SqlIndexValue sqlIndexValue : SqlIndexValue.find(state)) {
+                if (onlyIndex == null || onlyIndex.equals(sqlIndexValue.getIndex())) {
+                    sqlIndexValues.add(sqlIndexValue);
+                    symbols.add(sqlIndexValue.getUniqueName());
+                }
+            }
+
+            sqlIndexValuesByState.put(state, sqlIndexValues);
+        }
+
+        Map<String, Integer> foundSymbolIds = findSymbolIds(symbols, true);
+
+        for (Map.Entry<State, List<SqlIndexValue>> entry : sqlIndexValuesByState.entrySet()) {
+            State state = entry.getKey();
             UUID id = state.getId();
             UUID typeId = state.getVisibilityAwareTypeId();
 
-            for (SqlIndexValue sqlIndexValue : SqlIndexValue.find(state)) {
+            for (SqlIndexValue sqlIndexValue : entry.getValue()) {
                 ObjectIndex index = sqlIndexValue.getIndex();
-
-                if (onlyIndex != null && !onlyIndex.equals(index)) {
-                    continue;
+                Object symbolId = foundSymbolIds.get(sqlIndexValue.getUniqueName());
+
+                // Fails the save so that the record isn't left without
+                // its index rows.
+                if (symbolId == null) {
+                    throw new SqlDatabaseException(this, String.format(
+                            "Can't find or create the symbol ID for [%s] while indexing [%s]!",
+                            sqlIndexValue.getUniqueName(),
+                            id));
                 }
 
-                Object symbolId = findSymbolId(sqlIndexValue.getUniqueName(), true);
-
                 for (AbstractSqlIndex sqlIndex : getSqlIndexes(index)) {
                     Table<Record> table = sqlIndex.table;
                     BatchBindStep batch = batches.get(table);
@@ -1,66 +1,250 @@
 package com.psddev.dari.sql;
 
+import com.google.common.base.Throwables;
+import com.psddev.dari.db.Database;
 import com.psddev.dari.db.Query;
 import com.psddev.dari.db.State;
+import com.psddev.dari.util.Profiler;
 
+import java.io.Closeable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
-final class ByIdIterator<T> implements Iterator<T> {
+/**
+ * Iterates over all objects matching a query in {@code _type} and
+ * {@code _id} order using keyset pagination.
+ *
+ * <p>The next page is fetched in the background while the current one is
+ * being consumed. The iterables returned by {@link #iterable} also provide
+ * a {@link Spliterator} that splits the scan by type, so that a parallel
+ * stream reads multiple types at once.</p>
+ *
+ * <p>Each iterator has at most one page being prefetched, which is
+ * cancelled when the iterator is {@linkplain #close closed}, reaches the
+ * end, or is garbage collected before the page is fetched.</p>
+ */
+final class ByIdIterator<T> implements Iterator<T>, Closeable {
+
+    private static final int DEFAULT_FETCH_SIZE = 200;
+
+    // Shared pool that fetches the next pages. Both the threads and the
+    // queue are bounded so that the prefetches can't exhaust the connection
+    // pool or pile up, and a page that can't be queued is simply fetched
+    // when it's needed instead.
+    private static final ThreadPoolExecutor PREFETCH_EXECUTOR;
+
+    static {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        PREFETCH_EXECUTOR = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new ArrayBlockingQueue<>(threads * 2), runnable -> {
+            Thread thread = new Thread(runnable, "Dari SQL By-ID Prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        PREFETCH_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
 
     private final Query<T> query;
     private final int fetchSize;
+    private final UUID typeId;
+    private final boolean prefetch;
+    private final Database defaultOverride;
     private UUID lastTypeId;
     private UUID lastId;
+    private boolean lastPage;
+    private boolean done;
+    private Future<List<T>> nextItems;
     private List<T> items;
     private int index;
 
     public static <T> Iterable<T> iterable(Query<T> query, int fetchSize) {
-        return () -> new ByIdIterator<>(query, fetchSize);
+        return new Iterable<T>() {
+
+            @Override
+            public Iterator<T> iterator() {
+                return new ByIdIterator<>(query, fetchSize, null);
+            }
+
+            @Override
+            public Spliterator<T> spliterator() {
+                return new ByIdSpliterator<>(query, fetchSize, null);
+            }
+        };
+    }
+
+    private ByIdIterator(Query<T> query, int fetchSize, UUID typeId) {
+        Query<T> byIdQuery = query.clone().sortAscending("_type").sortAscending("_id");
+
+        // Pages may be fetched in another thread, so the database can't
+        // depend on the current one.
+        byIdQuery.setDatabase(query.getDatabase());
+
+        if (typeId != null) {
+            byIdQuery.and("_type = ?", typeId);
+        }
+
+        this.query = byIdQuery;
+        this.fetchSize = fetchSize > 0 ? fetchSize : DEFAULT_FETCH_SIZE;
+        this.typeId = typeId;
+        this.prefetch = query.getOptions().get(AbstractSqlDatabase.CONNECTION_QUERY_OPTION) == null;
+        this.defaultOverride = Database.Static.getDefaultOverride();
     }
 
-    private ByIdIterator(Query<T> query, int fetchSize) {
-        this.query = query.clone().sortAscending("_type").sortAscending("_id");
-        this.fetchSize = fetchSize > 0 ? fetchSize : 200;
+    // Fetches the page after the given key.
+    private static <T> List<T> fetch(Query<T> query, int fetchSize, UUID typeId, UUID afterTypeId, UUID afterId) {
+        if (afterTypeId == null) {
+            return query.clone().select(0, fetchSize).getItems();
+        }
+
+        List<T> page = query.clone()
+                .and("_type = ? and _id > ?", afterTypeId, afterId)
+                .select(0, fetchSize)
+                .getItems();
+
+        if (page.isEmpty() && typeId == null) {
+            page = query.clone()
+                    .and("_type > ?", afterTypeId)
+                    .select(0, fetchSize)
+                    .getItems();
+        }
+
+        return page;
+    }
+
+    // Starts fetching the page after the current one. The task only holds
+    // a weak reference to this iterator so that it can tell when it's been
+    // abandoned, and it runs with the same default database override as
+    // the thread that created this iterator. The thread profiler isn't
+    // carried over since it isn't safe to use from multiple threads, so the
+    // time spent waiting for the page is profiled instead.
+    private void prefetchNext() {
+        Query<T> query = this.query;
+        int fetchSize = this.fetchSize;
+        UUID typeId = this.typeId;
+        UUID afterTypeId = lastTypeId;
+        UUID afterId = lastId;
+        Database defaultOverride = this.defaultOverride;
+        WeakReference<ByIdIterator<T>> owner = new WeakReference<>(this);
+
+        try {
+            nextItems = PREFETCH_EXECUTOR.submit(() -> {
+                if (owner.get() == null) {
+                    return Collections.<T>emptyList();
+                }
+
+                if (defaultOverride != null) {
+                    Database.Static.overrideDefault(defaultOverride);
+                }
+
+                try {
+                    return fetch(query, fetchSize, typeId, afterTypeId, afterId);
+
+                } finally {
+                    if (defaultOverride != null) {
+                        Database.Static.restoreDefault();
+                    }
+                }
+            });
+
+        } catch (RejectedExecutionException error) {
+            nextItems = null;
+        }
+    }
+
+    // Waits for the prefetched page, or fetches it now if it couldn't be
+    // prefetched.
+    private List<T> awaitNext() {
+        Future<List<T>> pending = nextItems;
+
+        nextItems = null;
+
+        if (pending != null) {
+            Profiler.Static.startThreadEvent("SQL: By-ID Prefetch Wait");
+
+            try {
+                return pending.get();
+
+            } catch (CancellationException error) {
+                // Fall through to fetch now.
+
+            } catch (ExecutionException error) {
+                throw Throwables.propagate(error.getCause());
+
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+                throw Throwables.propagate(error);
+
+            } finally {
+                Profiler.Static.stopThreadEvent();
+            }
+        }
+
+        return fetch(query, fetchSize, typeId, lastTypeId, lastId);
+    }
+
+    /**
+     * Stops the iteration and cancels the page that's being prefetched.
+     */
+    @Override
+    public void close() {
+        done = true;
+        items = null;
+
+        if (nextItems != null) {
+            nextItems.cancel(true);
+            nextItems = null;
+        }
     }
 
     @Override
     public boolean hasNext() {
-        if (items != null && items.isEmpty()) {
+        if (done) {
             return false;
         }
 
         if (items == null || index >= items.size()) {
-            Query<T> nextQuery = query.clone();
-
-            if (lastTypeId != null) {
-                nextQuery.and("_type = ? and _id > ?", lastTypeId, lastId);
+            if (lastPage) {
+                close();
+                return false;
             }
 
-            items = nextQuery.select(0, fetchSize).getItems();
+            items = awaitNext();
+
             int size = items.size();
 
             if (size < 1) {
-                if (lastTypeId == null) {
-                    return false;
-
-                } else {
-                    nextQuery = query.clone().and("_type > ?", lastTypeId);
-                    items = nextQuery.select(0, fetchSize).getItems();
-                    size = items.size();
-
-                    if (size < 1) {
-                        return false;
-                    }
-                }
+                close();
+                return false;
             }
 
             State lastState = State.getInstance(items.get(size - 1));
             lastTypeId = lastState.getVisibilityAwareTypeId();
             lastId = lastState.getId();
             index = 0;
+
+            // A short page within a single type means that there aren't
+            // any more.
+            if (typeId != null && size < fetchSize) {
+                lastPage = true;
+
+            } else if (prefetch) {
+                prefetchNext();
+            }
         }
 
         return true;
@@ -83,4 +267,109 @@ final class ByIdIterator<T> implements Iterator<T> {
     public void remove() {
         throw new UnsupportedOperationException();
     }
+
+    /**
+     * Splits the scan into one range per type, and the ranges are read
+     * sequentially within each split.
+     */
+    private static final class ByIdSpliterator<T> implements Spliterator<T> {
+
+        private final Query<T> query;
+        private final int fetchSize;
+        private List<UUID> typeIds;
+        private ByIdIterator<T> iterator;
+        private int typeIndex;
+
+        public ByIdSpliterator(Query<T> query, int fetchSize, List<UUID> typeIds) {
+            this.query = query;
+            this.fetchSize = fetchSize;
+            this.typeIds = typeIds;
+        }
+
+        // Finds all type IDs in the scan, one index seek per type.
+        private List<UUID> findTypeIds() {
+            List<UUID> found = new ArrayList<>();
+            Query<T> typeQuery = query.clone().sortAscending("_type").sortAscending("_id");
+
+            typeQuery.setDatabase(query.getDatabase());
+
+            UUID last = null;
+
+            while (true) {
+                Query<T> nextQuery = typeQuery.clone();
+
+                if (last != null) {
+                    nextQuery.and("_type > ?", last);
+                }
+
+                T first = nextQuery.first();
+
+                if (first == null) {
+                    return found;
+                }
+
+                last = State.getInstance(first).getVisibilityAwareTypeId();
+                found.add(last);
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            while (true) {
+                if (iterator == null) {
+                    if (typeIds == null) {
+                        iterator = new ByIdIterator<>(query, fetchSize, null);
+                        typeIds = Collections.emptyList();
+
+                    } else if (typeIndex < typeIds.size()) {
+                        iterator = new ByIdIterator<>(query, fetchSize, typeIds.get(typeIndex));
+                        ++ typeIndex;
+
+                    } else {
+                        return false;
+                    }
+                }
+
+                if (iterator.hasNext()) {
+                    action.accept(iterator.next());
+                    return true;
+                }
+
+                iterator = null;
+            }
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            if (iterator != null) {
+                return null;
+            }
+
+            if (typeIds == null) {
+                typeIds = findTypeIds();
+            }
+
+            int remaining = typeIds.size() - typeIndex;
+
+            if (remaining < 2) {
+                return null;
+            }
+
+            int middle = typeIndex + remaining / 2;
+            Spliterator<T> prefix = new ByIdSpliterator<>(query, fetchSize, new ArrayList<>(typeIds.subList(typeIndex, middle)));
+
+            typeIndex = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | DISTINCT | NONNULL;
+        }
+    }
 }
@@ -14,9 +14,22 @@ class SqlGrouping<T> extends AbstractGrouping<T> {
         this.count = count;
     }
 
+    // Sets the aggregate that was fetched along with this grouping.
+    void setAggregate(String field, long nonNullCount, Object minimum, Object maximum, double sum) {
+        Aggregate aggregate = prefetchAggregate(field);
+
+        aggregate.setNonNullCount(nonNullCount);
+        aggregate.setMinimum(minimum);
+        aggregate.setMaximum(maximum);
+        aggregate.setSum(sum);
+    }
+
     @Override
     protected Aggregate createAggregate(String field) {
-        throw new UnsupportedOperationException();
+        throw new UnsupportedOperationException(String.format(
+                "Aggregate for [%s] must be fetched along with the groupings using the [%s] query option!",
+                field,
+                AGGREGATE_FIELDS_QUERY_OPTION));
     }
 
     @Override
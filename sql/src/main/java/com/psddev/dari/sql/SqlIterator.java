@@ -14,7 +14,7 @@ import java.util.NoSuchElementException;
 final class SqlIterator<T> implements Closeable, Iterator<T> {
 
     private AbstractSqlDatabase database;
-    private final String sqlQuery;
+    private final SqlStatement sqlStatement;
     private final Query<T> query;
 
     private final Connection connection;
@@ -24,30 +24,30 @@ final class SqlIterator<T> implements Closeable, Iterator<T> {
 
     /**
      * @param database Nonnull.
-     * @param sqlQuery Nonnull.
+     * @param sqlStatement Nonnull.
      * @param fetchSize Number of objects to fetch at a time. {@code 0} or
      *                  less to use the default.
      * @param query Nullable.
      */
-    public SqlIterator(AbstractSqlDatabase database, String sqlQuery, int fetchSize, Query<T> query) {
+    public SqlIterator(AbstractSqlDatabase database, SqlStatement sqlStatement, int fetchSize, Query<T> query) {
         Preconditions.checkNotNull(database);
-        Preconditions.checkNotNull(sqlQuery);
+        Preconditions.checkNotNull(sqlStatement);
 
         this.database = database;
-        this.sqlQuery = sqlQuery;
+        this.sqlStatement = sqlStatement;
         this.query = query;
 
         try {
             connection = database.openQueryConnection(query);
-            statement = connection.createStatement();
+            statement = database.createStatement(connection, sqlStatement);
             statement.setFetchSize(fetchSize <= 0 ? 200 : fetchSize);
-            result = statement.executeQuery(sqlQuery);
+            result = sqlStatement.executeQuery(statement);
 
             moveToNext();
 
         } catch (SQLException error) {
             close();
-            throw database.createSelectError(sqlQuery, query, error);
+            throw database.createSelectError(sqlStatement.toString(), query, error);
         }
     }
 
@@ -87,7 +87,7 @@ final class SqlIterator<T> implements Closeable, Iterator<T> {
 
         } catch (SQLException error) {
             close();
-            throw database.createSelectError(sqlQuery, query, error);
+            throw database.createSelectError(sqlStatement.toString(), query, error);
         }
     }
 
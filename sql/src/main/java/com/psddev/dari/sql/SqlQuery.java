@@ -1,6 +1,7 @@
 package com.psddev.dari.sql;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -18,13 +19,17 @@ import com.psddev.dari.db.Query;
 import com.psddev.dari.db.Region;
 import com.psddev.dari.db.Sorter;
 import com.psddev.dari.db.SqlDatabase;
+import com.psddev.dari.db.UnsupportedIndexException;
 import com.psddev.dari.db.UnsupportedPredicateException;
+import com.psddev.dari.db.UnsupportedSorterException;
 
 import org.jooq.Condition;
 import org.jooq.DSLContext;
 import org.jooq.DataType;
 import org.jooq.Field;
 import org.jooq.JoinType;
+import org.jooq.Param;
+import org.jooq.QueryPart;
 import org.jooq.RenderContext;
 import org.jooq.Select;
 import org.jooq.SelectField;
@@ -40,6 +45,7 @@ class SqlQuery {
     protected final AbstractSqlDatabase database;
     protected final Query<?> query;
     protected final String aliasPrefix;
+    protected final boolean parameterized;
 
     private final DSLContext dslContext;
     private final RenderContext tableRenderContext;
@@ -64,15 +70,22 @@ class SqlQuery {
     /**
      * Creates an instance that can translate the given {@code query}
      * with the given {@code database}.
+     *
+     * @param parameterized
+     *        {@code true} if the values should be rendered as bind
+     *        parameters instead of being inlined.
      */
-    public SqlQuery(AbstractSqlDatabase database, Query<?> query, String aliasPrefix) {
+    public SqlQuery(AbstractSqlDatabase database, Query<?> query, String aliasPrefix, boolean parameterized) {
         this.database = database;
         this.query = query;
         this.aliasPrefix = aliasPrefix;
+        this.parameterized = parameterized;
+
+        ParamType paramType = parameterized ? ParamType.INDEXED : ParamType.INLINED;
 
         dslContext = DSL.using(database.getDialect());
-        tableRenderContext = dslContext.renderContext().paramType(ParamType.INLINED).declareTables(true);
-        renderContext = dslContext.renderContext().paramType(ParamType.INLINED);
+        tableRenderContext = dslContext.renderContext().paramType(paramType).declareTables(true);
+        renderContext = dslContext.renderContext().paramType(paramType);
 
         recordTableAlias = aliasPrefix + "r";
         recordTable = DSL.table(DSL.name(database.recordTable.getName())).as(recordTableAlias);
@@ -121,8 +134,44 @@ class SqlQuery {
         }
     }
 
+    public SqlQuery(AbstractSqlDatabase database, Query<?> query, String aliasPrefix) {
+        this(database, query, aliasPrefix, false);
+    }
+
     public SqlQuery(AbstractSqlDatabase database, Query<?> query) {
-        this(database, query, "");
+        this(database, query, "", false);
+    }
+
+    /**
+     * Returns the given {@code value} as a bind parameter if this query
+     * should be parameterized and it's an inlined parameter.
+     *
+     * @param value Nullable.
+     * @return Nullable.
+     */
+    public Object bindable(Object value) {
+        if (parameterized && value instanceof Param) {
+            Param<?> param = (Param<?>) value;
+
+            if (param.isInline()) {
+                return bindParam(param);
+            }
+        }
+
+        return value;
+    }
+
+    private static <T> Param<T> bindParam(Param<T> param) {
+        return DSL.val(param.getValue(), param.getDataType());
+    }
+
+    // Renders the query part into a statement that can be executed.
+    private SqlStatement render(QueryPart queryPart) {
+        String sql = tableRenderContext.render(queryPart);
+
+        return parameterized
+                ? SqlStatement.prepared(sql, dslContext, queryPart)
+                : SqlStatement.inlined(sql);
     }
 
     protected Field<Object> aliasedField(String alias, String field) {
@@ -424,7 +473,7 @@ class SqlQuery {
                 if (field.equals(mappedKey.getField())
                         && mappedKey.getSubQueryWithComparison(comparison) == null) {
 
-                    SqlQuery subSqlQuery = new SqlQuery(database, subQuery);
+                    SqlQuery subSqlQuery = new SqlQuery(database, subQuery, "", parameterized);
                     Table<?> subTable = subSqlQuery.initialize(recordTable);
 
                     return (subSqlQuery.needsDistinct
@@ -444,9 +493,19 @@ class SqlQuery {
      * of all rows matching the query.
      */
     public String countStatement() {
+        return countSqlStatement().getSql();
+    }
+
+    /**
+     * Returns an SQL statement that can be used to get a count
+     * of all rows matching the query.
+     *
+     * @return Nonnull.
+     */
+    public SqlStatement countSqlStatement() {
         Table<?> table = initialize(recordTable);
 
-        return tableRenderContext.render(dslContext
+        return render(dslContext
                 .select(needsDistinct ? recordIdField.countDistinct() : recordIdField.count())
                 .from(table)
                 .where(whereCondition));
@@ -461,10 +520,36 @@ class SqlQuery {
      * @throws NullPointerException If {@code groupKeys} is {@code null}.
      */
     public String groupStatement(String... groupKeys) {
+        return groupStatement(Collections.emptyList(), groupKeys);
+    }
+
+    /**
+     * Returns an SQL statement that can be used to group rows by the values
+     * of the given {@code groupKeys}, and calculate the aggregates of the
+     * given numeric {@code aggregateKeys} within each group.
+     *
+     * <p>After the count, each aggregate key adds the non-null count, the
+     * minimum, the maximum and the sum columns, in that order, before the
+     * group key columns.</p>
+     *
+     * <p>The aggregates are calculated over the distinct records in each
+     * group, and each record contributes all values of a multi-valued
+     * field once, so the joins that repeat the rows can't inflate the
+     * sums. Such a statement can only be sorted by the group keys.</p>
+     *
+     * @param aggregateKeys Can't be {@code null}.
+     * @param groupKeys Can't be {@code null} or empty.
+     * @throws IllegalArgumentException If {@code groupKeys} is empty.
+     * @throws NullPointerException If {@code aggregateKeys} or
+     *         {@code groupKeys} is {@code null}.
+     */
+    public String groupStatement(List<String> aggregateKeys, String... groupKeys) {
+        Preconditions.checkNotNull(aggregateKeys, "[aggregateKeys] can't be null!");
         Preconditions.checkNotNull(groupKeys, "[groupKeys] can't be null!");
         Preconditions.checkArgument(groupKeys.length > 0, "[groupKeys] can't be empty!");
 
         List<Field<?>> groupByFields = new ArrayList<>();
+        Map<String, Integer> groupByIndexes = new HashMap<>();
 
         for (String groupKey : groupKeys) {
             Query.MappedKey mappedKey = query.mapEmbeddedKey(database.getEnvironment(), groupKey);
@@ -476,6 +561,7 @@ class SqlQuery {
             Query<?> subQuery = mappedKey.getSubQueryWithGroupBy();
 
             if (subQuery == null) {
+                groupByIndexes.putIfAbsent(groupKey, groupByFields.size());
                 groupByFields.add(join.valueField);
 
             } else {
@@ -486,7 +572,27 @@ class SqlQuery {
             }
         }
 
+        for (String aggregateKey : aggregateKeys) {
+            Query.MappedKey mappedKey = query.mapEmbeddedKey(database.getEnvironment(), aggregateKey);
+            String internalType = mappedKey.getInternalType();
+
+            if (mappedKey.hasSubQuery()
+                    || (!ObjectField.NUMBER_TYPE.equals(internalType)
+                    && !ObjectField.DATE_TYPE.equals(internalType))) {
+
+                throw new UnsupportedIndexException(database, aggregateKey);
+            }
+
+            mappedKeys.put(aggregateKey, mappedKey);
+            selectIndex(aggregateKey, mappedKey);
+        }
+
         Table<?> table = initialize(recordTable);
+
+        if (!aggregateKeys.isEmpty()) {
+            return groupAggregateStatement(table, aggregateKeys, groupByFields, groupByIndexes);
+        }
+
         List<Field<?>> selectFields = new ArrayList<>();
 
         selectFields.add((needsDistinct
@@ -504,6 +610,99 @@ class SqlQuery {
                 .orderBy(orderByFields));
     }
 
+    // Narrows the matching rows down to the distinct records in each group
+    // first, and then joins each aggregate key as a table that has one row
+    // per record, so that neither the predicate joins nor the multi-valued
+    // fields can repeat a value within a group.
+    private String groupAggregateStatement(
+            Table<?> table,
+            List<String> aggregateKeys,
+            List<Field<?>> groupByFields,
+            Map<String, Integer> groupByIndexes) {
+
+        String groupAlias = aliasPrefix + "g";
+        String idName = database.recordIdField.getName();
+        String typeIdName = database.recordTypeIdField.getName();
+        List<Field<?>> distinctFields = new ArrayList<>();
+        List<Field<?>> outerGroupByFields = new ArrayList<>();
+
+        for (int i = 0, size = groupByFields.size(); i < size; ++ i) {
+            String name = "k" + i;
+
+            distinctFields.add(groupByFields.get(i).as(name));
+            outerGroupByFields.add(DSL.field(DSL.name(groupAlias, name)));
+        }
+
+        distinctFields.add(recordIdField.as(idName));
+        distinctFields.add(recordTypeIdField.as(typeIdName));
+
+        Table<?> groupTable = dslContext
+                .selectDistinct(distinctFields)
+                .from(table)
+                .where(whereCondition)
+                .asTable(groupAlias);
+
+        Field<Object> groupIdField = DSL.field(DSL.name(groupAlias, idName));
+        Field<Object> groupTypeIdField = DSL.field(DSL.name(groupAlias, typeIdName));
+        List<Field<?>> selectFields = new ArrayList<>();
+
+        selectFields.add(DSL.count().as(COUNT_ALIAS));
+
+        for (int i = 0, size = aggregateKeys.size(); i < size; ++ i) {
+            SqlJoin join = SqlJoin.create(this, aggregateKeys.get(i));
+            Field<Double> valueField = join.valueField.coerce(Double.class);
+            String aggregateAlias = aliasPrefix + "a" + i;
+
+            groupTable = groupTable
+                    .leftOuterJoin(dslContext
+                            .select(
+                                    join.idField.as(idName),
+                                    join.typeIdField.as(typeIdName),
+                                    valueField.min().as("minimum"),
+                                    valueField.max().as("maximum"),
+                                    valueField.sum().as("total"))
+                            .from(join.table)
+                            .where(join.symbolIdField.in(join.symbolIds))
+                            .groupBy(join.idField, join.typeIdField)
+                            .asTable(aggregateAlias))
+                    .on(DSL.field(DSL.name(aggregateAlias, idName)).eq(groupIdField))
+                    .and(DSL.field(DSL.name(aggregateAlias, typeIdName)).eq(groupTypeIdField));
+
+            selectFields.add(DSL.count(DSL.field(DSL.name(aggregateAlias, idName))));
+            selectFields.add(DSL.min(DSL.field(DSL.name(aggregateAlias, "minimum"), Double.class)));
+            selectFields.add(DSL.max(DSL.field(DSL.name(aggregateAlias, "maximum"), Double.class)));
+            selectFields.add(DSL.sum(DSL.field(DSL.name(aggregateAlias, "total"), Double.class)));
+        }
+
+        selectFields.addAll(outerGroupByFields);
+
+        // The other sort fields aren't available outside the distinct
+        // records.
+        List<SortField<?>> outerOrderByFields = new ArrayList<>();
+
+        for (Sorter sorter : query.getSorters()) {
+            String operator = sorter.getOperator();
+            Integer index = groupByIndexes.get((String) sorter.getOptions().get(0));
+
+            if (index == null
+                    || (!Sorter.ASCENDING_OPERATOR.equals(operator)
+                    && !Sorter.DESCENDING_OPERATOR.equals(operator))) {
+
+                throw new UnsupportedSorterException(database, sorter);
+            }
+
+            Field<?> field = outerGroupByFields.get(index);
+
+            outerOrderByFields.add(Sorter.ASCENDING_OPERATOR.equals(operator) ? field.asc() : field.desc());
+        }
+
+        return tableRenderContext.render(dslContext
+                .select(selectFields)
+                .from(groupTable)
+                .groupBy(outerGroupByFields)
+                .orderBy(outerOrderByFields));
+    }
+
     /**
      * Returns an SQL statement that can be used to get when the rows
      * matching the query were last updated.
@@ -522,6 +721,16 @@ class SqlQuery {
      * matching the query.
      */
     public String select(int offset, int limit) {
+        return selectSqlStatement(offset, limit).getSql();
+    }
+
+    /**
+     * Returns an SQL statement that can be used to list a subset of rows
+     * matching the query.
+     *
+     * @return Nonnull.
+     */
+    public SqlStatement selectSqlStatement(int offset, int limit) {
         Table<?> table = initialize(recordTable);
         List<SelectField<?>> selectFields = new ArrayList<>();
 
@@ -575,6 +784,6 @@ class SqlQuery {
                     .limit(limit);
         }
 
-        return tableRenderContext.render(select);
+        return render(select);
     }
 }
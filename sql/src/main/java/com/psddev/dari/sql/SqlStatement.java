@@ -0,0 +1,147 @@
+package com.psddev.dari.sql;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import org.jooq.DSLContext;
+import org.jooq.QueryPart;
+import org.jooq.conf.ParamType;
+import org.jooq.exception.DataAccessException;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * SQL statement that's either fully inlined or rendered with bind
+ * parameters.
+ *
+ * <p>Prepared instances keep the jOOQ query part that they were rendered
+ * from so that the bind values can be applied to a
+ * {@link PreparedStatement} in the same order.</p>
+ */
+final class SqlStatement {
+
+    private final String sql;
+    private final DSLContext context;
+    private final QueryPart queryPart;
+
+    /**
+     * Creates an instance that executes the given {@code sql} as is.
+     *
+     * @param sql Nonnull.
+     * @return Nonnull.
+     */
+    public static SqlStatement inlined(String sql) {
+        return new SqlStatement(sql, null, null);
+    }
+
+    /**
+     * Creates an instance that executes the given {@code sql}, which must
+     * be the rendering of the given {@code queryPart} with indexed
+     * parameters.
+     *
+     * @param sql Nonnull.
+     * @param context Nonnull.
+     * @param queryPart Nonnull.
+     * @return Nonnull.
+     */
+    public static SqlStatement prepared(String sql, DSLContext context, QueryPart queryPart) {
+        Preconditions.checkNotNull(context);
+        Preconditions.checkNotNull(queryPart);
+
+        return new SqlStatement(sql, context, queryPart);
+    }
+
+    private SqlStatement(String sql, DSLContext context, QueryPart queryPart) {
+        Preconditions.checkNotNull(sql);
+
+        this.sql = sql;
+        this.context = context;
+        this.queryPart = queryPart;
+    }
+
+    /**
+     * Returns the SQL that should be sent to the database.
+     *
+     * <p>For prepared instances, this only depends on the shape of the query
+     * and not on the values, so it can be used as a cache key.</p>
+     *
+     * @return Nonnull.
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * Returns {@code true} if this statement uses bind parameters.
+     */
+    public boolean isPrepared() {
+        return queryPart != null;
+    }
+
+    /**
+     * Returns a copy of this statement with its SQL replaced by the given
+     * {@code sql}, which must have the same bind parameters.
+     *
+     * @param sql Nonnull.
+     * @return Nonnull.
+     */
+    public SqlStatement withSql(String sql) {
+        return new SqlStatement(sql, context, queryPart);
+    }
+
+    /**
+     * Binds all parameter values to the given {@code statement}.
+     *
+     * @param statement Nonnull.
+     */
+    public void bind(PreparedStatement statement) throws SQLException {
+        if (queryPart != null) {
+            try {
+                context.bindContext(statement).visit(queryPart);
+
+            } catch (DataAccessException error) {
+                Throwables.propagateIfInstanceOf(error.getCause(), SQLException.class);
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * Executes this statement using the given JDBC {@code statement}, which
+     * must have been created for it.
+     *
+     * @param statement Nonnull.
+     * @return Nonnull.
+     */
+    public ResultSet executeQuery(Statement statement) throws SQLException {
+        return isPrepared()
+                ? ((PreparedStatement) statement).executeQuery()
+                : statement.executeQuery(sql);
+    }
+
+    /**
+     * Returns the SQL with all parameter values inlined, which is useful for
+     * debugging and error messages.
+     *
+     * @return Nonnull.
+     */
+    @Override
+    public String toString() {
+        if (queryPart == null) {
+            return sql;
+        }
+
+        String inlined = context
+                .renderContext()
+                .paramType(ParamType.INLINED)
+                .declareTables(true)
+                .render(queryPart);
+        int commentEnd = sql.startsWith("/*") ? sql.indexOf("*/ ") : -1;
+
+        return commentEnd > -1
+                ? sql.substring(0, commentEnd + 3) + inlined
+                : inlined;
+    }
+}
@@ -25,7 +25,8 @@ final class SqlSubJoin {
         SqlQuery sub = new SqlQuery(
                 parent.database,
                 subQuery,
-                parent.aliasPrefix + "s" + subJoins.size());
+                parent.aliasPrefix + "s" + subJoins.size(),
+                parent.parameterized);
 
         sub.forceLeftJoins = forceLeftJoins;
 
@@ -1,11 +1,25 @@
 package com.psddev.dari.util;
 
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.servlet.http.HttpServletRequest;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * {@code Cdn} manages automatic synchronization of files between the local
@@ -13,12 +27,36 @@ import java.net.URLConnection;
  */
 public class Cdn {
 
+    /**
+     * Setting key for the servlet path of the manifest that lists the files
+     * that should be uploaded ahead of their first use, one per line.
+     *
+     * @see #preloadManifest
+     */
+    public static final String MANIFEST_SETTING = "dari/cdnManifest";
+
+    /**
+     * Setting key for the number of threads that upload the files listed
+     * in the manifest.
+     */
+    public static final String UPLOAD_THREADS_SETTING = "dari/cdnUploadThreads";
+
+    private static final int DEFAULT_UPLOAD_THREADS = 4;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Cdn.class);
+
     private static final String ATTRIBUTE_PREFIX = Cdn.class.getName() + ".";
     private static final String CONTEXT_ATTRIBUTE = ATTRIBUTE_PREFIX + "context";
 
     static final CdnCache PLAIN_CACHE = new CdnCache();
     static final CdnCache GZIPPED_CACHE = new GzipCdnCache();
 
+    // Compared by equality, since the equivalent contexts share the caches,
+    // and weakly referenced so that the contexts of the undeployed
+    // applications can be collected.
+    private static final Set<CdnContext> PRELOADED_CONTEXTS = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private static volatile ExecutorService uploadExecutor;
+
     /**
      * Returns the CDN context associated with the given {@code request}.
      *
@@ -63,9 +101,11 @@ public class Cdn {
             CdnContext context = getContext(request);
 
             if (context == null) {
-                context = new ServletCdnContext(request.getServletContext());
+                context = ServletCdnContext.getInstance(request.getServletContext());
             }
 
+            preloadManifestOnce(context);
+
             // Workaround for lack of gzip support in CloudFront.
             String encodings = request.getHeader("Accept-Encoding");
             StorageItem item = StringUtils.isBlank(encodings) || !encodings.contains("gzip")
@@ -105,4 +145,101 @@ public class Cdn {
 
         return servletPath;
     }
+
+    /**
+     * Uploads the files at the given {@code servletPaths} to the default
+     * storage in parallel, so that they're ready before they're used in
+     * {@link #getUrl}.
+     *
+     * @param context Nonnull.
+     * @param servletPaths Nonnull.
+     * @return Nonnull. Completes when all files are uploaded.
+     */
+    public static CompletableFuture<Void> preload(CdnContext context, Iterable<String> servletPaths) {
+        Preconditions.checkNotNull(context);
+        Preconditions.checkNotNull(servletPaths);
+
+        ExecutorService executor = getUploadExecutor();
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+
+        for (String servletPath : servletPaths) {
+            futures.add(CompletableFuture.runAsync(() -> PLAIN_CACHE.get(null, context, servletPath), executor));
+
+            if (GZIPPED_CACHE.customizeItem(ObjectUtils.getContentType(servletPath))) {
+                futures.add(CompletableFuture.runAsync(() -> GZIPPED_CACHE.get(null, context, servletPath), executor));
+            }
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+    }
+
+    /**
+     * Uploads the files listed in the manifest at the given
+     * {@code manifestPath} in parallel.
+     *
+     * <p>The manifest should contain one servlet path per line. Blank lines
+     * and lines that start with {@code #} are ignored.</p>
+     *
+     * @param context Nonnull.
+     * @param manifestPath Nonnull.
+     * @return Nonnull. Completes when all files are uploaded.
+     * @see #preload
+     */
+    public static CompletableFuture<Void> preloadManifest(CdnContext context, String manifestPath) throws IOException {
+        Preconditions.checkNotNull(context);
+        Preconditions.checkNotNull(manifestPath);
+
+        List<String> servletPaths = new ArrayList<>();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(context.open(manifestPath), StandardCharsets.UTF_8))) {
+            for (String line; (line = reader.readLine()) != null;) {
+                line = line.trim();
+
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    servletPaths.add(StringUtils.ensureStart(line, "/"));
+                }
+            }
+        }
+
+        return preload(context, servletPaths);
+    }
+
+    // Starts uploading the files in the manifest the first time the given
+    // context is used, without blocking the request, and returns whether
+    // it did.
+    static boolean preloadManifestOnce(CdnContext context) {
+        String manifestPath = Settings.get(String.class, MANIFEST_SETTING);
+
+        if (ObjectUtils.isBlank(manifestPath) || !PRELOADED_CONTEXTS.add(context)) {
+            return false;
+        }
+
+        getUploadExecutor().execute(() -> {
+            try {
+                preloadManifest(context, manifestPath);
+
+            } catch (IOException error) {
+                LOGGER.warn(String.format("Can't read the CDN manifest at [%s]!", manifestPath), error);
+            }
+        });
+
+        return true;
+    }
+
+    private static ExecutorService getUploadExecutor() {
+        if (uploadExecutor == null) {
+            synchronized (Cdn.class) {
+                if (uploadExecutor == null) {
+                    uploadExecutor = Executors.newFixedThreadPool(
+                            Math.max(1, Settings.getOrDefault(int.class, UPLOAD_THREADS_SETTING, DEFAULT_UPLOAD_THREADS)),
+                            new ThreadFactoryBuilder()
+                                    .setDaemon(true)
+                                    .setNameFormat("dari-cdn-upload-%d")
+                                    .build());
+                }
+            }
+        }
+
+        return uploadExecutor;
+    }
 }
@@ -4,12 +4,15 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
@@ -62,22 +65,105 @@ class CdnCache {
         throw new UnsupportedOperationException();
     }
 
-    protected byte[] transformItemContent(byte[] content) throws IOException {
+    /**
+     * Wraps the given {@code output} so that the item content is
+     * transformed, such as compressed, as it's written.
+     *
+     * @param output Nonnull.
+     * @return Nonnull.
+     */
+    protected OutputStream transformItemOutput(OutputStream output) throws IOException {
         throw new UnsupportedOperationException();
     }
 
     protected Value load(String storage, CdnContext cdnContext, String servletPath) throws IOException, NoSuchAlgorithmException, URISyntaxException {
-        byte[] content;
-
-        try (InputStream input = cdnContext.open(servletPath)) {
-            content = IoUtils.toByteArray(input);
+        long lastModified = cdnContext.getLastModified(servletPath);
+        String contentType = ObjectUtils.getContentType(servletPath);
+        boolean customizeItem = customizeItem(contentType);
+        StorageItem item = StorageItem.Static.createIn(storage);
+        String indexKey = item.getStorage() + "|" + getClass().getName() + "|" + cdnContext.getPathPrefix() + "|" + servletPath;
+        CdnHashIndex index = CdnHashIndex.getInstance();
+        String indexedPath = index.get(indexKey, lastModified);
+
+        // Uploaded before and unchanged since.
+        if (indexedPath != null) {
+            item.setPath(indexedPath);
+            return new Value(item, lastModified);
         }
 
-        // Unique hash based on the file content.
+        // Hash and transform in a single pass into a temporary file so that
+        // the content is never entirely in memory, except for CSS, which
+        // has to be rewritten.
         MessageDigest md5 = MessageDigest.getInstance("MD5");
-        md5.update((byte) 16);
-        String hash = StringUtils.hex(md5.digest(content));
+        Path file = Files.createTempFile("dari-cdn-", ".tmp");
+
+        try {
+            byte[] css = null;
+
+            md5.update((byte) 16);
+
+            try (InputStream input = new DigestInputStream(cdnContext.open(servletPath), md5)) {
+                if ("text/css".equals(contentType)) {
+                    css = IoUtils.toByteArray(input);
+
+                } else {
+                    try (OutputStream output = createItemOutput(file, customizeItem)) {
+                        IoUtils.copy(input, output);
+                    }
+                }
+            }
+
+            // Unique hash based on the file content.
+            String hash = StringUtils.hex(md5.digest());
+            String itemPath = createItemPath(cdnContext, servletPath, hash, customizeItem);
+
+            // Look into CSS files and change all the URLs.
+            if (css != null) {
+                try (OutputStream output = createItemOutput(file, customizeItem)) {
+                    output.write(rewriteCss(storage, cdnContext, servletPath, itemPath, css));
+                }
+            }
+
+            item.setPath(itemPath);
+
+            if (!item.isInStorage()) {
+                item.setContentType(contentType);
+
+                // Cache "forever".
+                Map<String, Object> metadata = new HashMap<>();
+                Map<String, List<String>> httpHeaders = new HashMap<>();
+
+                httpHeaders.put("Cache-Control", Collections.singletonList("public, max-age=31536000"));
+
+                if (customizeItem) {
+                    updateItemMetadata(metadata, httpHeaders);
+                }
+
+                metadata.put(AbstractStorageItem.HTTP_HEADERS, httpHeaders);
+                item.setMetadata(metadata);
+
+                try (InputStream data = Files.newInputStream(file)) {
+                    item.setData(data);
+                    item.save();
+                }
+            }
 
+            index.put(indexKey, lastModified, itemPath);
+
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        return new Value(item, lastModified);
+    }
+
+    private OutputStream createItemOutput(Path file, boolean customizeItem) throws IOException {
+        OutputStream output = Files.newOutputStream(file);
+
+        return customizeItem ? transformItemOutput(output) : output;
+    }
+
+    private String createItemPath(CdnContext cdnContext, String servletPath, String hash, boolean customizeItem) {
         String itemPathPrefix = "resource"
                 + StringUtils.ensureSurrounding(cdnContext.getPathPrefix(), "/")
                 + StringUtils.removeStart(servletPath, "/");
@@ -94,93 +180,61 @@ class CdnCache {
             itemPathPrefix += "-" + hash;
         }
 
-        String contentType = ObjectUtils.getContentType(servletPath);
-        boolean customizeItem = customizeItem(contentType);
-        String itemPath = customizeItem
+        return customizeItem
                 ? createItemPath(itemPathPrefix, itemExtension)
                 : (itemExtension != null ? itemPathPrefix + "." + itemExtension : itemPathPrefix);
+    }
 
-        // Look into CSS files and change all the URLs.
-        if ("text/css".equals(contentType)) {
-            String css = new String(content, StandardCharsets.UTF_8);
-            StringBuilder newCss = new StringBuilder();
-            Matcher urlMatcher = CSS_URL_PATTERN.matcher(css);
-            int previousEnd = 0;
-
-            while (urlMatcher.find()) {
-                newCss.append(css.substring(previousEnd, urlMatcher.start()));
+    private byte[] rewriteCss(String storage, CdnContext cdnContext, String servletPath, String itemPath, byte[] content) throws URISyntaxException {
+        String css = new String(content, StandardCharsets.UTF_8);
+        StringBuilder newCss = new StringBuilder();
+        Matcher urlMatcher = CSS_URL_PATTERN.matcher(css);
+        int previousEnd = 0;
 
-                previousEnd = urlMatcher.end();
-                String childPath = urlMatcher.group(2);
-                String extra = urlMatcher.group(3);
+        while (urlMatcher.find()) {
+            newCss.append(css.substring(previousEnd, urlMatcher.start()));
 
-                newCss.append("url(");
+            previousEnd = urlMatcher.end();
+            String childPath = urlMatcher.group(2);
+            String extra = urlMatcher.group(3);
 
-                if (childPath.length() == 0) {
-                    newCss.append("''");
+            newCss.append("url(");
 
-                } else if (childPath.startsWith("data:")
-                        || childPath.endsWith(".htc")) {
-                    newCss.append(childPath);
+            if (childPath.length() == 0) {
+                newCss.append("''");
 
-                } else {
-                    URI childUri = new URI(servletPath).resolve(childPath);
+            } else if (childPath.startsWith("data:")
+                    || childPath.endsWith(".htc")) {
+                newCss.append(childPath);
 
-                    if (childUri.isAbsolute()) {
-                        newCss.append(childUri);
+            } else {
+                URI childUri = new URI(servletPath).resolve(childPath);
 
-                    } else {
-                        StorageItem childItem = get(storage, cdnContext, childUri.toString());
+                if (childUri.isAbsolute()) {
+                    newCss.append(childUri);
 
-                        // Make the new URL relative.
-                        for (int slashAt = 1; (slashAt = itemPath.indexOf('/', slashAt)) > -1; ++slashAt) {
-                            newCss.append("../");
-                        }
+                } else {
+                    StorageItem childItem = get(storage, cdnContext, childUri.toString());
 
-                        newCss.append(childItem != null ? childItem.getPath() : childPath);
+                    // Make the new URL relative.
+                    for (int slashAt = 1; (slashAt = itemPath.indexOf('/', slashAt)) > -1; ++slashAt) {
+                        newCss.append("../");
                     }
 
-                    if (extra != null) {
-                        newCss.append(extra);
-                    }
+                    newCss.append(childItem != null ? childItem.getPath() : childPath);
                 }
 
-                newCss.append(')');
+                if (extra != null) {
+                    newCss.append(extra);
+                }
             }
 
-            newCss.append(css.substring(previousEnd, css.length()));
-            content = newCss.toString().getBytes(StandardCharsets.UTF_8);
+            newCss.append(')');
         }
 
-        StorageItem item = StorageItem.Static.createIn(storage);
-
-        item.setPath(itemPath);
-
-        if (!item.isInStorage()) {
-            item.setContentType(contentType);
-
-            // Cache "forever".
-            Map<String, Object> metadata = new HashMap<>();
-            Map<String, List<String>> httpHeaders = new HashMap<>();
-
-            httpHeaders.put("Cache-Control", Collections.singletonList("public, max-age=31536000"));
-
-            if (customizeItem) {
-                updateItemMetadata(metadata, httpHeaders);
-            }
-
-            metadata.put(AbstractStorageItem.HTTP_HEADERS, httpHeaders);
-            item.setMetadata(metadata);
-
-            item.setData(new ByteArrayInputStream(
-                    customizeItem
-                            ? transformItemContent(content)
-                            : content));
-
-            item.save();
-        }
+        newCss.append(css.substring(previousEnd, css.length()));
 
-        return new Value(item, cdnContext.getLastModified(servletPath));
+        return newCss.toString().getBytes(StandardCharsets.UTF_8);
     }
 
     public StorageItem get(String storage, CdnContext cdnContext, String servletPath) {
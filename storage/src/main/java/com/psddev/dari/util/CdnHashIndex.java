@@ -0,0 +1,197 @@
+package com.psddev.dari.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persisted index of the CDN items that were already uploaded, so that the
+ * unchanged files don't have to be read and hashed again after a restart.
+ *
+ * <p>Each entry maps the file, identified by the storage, the cache that
+ * uploaded it and its servlet path, to its last modified time and the item
+ * path. The index is only used when the {@value #FILE_SETTING} setting
+ * points to a writable file, and only for the files with a known last
+ * modified time.</p>
+ *
+ * <p>The new entries are written out to the file in the background, at
+ * most once every {@value #WRITE_DELAY_MILLIS} milliseconds, so that a
+ * burst of uploads doesn't rewrite the file for each one.</p>
+ */
+final class CdnHashIndex {
+
+    /**
+     * Setting key for the path to the index file.
+     *
+     * <p>The files are only compared by their last modified times, so this
+     * shouldn't be set when the files can change without their times
+     * changing, e.g. when they're served from a JAR built reproducibly with
+     * fixed entry times. The index would otherwise keep pointing to the
+     * items uploaded for the old content.</p>
+     */
+    public static final String FILE_SETTING = "dari/cdnHashIndexFile";
+
+    private static final long WRITE_DELAY_MILLIS = 1000L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CdnHashIndex.class);
+
+    private static final CdnHashIndex INSTANCE = new CdnHashIndex();
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("dari-cdn-hash-index-%d")
+            .build());
+
+    private Path file;
+    private Properties entries;
+    private ScheduledFuture<?> scheduledWrite;
+
+    public static CdnHashIndex getInstance() {
+        return INSTANCE;
+    }
+
+    private CdnHashIndex() {
+    }
+
+    /**
+     * Returns the item path that was previously saved for the given
+     * {@code key}, if the file hasn't been modified since.
+     *
+     * @return {@code null} if not found or out of date.
+     */
+    public synchronized String get(String key, long lastModified) {
+        if (lastModified <= 0L) {
+            return null;
+        }
+
+        Properties entries = getEntries();
+
+        if (entries == null) {
+            return null;
+        }
+
+        String value = entries.getProperty(key);
+
+        if (value == null) {
+            return null;
+        }
+
+        int spaceAt = value.indexOf(' ');
+
+        return spaceAt > -1 && ObjectUtils.to(long.class, value.substring(0, spaceAt)) == lastModified
+                ? value.substring(spaceAt + 1)
+                : null;
+    }
+
+    /**
+     * Saves the given {@code itemPath} for the given {@code key} and
+     * schedules the index to be written out to the file.
+     */
+    public synchronized void put(String key, long lastModified, String itemPath) {
+
+        // Can't tell whether the file changed later.
+        if (lastModified <= 0L) {
+            return;
+        }
+
+        Properties entries = getEntries();
+
+        if (entries == null) {
+            return;
+        }
+
+        entries.setProperty(key, lastModified + " " + itemPath);
+
+        if (scheduledWrite == null) {
+            scheduledWrite = writer.schedule(this::flush, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the index out to the file now if there are any entries that
+     * haven't been written yet.
+     */
+    void flush() {
+        Path file;
+        Properties snapshot = new Properties();
+
+        // Copies so that the lookups aren't blocked while writing.
+        synchronized (this) {
+            if (scheduledWrite == null || entries == null) {
+                return;
+            }
+
+            scheduledWrite.cancel(false);
+            scheduledWrite = null;
+            file = this.file;
+            snapshot.putAll(entries);
+        }
+
+        try {
+            Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), ".dari-cdn-", ".tmp");
+
+            try {
+                try (OutputStream output = Files.newOutputStream(temporary)) {
+                    snapshot.store(output, null);
+                }
+
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+
+        } catch (IOException error) {
+            LOGGER.warn(String.format("Can't write the CDN hash index to [%s]!", file), error);
+        }
+    }
+
+    // Loads the index lazily since the settings may not be available when
+    // this class is initialized.
+    private Properties getEntries() {
+        String fileSetting = Settings.get(String.class, FILE_SETTING);
+
+        if (ObjectUtils.isBlank(fileSetting)) {
+            return null;
+        }
+
+        Path newFile = Paths.get(fileSetting);
+
+        if (!newFile.equals(file)) {
+            file = newFile;
+            entries = new Properties();
+
+            // The entries for the previous file are discarded.
+            if (scheduledWrite != null) {
+                scheduledWrite.cancel(false);
+                scheduledWrite = null;
+            }
+
+            try (InputStream input = Files.newInputStream(file)) {
+                entries.load(input);
+
+            } catch (NoSuchFileException error) {
+                // Nothing uploaded yet.
+
+            } catch (IOException error) {
+                LOGGER.warn(String.format("Can't read the CDN hash index from [%s]!", file), error);
+            }
+        }
+
+        return entries;
+    }
+}
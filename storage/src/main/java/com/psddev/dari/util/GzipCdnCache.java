@@ -1,7 +1,7 @@
 package com.psddev.dari.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -25,13 +25,7 @@ class GzipCdnCache extends CdnCache {
     }
 
     @Override
-    protected byte[] transformItemContent(byte[] content) throws IOException {
-        ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
-
-        try (GZIPOutputStream gzipOutput = new GZIPOutputStream(byteOutput)) {
-            gzipOutput.write(content);
-        }
-
-        return byteOutput.toByteArray();
+    protected OutputStream transformItemOutput(OutputStream output) throws IOException {
+        return new GZIPOutputStream(output);
     }
 }
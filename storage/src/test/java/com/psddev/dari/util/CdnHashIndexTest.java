@@ -0,0 +1,73 @@
+package com.psddev.dari.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CdnHashIndexTest {
+
+    private Path directory;
+    private CdnHashIndex index;
+
+    @Before
+    public void before() throws IOException {
+        directory = Files.createTempDirectory("dari-cdn-hash-index-test");
+        Settings.setOverride(CdnHashIndex.FILE_SETTING, directory.resolve("index").toString());
+        index = CdnHashIndex.getInstance();
+    }
+
+    @After
+    public void after() throws IOException {
+        Settings.setOverride(CdnHashIndex.FILE_SETTING, null);
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Test
+    public void getUnchanged() {
+        index.put("key", 10L, "path");
+
+        assertEquals("path", index.get("key", 10L));
+        assertNull(index.get("key", 11L));
+        assertNull(index.get("other", 10L));
+    }
+
+    @Test
+    public void skipsUnknownLastModified() {
+        index.put("key", 0L, "path");
+
+        assertNull(index.get("key", 0L));
+    }
+
+    @Test
+    public void writesInBatches() throws IOException {
+        Path file = directory.resolve("index");
+
+        index.put("a", 10L, "a-path");
+        index.put("b", 20L, "b-path");
+
+        assertFalse(Files.exists(file));
+
+        index.flush();
+
+        assertTrue(Files.exists(file));
+
+        // Reloads when the setting points to another file.
+        Path copy = directory.resolve("copy");
+
+        Files.copy(file, copy);
+        Settings.setOverride(CdnHashIndex.FILE_SETTING, copy.toString());
+
+        assertEquals("a-path", index.get("a", 10L));
+        assertEquals("b-path", index.get("b", 20L));
+    }
+}
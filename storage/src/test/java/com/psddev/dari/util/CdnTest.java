@@ -0,0 +1,155 @@
+package com.psddev.dari.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class CdnTest {
+
+    private static final String STORAGE = "cdnTest";
+
+    private Path directory;
+
+    @Before
+    public void before() throws IOException {
+        directory = Files.createTempDirectory("dari-cdn-test");
+
+        Settings.setOverride(StorageItem.SETTING_PREFIX + "/" + STORAGE + "/class", LocalStorageItem.class.getName());
+        Settings.setOverride(StorageItem.SETTING_PREFIX + "/" + STORAGE + "/" + LocalStorageItem.ROOT_PATH_SETTING, directory.resolve("storage").toString());
+        Settings.setOverride(StorageItem.SETTING_PREFIX + "/" + STORAGE + "/" + AbstractStorageItem.BASE_URL_SUB_SETTING, "http://localhost/storage");
+        Settings.setOverride(CdnHashIndex.FILE_SETTING, directory.resolve("index").toString());
+    }
+
+    @After
+    public void after() throws IOException {
+        Settings.setOverride(StorageItem.SETTING_PREFIX + "/" + STORAGE + "/class", null);
+        Settings.setOverride(StorageItem.SETTING_PREFIX + "/" + STORAGE + "/" + LocalStorageItem.ROOT_PATH_SETTING, null);
+        Settings.setOverride(StorageItem.SETTING_PREFIX + "/" + STORAGE + "/" + AbstractStorageItem.BASE_URL_SUB_SETTING, null);
+        Settings.setOverride(CdnHashIndex.FILE_SETTING, null);
+        Settings.setOverride(Cdn.MANIFEST_SETTING, null);
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Test
+    public void uploadsUnchangedFileOnce() {
+        FakeCdnContext context = new FakeCdnContext("a");
+
+        context.put("/script.js", "alert(1);", 1000L);
+
+        StorageItem item = new CdnCache().get(STORAGE, context, "/script.js");
+
+        assertNotNull(item);
+        assertTrue(item.isInStorage());
+        assertEquals(1, context.getOpens());
+
+        // A new cache, like after a restart, finds the upload in the index.
+        StorageItem indexed = new CdnCache().get(STORAGE, context, "/script.js");
+
+        assertEquals(item.getPath(), indexed.getPath());
+        assertEquals(1, context.getOpens());
+
+        // Modified since.
+        context.put("/script.js", "alert(2);", 2000L);
+
+        assertFalse(item.getPath().equals(new CdnCache().get(STORAGE, context, "/script.js").getPath()));
+        assertEquals(2, context.getOpens());
+    }
+
+    @Test
+    public void unknownLastModifiedNotIndexed() {
+        FakeCdnContext context = new FakeCdnContext("a");
+
+        context.put("/script.js", "alert(1);", 0L);
+
+        assertNotNull(new CdnCache().get(STORAGE, context, "/script.js"));
+        assertNotNull(new CdnCache().get(STORAGE, context, "/script.js"));
+        assertEquals(2, context.getOpens());
+    }
+
+    @Test
+    public void preloadsOncePerEqualContext() {
+        Settings.setOverride(Cdn.MANIFEST_SETTING, "/manifest.txt");
+
+        // Kept reachable since the preloaded contexts are weakly referenced.
+        FakeCdnContext context = new FakeCdnContext("preload");
+        FakeCdnContext other = new FakeCdnContext("other");
+
+        assertTrue(Cdn.preloadManifestOnce(context));
+        assertFalse(Cdn.preloadManifestOnce(new FakeCdnContext("preload")));
+        assertTrue(Cdn.preloadManifestOnce(other));
+        assertFalse(Cdn.preloadManifestOnce(context));
+        assertFalse(Cdn.preloadManifestOnce(other));
+    }
+
+    private static class FakeCdnContext implements CdnContext {
+
+        private final String pathPrefix;
+        private final Map<String, String> contents = new HashMap<>();
+        private final Map<String, Long> lastModifieds = new HashMap<>();
+        private final AtomicInteger opens = new AtomicInteger();
+
+        public FakeCdnContext(String pathPrefix) {
+            this.pathPrefix = pathPrefix;
+        }
+
+        public void put(String servletPath, String content, long lastModified) {
+            contents.put(servletPath, content);
+            lastModifieds.put(servletPath, lastModified);
+        }
+
+        public int getOpens() {
+            return opens.get();
+        }
+
+        @Override
+        public long getLastModified(String servletPath) {
+            return lastModifieds.getOrDefault(servletPath, 0L);
+        }
+
+        @Override
+        public InputStream open(String servletPath) throws IOException {
+            String content = contents.get(servletPath);
+
+            if (content == null) {
+                throw new FileNotFoundException(servletPath);
+            }
+
+            opens.incrementAndGet();
+            return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String getPathPrefix() {
+            return pathPrefix;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return this == other
+                    || (other instanceof FakeCdnContext
+                    && pathPrefix.equals(((FakeCdnContext) other).pathPrefix));
+        }
+
+        @Override
+        public int hashCode() {
+            return pathPrefix.hashCode();
+        }
+    }
+}
@@ -146,6 +146,20 @@ public class JsonProcessor {
         }
     }
 
+    /**
+     * Reads the value at the current token of the given {@code parser} into
+     * an object, the same way as the other {@code parse} methods.
+     *
+     * <p>This lets the callers stream through a large JSON document and
+     * only build the objects for the parts that they need. The parser
+     * should be created using {@link #getJsonFactory}.</p>
+     *
+     * @param parser Nonnull.
+     */
+    public Object parse(JsonParser parser) throws IOException {
+        return readAny(parser);
+    }
+
     // Parses the given source.
     private Object parseAny(Object source) throws IOException {
         if (source != null) {
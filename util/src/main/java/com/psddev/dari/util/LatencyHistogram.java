@@ -0,0 +1,178 @@
+package com.psddev.dari.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, fixed-size histogram of latencies in microseconds that's used
+ * by {@link Stats} to calculate percentiles.
+ *
+ * <p>The buckets are log-linear: each power of 2 is split into
+ * {@value #SUB_BUCKET_COUNT} linear sub-buckets, so any value is within
+ * about 6% of its bucket. Values below {@code 2 * SUB_BUCKET_COUNT} are
+ * exact, and values above about 38 hours are clamped.</p>
+ *
+ * <p>A rolling histogram splits its window into a ring of slots. Each slot
+ * is cleared by the first recording that moves it to a new period, so the
+ * percentiles always cover between the window and one more slot. A few
+ * recordings that race with the clearing may be lost, which is acceptable
+ * for statistics. Recording never allocates.</p>
+ */
+final class LatencyHistogram {
+
+    public static final int SUB_BUCKET_BITS = 4;
+    public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    public static final int MAXIMUM_EXPONENT = 36;
+    public static final int BUCKET_COUNT = (MAXIMUM_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private static final int ROLLING_SLOTS = 5;
+
+    private final int slots;
+    private final long slotNanos;
+    private final AtomicLongArray epochs;
+    private final AtomicLongArray counts;
+
+    /**
+     * Creates a rolling histogram that covers the given
+     * {@code windowSeconds}.
+     *
+     * @param windowSeconds Must be positive.
+     */
+    public LatencyHistogram(double windowSeconds) {
+        this(ROLLING_SLOTS, Math.max(1L, (long) (windowSeconds * 1e9 / (ROLLING_SLOTS - 1))));
+    }
+
+    /**
+     * Creates a histogram that covers everything that's ever been recorded.
+     */
+    public LatencyHistogram() {
+        this(1, 0L);
+    }
+
+    private LatencyHistogram(int slots, long slotNanos) {
+        this.slots = slots;
+        this.slotNanos = slotNanos;
+        this.epochs = new AtomicLongArray(slots);
+        this.counts = new AtomicLongArray(slots * BUCKET_COUNT);
+
+        for (int i = 0; i < slots; ++ i) {
+            epochs.set(i, Long.MIN_VALUE);
+        }
+    }
+
+    /**
+     * Returns the index of the bucket that the given {@code value} belongs
+     * to.
+     */
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return value < 0 ? 0 : (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+
+        if (exponent > MAXIMUM_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT
+                + (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1));
+    }
+
+    /**
+     * Returns the smallest value in the bucket at the given {@code index}.
+     */
+    static long getBucketLowerBound(int index) {
+        int octave = index >> SUB_BUCKET_BITS;
+        int sub = index & (SUB_BUCKET_COUNT - 1);
+
+        return octave == 0 ? sub : (long) (SUB_BUCKET_COUNT + sub) << (octave - 1);
+    }
+
+    /**
+     * Returns the largest value in the bucket at the given {@code index}.
+     */
+    static long getBucketUpperBound(int index) {
+        int octave = index >> SUB_BUCKET_BITS;
+        int sub = index & (SUB_BUCKET_COUNT - 1);
+
+        return octave == 0 ? sub : ((long) (SUB_BUCKET_COUNT + sub + 1) << (octave - 1)) - 1;
+    }
+
+    /**
+     * Records the given {@code value} at the given {@code time}.
+     *
+     * @param time In nanoseconds, as returned by {@link System#nanoTime}.
+     * @param value In microseconds.
+     */
+    public void record(long time, long value) {
+        int slot = 0;
+
+        if (slotNanos > 0) {
+            long period = Math.floorDiv(time, slotNanos);
+            slot = (int) Math.floorMod(period, (long) slots);
+            long epoch = epochs.get(slot);
+
+            if (epoch < period && epochs.compareAndSet(slot, epoch, period)) {
+                for (int i = slot * BUCKET_COUNT, end = i + BUCKET_COUNT; i < end; ++ i) {
+                    counts.set(i, 0L);
+                }
+            }
+        }
+
+        counts.incrementAndGet(slot * BUCKET_COUNT + getBucketIndex(value));
+    }
+
+    /**
+     * Returns the values at the given {@code percentiles} as of the given
+     * {@code time}.
+     *
+     * @param time In nanoseconds, as returned by {@link System#nanoTime}.
+     * @param percentiles Each between {@code 0} and {@code 100}.
+     * @return In microseconds. {@link Double#NaN} if nothing's been
+     *         recorded within the window.
+     */
+    public double[] getPercentiles(long time, double... percentiles) {
+        long[] totals = new long[BUCKET_COUNT];
+        long total = 0L;
+        long period = slotNanos > 0 ? Math.floorDiv(time, slotNanos) : 0L;
+
+        for (int slot = 0; slot < slots; ++ slot) {
+            if (slotNanos > 0) {
+                long epoch = epochs.get(slot);
+
+                if (epoch <= period - slots || epoch > period) {
+                    continue;
+                }
+            }
+
+            for (int i = 0, offset = slot * BUCKET_COUNT; i < BUCKET_COUNT; ++ i) {
+                long count = counts.get(offset + i);
+                totals[i] += count;
+                total += count;
+            }
+        }
+
+        double[] values = new double[percentiles.length];
+
+        for (int p = 0, length = percentiles.length; p < length; ++ p) {
+            if (total == 0L) {
+                values[p] = Double.NaN;
+                continue;
+            }
+
+            long rank = Math.max(1L, (long) Math.ceil(percentiles[p] / 100.0 * total));
+            long cumulative = 0L;
+
+            for (int i = 0; i < BUCKET_COUNT; ++ i) {
+                cumulative += totals[i];
+
+                if (cumulative >= rank) {
+                    values[p] = (getBucketLowerBound(i) + getBucketUpperBound(i)) / 2.0;
+                    break;
+                }
+            }
+        }
+
+        return values;
+    }
+}
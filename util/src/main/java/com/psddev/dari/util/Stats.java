@@ -211,7 +211,7 @@ public class Stats {
 
             } else {
                 getTotalMeasurement().update(end, duration, count);
-                getMeasurements().get(operation).update(end, duration, count);
+                measurements.getUnchecked(operation).update(end, duration, count);
                 return duration;
             }
         }
@@ -228,6 +228,8 @@ public class Stats {
         private final AtomicDouble totalDuration = new AtomicDouble();
         private final List<ExponentialMovingAverage> countAverages = new ArrayList<ExponentialMovingAverage>();
         private final List<ExponentialMovingAverage> durationAverages = new ArrayList<ExponentialMovingAverage>();
+        private final List<LatencyHistogram> durationHistograms = new ArrayList<LatencyHistogram>();
+        private final LatencyHistogram overallDurationHistogram = new LatencyHistogram();
 
         {
             double keepDuration = getKeepDuration();
@@ -236,6 +238,7 @@ public class Stats {
             for (double averageInterval : getAverageIntervals()) {
                 countAverages.add(new ExponentialMovingAverage(keepDuration, measureInterval, averageInterval));
                 durationAverages.add(new ExponentialMovingAverage(keepDuration, measureInterval, averageInterval));
+                durationHistograms.add(new LatencyHistogram(averageInterval));
             }
         }
 
@@ -270,6 +273,37 @@ public class Stats {
             return durationAverages.get(intervalIndex).getCurrentAverage() / getCurrentCountAverage(intervalIndex);
         }
 
+        /**
+         * Returns the duration percentiles over the interval identified by
+         * the given {@code intervalIndex}.
+         *
+         * @param percentiles Each between {@code 0} and {@code 100}.
+         * @return In seconds, in the same order as the given
+         *         {@code percentiles}. Never {@code null}.
+         */
+        public double[] getCurrentDurationPercentiles(int intervalIndex, double... percentiles) {
+            return toSeconds(durationHistograms.get(intervalIndex).getPercentiles(System.nanoTime(), percentiles));
+        }
+
+        /**
+         * Returns the overall duration percentiles.
+         *
+         * @param percentiles Each between {@code 0} and {@code 100}.
+         * @return In seconds, in the same order as the given
+         *         {@code percentiles}. Never {@code null}.
+         */
+        public double[] getOverallDurationPercentiles(double... percentiles) {
+            return toSeconds(overallDurationHistogram.getPercentiles(System.nanoTime(), percentiles));
+        }
+
+        private double[] toSeconds(double[] micros) {
+            for (int i = 0, length = micros.length; i < length; ++ i) {
+                micros[i] /= 1e6;
+            }
+
+            return micros;
+        }
+
         /**
          * Returns all count averages.
          *
@@ -306,13 +340,16 @@ public class Stats {
             totalCount.addAndGet(count);
             totalDuration.addAndGet(duration);
 
-            for (ExponentialMovingAverage countAverage : countAverages) {
-                countAverage.updateAt(end, count);
-            }
+            long durationMicros = (long) (duration * 1e6);
 
-            for (ExponentialMovingAverage durationAverage : durationAverages) {
-                durationAverage.updateAt(end, duration);
+            // Indexed loops so that the timer doesn't allocate any iterators.
+            for (int i = 0, size = countAverages.size(); i < size; ++ i) {
+                countAverages.get(i).updateAt(end, count);
+                durationAverages.get(i).updateAt(end, duration);
+                durationHistograms.get(i).record(end, durationMicros);
             }
+
+            overallDurationHistogram.record(end, durationMicros);
         }
     }
 
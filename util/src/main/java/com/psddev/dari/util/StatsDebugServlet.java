@@ -15,6 +15,8 @@ import javax.servlet.http.HttpServletResponse;
 @SuppressWarnings("serial")
 public class StatsDebugServlet extends DebugServlet {
 
+    private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9 };
+
     private enum Type {
         COUNT,
         DURATION
@@ -40,6 +42,12 @@ public class StatsDebugServlet extends DebugServlet {
         WebPageContext page = new WebPageContext(getServletContext(), request, response);
         Type type = page.param(Type.class, "type");
 
+        if ("text".equals(page.param(String.class, "format"))) {
+            response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+            writeText(response.getWriter());
+            return;
+        }
+
         if (type != null) {
             String statsName = page.param(String.class, "stats");
 
@@ -166,6 +174,10 @@ public class StatsDebugServlet extends DebugServlet {
                     write("var context = cubism.context().serverDelay(0).clientDelay(0).step(5e3).size(maxDataSize);");
                 writeEnd();
 
+                writeStart("p");
+                    writeStart("a", "href", page.url(null, "format", "text")).writeHtml("Export as Text").writeEnd();
+                writeEnd();
+
                 for (Iterator<Stats> i = Stats.Static.getAll().iterator(); i.hasNext();) {
                     Stats stats = i.next();
                     String statsName = stats.getName();
@@ -249,6 +261,40 @@ public class StatsDebugServlet extends DebugServlet {
                         writeEnd();
                     writeEnd();
 
+                    writeStart("h3").writeHtml("Latency Percentiles").writeEnd();
+                    writeStart("table", "class", "table table-condensed");
+                        writeStart("thead");
+                            writeStart("tr");
+                                writeStart("th").writeHtml("Operation").writeEnd();
+                                for (double averageInterval : stats.getAverageIntervals()) {
+                                    writeStart("th", "colspan", PERCENTILES.length).writeHtml("Over ").writeObject((int) averageInterval).writeHtml("s").writeEnd();
+                                }
+                                writeStart("th", "colspan", PERCENTILES.length).writeHtml("Over All").writeEnd();
+                            writeEnd();
+                            writeStart("tr");
+                                writeStart("th").writeEnd();
+                                for (int j = 0, size = stats.getAverageIntervals().size(); j <= size; ++ j) {
+                                    for (double percentile : PERCENTILES) {
+                                        writeStart("th").writeHtml("p").writeHtml(formatPercentile(percentile).replace(".", "")).writeEnd();
+                                    }
+                                }
+                            writeEnd();
+                        writeEnd();
+                        writeStart("tbody");
+                            for (Map.Entry<String, Stats.Measurement> entry : stats.getMeasurements().entrySet()) {
+                                Stats.Measurement measurement = entry.getValue();
+
+                                writeStart("tr");
+                                    writeStart("th").writeHtml(entry.getKey()).writeEnd();
+                                    for (int j = 0, size = stats.getAverageIntervals().size(); j < size; ++ j) {
+                                        writePercentiles(measurement.getCurrentDurationPercentiles(j, PERCENTILES));
+                                    }
+                                    writePercentiles(measurement.getOverallDurationPercentiles(PERCENTILES));
+                                writeEnd();
+                            }
+                        writeEnd();
+                    writeEnd();
+
                     if (i.hasNext()) {
                         writeElement("hr");
                     }
@@ -274,6 +320,18 @@ public class StatsDebugServlet extends DebugServlet {
                 writeEnd();
             }
 
+            private void writePercentiles(double[] durations) throws IOException {
+                for (double duration : durations) {
+                    writeStart("td");
+                        if (Double.isNaN(duration)) {
+                            writeStart("span", "class", "label").writeHtml("N/A").writeEnd();
+                        } else {
+                            writeObject(duration * 1e3).writeHtml("ms");
+                        }
+                    writeEnd();
+                }
+            }
+
             private void writeCountAndDuration(Stats stats, String operation, int intervalIndex, double count, double duration) throws IOException {
                 boolean link = intervalIndex >= 0;
                 String statsName = stats.getName();
@@ -305,4 +363,70 @@ public class StatsDebugServlet extends DebugServlet {
             }
         };
     }
+
+    // Writes all measurements in the Prometheus text exposition format so
+    // that they can be scraped. The duration percentiles are gauges rather
+    // than a summary, since the windowed measurements don't keep the duration
+    // sum and count that a summary requires.
+    private void writeText(PrintWriter writer) {
+        writer.write("# TYPE dari_stats_count counter\n");
+
+        for (Stats stats : Stats.Static.getAll()) {
+            for (Map.Entry<String, Stats.Measurement> entry : stats.getMeasurements().entrySet()) {
+                writer.write("dari_stats_count{");
+                writeLabels(writer, stats, entry.getKey());
+                writer.write("} ");
+                writer.write(String.valueOf(entry.getValue().getOverallTotalCount()));
+                writer.write("\n");
+            }
+        }
+
+        writer.write("# TYPE dari_stats_duration_seconds gauge\n");
+
+        for (Stats stats : Stats.Static.getAll()) {
+            List<Double> averageIntervals = stats.getAverageIntervals();
+
+            for (Map.Entry<String, Stats.Measurement> entry : stats.getMeasurements().entrySet()) {
+                Stats.Measurement measurement = entry.getValue();
+
+                for (int i = 0, size = averageIntervals.size(); i <= size; ++ i) {
+                    String window = i < size ? String.valueOf(averageIntervals.get(i).intValue()) : "all";
+                    double[] durations = i < size
+                            ? measurement.getCurrentDurationPercentiles(i, PERCENTILES)
+                            : measurement.getOverallDurationPercentiles(PERCENTILES);
+
+                    for (int p = 0, length = PERCENTILES.length; p < length; ++ p) {
+                        writer.write("dari_stats_duration_seconds{");
+                        writeLabels(writer, stats, entry.getKey());
+                        writer.write(",window=\"");
+                        writer.write(window);
+                        writer.write("\",quantile=\"");
+                        writer.write(formatPercentile(PERCENTILES[p] / 100.0));
+                        writer.write("\"} ");
+                        writer.write(Double.isNaN(durations[p]) ? "NaN" : String.valueOf(durations[p]));
+                        writer.write("\n");
+                    }
+                }
+            }
+        }
+    }
+
+    private void writeLabels(PrintWriter writer, Stats stats, String operation) {
+        writer.write("stats=\"");
+        writer.write(escapeLabel(stats.getName()));
+        writer.write("\",operation=\"");
+        writer.write(escapeLabel(operation));
+        writer.write("\"");
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // Formats the given percentile without any trailing zeros.
+    private static String formatPercentile(double percentile) {
+        return percentile == Math.rint(percentile)
+                ? String.valueOf((long) percentile)
+                : String.valueOf(percentile);
+    }
 }
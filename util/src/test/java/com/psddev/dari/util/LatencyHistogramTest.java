@@ -0,0 +1,57 @@
+package com.psddev.dari.util;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketBounds() {
+        for (long value : new long[] { 0L, 1L, 15L, 16L, 31L, 32L, 1000L, 123456789L, 1L << 36 }) {
+            int index = LatencyHistogram.getBucketIndex(value);
+
+            assertThat(LatencyHistogram.getBucketLowerBound(index), lessThanOrEqualTo(value));
+            assertThat(LatencyHistogram.getBucketUpperBound(index), greaterThanOrEqualTo(value));
+        }
+    }
+
+    @Test
+    public void bucketClamp() {
+        assertThat(LatencyHistogram.getBucketIndex(-1L), is(0));
+        assertThat(LatencyHistogram.getBucketIndex(Long.MAX_VALUE), is(LatencyHistogram.BUCKET_COUNT - 1));
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (long i = 1; i <= 1000; ++ i) {
+            histogram.record(0L, i * 1000L);
+        }
+
+        double[] values = histogram.getPercentiles(0L, 50.0, 99.0);
+
+        assertThat(values[0], closeTo(500000.0, 500000.0 * 0.07));
+        assertThat(values[1], closeTo(990000.0, 990000.0 * 0.07));
+    }
+
+    @Test
+    public void empty() {
+        assertThat(new LatencyHistogram().getPercentiles(0L, 50.0)[0], is(Double.NaN));
+    }
+
+    @Test
+    public void rollingWindow() {
+        LatencyHistogram histogram = new LatencyHistogram(60.0);
+        long second = 1000000000L;
+
+        histogram.record(0L, 100L);
+        assertThat(histogram.getPercentiles(30 * second, 50.0)[0], closeTo(100.0, 7.0));
+
+        histogram.record(120 * second, 5000L);
+        assertThat(histogram.getPercentiles(120 * second, 50.0)[0], closeTo(5000.0, 350.0));
+        assertThat(histogram.getPercentiles(300 * second, 50.0)[0], is(Double.NaN));
+    }
+}